@@ -1,23 +1,91 @@
 package com.nivuk.agent;
 
-import java.util.Timer;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import com.nivuk.agent.collectors.Collector;
 import com.nivuk.agent.config.AgentConfig;
+import com.nivuk.agent.exporters.ExportPipeline;
+import com.nivuk.agent.exporters.MetricsExporter;
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.scheduler.AlignedScheduler;
+import com.nivuk.agent.scheduler.CollectorExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class AgentMain {
     private static final Logger logger = LoggerFactory.getLogger(AgentMain.class);
+    // Set when building the class data sharing archive: start up, run every task once and exit
+    static final String TRAINING_PROPERTY = "agent.cds.training";
 
     public static void main(String[] args) {
+        long start = System.nanoTime();
         AgentConfig config = AgentConfig.load();
         logger.info("Starting agent with collection interval={}",
             config.getCollectionIntervalSeconds());
 
-        MetricsCollectionTask job = new MetricsCollectionTask(
-            config.createCollectors(),
-            config.createExporters()
-        );
+        List<MetricsExporter> exporters = config.createExporters();
+        ExportPipeline pipeline = new ExportPipeline(exporters, config.getExportQueueCapacity(), config.getTelemetry());
+        var collectorsByInterval = config.createCollectorsByInterval();
+        ExecutorService collectorExecutor = CollectorExecutors.create(config.getCollectorThreads());
 
-        new Timer().schedule(job, 0, config.getCollectionIntervalSeconds() * 1000L);
+        Map<Integer, MetricsCollectionTask> tasks = new TreeMap<>();
+        collectorsByInterval.forEach((intervalSeconds, collectors) -> {
+            logger.info("Collecting {} every {}s", names(collectors), intervalSeconds);
+            tasks.put(intervalSeconds, new MetricsCollectionTask(collectors, pipeline, collectorExecutor,
+                config.getCollectorDeadlineMillis(intervalSeconds), config.createDeadbandFilter(),
+                config.getTelemetry()));
+        });
+
+        if (Boolean.getBoolean(TRAINING_PROPERTY)) {
+            tasks.values().forEach(Runnable::run);
+            pipeline.close();
+            logger.info("Training run complete in {} ms", millisSince(start));
+            System.exit(0);
+        }
+
+        AlignedScheduler scheduler = new AlignedScheduler(Math.max(1, tasks.size()));
+        String host = HostIdentity.local().current();
+        long maxJitterMillis = config.getJitterSeconds() * 1000L;
+        tasks.forEach((intervalSeconds, task) -> {
+            long periodMillis = intervalSeconds * 1000L;
+            scheduler.schedule("collect-" + intervalSeconds + "s", task, periodMillis,
+                AlignedScheduler.hostOffset(host, periodMillis, maxJitterMillis));
+        });
+
+        if (config.getHostRefreshSeconds() > 0) {
+            scheduleHostRefresh(config.getHostRefreshSeconds());
+        }
+        logger.info("Agent started in {} ms", millisSince(start));
+    }
+
+    // Resolution can block for seconds on a DNS timeout, so it gets its own thread rather
+    // than one of the collection ticks
+    private static void scheduleHostRefresh(int periodSeconds) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "host-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                HostIdentity.local().refresh();
+            } catch (RuntimeException e) {
+                logger.warn("Host name refresh failed", e);
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    private static List<String> names(List<Collector> collectors) {
+        return collectors.stream().map(collector -> collector.getClass().getSimpleName()).toList();
+    }
+
+    // Excludes JVM startup before main, which the uptime would include only by loading JMX
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
     }
 }
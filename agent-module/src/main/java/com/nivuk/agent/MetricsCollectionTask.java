@@ -2,35 +2,200 @@ package com.nivuk.agent;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.nivuk.agent.collectors.Collector;
+import com.nivuk.agent.exporters.DeadbandFilter;
+import com.nivuk.agent.exporters.ExportPipeline;
 import com.nivuk.agent.exporters.MetricsExporter;
-import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.exporters.SharedBatch;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import com.nivuk.agent.telemetry.Counter;
+import com.nivuk.agent.telemetry.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-public class MetricsCollectionTask extends TimerTask {
-    private final List<Collector> collectors;
+/**
+ * Runs one collection tick. With an executor, collectors run concurrently and each
+ * must finish within the deadline; a late collector's points are dropped, and it is
+ * skipped on later ticks until its run completes, so a hung collector never holds up
+ * the others or piles up threads. Without an executor, collectors run in turn on the
+ * calling thread. Points go either to each exporter in turn, or to an
+ * {@link ExportPipeline} that hands them to every exporter's own worker, optionally
+ * through a {@link DeadbandFilter} that drops unchanged samples first. The deadband is
+ * not applied while an exporter summarizes windows, whose minimum, maximum, sum and
+ * count must cover every sample.
+ */
+public class MetricsCollectionTask implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsCollectionTask.class);
+    private final List<CollectorRun> runs = new ArrayList<>();
     private final List<MetricsExporter> exporters;
+    private final ExportPipeline pipeline;
+    private final ExecutorService executor;
+    private final DeadbandFilter deadband;
+    private final long deadlineNanos;
+    private final Histogram tickTime;
+    // Reused across ticks; exporters must not hold on to it after export returns
+    private final MetricBatch batch = new MetricBatch();
+
+    private static final class CollectorRun {
+        final Collector collector;
+        // Owned by whichever thread is running the collector
+        final MetricBatch points = new MetricBatch();
+        final Histogram duration;
+        final Counter late;
+        Future<?> pending;
+        boolean submitted;
+
+        CollectorRun(Collector collector, AgentTelemetry telemetry) {
+            this.collector = collector;
+            this.duration = telemetry.timer("agent_collect_" + collector.name());
+            this.late = telemetry.counter("agent_collect_" + collector.name() + "_late");
+        }
+
+        void collect() {
+            points.clear();
+            long start = System.nanoTime();
+            try {
+                collector.collectInto(points);
+            } finally {
+                duration.record(System.nanoTime() - start);
+            }
+        }
+    }
 
     public MetricsCollectionTask(List<Collector> collectors, List<MetricsExporter> exporters) {
-        this.collectors = collectors;
-        this.exporters = exporters;
+        this(collectors, exporters, null, 0, new AgentTelemetry());
     }
 
     public MetricsCollectionTask(List<Collector> collectors, MetricsExporter exporter) {
-        this.collectors = collectors;
-        this.exporters = List.of(exporter);
+        this(collectors, List.of(exporter));
+    }
+
+    public MetricsCollectionTask(List<Collector> collectors, List<MetricsExporter> exporters,
+                                 ExecutorService executor, long deadlineMillis, AgentTelemetry telemetry) {
+        this(collectors, exporters, null, executor, deadlineMillis, null, telemetry);
+    }
+
+    public MetricsCollectionTask(List<Collector> collectors, ExportPipeline pipeline,
+                                 ExecutorService executor, long deadlineMillis, AgentTelemetry telemetry) {
+        this(collectors, pipeline, executor, deadlineMillis, null, telemetry);
+    }
+
+    /**
+     * @param deadband drops samples that need not be sent, or null to send every sample
+     */
+    public MetricsCollectionTask(List<Collector> collectors, ExportPipeline pipeline, ExecutorService executor,
+                                 long deadlineMillis, DeadbandFilter deadband, AgentTelemetry telemetry) {
+        this(collectors, List.of(), pipeline, executor, deadlineMillis, deadband, telemetry);
+    }
+
+    private MetricsCollectionTask(List<Collector> collectors, List<MetricsExporter> exporters, ExportPipeline pipeline,
+                                  ExecutorService executor, long deadlineMillis, DeadbandFilter deadband,
+                                  AgentTelemetry telemetry) {
+        for (Collector collector : collectors) {
+            runs.add(new CollectorRun(collector, telemetry));
+        }
+        this.exporters = exporters;
+        this.pipeline = pipeline;
+        this.executor = executor;
+        boolean summarizing = pipeline != null
+            ? pipeline.summarizesWindows()
+            : exporters.stream().anyMatch(MetricsExporter::summarizesWindows);
+        if (deadband != null && summarizing) {
+            logger.warn("Deadband disabled: window summaries are built from every sample");
+            deadband = null;
+        }
+        this.deadband = deadband;
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        this.tickTime = telemetry.timer("agent_collect_tick");
     }
 
     @Override
     public void run() {
-        List<Metric> metrics = new ArrayList<>();
-        for (Collector collector : collectors) {
-            metrics.addAll(collector.collect());
+        if (pipeline == null) {
+            batch.clear();
+            collect(batch);
+            for (MetricsExporter exporter : exporters) {
+                exporter.export(batch);
+            }
+            return;
+        }
+
+        SharedBatch shared = pipeline.acquire();
+        try {
+            collect(shared.batch());
+        } finally {
+            pipeline.publish(shared);
+        }
+    }
+
+    private void collect(MetricBatch batch) {
+        long start = System.nanoTime();
+        if (executor == null) {
+            collectInTurn(batch);
+        } else {
+            collectConcurrently(batch, start + deadlineNanos);
+        }
+        if (deadband != null) {
+            deadband.apply(batch);
+        }
+        tickTime.record(System.nanoTime() - start);
+    }
+
+    private void collectInTurn(MetricBatch batch) {
+        for (CollectorRun run : runs) {
+            try {
+                run.collect();
+                batch.addAll(run.points);
+            } catch (RuntimeException e) {
+                logger.error("Collector {} failed", run.collector.name(), e);
+            }
+        }
+    }
+
+    private void collectConcurrently(MetricBatch batch, long deadline) {
+        for (CollectorRun run : runs) {
+            run.submitted = false;
+            if (run.pending != null && !run.pending.isDone()) {
+                run.late.increment();
+                logger.warn("Collector {} is still running from an earlier tick, skipping it", run.collector.name());
+                continue;
+            }
+            try {
+                run.pending = executor.submit(run::collect);
+                run.submitted = true;
+            } catch (RejectedExecutionException e) {
+                logger.warn("No thread available for collector {}", run.collector.name());
+                run.pending = null;
+            }
         }
 
-        for (MetricsExporter exporter : exporters) {
-            exporter.export(metrics);
+        for (CollectorRun run : runs) {
+            if (!run.submitted) {
+                continue;
+            }
+            try {
+                run.pending.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                batch.addAll(run.points);
+            } catch (TimeoutException e) {
+                // Left running; its points are stale by the time it finishes
+                run.late.increment();
+                logger.warn("Collector {} missed its deadline", run.collector.name());
+                continue;
+            } catch (ExecutionException e) {
+                logger.error("Collector {} failed", run.collector.name(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            run.pending = null;
         }
     }
 }
@@ -1,8 +1,25 @@
 package com.nivuk.agent.collectors;
 
 import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
 import java.util.List;
+import java.util.Locale;
 
 public interface Collector {
     List<Metric> collect();
+
+    /**
+     * Appends the collected points to {@code batch}. The default adapts {@link #collect()};
+     * collectors on the hot path override this to write straight into the batch.
+     */
+    default void collectInto(MetricBatch batch) {
+        batch.addAll(collect());
+    }
+
+    /**
+     * Short name used in the agent's own telemetry, e.g. {@code cpu} for CpuCollector.
+     */
+    default String name() {
+        return getClass().getSimpleName().replace("Collector", "").toLowerCase(Locale.ROOT);
+    }
 }
@@ -1,25 +1,48 @@
 package com.nivuk.agent.collectors;
 
 import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
 
 import java.util.List;
 
 public class CpuCollector implements Collector {
     private final SystemInfoProvider systemInfo;
+    private final SeriesRegistry registry;
+    private SeriesDescriptor cpuSeries;
 
     public CpuCollector() {
-        this(new DefaultSystemInfoProvider());
+        this(SeriesRegistry.getDefault());
+    }
+
+    public CpuCollector(SeriesRegistry registry) {
+        this(new DefaultSystemInfoProvider(), registry);
     }
 
     // For testing
     CpuCollector(SystemInfoProvider systemInfo) {
+        this(systemInfo, SeriesRegistry.getDefault());
+    }
+
+    CpuCollector(SystemInfoProvider systemInfo, SeriesRegistry registry) {
         this.systemInfo = systemInfo;
+        this.registry = registry;
+        this.cpuSeries = registry.register("cpu", "p");
     }
 
     @Override
     public List<Metric> collect() {
         CpuMeasurement measurement = measureCpuLoad();
-        return List.of(new Metric("cpu", measurement.cpuLoad, "p"));
+        cpuSeries = registry.current(cpuSeries);
+        return List.of(new Metric(cpuSeries, measurement.cpuLoad));
+    }
+
+    @Override
+    public void collectInto(MetricBatch batch) {
+        CpuMeasurement measurement = measureCpuLoad();
+        cpuSeries = registry.current(cpuSeries);
+        batch.add(cpuSeries, measurement.timestamp / 1000, measurement.cpuLoad);
     }
 
     private record CpuMeasurement(double cpuLoad, long timestamp) {}
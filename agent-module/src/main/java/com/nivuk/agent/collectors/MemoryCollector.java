@@ -1,23 +1,52 @@
 package com.nivuk.agent.collectors;
 
 import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
 import java.util.List;
 import java.util.Arrays;
 
 public class MemoryCollector implements Collector {
     private static final double BYTES_TO_MB = 1024.0 * 1024.0;
 
+    private final SeriesRegistry registry;
+    private SeriesDescriptor freeSeries;
+    private SeriesDescriptor totalSeries;
+
     private record MemoryMeasurement(double freeMemoryMB, double totalMemoryMB, long timestamp) {}
 
+    public MemoryCollector() {
+        this(SeriesRegistry.getDefault());
+    }
+
+    public MemoryCollector(SeriesRegistry registry) {
+        this.registry = registry;
+        this.freeSeries = registry.register("mem_free", "m");
+        this.totalSeries = registry.register("mem_total", "m");
+    }
+
     @Override
     public List<Metric> collect() {
         MemoryMeasurement measurement = measureMemory();
+        freeSeries = registry.current(freeSeries);
+        totalSeries = registry.current(totalSeries);
         return Arrays.asList(
-            new Metric("mem_free", measurement.freeMemoryMB, "m"),
-            new Metric("mem_total", measurement.totalMemoryMB, "m")
+            new Metric(freeSeries, measurement.freeMemoryMB),
+            new Metric(totalSeries, measurement.totalMemoryMB)
         );
     }
 
+    @Override
+    public void collectInto(MetricBatch batch) {
+        MemoryMeasurement measurement = measureMemory();
+        freeSeries = registry.current(freeSeries);
+        totalSeries = registry.current(totalSeries);
+        long timestamp = measurement.timestamp / 1000;
+        batch.add(freeSeries, timestamp, measurement.freeMemoryMB);
+        batch.add(totalSeries, timestamp, measurement.totalMemoryMB);
+    }
+
     private MemoryMeasurement measureMemory() {
         Runtime runtime = Runtime.getRuntime();
         long currentTime = System.currentTimeMillis();
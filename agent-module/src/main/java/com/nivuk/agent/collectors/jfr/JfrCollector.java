@@ -0,0 +1,203 @@
+package com.nivuk.agent.collectors.jfr;
+
+import com.nivuk.agent.collectors.Collector;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesRegistry;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import com.nivuk.agent.telemetry.Counter;
+import com.nivuk.agent.telemetry.Summary;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * JVM runtime metrics from an in-process JFR event stream: GC pauses, allocation
+ * rate, safepoints, thread counts and monitor contention. Events are folded into
+ * per-interval summaries as they arrive, so a collection only drains counters and
+ * never queries MBeans. {@code jvm_lock_wait} counts only threads blocked entering a
+ * contended {@code synchronized} block; parking is left out, since idle pool threads
+ * park for as long as they have no work. The time this collector's handlers spend
+ * folding events is reported as {@code jvm_jfr_handler_time}, a percentage of
+ * wall-clock time. It does not include JFR's own cost of recording events and
+ * parsing the stream.
+ */
+public class JfrCollector implements Collector, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(JfrCollector.class);
+    private static final Duration CONTENTION_THRESHOLD = Duration.ofMillis(10);
+
+    private final AgentTelemetry instruments;
+    private final LongSupplier nanoTime;
+    private final RecordingStream stream;
+
+    private final Summary gcPauses;
+    private final Summary safepoints;
+    private final Summary safepointSync;
+    private final Summary lockWaits;
+    private final Counter events;
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder handlerNanos = new LongAdder();
+    private volatile long heapUsedAfterGc = -1;
+    private volatile long threads = -1;
+    private volatile long daemonThreads = -1;
+    private long lastAllocationNanos;
+    private long lastOverheadNanos;
+
+    public JfrCollector() {
+        this(Duration.ofSeconds(1));
+    }
+
+    /**
+     * @param period how often JFR samples thread counts; normally the collection interval
+     */
+    public JfrCollector(Duration period) {
+        this(SeriesRegistry.getDefault(), System::nanoTime, period, true);
+    }
+
+    // For testing
+    JfrCollector(SeriesRegistry registry, LongSupplier nanoTime, Duration period, boolean start) {
+        this.instruments = new AgentTelemetry(registry);
+        this.nanoTime = nanoTime;
+        this.lastAllocationNanos = nanoTime.getAsLong();
+        this.lastOverheadNanos = lastAllocationNanos;
+
+        gcPauses = instruments.summary("jvm_gc_pause", "us");
+        instruments.gauge("jvm_heap_used", "m", () -> heapUsedAfterGc < 0 ? Double.NaN : heapUsedAfterGc / (1024.0 * 1024.0));
+        instruments.gauge("jvm_alloc_rate", "b/s", this::allocationRate);
+        safepoints = instruments.summary("jvm_safepoint", "us");
+        safepointSync = instruments.summary("jvm_safepoint_sync", "us");
+        instruments.gauge("jvm_threads", "c", () -> threads < 0 ? Double.NaN : threads);
+        instruments.gauge("jvm_threads_daemon", "c", () -> daemonThreads < 0 ? Double.NaN : daemonThreads);
+        lockWaits = instruments.summary("jvm_lock_wait", "us");
+        events = instruments.counter("jvm_jfr_events");
+        instruments.gauge("jvm_jfr_handler_time", "p", this::handlerTimePercent);
+
+        this.stream = start ? open(period) : null;
+    }
+
+    @Override
+    public String name() {
+        return "jvm";
+    }
+
+    @Override
+    public synchronized List<Metric> collect() {
+        return instruments.collect();
+    }
+
+    @Override
+    public synchronized void collectInto(MetricBatch batch) {
+        instruments.collectInto(batch);
+    }
+
+    @Override
+    public void close() {
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    private RecordingStream open(Duration period) {
+        RecordingStream recording;
+        try {
+            recording = new RecordingStream();
+        } catch (RuntimeException | LinkageError e) {
+            // Native images built without JFR support, or JFR disabled on the command line
+            logger.warn("JFR is not available, JVM runtime metrics are disabled: {}", e.toString());
+            return null;
+        }
+        recording.setReuse(true);
+        recording.setOrdered(false);
+        recording.setMaxAge(Duration.ofSeconds(30));
+
+        recording.enable("jdk.GarbageCollection");
+        recording.enable("jdk.GCHeapSummary");
+        recording.enable("jdk.ObjectAllocationSample");
+        recording.enable("jdk.ExecuteVMOperation").withThreshold(Duration.ZERO);
+        recording.enable("jdk.SafepointStateSynchronization").withThreshold(Duration.ZERO);
+        recording.enable("jdk.JavaThreadStatistics").withPeriod(period);
+        recording.enable("jdk.JavaMonitorEnter").withThreshold(CONTENTION_THRESHOLD);
+
+        on(recording, "jdk.GarbageCollection", event -> onGcPause(event.getLong("sumOfPauses")));
+        on(recording, "jdk.GCHeapSummary", event -> {
+            if ("After GC".equals(event.getString("when"))) {
+                onHeapAfterGc(event.getLong("heapUsed"));
+            }
+        });
+        on(recording, "jdk.ObjectAllocationSample", event -> onAllocation(event.getLong("weight")));
+        on(recording, "jdk.ExecuteVMOperation", event -> {
+            if (event.getBoolean("safepoint")) {
+                onSafepoint(event.getDuration().toNanos());
+            }
+        });
+        on(recording, "jdk.SafepointStateSynchronization", event -> onSafepointSync(event.getDuration().toNanos()));
+        on(recording, "jdk.JavaThreadStatistics",
+            event -> onThreadStatistics(event.getLong("activeCount"), event.getLong("daemonCount")));
+        on(recording, "jdk.JavaMonitorEnter", event -> onLockWait(event.getDuration().toNanos()));
+
+        recording.startAsync();
+        return recording;
+    }
+
+    // Times every handler for jvm_jfr_handler_time
+    private void on(RecordingStream recording, String eventName, Consumer<RecordedEvent> handler) {
+        recording.onEvent(eventName, event -> {
+            long start = nanoTime.getAsLong();
+            handler.accept(event);
+            events.increment();
+            handlerNanos.add(nanoTime.getAsLong() - start);
+        });
+    }
+
+    void onGcPause(long pauseNanos) {
+        gcPauses.record(pauseNanos / 1000);
+    }
+
+    void onHeapAfterGc(long usedBytes) {
+        heapUsedAfterGc = usedBytes;
+    }
+
+    void onAllocation(long bytes) {
+        allocatedBytes.add(bytes);
+    }
+
+    void onSafepoint(long durationNanos) {
+        safepoints.record(durationNanos / 1000);
+    }
+
+    void onSafepointSync(long durationNanos) {
+        safepointSync.record(durationNanos / 1000);
+    }
+
+    void onThreadStatistics(long active, long daemon) {
+        threads = active;
+        daemonThreads = daemon;
+    }
+
+    void onLockWait(long durationNanos) {
+        lockWaits.record(durationNanos / 1000);
+    }
+
+    private double allocationRate() {
+        long now = nanoTime.getAsLong();
+        long elapsed = now - lastAllocationNanos;
+        lastAllocationNanos = now;
+        long bytes = allocatedBytes.sumThenReset();
+        return elapsed <= 0 ? 0 : bytes * 1e9 / elapsed;
+    }
+
+    private double handlerTimePercent() {
+        long now = nanoTime.getAsLong();
+        long elapsed = now - lastOverheadNanos;
+        lastOverheadNanos = now;
+        long spent = handlerNanos.sumThenReset();
+        return elapsed <= 0 ? 0 : spent * 100.0 / elapsed;
+    }
+}
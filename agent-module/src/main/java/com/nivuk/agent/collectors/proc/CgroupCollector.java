@@ -0,0 +1,547 @@
+package com.nivuk.agent.collectors.proc;
+
+import com.nivuk.agent.collectors.Collector;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.LongSupplier;
+
+/**
+ * Per-container CPU, memory, I/O and pressure from the cgroup v2 hierarchy. Containers
+ * are the cgroups whose directory name carries a 64-character hex ID, as created by
+ * Docker, containerd, CRI-O and Podman, labelled with the first 12 characters of the
+ * ID. When the agent runs in its own cgroup namespace, the mount root is the agent's
+ * container and is reported as {@code container="self"}.
+ * <p>
+ * The hierarchy is walked again every {@code discoverySeconds}; between walks only the
+ * known containers' files are read, through channels kept open from one tick to the
+ * next up to {@code maxOpenFiles}. As in ProcessCollector, reading stops once the scan
+ * budget for the tick is spent and resumes with the next container on the following
+ * tick. Counters are reported as rates over the time since that container was last
+ * read, so a container's first read only primes them. The series of a container are
+ * released once a discovery no longer finds it.
+ */
+public class CgroupCollector implements Collector {
+    private static final Logger logger = LoggerFactory.getLogger(CgroupCollector.class);
+    static final Path DEFAULT_ROOT = Path.of("/sys/fs/cgroup");
+    private static final double MB = 1024.0 * 1024.0;
+    // Below any container cgroup on common layouts, e.g. kubepods.slice/<qos>/<pod>/<container>
+    private static final int MAX_DEPTH = 6;
+    private static final String SELF = "self";
+
+    // Files read for each container
+    private static final String[] FILES = {"cpu.stat", "memory.current", "memory.stat", "io.stat",
+        "cpu.pressure", "memory.pressure"};
+    private static final int CPU_STAT = 0;
+    private static final int MEMORY_CURRENT = 1;
+    private static final int MEMORY_STAT = 2;
+    private static final int IO_STAT = 3;
+    private static final int CPU_PRESSURE = 4;
+    private static final int MEMORY_PRESSURE = 5;
+
+    // Values read from the files; -1 when the file or field is absent
+    private static final int USAGE_USEC = 0;
+    private static final int PERIODS = 1;
+    private static final int THROTTLED_PERIODS = 2;
+    private static final int THROTTLED_USEC = 3;
+    private static final int MEMORY = 4;
+    private static final int ANON = 5;
+    private static final int FILE = 6;
+    private static final int MAJOR_FAULTS = 7;
+    private static final int READ_BYTES = 8;
+    private static final int WRITTEN_BYTES = 9;
+    private static final int READS = 10;
+    private static final int WRITES = 11;
+    private static final int CPU_SOME_USEC = 12;
+    private static final int MEMORY_SOME_USEC = 13;
+    private static final int MEMORY_FULL_USEC = 14;
+    private static final int VALUES = 15;
+
+    private static final byte[] USAGE_USEC_KEY = ProcCollector.ascii("usage_usec");
+    private static final byte[] NR_PERIODS_KEY = ProcCollector.ascii("nr_periods");
+    private static final byte[] NR_THROTTLED_KEY = ProcCollector.ascii("nr_throttled");
+    private static final byte[] THROTTLED_USEC_KEY = ProcCollector.ascii("throttled_usec");
+    private static final byte[] ANON_KEY = ProcCollector.ascii("anon");
+    private static final byte[] FILE_KEY = ProcCollector.ascii("file");
+    private static final byte[] PGMAJFAULT_KEY = ProcCollector.ascii("pgmajfault");
+    private static final byte[] RBYTES_KEY = ProcCollector.ascii("rbytes=");
+    private static final byte[] WBYTES_KEY = ProcCollector.ascii("wbytes=");
+    private static final byte[] RIOS_KEY = ProcCollector.ascii("rios=");
+    private static final byte[] WIOS_KEY = ProcCollector.ascii("wios=");
+    private static final byte[] SOME_KEY = ProcCollector.ascii("some");
+    private static final byte[] FULL_KEY = ProcCollector.ascii("full");
+    private static final byte[] TOTAL_KEY = ProcCollector.ascii("total=");
+
+    private final Path root;
+    private final SeriesRegistry registry;
+    private final LongSupplier nanoTime;
+    private final double budgetFraction;
+    private final long discoveryNanos;
+    private final int maxOpenFiles;
+    private final ProcFile reader;
+    private final ProcParser parser = new ProcParser();
+    private final Map<Path, Container> containers = new HashMap<>();
+    private final MetricBatch scratch;
+    private final SeriesDescriptor containerCount;
+    private final SeriesDescriptor scannedCount;
+    private Container[] order = new Container[0];
+    private int next;
+    private int openFiles;
+    private long generation;
+    private long lastDiscoveryNanos;
+    private long lastCollectNanos = -1;
+    private boolean warned;
+
+    private final class Container {
+        final Path directory;
+        final String id;
+        final FileChannel[] channels = new FileChannel[FILES.length];
+        final long[] values = new long[VALUES];
+        final long[] previous = new long[VALUES];
+        long sampledNanos = -1;
+        long seenGeneration;
+        final List<SeriesDescriptor> series = new ArrayList<>();
+        final SeriesDescriptor cpu;
+        final SeriesDescriptor throttledPeriods;
+        final SeriesDescriptor throttled;
+        final SeriesDescriptor memory;
+        final SeriesDescriptor anon;
+        final SeriesDescriptor file;
+        final SeriesDescriptor majorFaults;
+        final SeriesDescriptor readBytes;
+        final SeriesDescriptor writtenBytes;
+        final SeriesDescriptor reads;
+        final SeriesDescriptor writes;
+        final SeriesDescriptor cpuPressure;
+        final SeriesDescriptor memoryPressure;
+        final SeriesDescriptor memoryFullPressure;
+
+        Container(Path directory, String id) {
+            this.directory = directory;
+            this.id = id;
+            this.cpu = register("container_cpu_usage", "p");
+            this.throttledPeriods = register("container_cpu_throttled_periods", "p");
+            this.throttled = register("container_cpu_throttled", "p");
+            this.memory = register("container_memory", "m");
+            this.anon = register("container_memory_anon", "m");
+            this.file = register("container_memory_file", "m");
+            this.majorFaults = register("container_memory_major_faults", "c/s");
+            this.readBytes = register("container_io_read_bytes", "b/s");
+            this.writtenBytes = register("container_io_written_bytes", "b/s");
+            this.reads = register("container_io_reads", "c/s");
+            this.writes = register("container_io_writes", "c/s");
+            this.cpuPressure = register("container_cpu_pressure", "p");
+            this.memoryPressure = register("container_memory_pressure", "p");
+            this.memoryFullPressure = register("container_memory_pressure_full", "p");
+        }
+
+        private SeriesDescriptor register(String name, String unit) {
+            SeriesDescriptor descriptor = registry.register(ProcCollector.labeled(name, "container", id), unit);
+            series.add(descriptor);
+            return descriptor;
+        }
+    }
+
+    public CgroupCollector() {
+        this(DEFAULT_ROOT, 0.02, 30, 512);
+    }
+
+    /**
+     * @param root             the cgroup v2 mount, e.g. the host's hierarchy mounted into the agent's container
+     * @param budgetFraction   share of one core the scan may use, e.g. 0.02 for 2%
+     * @param discoverySeconds how often the hierarchy is walked for new and removed containers
+     * @param maxOpenFiles     files kept open between ticks; any beyond are opened for each read
+     */
+    public CgroupCollector(Path root, double budgetFraction, int discoverySeconds, int maxOpenFiles) {
+        this(root, SeriesRegistry.getDefault(), System::nanoTime, budgetFraction, discoverySeconds, maxOpenFiles);
+    }
+
+    // For testing
+    CgroupCollector(Path root, SeriesRegistry registry, LongSupplier nanoTime, double budgetFraction,
+                    int discoverySeconds, int maxOpenFiles) {
+        if (budgetFraction <= 0 || budgetFraction > 1) {
+            throw new IllegalArgumentException("Scan budget must be a fraction of a core: " + budgetFraction);
+        }
+        this.root = root;
+        this.registry = registry;
+        this.nanoTime = nanoTime;
+        this.budgetFraction = budgetFraction;
+        this.discoveryNanos = discoverySeconds * 1_000_000_000L;
+        this.maxOpenFiles = maxOpenFiles;
+        this.reader = new ProcFile(root, 4096);
+        this.scratch = new MetricBatch(registry);
+        this.containerCount = registry.register("container_count", "c");
+        this.scannedCount = registry.register("container_scanned", "c");
+    }
+
+    @Override
+    public synchronized List<Metric> collect() {
+        scratch.clear();
+        collectInto(scratch);
+        return scratch.toMetrics();
+    }
+
+    @Override
+    public synchronized void collectInto(MetricBatch batch) {
+        long start = nanoTime.getAsLong();
+        long elapsed = lastCollectNanos < 0 ? 1_000_000_000L : start - lastCollectNanos;
+        lastCollectNanos = start;
+        long budgetNanos = (long) (elapsed * budgetFraction);
+
+        if (generation == 0 || start - lastDiscoveryNanos >= discoveryNanos) {
+            try {
+                discover();
+            } catch (IOException e) {
+                if (!warned) {
+                    logger.warn("Cannot read the cgroup v2 hierarchy at {}: {}", root, e.getMessage());
+                    warned = true;
+                }
+                return;
+            }
+            lastDiscoveryNanos = start;
+        }
+
+        long timestamp = Metric.currentTimestamp();
+        int scanned = scan(batch, timestamp, start, budgetNanos);
+        batch.add(registry.current(containerCount), timestamp, order.length);
+        batch.add(registry.current(scannedCount), timestamp, scanned);
+    }
+
+    private void discover() throws IOException {
+        if (!Files.exists(root.resolve("cgroup.controllers"))) {
+            throw new IOException("not a cgroup v2 mount");
+        }
+        generation++;
+        // Only non-root cgroups have memory.current, so the root is our own container
+        if (Files.exists(root.resolve("memory.current"))) {
+            found(root, SELF);
+        }
+        walk(root, 0);
+
+        List<Container> removed = new ArrayList<>();
+        Iterator<Container> iterator = containers.values().iterator();
+        while (iterator.hasNext()) {
+            Container container = iterator.next();
+            if (container.seenGeneration != generation) {
+                close(container);
+                iterator.remove();
+                removed.add(container);
+            }
+        }
+        for (Container container : removed) {
+            // Unless another cgroup of the same container still reports under its ID
+            if (containers.values().stream().noneMatch(other -> other.id.equals(container.id))) {
+                container.series.forEach(registry::release);
+            }
+        }
+        Container[] sorted = containers.values().toArray(new Container[0]);
+        Arrays.sort(sorted, Comparator.comparing(container -> container.id));
+        if (sorted.length != order.length || !Arrays.equals(sorted, order)) {
+            // Resume after the container read last, wherever it now sits
+            Container resume = order.length == 0 ? null : order[Math.floorMod(next - 1, order.length)];
+            order = sorted;
+            next = 0;
+            for (int i = 0; resume != null && i < order.length; i++) {
+                if (order[i].id.compareTo(resume.id) > 0) {
+                    next = i;
+                    break;
+                }
+            }
+        }
+    }
+
+    private void walk(Path directory, int depth) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                // Skip interface files such as cpu.stat without a stat call for each
+                if (isInterfaceFile(name) || !Files.isDirectory(entry)) {
+                    continue;
+                }
+                String id = containerId(name);
+                if (id != null) {
+                    found(entry, id);
+                } else if (depth < MAX_DEPTH) {
+                    walk(entry, depth + 1);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Removed while walking
+            if (depth == 0) {
+                throw e;
+            }
+        }
+    }
+
+    private void found(Path directory, String id) {
+        Container container = containers.get(directory);
+        if (container == null) {
+            container = new Container(directory, id);
+            containers.put(directory, container);
+        }
+        container.seenGeneration = generation;
+    }
+
+    // Reads containers round-robin from the one after the last read, until the budget is spent
+    private int scan(MetricBatch batch, long timestamp, long start, long budgetNanos) {
+        int scanned = 0;
+        while (scanned < order.length) {
+            Container container = order[next];
+            next = (next + 1) % order.length;
+            scanned++;
+            read(container, batch, timestamp);
+            if (nanoTime.getAsLong() - start >= budgetNanos) {
+                break;
+            }
+        }
+        return scanned;
+    }
+
+    private void read(Container container, MetricBatch batch, long timestamp) {
+        long[] values = container.values;
+        System.arraycopy(values, 0, container.previous, 0, VALUES);
+        Arrays.fill(values, -1);
+        for (int file = 0; file < FILES.length; file++) {
+            ByteBuffer content;
+            try {
+                content = read(container, file);
+            } catch (IOException e) {
+                if (file == CPU_STAT) {
+                    // The container is gone; the next discovery forgets it
+                    close(container);
+                    container.sampledNanos = -1;
+                    return;
+                }
+                // Controller not enabled, or pressure stall information turned off
+                continue;
+            }
+            parser.reset(content);
+            switch (file) {
+                case CPU_STAT -> parseCpuStat(values);
+                case MEMORY_CURRENT -> values[MEMORY] = parser.nextLong();
+                case MEMORY_STAT -> parseMemoryStat(values);
+                case IO_STAT -> parseIoStat(values);
+                case CPU_PRESSURE -> parsePressure(values, CPU_SOME_USEC, -1);
+                default -> parsePressure(values, MEMORY_SOME_USEC, MEMORY_FULL_USEC);
+            }
+        }
+        long now = nanoTime.getAsLong();
+        double elapsedSeconds = container.sampledNanos < 0 ? 0 : (now - container.sampledNanos) / 1e9;
+        container.sampledNanos = now;
+        report(container, batch, timestamp, elapsedSeconds);
+    }
+
+    private ByteBuffer read(Container container, int file) throws IOException {
+        FileChannel channel = container.channels[file];
+        if (channel == null) {
+            Path path = container.directory.resolve(FILES[file]);
+            if (openFiles >= maxOpenFiles) {
+                return reader.readOnce(path);
+            }
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            container.channels[file] = channel;
+            openFiles++;
+        }
+        try {
+            return reader.read(channel);
+        } catch (IOException e) {
+            close(container, file);
+            throw e;
+        }
+    }
+
+    private void parseCpuStat(long[] values) {
+        while (parser.hasMore()) {
+            if (parser.nextToken()) {
+                if (parser.tokenEquals(USAGE_USEC_KEY)) {
+                    values[USAGE_USEC] = parser.nextLong();
+                } else if (parser.tokenEquals(NR_PERIODS_KEY)) {
+                    values[PERIODS] = parser.nextLong();
+                } else if (parser.tokenEquals(NR_THROTTLED_KEY)) {
+                    values[THROTTLED_PERIODS] = parser.nextLong();
+                } else if (parser.tokenEquals(THROTTLED_USEC_KEY)) {
+                    values[THROTTLED_USEC] = parser.nextLong();
+                }
+            }
+            parser.nextLine();
+        }
+    }
+
+    private void parseMemoryStat(long[] values) {
+        while (parser.hasMore()) {
+            if (parser.nextToken()) {
+                if (parser.tokenEquals(ANON_KEY)) {
+                    values[ANON] = parser.nextLong();
+                } else if (parser.tokenEquals(FILE_KEY)) {
+                    values[FILE] = parser.nextLong();
+                } else if (parser.tokenEquals(PGMAJFAULT_KEY)) {
+                    values[MAJOR_FAULTS] = parser.nextLong();
+                }
+            }
+            parser.nextLine();
+        }
+    }
+
+    // 8:0 rbytes=1024 wbytes=0 rios=2 wios=0 dbytes=0 dios=0, summed over devices
+    private void parseIoStat(long[] values) {
+        values[READ_BYTES] = 0;
+        values[WRITTEN_BYTES] = 0;
+        values[READS] = 0;
+        values[WRITES] = 0;
+        while (parser.hasMore()) {
+            while (parser.nextToken()) {
+                addField(values, READ_BYTES, RBYTES_KEY);
+                addField(values, WRITTEN_BYTES, WBYTES_KEY);
+                addField(values, READS, RIOS_KEY);
+                addField(values, WRITES, WIOS_KEY);
+            }
+            parser.nextLine();
+        }
+    }
+
+    private void addField(long[] values, int index, byte[] key) {
+        if (parser.tokenStartsWith(key)) {
+            values[index] += Math.max(0, parser.tokenSuffixLong(key.length));
+        }
+    }
+
+    // some avg10=0.00 avg60=0.00 avg300=0.00 total=12345
+    private void parsePressure(long[] values, int some, int full) {
+        while (parser.hasMore()) {
+            int index = -1;
+            if (parser.nextToken()) {
+                index = parser.tokenEquals(SOME_KEY) ? some : parser.tokenEquals(FULL_KEY) ? full : -1;
+            }
+            while (index >= 0 && parser.nextToken()) {
+                if (parser.tokenStartsWith(TOTAL_KEY)) {
+                    values[index] = parser.tokenSuffixLong(TOTAL_KEY.length);
+                }
+            }
+            parser.nextLine();
+        }
+    }
+
+    private void report(Container container, MetricBatch batch, long timestamp, double elapsedSeconds) {
+        long[] values = container.values;
+        long[] previous = container.previous;
+        gauge(batch, container.memory, timestamp, values[MEMORY]);
+        gauge(batch, container.anon, timestamp, values[ANON]);
+        gauge(batch, container.file, timestamp, values[FILE]);
+        if (elapsedSeconds <= 0) {
+            return;
+        }
+        // Microseconds per second as a percentage of one core or of wall-clock time
+        percentOfTime(batch, container.cpu, timestamp, container, USAGE_USEC, elapsedSeconds);
+        percentOfTime(batch, container.throttled, timestamp, container, THROTTLED_USEC, elapsedSeconds);
+        percentOfTime(batch, container.cpuPressure, timestamp, container, CPU_SOME_USEC, elapsedSeconds);
+        percentOfTime(batch, container.memoryPressure, timestamp, container, MEMORY_SOME_USEC, elapsedSeconds);
+        percentOfTime(batch, container.memoryFullPressure, timestamp, container, MEMORY_FULL_USEC, elapsedSeconds);
+        if (values[PERIODS] >= 0 && previous[PERIODS] >= 0 && values[THROTTLED_PERIODS] >= 0
+            && previous[THROTTLED_PERIODS] >= 0) {
+            long periods = values[PERIODS] - previous[PERIODS];
+            long throttled = values[THROTTLED_PERIODS] - previous[THROTTLED_PERIODS];
+            add(batch, container.throttledPeriods, timestamp,
+                periods > 0 && throttled >= 0 ? throttled * 100.0 / periods : 0);
+        }
+        rate(batch, container.majorFaults, timestamp, container, MAJOR_FAULTS, elapsedSeconds);
+        rate(batch, container.readBytes, timestamp, container, READ_BYTES, elapsedSeconds);
+        rate(batch, container.writtenBytes, timestamp, container, WRITTEN_BYTES, elapsedSeconds);
+        rate(batch, container.reads, timestamp, container, READS, elapsedSeconds);
+        rate(batch, container.writes, timestamp, container, WRITES, elapsedSeconds);
+    }
+
+    private void gauge(MetricBatch batch, SeriesDescriptor series, long timestamp, long bytes) {
+        if (bytes >= 0) {
+            add(batch, series, timestamp, bytes / MB);
+        }
+    }
+
+    private void percentOfTime(MetricBatch batch, SeriesDescriptor series, long timestamp, Container container,
+                               int index, double elapsedSeconds) {
+        if (container.values[index] >= 0 && container.previous[index] >= 0) {
+            add(batch, series, timestamp,
+                ProcCollector.rate(container.values[index], container.previous[index], elapsedSeconds) / 10_000);
+        }
+    }
+
+    private void rate(MetricBatch batch, SeriesDescriptor series, long timestamp, Container container,
+                      int index, double elapsedSeconds) {
+        if (container.values[index] >= 0 && container.previous[index] >= 0) {
+            add(batch, series, timestamp,
+                ProcCollector.rate(container.values[index], container.previous[index], elapsedSeconds));
+        }
+    }
+
+    private void add(MetricBatch batch, SeriesDescriptor series, long timestamp, double value) {
+        batch.add(registry.current(series), timestamp, value);
+    }
+
+    private void close(Container container) {
+        for (int file = 0; file < FILES.length; file++) {
+            close(container, file);
+        }
+    }
+
+    private void close(Container container, int file) {
+        FileChannel channel = container.channels[file];
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing to do, the descriptor is released either way
+            }
+            container.channels[file] = null;
+            openFiles--;
+        }
+    }
+
+    private static boolean isInterfaceFile(String name) {
+        int dot = name.indexOf('.');
+        if (dot <= 0) {
+            return false;
+        }
+        return switch (name.substring(0, dot)) {
+            case "cgroup", "cpu", "cpuset", "io", "irq", "memory", "misc", "pids", "rdma", "hugetlb" -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * The first 12 characters of a 64-character hex ID in {@code name}, or null. Conmon,
+     * the CRI-O and Podman monitor, runs in a cgroup named after the container it watches.
+     */
+    static String containerId(String name) {
+        if (name.length() < 64 || name.contains("conmon")) {
+            return null;
+        }
+        int run = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')) {
+                if (++run == 64 && (i + 1 == name.length() || !isHex(name.charAt(i + 1)))) {
+                    return name.substring(i - 63, i - 51);
+                }
+            } else {
+                run = 0;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+    }
+}
@@ -0,0 +1,95 @@
+package com.nivuk.agent.collectors.proc;
+
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Per-device I/O rates and utilisation from /proc/diskstats. Loop and RAM devices
+ * are skipped.
+ */
+public class DiskstatsCollector extends ProcCollector {
+    private static final int SECTOR_BYTES = 512;
+    private static final byte[] LOOP = ascii("loop");
+    private static final byte[] RAM = ascii("ram");
+
+    // Field positions after major, minor and device name
+    private static final int READS = 0;
+    private static final int SECTORS_READ = 2;
+    private static final int WRITES = 4;
+    private static final int SECTORS_WRITTEN = 6;
+    private static final int IO_MILLIS = 9;
+    private static final int FIELDS = 10;
+
+    private final Map<String, Device> devices = new HashMap<>();
+
+    private final class Device {
+        final long[] counters = new long[FIELDS];
+        final SeriesDescriptor reads;
+        final SeriesDescriptor writes;
+        final SeriesDescriptor readBytes;
+        final SeriesDescriptor writtenBytes;
+        final SeriesDescriptor utilisation;
+        boolean primed;
+
+        Device(String name) {
+            this.reads = registry.register(labeled("host_disk_reads", "device", name), "c/s");
+            this.writes = registry.register(labeled("host_disk_writes", "device", name), "c/s");
+            this.readBytes = registry.register(labeled("host_disk_read_bytes", "device", name), "b/s");
+            this.writtenBytes = registry.register(labeled("host_disk_written_bytes", "device", name), "b/s");
+            this.utilisation = registry.register(labeled("host_disk_util", "device", name), "p");
+        }
+    }
+
+    public DiskstatsCollector() {
+        this(DEFAULT_ROOT, SeriesRegistry.getDefault(), System::nanoTime);
+    }
+
+    // For testing
+    DiskstatsCollector(Path root, SeriesRegistry registry, LongSupplier nanoTime) {
+        super(root.resolve("diskstats"), 8192, registry, nanoTime);
+    }
+
+    @Override
+    protected void parse(MetricBatch batch, long timestamp, double elapsedSeconds) {
+        while (parser.hasMore()) {
+            parser.nextLong();
+            parser.nextLong();
+            if (parser.nextToken() && !parser.tokenStartsWith(LOOP) && !parser.tokenStartsWith(RAM)) {
+                Device device = devices.computeIfAbsent(parser.tokenString(), Device::new);
+                readDevice(device, batch, timestamp, elapsedSeconds);
+            }
+            parser.nextLine();
+        }
+    }
+
+    private void readDevice(Device device, MetricBatch batch, long timestamp, double elapsedSeconds) {
+        long[] counters = device.counters;
+        long reads = counters[READS];
+        long sectorsRead = counters[SECTORS_READ];
+        long writes = counters[WRITES];
+        long sectorsWritten = counters[SECTORS_WRITTEN];
+        long ioMillis = counters[IO_MILLIS];
+        for (int i = 0; i < FIELDS; i++) {
+            counters[i] = Math.max(0, parser.nextLong());
+        }
+
+        if (device.primed && elapsedSeconds > 0) {
+            add(batch, device.reads, timestamp, rate(counters[READS], reads, elapsedSeconds));
+            add(batch, device.writes, timestamp, rate(counters[WRITES], writes, elapsedSeconds));
+            add(batch, device.readBytes, timestamp,
+                rate(counters[SECTORS_READ], sectorsRead, elapsedSeconds) * SECTOR_BYTES);
+            add(batch, device.writtenBytes, timestamp,
+                rate(counters[SECTORS_WRITTEN], sectorsWritten, elapsedSeconds) * SECTOR_BYTES);
+            // Milliseconds busy per millisecond elapsed
+            add(batch, device.utilisation, timestamp,
+                Math.min(100, rate(counters[IO_MILLIS], ioMillis, elapsedSeconds) / 10));
+        }
+        device.primed = true;
+    }
+}
@@ -0,0 +1,48 @@
+package com.nivuk.agent.collectors.proc;
+
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
+
+import java.nio.file.Path;
+import java.util.function.LongSupplier;
+
+/**
+ * Load averages and runnable/total task counts from /proc/loadavg.
+ */
+public class LoadavgCollector extends ProcCollector {
+    private final SeriesDescriptor load1;
+    private final SeriesDescriptor load5;
+    private final SeriesDescriptor load15;
+    private final SeriesDescriptor running;
+    private final SeriesDescriptor tasks;
+
+    public LoadavgCollector() {
+        this(DEFAULT_ROOT, SeriesRegistry.getDefault(), System::nanoTime);
+    }
+
+    // For testing
+    LoadavgCollector(Path root, SeriesRegistry registry, LongSupplier nanoTime) {
+        super(root.resolve("loadavg"), 256, registry, nanoTime);
+        this.load1 = registry.register("host_load1", "c");
+        this.load5 = registry.register("host_load5", "c");
+        this.load15 = registry.register("host_load15", "c");
+        this.running = registry.register("host_tasks_running", "c");
+        this.tasks = registry.register("host_tasks", "c");
+    }
+
+    @Override
+    protected void parse(MetricBatch batch, long timestamp, double elapsedSeconds) {
+        // 0.52 0.58 0.59 2/1234 5678
+        add(batch, load1, timestamp, parser.nextDecimal());
+        add(batch, load5, timestamp, parser.nextDecimal());
+        add(batch, load15, timestamp, parser.nextDecimal());
+        long runnable = parser.nextLong();
+        parser.skip('/');
+        long total = parser.nextLong();
+        if (runnable >= 0 && total >= 0) {
+            add(batch, running, timestamp, runnable);
+            add(batch, tasks, timestamp, total);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.nivuk.agent.collectors.proc;
+
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
+
+import java.nio.file.Path;
+import java.util.function.LongSupplier;
+
+/**
+ * Host memory from /proc/meminfo, in megabytes.
+ */
+public class MeminfoCollector extends ProcCollector {
+    private static final String[][] FIELDS = {
+        {"MemTotal", "host_mem_total"},
+        {"MemFree", "host_mem_free"},
+        {"MemAvailable", "host_mem_available"},
+        {"Buffers", "host_mem_buffers"},
+        {"Cached", "host_mem_cached"},
+        {"SwapTotal", "host_swap_total"},
+        {"SwapFree", "host_swap_free"},
+    };
+
+    private final byte[][] keys = new byte[FIELDS.length][];
+    private final SeriesDescriptor[] series = new SeriesDescriptor[FIELDS.length];
+
+    public MeminfoCollector() {
+        this(DEFAULT_ROOT, SeriesRegistry.getDefault(), System::nanoTime);
+    }
+
+    // For testing
+    MeminfoCollector(Path root, SeriesRegistry registry, LongSupplier nanoTime) {
+        super(root.resolve("meminfo"), 4096, registry, nanoTime);
+        for (int i = 0; i < FIELDS.length; i++) {
+            keys[i] = ascii(FIELDS[i][0]);
+            series[i] = registry.register(FIELDS[i][1], "m");
+        }
+    }
+
+    @Override
+    protected void parse(MetricBatch batch, long timestamp, double elapsedSeconds) {
+        while (parser.hasMore()) {
+            if (parser.nextToken()) {
+                for (int i = 0; i < keys.length; i++) {
+                    if (parser.tokenEquals(keys[i])) {
+                        // Values are in kB
+                        add(batch, series[i], timestamp, parser.nextLong() / 1024.0);
+                        break;
+                    }
+                }
+            }
+            parser.nextLine();
+        }
+    }
+}
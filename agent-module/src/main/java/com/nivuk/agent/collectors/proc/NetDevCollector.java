@@ -0,0 +1,84 @@
+package com.nivuk.agent.collectors.proc;
+
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Per-interface traffic, error and drop rates from /proc/net/dev.
+ */
+public class NetDevCollector extends ProcCollector {
+    // Receive fields come first, then the same layout for transmit
+    private static final int RX_BYTES = 0;
+    private static final int RX_PACKETS = 1;
+    private static final int RX_ERRORS = 2;
+    private static final int RX_DROPS = 3;
+    private static final int TX_BYTES = 8;
+    private static final int TX_PACKETS = 9;
+    private static final int TX_ERRORS = 10;
+    private static final int TX_DROPS = 11;
+    private static final int FIELDS = 16;
+    private static final int[] REPORTED = {RX_BYTES, RX_PACKETS, RX_ERRORS, RX_DROPS, TX_BYTES, TX_PACKETS, TX_ERRORS, TX_DROPS};
+    private static final String[] NAMES = {
+        "host_net_rx_bytes", "host_net_rx_packets", "host_net_rx_errors", "host_net_rx_drops",
+        "host_net_tx_bytes", "host_net_tx_packets", "host_net_tx_errors", "host_net_tx_drops"
+    };
+
+    private final Map<String, Interface> interfaces = new HashMap<>();
+
+    private final class Interface {
+        final long[] counters = new long[FIELDS];
+        final long[] previous = new long[FIELDS];
+        final SeriesDescriptor[] series = new SeriesDescriptor[REPORTED.length];
+        boolean primed;
+
+        Interface(String name) {
+            for (int i = 0; i < REPORTED.length; i++) {
+                String unit = REPORTED[i] == RX_BYTES || REPORTED[i] == TX_BYTES ? "b/s" : "c/s";
+                series[i] = registry.register(labeled(NAMES[i], "interface", name), unit);
+            }
+        }
+    }
+
+    public NetDevCollector() {
+        this(DEFAULT_ROOT, SeriesRegistry.getDefault(), System::nanoTime);
+    }
+
+    // For testing
+    NetDevCollector(Path root, SeriesRegistry registry, LongSupplier nanoTime) {
+        super(root.resolve("net/dev"), 4096, registry, nanoTime);
+    }
+
+    @Override
+    protected void parse(MetricBatch batch, long timestamp, double elapsedSeconds) {
+        // Two header lines
+        parser.nextLine();
+        parser.nextLine();
+        while (parser.hasMore()) {
+            if (parser.nextToken()) {
+                Interface iface = interfaces.computeIfAbsent(parser.tokenString(), Interface::new);
+                readInterface(iface, batch, timestamp, elapsedSeconds);
+            }
+            parser.nextLine();
+        }
+    }
+
+    private void readInterface(Interface iface, MetricBatch batch, long timestamp, double elapsedSeconds) {
+        System.arraycopy(iface.counters, 0, iface.previous, 0, FIELDS);
+        for (int i = 0; i < FIELDS; i++) {
+            iface.counters[i] = Math.max(0, parser.nextLong());
+        }
+        if (iface.primed && elapsedSeconds > 0) {
+            for (int i = 0; i < REPORTED.length; i++) {
+                int field = REPORTED[i];
+                add(batch, iface.series[i], timestamp, rate(iface.counters[field], iface.previous[field], elapsedSeconds));
+            }
+        }
+        iface.primed = true;
+    }
+}
@@ -0,0 +1,93 @@
+package com.nivuk.agent.collectors.proc;
+
+import com.nivuk.agent.collectors.Collector;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Base for collectors that sample one /proc file. Counter-based subclasses report
+ * rates over the time since the previous sample, so their first sample only primes
+ * the counters.
+ */
+abstract class ProcCollector implements Collector {
+    private static final Logger logger = LoggerFactory.getLogger(ProcCollector.class);
+    static final Path DEFAULT_ROOT = Path.of("/proc");
+
+    protected final SeriesRegistry registry;
+    protected final ProcParser parser = new ProcParser();
+    private final ProcFile file;
+    private final LongSupplier nanoTime;
+    private final MetricBatch scratch;
+    private long lastSampleNanos = -1;
+    private boolean warned;
+
+    ProcCollector(Path file, int initialCapacity, SeriesRegistry registry, LongSupplier nanoTime) {
+        this.file = new ProcFile(file, initialCapacity);
+        this.registry = registry;
+        this.nanoTime = nanoTime;
+        this.scratch = new MetricBatch(registry);
+    }
+
+    @Override
+    public synchronized List<Metric> collect() {
+        scratch.clear();
+        collectInto(scratch);
+        return scratch.toMetrics();
+    }
+
+    @Override
+    public synchronized void collectInto(MetricBatch batch) {
+        ByteBuffer content;
+        try {
+            content = file.read();
+        } catch (IOException e) {
+            if (!warned) {
+                logger.warn("Cannot read {}: {}", file.path(), e.getMessage());
+                warned = true;
+            }
+            return;
+        }
+        long now = nanoTime.getAsLong();
+        double elapsedSeconds = lastSampleNanos < 0 ? 0 : (now - lastSampleNanos) / 1e9;
+        lastSampleNanos = now;
+
+        parser.reset(content);
+        parse(batch, Metric.currentTimestamp(), elapsedSeconds);
+    }
+
+    /**
+     * Parses the file with {@link #parser}. {@code elapsedSeconds} is zero on the first
+     * sample, when no rates can be reported yet.
+     */
+    protected abstract void parse(MetricBatch batch, long timestamp, double elapsedSeconds);
+
+    protected void add(MetricBatch batch, SeriesDescriptor series, long timestamp, double value) {
+        batch.add(registry.current(series), timestamp, value);
+    }
+
+    /**
+     * Per-second rate of a counter; a counter that went backwards was reset, so 0.
+     */
+    protected static double rate(long current, long previous, double elapsedSeconds) {
+        return current < previous ? 0 : (current - previous) / elapsedSeconds;
+    }
+
+    protected static String labeled(String name, String label, String value) {
+        return name + "{" + label + "=\"" + value + "\"}";
+    }
+
+    protected static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,89 @@
+package com.nivuk.agent.collectors.proc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A /proc file kept open and re-read from offset zero into a reusable direct buffer.
+ * The kernel regenerates the contents on every read from the start, so one descriptor
+ * serves every sample. The buffer grows if the file ever outgrows it. Not thread-safe.
+ */
+final class ProcFile implements AutoCloseable {
+    private final Path path;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+
+    ProcFile(Path path, int initialCapacity) {
+        this.path = path;
+        this.buffer = ByteBuffer.allocateDirect(initialCapacity);
+    }
+
+    /**
+     * Returns the current contents, valid until the next call.
+     */
+    ByteBuffer read() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+        try {
+            return fill(channel);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads another file into this file's buffer without keeping it open, for files
+     * such as /proc/[pid]/stat that are too many to hold descriptors for.
+     */
+    ByteBuffer readOnce(Path other) throws IOException {
+        try (FileChannel once = FileChannel.open(other, StandardOpenOption.READ)) {
+            return fill(once);
+        }
+    }
+
+    /**
+     * Reads a channel the caller keeps open into this file's buffer, for collectors that
+     * hold many files open and share one buffer between them.
+     */
+    ByteBuffer read(FileChannel source) throws IOException {
+        return fill(source);
+    }
+
+    private ByteBuffer fill(FileChannel source) throws IOException {
+        while (true) {
+            buffer.clear();
+            long position = 0;
+            int read;
+            while (buffer.hasRemaining() && (read = source.read(buffer, position)) > 0) {
+                position += read;
+            }
+            if (buffer.hasRemaining()) {
+                buffer.flip();
+                return buffer;
+            }
+            // Filled the buffer, so the file may be longer; retry with more room
+            buffer = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+        }
+    }
+
+    Path path() {
+        return path;
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing to do, the next read reopens
+            }
+            channel = null;
+        }
+    }
+}
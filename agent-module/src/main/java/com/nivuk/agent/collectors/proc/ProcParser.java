@@ -0,0 +1,258 @@
+package com.nivuk.agent.collectors.proc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Cursor over the text of a /proc file. Numbers are parsed straight from the bytes, and
+ * tokens are compared in place or interned, so a parse allocates nothing once every
+ * distinct token has been seen. Not thread-safe.
+ */
+final class ProcParser {
+    private ByteBuffer buffer;
+    private int position;
+    private int limit;
+    private int tokenStart;
+    private int tokenEnd;
+
+    // Open-addressed intern table of token bytes to strings
+    private byte[][] internedBytes = new byte[64][];
+    private String[] internedStrings = new String[64];
+    private int internedCount;
+
+    void reset(ByteBuffer content) {
+        buffer = content;
+        position = content.position();
+        limit = content.limit();
+    }
+
+    boolean hasMore() {
+        return position < limit;
+    }
+
+    void nextLine() {
+        while (position < limit && buffer.get(position) != '\n') {
+            position++;
+        }
+        if (position < limit) {
+            position++;
+        }
+    }
+
+    /**
+     * Reads the next run of characters up to whitespace or a colon on this line.
+     */
+    boolean nextToken() {
+        skipSpaces();
+        tokenStart = position;
+        while (position < limit) {
+            byte b = buffer.get(position);
+            if (b == ' ' || b == '\t' || b == '\n' || b == ':') {
+                break;
+            }
+            position++;
+        }
+        tokenEnd = position;
+        if (position < limit && buffer.get(position) == ':') {
+            position++;
+        }
+        return tokenEnd > tokenStart;
+    }
+
+    /**
+     * Reads the text between the first {@code open} and the last {@code close} on this
+     * line as the token, such as the command name in /proc/[pid]/stat, which may itself
+     * contain spaces and parentheses.
+     */
+    boolean nextEnclosedToken(char open, char close) {
+        int lineEnd = position;
+        while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+            lineEnd++;
+        }
+        int start = position;
+        while (start < lineEnd && buffer.get(start) != open) {
+            start++;
+        }
+        int end = lineEnd - 1;
+        while (end > start && buffer.get(end) != close) {
+            end--;
+        }
+        if (end <= start) {
+            return false;
+        }
+        tokenStart = start + 1;
+        tokenEnd = end;
+        position = end + 1;
+        return true;
+    }
+
+    int tokenLength() {
+        return tokenEnd - tokenStart;
+    }
+
+    boolean tokenEquals(byte[] expected) {
+        return tokenLength() == expected.length && tokenStartsWith(expected);
+    }
+
+    boolean tokenStartsWith(byte[] prefix) {
+        if (tokenLength() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(tokenStart + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the digits of the current token after {@code offset}, or returns -1.
+     */
+    int tokenSuffixNumber(int offset) {
+        if (tokenStart + offset >= tokenEnd) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = tokenStart + offset; i < tokenEnd; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Parses the digits of the current token after {@code offset} as a long, such as the
+     * value of {@code rbytes=1024}, or returns -1.
+     */
+    long tokenSuffixLong(int offset) {
+        if (tokenStart + offset >= tokenEnd) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = tokenStart + offset; i < tokenEnd; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Copies the current token without interning it, for tokens with too many distinct
+     * values to keep, which are then compared with {@link #tokenEquals(byte[])}.
+     */
+    byte[] tokenBytes() {
+        byte[] bytes = new byte[tokenLength()];
+        buffer.get(tokenStart, bytes);
+        return bytes;
+    }
+
+    String tokenString() {
+        int hash = 1;
+        for (int i = tokenStart; i < tokenEnd; i++) {
+            hash = 31 * hash + buffer.get(i);
+        }
+        int mask = internedBytes.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            byte[] candidate = internedBytes[slot];
+            if (candidate == null) {
+                return intern(slot);
+            }
+            if (candidate.length == tokenLength() && tokenStartsWith(candidate)) {
+                return internedStrings[slot];
+            }
+        }
+    }
+
+    /**
+     * Parses the next unsigned integer on this line, or returns -1 if there is none.
+     */
+    long nextLong() {
+        skipSpaces();
+        if (position >= limit || !isDigit(buffer.get(position))) {
+            return -1;
+        }
+        long value = 0;
+        while (position < limit && isDigit(buffer.get(position))) {
+            value = value * 10 + (buffer.get(position++) - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Parses the next unsigned decimal such as {@code 0.52}, or returns NaN.
+     */
+    double nextDecimal() {
+        long whole = nextLong();
+        if (whole < 0) {
+            return Double.NaN;
+        }
+        double value = whole;
+        if (position < limit && buffer.get(position) == '.') {
+            position++;
+            double scale = 0.1;
+            while (position < limit && isDigit(buffer.get(position))) {
+                value += (buffer.get(position++) - '0') * scale;
+                scale /= 10;
+            }
+        }
+        return value;
+    }
+
+    void skip(char c) {
+        if (position < limit && buffer.get(position) == c) {
+            position++;
+        }
+    }
+
+    private void skipSpaces() {
+        while (position < limit) {
+            byte b = buffer.get(position);
+            if (b != ' ' && b != '\t') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private String intern(int slot) {
+        byte[] bytes = new byte[tokenLength()];
+        buffer.get(tokenStart, bytes);
+        String value = new String(bytes, StandardCharsets.US_ASCII);
+        internedBytes[slot] = bytes;
+        internedStrings[slot] = value;
+        if (++internedCount * 2 > internedBytes.length) {
+            rehash();
+        }
+        return value;
+    }
+
+    private void rehash() {
+        byte[][] oldBytes = internedBytes;
+        String[] oldStrings = internedStrings;
+        internedBytes = new byte[oldBytes.length * 2][];
+        internedStrings = new String[oldBytes.length * 2];
+        int mask = internedBytes.length - 1;
+        for (int i = 0; i < oldBytes.length; i++) {
+            if (oldBytes[i] != null) {
+                int slot = Arrays.hashCode(oldBytes[i]) & mask;
+                while (internedBytes[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                internedBytes[slot] = oldBytes[i];
+                internedStrings[slot] = oldStrings[i];
+            }
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
@@ -0,0 +1,115 @@
+package com.nivuk.agent.collectors.proc;
+
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * Total and per-core CPU time from /proc/stat, as the percentage of the interval spent
+ * in each state, plus context switch and fork rates.
+ */
+public class ProcStatCollector extends ProcCollector {
+    private static final String[] STATES = {"user", "nice", "system", "idle", "iowait", "irq", "softirq", "steal"};
+    private static final byte[] CPU = ascii("cpu");
+    private static final byte[] CTXT = ascii("ctxt");
+    private static final byte[] PROCESSES = ascii("processes");
+
+    // Row 0 is the total, row n + 1 is core n
+    private long[][] previous = new long[0][];
+    private long[][] current = new long[0][];
+    private SeriesDescriptor[][] series = new SeriesDescriptor[0][];
+    private final SeriesDescriptor contextSwitches;
+    private final SeriesDescriptor forks;
+    private long previousContextSwitches = -1;
+    private long previousForks = -1;
+
+    public ProcStatCollector() {
+        this(DEFAULT_ROOT, SeriesRegistry.getDefault(), System::nanoTime);
+    }
+
+    // For testing
+    ProcStatCollector(Path root, SeriesRegistry registry, LongSupplier nanoTime) {
+        super(root.resolve("stat"), 16 * 1024, registry, nanoTime);
+        this.contextSwitches = registry.register("host_context_switches", "c/s");
+        this.forks = registry.register("host_forks", "c/s");
+    }
+
+    @Override
+    protected void parse(MetricBatch batch, long timestamp, double elapsedSeconds) {
+        while (parser.hasMore()) {
+            if (!parser.nextToken()) {
+                parser.nextLine();
+                continue;
+            }
+            if (parser.tokenStartsWith(CPU)) {
+                int row = parser.tokenLength() == CPU.length ? 0 : parser.tokenSuffixNumber(CPU.length) + 1;
+                if (row >= 0) {
+                    readCpu(row, batch, timestamp, elapsedSeconds);
+                }
+            } else if (parser.tokenEquals(CTXT)) {
+                long value = parser.nextLong();
+                if (elapsedSeconds > 0 && previousContextSwitches >= 0) {
+                    add(batch, contextSwitches, timestamp, rate(value, previousContextSwitches, elapsedSeconds));
+                }
+                previousContextSwitches = value;
+            } else if (parser.tokenEquals(PROCESSES)) {
+                long value = parser.nextLong();
+                if (elapsedSeconds > 0 && previousForks >= 0) {
+                    add(batch, forks, timestamp, rate(value, previousForks, elapsedSeconds));
+                }
+                previousForks = value;
+            }
+            parser.nextLine();
+        }
+    }
+
+    private void readCpu(int row, MetricBatch batch, long timestamp, double elapsedSeconds) {
+        ensureRow(row);
+        long[] now = current[row];
+        for (int state = 0; state < STATES.length; state++) {
+            now[state] = Math.max(0, parser.nextLong());
+        }
+
+        long[] before = previous[row];
+        if (elapsedSeconds > 0 && before[0] >= 0) {
+            long total = 0;
+            for (int state = 0; state < STATES.length; state++) {
+                total += Math.max(0, now[state] - before[state]);
+            }
+            if (total > 0) {
+                for (int state = 0; state < STATES.length; state++) {
+                    double share = Math.max(0, now[state] - before[state]) * 100.0 / total;
+                    add(batch, series[row][state], timestamp, share);
+                }
+            }
+        }
+        previous[row] = now;
+        current[row] = before;
+    }
+
+    private void ensureRow(int row) {
+        if (row < series.length && series[row] != null) {
+            return;
+        }
+        if (row >= series.length) {
+            int length = Math.max(row + 1, series.length * 2);
+            series = Arrays.copyOf(series, length);
+            previous = Arrays.copyOf(previous, length);
+            current = Arrays.copyOf(current, length);
+        }
+        SeriesDescriptor[] descriptors = new SeriesDescriptor[STATES.length];
+        for (int state = 0; state < STATES.length; state++) {
+            String name = "host_cpu_" + STATES[state];
+            descriptors[state] = registry.register(row == 0 ? name : labeled(name, "cpu", String.valueOf(row - 1)), "p");
+        }
+        series[row] = descriptors;
+        long[] unset = new long[STATES.length];
+        unset[0] = -1;
+        previous[row] = unset;
+        current[row] = new long[STATES.length];
+    }
+}
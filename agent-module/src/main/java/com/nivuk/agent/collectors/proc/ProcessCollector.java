@@ -0,0 +1,327 @@
+package com.nivuk.agent.collectors.proc;
+
+import com.nivuk.agent.collectors.Collector;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.LongSupplier;
+
+/**
+ * CPU and resident memory of the heaviest processes, from /proc/[pid]/stat. Each
+ * process's counters are cached between samples so its CPU usage is a delta over the
+ * time since that process was last read. Reading stops once the scan budget for the
+ * tick is spent and resumes at the next PID on the following tick, so on hosts with
+ * many processes a process's figures may be up to a few ticks old. Only the top N by
+ * CPU and the top N by RSS are reported, labelled with the command name and PID. The
+ * series of a process are released when it exits or execs, so the registry does not
+ * grow with every PID the host has ever run.
+ */
+public class ProcessCollector implements Collector {
+    private static final Logger logger = LoggerFactory.getLogger(ProcessCollector.class);
+    // USER_HZ and the page size are fixed at these values on every mainstream Linux build
+    private static final double TICKS_PER_SECOND = 100;
+    private static final double PAGE_MB = 4096 / (1024.0 * 1024.0);
+
+    // Fields after the command name, counting the state as 0
+    private static final int UTIME = 11;
+    private static final int STIME = 12;
+    private static final int START_TIME = 19;
+    private static final int RSS = 21;
+
+    private final Path root;
+    private final SeriesRegistry registry;
+    private final LongSupplier nanoTime;
+    private final int top;
+    private final double budgetFraction;
+    private final ProcFile reader;
+    private final ProcParser parser = new ProcParser();
+    private final Map<Integer, ProcessState> processes = new HashMap<>();
+    private final PriorityQueue<ProcessState> topByCpu;
+    private final PriorityQueue<ProcessState> topByRss;
+    private final MetricBatch scratch;
+    private final SeriesDescriptor processCount;
+    private final SeriesDescriptor scannedCount;
+    private int[] pids = new int[1024];
+    private int pidCount;
+    private int lastScannedPid;
+    private long lastCollectNanos = -1;
+    private long tick;
+    private boolean warned;
+
+    private static final class ProcessState {
+        final int pid;
+        final Path stat;
+        byte[] command;
+        long startTime = -1;
+        long cpuTicks;
+        long sampledNanos;
+        double cpuPercent = Double.NaN;
+        double rssMegabytes;
+        long reportedTick = -1;
+        SeriesDescriptor cpuSeries;
+        SeriesDescriptor rssSeries;
+
+        ProcessState(int pid, Path stat) {
+            this.pid = pid;
+            this.stat = stat;
+        }
+    }
+
+    public ProcessCollector() {
+        this(10, 0.02);
+    }
+
+    /**
+     * @param top            processes reported for each of CPU and RSS
+     * @param budgetFraction share of one core the scan may use, e.g. 0.02 for 2%
+     */
+    public ProcessCollector(int top, double budgetFraction) {
+        this(ProcCollector.DEFAULT_ROOT, SeriesRegistry.getDefault(), System::nanoTime, top, budgetFraction);
+    }
+
+    // For testing
+    ProcessCollector(Path root, SeriesRegistry registry, LongSupplier nanoTime, int top, double budgetFraction) {
+        if (top <= 0) {
+            throw new IllegalArgumentException("top must be positive: " + top);
+        }
+        if (budgetFraction <= 0 || budgetFraction > 1) {
+            throw new IllegalArgumentException("Scan budget must be a fraction of a core: " + budgetFraction);
+        }
+        this.root = root;
+        this.registry = registry;
+        this.nanoTime = nanoTime;
+        this.top = top;
+        this.budgetFraction = budgetFraction;
+        this.reader = new ProcFile(root, 1024);
+        this.topByCpu = new PriorityQueue<>(top + 1, Comparator.comparingDouble(state -> state.cpuPercent));
+        this.topByRss = new PriorityQueue<>(top + 1, Comparator.comparingDouble(state -> state.rssMegabytes));
+        this.scratch = new MetricBatch(registry);
+        this.processCount = registry.register("host_processes", "c");
+        this.scannedCount = registry.register("host_processes_scanned", "c");
+    }
+
+    @Override
+    public synchronized List<Metric> collect() {
+        scratch.clear();
+        collectInto(scratch);
+        return scratch.toMetrics();
+    }
+
+    @Override
+    public synchronized void collectInto(MetricBatch batch) {
+        long start = nanoTime.getAsLong();
+        long elapsed = lastCollectNanos < 0 ? 1_000_000_000L : start - lastCollectNanos;
+        lastCollectNanos = start;
+        long budgetNanos = (long) (elapsed * budgetFraction);
+
+        try {
+            listPids();
+        } catch (IOException e) {
+            if (!warned) {
+                logger.warn("Cannot list processes in {}: {}", root, e.getMessage());
+                warned = true;
+            }
+            return;
+        }
+        forgetExitedProcesses();
+        int scanned = scan(start, budgetNanos);
+        tick++;
+
+        long timestamp = Metric.currentTimestamp();
+        batch.add(registry.current(processCount), timestamp, pidCount);
+        batch.add(registry.current(scannedCount), timestamp, scanned);
+        rank();
+        report(batch, timestamp, topByCpu);
+        report(batch, timestamp, topByRss);
+    }
+
+    private void listPids() throws IOException {
+        pidCount = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+            for (Path entry : entries) {
+                int pid = parsePid(entry.getFileName().toString());
+                if (pid > 0) {
+                    if (pidCount == pids.length) {
+                        pids = Arrays.copyOf(pids, pids.length * 2);
+                    }
+                    pids[pidCount++] = pid;
+                }
+            }
+        }
+        Arrays.sort(pids, 0, pidCount);
+    }
+
+    private void forgetExitedProcesses() {
+        processes.values().removeIf(state -> {
+            if (Arrays.binarySearch(pids, 0, pidCount, state.pid) >= 0) {
+                return false;
+            }
+            release(state);
+            return true;
+        });
+    }
+
+    private void release(ProcessState state) {
+        if (state.cpuSeries != null) {
+            registry.release(state.cpuSeries);
+            registry.release(state.rssSeries);
+            state.cpuSeries = null;
+            state.rssSeries = null;
+        }
+    }
+
+    // Reads processes round-robin from the one after the last read, until the budget is spent
+    private int scan(long start, long budgetNanos) {
+        if (pidCount == 0) {
+            return 0;
+        }
+        int from = Arrays.binarySearch(pids, 0, pidCount, lastScannedPid + 1);
+        if (from < 0) {
+            from = -from - 1;
+        }
+        int scanned = 0;
+        while (scanned < pidCount) {
+            int pid = pids[(from + scanned) % pidCount];
+            read(pid);
+            lastScannedPid = pid;
+            scanned++;
+            if (nanoTime.getAsLong() - start >= budgetNanos) {
+                break;
+            }
+        }
+        if (lastScannedPid == pids[pidCount - 1]) {
+            lastScannedPid = 0;
+        }
+        return scanned;
+    }
+
+    private void read(int pid) {
+        ProcessState state = processes.get(pid);
+        Path stat = state != null ? state.stat : root.resolve(Integer.toString(pid)).resolve("stat");
+        ByteBuffer content;
+        try {
+            content = reader.readOnce(stat);
+        } catch (IOException e) {
+            // The process exited between listing and reading
+            return;
+        }
+        long now = nanoTime.getAsLong();
+        parser.reset(content);
+        if (!parser.nextEnclosedToken('(', ')')) {
+            return;
+        }
+        // Command names are not interned, as short-lived processes bring new ones all the time
+        byte[] command = state != null && parser.tokenEquals(state.command) ? state.command : parser.tokenBytes();
+
+        long utime = 0;
+        long stime = 0;
+        long startTime = 0;
+        long rss = 0;
+        parser.nextToken();
+        for (int field = 1; field <= RSS; field++) {
+            long value = parser.nextLong();
+            switch (field) {
+                case UTIME -> utime = value;
+                case STIME -> stime = value;
+                case START_TIME -> startTime = value;
+                case RSS -> rss = value;
+                default -> {
+                    if (value < 0) {
+                        // Negative fields such as priority and nice
+                        parser.skip('-');
+                        parser.nextLong();
+                    }
+                }
+            }
+        }
+
+        if (state == null || state.startTime != startTime) {
+            // New process, or the PID was reused
+            if (state != null) {
+                release(state);
+            }
+            state = new ProcessState(pid, stat);
+            processes.put(pid, state);
+        } else {
+            double seconds = (now - state.sampledNanos) / 1e9;
+            long delta = utime + stime - state.cpuTicks;
+            state.cpuPercent = seconds > 0 && delta >= 0 ? delta / TICKS_PER_SECOND / seconds * 100 : state.cpuPercent;
+        }
+        if (command != state.command) {
+            // New, or renamed by exec; report under the new name from now on
+            release(state);
+            state.command = command;
+        }
+        state.startTime = startTime;
+        state.cpuTicks = utime + stime;
+        state.sampledNanos = now;
+        state.rssMegabytes = Math.max(0, rss) * PAGE_MB;
+    }
+
+    // Bounded min-heaps: the smallest of the current top N is evicted first
+    private void rank() {
+        topByCpu.clear();
+        topByRss.clear();
+        for (ProcessState state : processes.values()) {
+            if (!Double.isNaN(state.cpuPercent)) {
+                offer(topByCpu, state);
+            }
+            offer(topByRss, state);
+        }
+    }
+
+    private void offer(PriorityQueue<ProcessState> heap, ProcessState state) {
+        heap.add(state);
+        if (heap.size() > top) {
+            heap.poll();
+        }
+    }
+
+    private void report(MetricBatch batch, long timestamp, PriorityQueue<ProcessState> heap) {
+        for (ProcessState state : heap) {
+            if (state.reportedTick == tick) {
+                continue;
+            }
+            state.reportedTick = tick;
+            if (state.cpuSeries == null) {
+                String command = new String(state.command, StandardCharsets.US_ASCII)
+                    .replace('"', '\'').replace('\\', '/');
+                String labels = "{process=\"" + command + "\",pid=\"" + state.pid + "\"}";
+                state.cpuSeries = registry.register("host_process_cpu" + labels, "p");
+                state.rssSeries = registry.register("host_process_rss" + labels, "m");
+            }
+            state.cpuSeries = registry.current(state.cpuSeries);
+            state.rssSeries = registry.current(state.rssSeries);
+            if (!Double.isNaN(state.cpuPercent)) {
+                batch.add(state.cpuSeries, timestamp, state.cpuPercent);
+            }
+            batch.add(state.rssSeries, timestamp, state.rssMegabytes);
+        }
+    }
+
+    private static int parsePid(String name) {
+        if (name.isEmpty() || name.length() > 9) {
+            return -1;
+        }
+        int pid = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            pid = pid * 10 + (c - '0');
+        }
+        return pid;
+    }
+}
@@ -0,0 +1,369 @@
+package com.nivuk.agent.collectors.scrape;
+
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming parser for the Prometheus text exposition format of one target. The body
+ * is read in chunks and each sample line is parsed in place; a series is looked up by
+ * hashing its name and label bytes, so a scrape only allocates for series it has not
+ * seen before. A target registers at most {@code maxSeries} series and samples of any
+ * further series are dropped. Every series gets a {@code target} label. Comments, HELP
+ * and TYPE lines and sample timestamps are ignored, and counters are forwarded as the
+ * cumulative values the target exposes. The read buffers belong to the parsing thread
+ * rather than the parser, so idle targets only hold their series table. Not
+ * thread-safe.
+ */
+final class ExpositionParser {
+    // Longer lines are skipped
+    static final int MAX_LINE_BYTES = 64 * 1024;
+    // Parsing only runs on the dispatcher's threads, at most one per connection
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    private final SeriesRegistry registry;
+    private final String targetLabel;
+    private final int maxSeries;
+    // Borrowed from the thread for the duration of a parse
+    private byte[] chunk;
+    private byte[] line;
+    private int invalidLines;
+    private int droppedSamples;
+
+    // Open-addressed table of slot + 1, keyed by the bytes of name and labels
+    private int[] table = new int[64];
+    private byte[][] keys = new byte[32][];
+    private int[] hashes = new int[32];
+    private SeriesDescriptor[] series = new SeriesDescriptor[32];
+    private int size;
+
+    private static final class Buffers {
+        final byte[] chunk = new byte[8192];
+        byte[] line = new byte[256];
+    }
+
+    /**
+     * @param maxSeries series registered for the target, so one whose label values keep
+     *                  changing cannot grow the registry without bound
+     */
+    ExpositionParser(SeriesRegistry registry, String target, int maxSeries) {
+        if (maxSeries <= 0) {
+            throw new IllegalArgumentException("maxSeries must be positive: " + maxSeries);
+        }
+        this.registry = registry;
+        this.targetLabel = "target=\"" + target.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        this.maxSeries = maxSeries;
+    }
+
+    /**
+     * Appends every sample in {@code body} to {@code out}, or stops and returns -1 once
+     * more than {@code sampleLimit} samples have been read. Otherwise returns the number
+     * of samples.
+     */
+    int parse(InputStream body, MetricBatch out, long timestamp, int sampleLimit) throws IOException {
+        Buffers buffers = BUFFERS.get();
+        chunk = buffers.chunk;
+        line = buffers.line;
+        try {
+            return parseBody(body, out, timestamp, sampleLimit);
+        } finally {
+            // Keep the line buffer if it grew, and hold neither once idle
+            buffers.line = line;
+            chunk = null;
+            line = null;
+        }
+    }
+
+    private int parseBody(InputStream body, MetricBatch out, long timestamp, int sampleLimit) throws IOException {
+        invalidLines = 0;
+        droppedSamples = 0;
+        int samples = 0;
+        int length = 0;
+        boolean skipping = false;
+        int read;
+        while ((read = body.read(chunk)) > 0) {
+            int start = 0;
+            for (int i = 0; i < read; i++) {
+                if (chunk[i] != '\n') {
+                    continue;
+                }
+                if (!skipping) {
+                    length = append(length, start, i);
+                    if (length >= 0 && parseLine(length, out, timestamp) && ++samples > sampleLimit) {
+                        return -1;
+                    }
+                }
+                skipping = false;
+                length = 0;
+                start = i + 1;
+            }
+            if (!skipping) {
+                length = append(length, start, read);
+                skipping = length < 0;
+            }
+        }
+        if (!skipping && length > 0 && parseLine(length, out, timestamp) && ++samples > sampleLimit) {
+            return -1;
+        }
+        return samples;
+    }
+
+    /**
+     * Lines that were neither samples nor comments in the last parse.
+     */
+    int invalidLines() {
+        return invalidLines;
+    }
+
+    /**
+     * Samples of series beyond {@code maxSeries} dropped in the last parse.
+     */
+    int droppedSamples() {
+        return droppedSamples;
+    }
+
+    int seriesCount() {
+        return size;
+    }
+
+    // For testing
+    static int lineBufferBytes() {
+        return BUFFERS.get().line.length;
+    }
+
+    // Adds chunk[from, to) to the line, or returns -1 if the line gets too long
+    private int append(int length, int from, int to) {
+        int needed = length + to - from;
+        if (needed > MAX_LINE_BYTES) {
+            invalidLines++;
+            return -1;
+        }
+        if (needed > line.length) {
+            line = Arrays.copyOf(line, Math.min(MAX_LINE_BYTES, Math.max(needed, line.length * 2)));
+        }
+        System.arraycopy(chunk, from, line, length, to - from);
+        return needed;
+    }
+
+    // Returns true if the line was a sample
+    private boolean parseLine(int length, MetricBatch out, long timestamp) {
+        byte[] b = line;
+        int end = length > 0 && b[length - 1] == '\r' ? length - 1 : length;
+        int i = skipSpaces(b, 0, end);
+        if (i == end || b[i] == '#') {
+            return false;
+        }
+        int start = i;
+        while (i < end && isNameChar(b[i], i == start)) {
+            i++;
+        }
+        int nameEnd = i;
+        if (nameEnd == start) {
+            invalidLines++;
+            return false;
+        }
+        if (i < end && b[i] == '{') {
+            i = labelsEnd(b, i + 1, end);
+            if (i < 0) {
+                invalidLines++;
+                return false;
+            }
+        }
+        int seriesEnd = i;
+        int valueStart = skipSpaces(b, i, end);
+        int valueEnd = valueStart;
+        while (valueEnd < end && b[valueEnd] != ' ' && b[valueEnd] != '\t') {
+            valueEnd++;
+        }
+        if (valueStart == seriesEnd || valueStart == valueEnd) {
+            invalidLines++;
+            return false;
+        }
+        double value = parseValue(b, valueStart, valueEnd);
+        if (Double.isNaN(value) && !isNaNLiteral(b, valueStart, valueEnd)) {
+            invalidLines++;
+            return false;
+        }
+        if (!Double.isFinite(value)) {
+            // NaN and infinities cannot be sent; summaries without observations report NaN
+            return true;
+        }
+        SeriesDescriptor descriptor = lookup(b, start, nameEnd, seriesEnd);
+        if (descriptor == null) {
+            droppedSamples++;
+            return true;
+        }
+        out.add(registry.current(descriptor), timestamp, value);
+        return true;
+    }
+
+    // The index after the closing brace, honouring quoted values and escapes, or -1
+    private static int labelsEnd(byte[] b, int i, int end) {
+        boolean quoted = false;
+        for (; i < end; i++) {
+            byte c = b[i];
+            if (quoted) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == '}') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    // The series of the sample, or null once the target has maxSeries others
+    private SeriesDescriptor lookup(byte[] b, int start, int nameEnd, int end) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ b[i]) * 0x01000193;
+        }
+        int mask = table.length - 1;
+        for (int index = hash & mask; ; index = (index + 1) & mask) {
+            int slot = table[index] - 1;
+            if (slot < 0) {
+                return size == maxSeries ? null : create(b, start, nameEnd, end, hash, index);
+            }
+            if (hashes[slot] == hash && Arrays.equals(keys[slot], 0, keys[slot].length, b, start, end)) {
+                return series[slot];
+            }
+        }
+    }
+
+    private SeriesDescriptor create(byte[] b, int start, int nameEnd, int end, int hash, int index) {
+        SeriesDescriptor descriptor = registry.register(seriesName(b, start, nameEnd, end), "");
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+            series = Arrays.copyOf(series, size * 2);
+        }
+        int slot = size++;
+        keys[slot] = Arrays.copyOfRange(b, start, end);
+        hashes[slot] = hash;
+        series[slot] = descriptor;
+        table[index] = slot + 1;
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        return descriptor;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int slot = 0; slot < size; slot++) {
+            int index = hashes[slot] & mask;
+            while (table[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            table[index] = slot + 1;
+        }
+    }
+
+    // name{a="b"} becomes name{a="b",target="t"}
+    private String seriesName(byte[] b, int start, int nameEnd, int end) {
+        String name = new String(b, start, nameEnd - start, StandardCharsets.UTF_8);
+        if (end == nameEnd) {
+            return name + "{" + targetLabel + "}";
+        }
+        String labels = new String(b, nameEnd + 1, end - nameEnd - 2, StandardCharsets.UTF_8).strip();
+        if (labels.endsWith(",")) {
+            labels = labels.substring(0, labels.length() - 1);
+        }
+        return name + "{" + (labels.isEmpty() ? "" : labels + ",") + targetLabel + "}";
+    }
+
+    /**
+     * Parses a sample value: a decimal with an optional exponent, {@code NaN} or an
+     * optionally signed {@code Inf}. Returns NaN for anything else.
+     */
+    static double parseValue(byte[] b, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (b[i] == '+' || b[i] == '-')) {
+            negative = b[i] == '-';
+            i++;
+        }
+        if (end - i == 3 && (b[i] | 0x20) == 'i' && (b[i + 1] | 0x20) == 'n' && (b[i + 2] | 0x20) == 'f') {
+            return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        }
+        long mantissa = 0;
+        int scale = 0;
+        int significant = 0;
+        boolean digits = false;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            byte c = b[i];
+            if (c >= '0' && c <= '9') {
+                digits = true;
+                if (significant < 18) {
+                    if (mantissa != 0 || c != '0') {
+                        mantissa = mantissa * 10 + (c - '0');
+                        significant++;
+                    }
+                    if (fraction) {
+                        scale--;
+                    }
+                } else if (!fraction) {
+                    // Beyond long precision: drop the digit but keep its magnitude
+                    scale++;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (!digits) {
+            return Double.NaN;
+        }
+        if (i < end && (b[i] == 'e' || b[i] == 'E')) {
+            i++;
+            boolean negativeExponent = i < end && b[i] == '-';
+            if (i < end && (b[i] == '+' || b[i] == '-')) {
+                i++;
+            }
+            int exponent = 0;
+            int exponentStart = i;
+            for (; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+                exponent = Math.min(exponent * 10 + (b[i] - '0'), 1000);
+            }
+            if (i == exponentStart) {
+                return Double.NaN;
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+        if (i != end) {
+            return Double.NaN;
+        }
+        double value = scale >= 0 ? mantissa * Math.pow(10, scale) : mantissa / Math.pow(10, -scale);
+        return negative ? -value : value;
+    }
+
+    private static boolean isNaNLiteral(byte[] b, int start, int end) {
+        return end - start == 3 && (b[start] | 0x20) == 'n' && (b[start + 1] | 0x20) == 'a'
+            && (b[start + 2] | 0x20) == 'n';
+    }
+
+    private static boolean isNameChar(byte c, boolean first) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':'
+            || (!first && c >= '0' && c <= '9');
+    }
+
+    private static int skipSpaces(byte[] b, int i, int end) {
+        while (i < end && (b[i] == ' ' || b[i] == '\t')) {
+            i++;
+        }
+        return i;
+    }
+}
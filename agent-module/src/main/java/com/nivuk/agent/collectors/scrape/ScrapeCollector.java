@@ -0,0 +1,249 @@
+package com.nivuk.agent.collectors.scrape;
+
+import com.nivuk.agent.collectors.Collector;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import com.nivuk.agent.telemetry.Counter;
+import com.nivuk.agent.telemetry.Histogram;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls HTTP endpoints that expose metrics in the Prometheus text format. Each
+ * collection hands over the samples of every scrape completed since the previous one
+ * and starts the next scrape of every target that is not still in flight, so a slow
+ * target never delays the tick or the other targets. Requests run asynchronously on a
+ * dispatcher bounded to {@code maxConnections} concurrent requests, each with its
+ * target's timeout, and bodies are parsed as they stream in. A target registers at
+ * most {@code maxSeries} series, so one whose label values keep changing cannot grow
+ * the series registry without bound. Every target also reports {@code scrape_up},
+ * {@code scrape_duration}, timed from when the request leaves the dispatcher queue, and
+ * {@code scrape_samples}.
+ */
+public class ScrapeCollector implements Collector, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ScrapeCollector.class);
+
+    private final OkHttpClient client;
+    private final SeriesRegistry registry;
+    private final int sampleLimit;
+    private final int maxSeries;
+    private final List<Target> targets = new ArrayList<>();
+    private final MetricBatch scratch;
+    private final Histogram scrapeTime;
+    private final Counter failures;
+    private final Counter skipped;
+    private final Counter invalidLines;
+    private final Counter droppedSamples;
+
+    private final class Target implements Callback {
+        final ScrapeTarget config;
+        final Request request;
+        final ExpositionParser parser;
+        final SeriesDescriptor up;
+        final SeriesDescriptor duration;
+        final SeriesDescriptor samples;
+        // Written by the callback thread, then swapped into completed
+        MetricBatch pending;
+        MetricBatch completed;
+        volatile boolean inFlight;
+        boolean down;
+        long timestamp;
+        // Reset when the dispatcher actually runs the request
+        volatile long startNanos;
+
+        Target(ScrapeTarget config) {
+            this.config = config;
+            this.request = new Request.Builder().url(config.url()).header("Accept", "text/plain")
+                .tag(Target.class, this).build();
+            this.parser = new ExpositionParser(registry, config.name(), maxSeries);
+            String label = "{target=\"" + config.name().replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+            this.up = registry.register("scrape_up" + label, "");
+            this.duration = registry.register("scrape_duration" + label, "ms");
+            this.samples = registry.register("scrape_samples" + label, "c");
+            this.pending = new MetricBatch(registry);
+            this.completed = new MetricBatch(registry);
+        }
+
+        void start() {
+            inFlight = true;
+            timestamp = Metric.currentTimestamp();
+            startNanos = System.nanoTime();
+            Call call = client.newCall(request);
+            call.timeout().timeout(config.timeoutMillis(), TimeUnit.MILLISECONDS);
+            call.enqueue(this);
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+            int count;
+            try (response) {
+                ResponseBody body = response.body();
+                if (!response.isSuccessful() || body == null) {
+                    fail("HTTP " + response.code());
+                    return;
+                }
+                pending.clear();
+                count = parser.parse(body.byteStream(), pending, timestamp, sampleLimit);
+                invalidLines.add(parser.invalidLines());
+                droppedSamples.add(parser.droppedSamples());
+            } catch (IOException | RuntimeException e) {
+                fail(e.toString());
+                return;
+            }
+            if (count < 0) {
+                fail("more than " + sampleLimit + " samples");
+                return;
+            }
+            if (down) {
+                logger.info("Scrape target {} is back up", config.url());
+                down = false;
+            }
+            finish(true, count);
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            fail(e.toString());
+        }
+
+        private void fail(String reason) {
+            failures.increment();
+            if (!down) {
+                logger.warn("Scraping {} failed: {}", config.url(), reason);
+                down = true;
+            }
+            pending.clear();
+            finish(false, 0);
+        }
+
+        private void finish(boolean success, int count) {
+            long elapsed = System.nanoTime() - startNanos;
+            scrapeTime.record(elapsed);
+            pending.add(registry.current(up), timestamp, success ? 1 : 0);
+            pending.add(registry.current(duration), timestamp, elapsed / 1e6);
+            pending.add(registry.current(samples), timestamp, count);
+            synchronized (this) {
+                // A scrape that was never collected is replaced by the newer one
+                MetricBatch previous = completed;
+                completed = pending;
+                pending = previous;
+            }
+            inFlight = false;
+        }
+
+        synchronized void drainInto(MetricBatch batch) {
+            if (!completed.isEmpty()) {
+                batch.addAll(completed);
+                completed.clear();
+            }
+        }
+    }
+
+    /**
+     * @param maxConnections requests in flight at once, across all targets
+     * @param sampleLimit    samples accepted from one scrape; a larger scrape fails as a whole
+     * @param maxSeries      series registered per target; samples of further series are dropped
+     */
+    public ScrapeCollector(List<ScrapeTarget> targets, int maxConnections, int sampleLimit, int maxSeries,
+                           AgentTelemetry telemetry) {
+        this(createClient(maxConnections), targets, sampleLimit, maxSeries, SeriesRegistry.getDefault(), telemetry);
+    }
+
+    // For testing
+    ScrapeCollector(OkHttpClient client, List<ScrapeTarget> targets, int sampleLimit, int maxSeries,
+                    SeriesRegistry registry, AgentTelemetry telemetry) {
+        if (sampleLimit <= 0) {
+            throw new IllegalArgumentException("sampleLimit must be positive: " + sampleLimit);
+        }
+        if (maxSeries <= 0) {
+            throw new IllegalArgumentException("maxSeries must be positive: " + maxSeries);
+        }
+        // Shares the dispatcher and connection pool of the given client
+        this.client = client.newBuilder().addInterceptor(ScrapeCollector::markStart).build();
+        this.registry = registry;
+        this.sampleLimit = sampleLimit;
+        this.maxSeries = maxSeries;
+        this.scratch = new MetricBatch(registry);
+        this.scrapeTime = telemetry.timer("agent_scrape");
+        this.failures = telemetry.counter("agent_scrape_failed");
+        this.skipped = telemetry.counter("agent_scrape_skipped");
+        this.invalidLines = telemetry.counter("agent_scrape_invalid_lines");
+        this.droppedSamples = telemetry.counter("agent_scrape_dropped");
+        for (ScrapeTarget target : targets) {
+            this.targets.add(new Target(target));
+        }
+    }
+
+    // Runs once the request leaves the dispatcher queue, so queueing is not timed
+    private static Response markStart(Interceptor.Chain chain) throws IOException {
+        Target target = chain.request().tag(Target.class);
+        if (target != null) {
+            target.startNanos = System.nanoTime();
+        }
+        return chain.proceed(chain.request());
+    }
+
+    private static OkHttpClient createClient(int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections must be positive: " + maxConnections);
+        }
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxConnections);
+        // Targets often share a host, e.g. several exporters on localhost
+        dispatcher.setMaxRequestsPerHost(maxConnections);
+        return new OkHttpClient.Builder()
+            .dispatcher(dispatcher)
+            .connectionPool(new ConnectionPool(maxConnections, 5, TimeUnit.MINUTES))
+            .retryOnConnectionFailure(false)
+            .build();
+    }
+
+    @Override
+    public String name() {
+        return "scrape";
+    }
+
+    @Override
+    public synchronized List<Metric> collect() {
+        scratch.clear();
+        collectInto(scratch);
+        return scratch.toMetrics();
+    }
+
+    @Override
+    public void collectInto(MetricBatch batch) {
+        for (Target target : targets) {
+            target.drainInto(batch);
+            if (target.inFlight) {
+                // Still running from an earlier tick; its timeout bounds how long
+                skipped.increment();
+            } else {
+                target.start();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        client.dispatcher().cancelAll();
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+}
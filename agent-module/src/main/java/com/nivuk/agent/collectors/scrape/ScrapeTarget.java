@@ -0,0 +1,25 @@
+package com.nivuk.agent.collectors.scrape;
+
+import okhttp3.HttpUrl;
+
+/**
+ * An HTTP endpoint exposing metrics in the Prometheus text format.
+ *
+ * @param name          value of the {@code target} label on its series
+ * @param url           the metrics URL
+ * @param timeoutMillis limit on the whole request, from connecting to reading the body
+ */
+public record ScrapeTarget(String name, String url, long timeoutMillis) {
+    public ScrapeTarget {
+        if (HttpUrl.parse(url) == null) {
+            throw new IllegalArgumentException("Invalid scrape URL: " + url);
+        }
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Scrape timeout must be positive: " + timeoutMillis);
+        }
+        if (name == null || name.isEmpty()) {
+            HttpUrl parsed = HttpUrl.parse(url);
+            name = parsed.host() + ":" + parsed.port();
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.nivuk.agent.collectors.statsd;
+
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import com.nivuk.agent.telemetry.Counter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses StatsD lines ({@code name:value|type[|@rate][|#tags]}) straight out of a
+ * packet buffer and folds them into per-series state until the next drain: counters
+ * are summed (scaled up by their sample rate), gauges keep their last value and
+ * timers ({@code ms}, or unitless {@code h} and {@code d}) are summarized. A gauge
+ * value with an explicit sign changes the previous value. Sets and tags are not
+ * supported; tags are ignored.
+ * <p>
+ * Series are looked up by hashing the name bytes in place, so a line only allocates
+ * the first time its series is seen. Not thread-safe.
+ */
+final class StatsdAggregator {
+    private static final byte COUNTER = 'c';
+    private static final byte GAUGE = 'g';
+    private static final byte TIMER = 't';
+    private static final byte HISTOGRAM = 'h';
+
+    private final SeriesRegistry registry;
+    private final int maxSeries;
+    private final Counter lines;
+    private final Counter invalid;
+    private final Counter dropped;
+
+    // Open-addressed table of slot + 1, keyed by name and type; series are never removed
+    private final int[] table;
+    private final int mask;
+    private int size;
+
+    // Per-series state, indexed by slot
+    private byte[][] names = new byte[16][];
+    private int[] hashes = new int[16];
+    private byte[] types = new byte[16];
+    private SeriesDescriptor[][] series = new SeriesDescriptor[16][];
+    // Counter sum, gauge value or timer sum
+    private double[] values = new double[16];
+    private double[] mins = new double[16];
+    private double[] maxs = new double[16];
+    // Timer samples scaled up by their sample rate
+    private double[] counts = new double[16];
+    // Lines received since the last drain
+    private long[] samples = new long[16];
+
+    StatsdAggregator(SeriesRegistry registry, int maxSeries, AgentTelemetry telemetry) {
+        if (maxSeries <= 0) {
+            throw new IllegalArgumentException("maxSeries must be positive: " + maxSeries);
+        }
+        this.registry = registry;
+        this.maxSeries = maxSeries;
+        this.lines = telemetry.counter("agent_statsd_lines");
+        this.invalid = telemetry.counter("agent_statsd_invalid");
+        this.dropped = telemetry.counter("agent_statsd_dropped");
+        // At most half full
+        this.table = new int[Math.max(16, Integer.highestOneBit(maxSeries) << 2)];
+        this.mask = table.length - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Parses every line from the buffer's position to its limit and moves the position
+     * to the limit.
+     */
+    void parse(ByteBuffer packet) {
+        int end = packet.limit();
+        int lineStart = packet.position();
+        while (lineStart < end) {
+            int lineEnd = indexOf(packet, (byte) '\n', lineStart, end);
+            int contentEnd = lineEnd > lineStart && packet.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+            if (contentEnd > lineStart) {
+                lines.increment();
+                if (!parseLine(packet, lineStart, contentEnd)) {
+                    invalid.increment();
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        packet.position(end);
+    }
+
+    /**
+     * Appends one point per counter and gauge and {@code _count}, {@code _avg},
+     * {@code _min} and {@code _max} per timer updated since the previous drain.
+     */
+    void drainInto(MetricBatch batch, long timestamp) {
+        for (int slot = 0; slot < size; slot++) {
+            if (samples[slot] == 0) {
+                continue;
+            }
+            SeriesDescriptor[] descriptors = series[slot];
+            if (types[slot] == COUNTER || types[slot] == GAUGE) {
+                add(batch, descriptors[0], timestamp, values[slot]);
+            } else {
+                add(batch, descriptors[0], timestamp, counts[slot]);
+                add(batch, descriptors[1], timestamp, values[slot] / samples[slot]);
+                add(batch, descriptors[2], timestamp, mins[slot]);
+                add(batch, descriptors[3], timestamp, maxs[slot]);
+            }
+            if (types[slot] != GAUGE) {
+                values[slot] = 0;
+                counts[slot] = 0;
+            }
+            samples[slot] = 0;
+        }
+    }
+
+    private void add(MetricBatch batch, SeriesDescriptor descriptor, long timestamp, double value) {
+        batch.add(registry.current(descriptor), timestamp, value);
+    }
+
+    private boolean parseLine(ByteBuffer packet, int start, int end) {
+        int colon = indexOf(packet, (byte) ':', start, end);
+        int bar = indexOf(packet, (byte) '|', colon, end);
+        if (colon == start || bar == end) {
+            return false;
+        }
+        int typeEnd = indexOf(packet, (byte) '|', bar + 1, end);
+        byte type = type(packet, bar + 1, typeEnd);
+        if (type == 0) {
+            return false;
+        }
+        double rate = 1;
+        for (int field = typeEnd; field < end; ) {
+            int next = indexOf(packet, (byte) '|', field + 1, end);
+            if (next > field + 1 && packet.get(field + 1) == '@') {
+                rate = parseNumber(packet, field + 2, next);
+                if (!(rate > 0 && rate <= 1)) {
+                    return false;
+                }
+            }
+            field = next;
+        }
+        double value = parseNumber(packet, colon + 1, bar);
+        if (Double.isNaN(value)) {
+            return false;
+        }
+
+        int hash = 0x811c9dc5;
+        for (int i = start; i < colon; i++) {
+            byte b = packet.get(i);
+            if (b <= ' ' || b == 0x7f) {
+                return false;
+            }
+            hash = (hash ^ b) * 0x01000193;
+        }
+        hash = (hash ^ type) * 0x01000193;
+        int slot = slot(packet, start, colon, type, hash);
+        if (slot < 0) {
+            dropped.increment();
+            return true;
+        }
+        byte sign = packet.get(colon + 1);
+        update(slot, value, rate, sign == '+' || sign == '-');
+        return true;
+    }
+
+    private void update(int slot, double value, double rate, boolean signed) {
+        switch (types[slot]) {
+            case COUNTER -> values[slot] += value / rate;
+            case GAUGE -> values[slot] = signed ? values[slot] + value : value;
+            default -> {
+                if (samples[slot] == 0) {
+                    mins[slot] = value;
+                    maxs[slot] = value;
+                } else {
+                    mins[slot] = Math.min(mins[slot], value);
+                    maxs[slot] = Math.max(maxs[slot], value);
+                }
+                values[slot] += value;
+                counts[slot] += 1 / rate;
+            }
+        }
+        samples[slot]++;
+    }
+
+    private int slot(ByteBuffer packet, int start, int end, byte type, int hash) {
+        int index = hash & mask;
+        while (true) {
+            int slot = table[index] - 1;
+            if (slot < 0) {
+                if (size == maxSeries) {
+                    return -1;
+                }
+                slot = create(packet, start, end, type, hash);
+                table[index] = slot + 1;
+                return slot;
+            }
+            if (hashes[slot] == hash && types[slot] == type && matches(names[slot], packet, start, end)) {
+                return slot;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private static boolean matches(byte[] name, ByteBuffer packet, int start, int end) {
+        if (name.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (name[i] != packet.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int create(ByteBuffer packet, int start, int end, byte type, int hash) {
+        if (size == names.length) {
+            int capacity = Math.min(size * 2, maxSeries);
+            names = Arrays.copyOf(names, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            types = Arrays.copyOf(types, capacity);
+            series = Arrays.copyOf(series, capacity);
+            values = Arrays.copyOf(values, capacity);
+            mins = Arrays.copyOf(mins, capacity);
+            maxs = Arrays.copyOf(maxs, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            samples = Arrays.copyOf(samples, capacity);
+        }
+        byte[] name = new byte[end - start];
+        packet.get(start, name);
+        String metric = new String(name, StandardCharsets.UTF_8);
+        int slot = size++;
+        names[slot] = name;
+        hashes[slot] = hash;
+        types[slot] = type;
+        series[slot] = switch (type) {
+            case COUNTER -> new SeriesDescriptor[] {registry.register(metric, "c")};
+            case GAUGE -> new SeriesDescriptor[] {registry.register(metric, "")};
+            default -> {
+                String unit = type == TIMER ? "ms" : "";
+                yield new SeriesDescriptor[] {registry.register(metric + "_count", "c"),
+                    registry.register(metric + "_avg", unit), registry.register(metric + "_min", unit),
+                    registry.register(metric + "_max", unit)};
+            }
+        };
+        return slot;
+    }
+
+    private static byte type(ByteBuffer packet, int start, int end) {
+        if (end - start == 1) {
+            return switch (packet.get(start)) {
+                case 'c' -> COUNTER;
+                case 'g' -> GAUGE;
+                case 'h', 'd' -> HISTOGRAM;
+                default -> 0;
+            };
+        }
+        if (end - start == 2 && packet.get(start) == 'm' && packet.get(start + 1) == 's') {
+            return TIMER;
+        }
+        return 0;
+    }
+
+    /**
+     * Parses an optionally signed decimal with an optional exponent, or returns NaN.
+     */
+    static double parseNumber(ByteBuffer packet, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (packet.get(i) == '+' || packet.get(i) == '-')) {
+            negative = packet.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int scale = 0;
+        int significant = 0;
+        boolean digits = false;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            byte b = packet.get(i);
+            if (b >= '0' && b <= '9') {
+                digits = true;
+                if (significant < 18) {
+                    if (mantissa != 0 || b != '0') {
+                        mantissa = mantissa * 10 + (b - '0');
+                        significant++;
+                    }
+                    if (fraction) {
+                        scale--;
+                    }
+                } else if (!fraction) {
+                    // Beyond long precision: drop the digit but keep its magnitude
+                    scale++;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (!digits) {
+            return Double.NaN;
+        }
+        if (i < end && (packet.get(i) == 'e' || packet.get(i) == 'E')) {
+            i++;
+            boolean negativeExponent = i < end && packet.get(i) == '-';
+            if (i < end && (packet.get(i) == '+' || packet.get(i) == '-')) {
+                i++;
+            }
+            int exponent = 0;
+            int exponentStart = i;
+            for (; i < end && packet.get(i) >= '0' && packet.get(i) <= '9'; i++) {
+                exponent = Math.min(exponent * 10 + (packet.get(i) - '0'), 1000);
+            }
+            if (i == exponentStart) {
+                return Double.NaN;
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+        if (i != end) {
+            return Double.NaN;
+        }
+        double value = scale >= 0 ? mantissa * Math.pow(10, scale) : mantissa / Math.pow(10, -scale);
+        if (Double.isInfinite(value)) {
+            return Double.NaN;
+        }
+        return negative ? -value : value;
+    }
+
+    private static int indexOf(ByteBuffer packet, byte value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (packet.get(i) == value) {
+                return i;
+            }
+        }
+        return end;
+    }
+}
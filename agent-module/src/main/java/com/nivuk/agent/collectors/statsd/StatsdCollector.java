@@ -0,0 +1,145 @@
+package com.nivuk.agent.collectors.statsd;
+
+import com.nivuk.agent.collectors.Collector;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesRegistry;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import com.nivuk.agent.telemetry.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.List;
+
+/**
+ * Metrics pushed by local applications over UDP in the StatsD line protocol. A
+ * listener thread reads every queued datagram into one direct buffer with a
+ * non-blocking channel and folds it into {@link StatsdAggregator}; each collection
+ * reports what arrived since the previous one. Applications never wait for the agent,
+ * and packets that arrive while the socket buffer is full are lost, as with any
+ * StatsD server.
+ */
+public class StatsdCollector implements Collector, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(StatsdCollector.class);
+    // Largest UDP payload over IPv4
+    static final int MAX_PACKET_BYTES = 65_507;
+
+    private final StatsdAggregator aggregator;
+    private final Counter packets;
+    private final MetricBatch scratch;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private volatile boolean running;
+
+    public StatsdCollector(InetSocketAddress address, int maxSeries, AgentTelemetry telemetry) {
+        this(SeriesRegistry.getDefault(), address, maxSeries, telemetry);
+    }
+
+    // For testing
+    StatsdCollector(SeriesRegistry registry, InetSocketAddress address, int maxSeries, AgentTelemetry telemetry) {
+        this.aggregator = new StatsdAggregator(registry, maxSeries, telemetry);
+        this.packets = telemetry.counter("agent_statsd_packets");
+        this.scratch = new MetricBatch(registry);
+
+        DatagramChannel opened = null;
+        Selector opener = null;
+        try {
+            opened = DatagramChannel.open();
+            opened.configureBlocking(false);
+            opened.bind(address);
+            opener = Selector.open();
+            opened.register(opener, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            logger.warn("Cannot listen for StatsD packets on {}, StatsD metrics are disabled: {}", address, e.toString());
+            closeQuietly(opened, opener);
+            opened = null;
+            opener = null;
+        }
+        this.channel = opened;
+        this.selector = opener;
+        if (channel != null) {
+            running = true;
+            Thread listener = new Thread(this::listen, "statsd-listener");
+            listener.setDaemon(true);
+            listener.start();
+            logger.info("Listening for StatsD packets on {}", address);
+        }
+    }
+
+    @Override
+    public String name() {
+        return "statsd";
+    }
+
+    @Override
+    public synchronized List<Metric> collect() {
+        scratch.clear();
+        collectInto(scratch);
+        return scratch.toMetrics();
+    }
+
+    @Override
+    public void collectInto(MetricBatch batch) {
+        synchronized (aggregator) {
+            aggregator.drainInto(batch, Metric.currentTimestamp());
+        }
+    }
+
+    /**
+     * The bound address, or null if the collector could not bind.
+     */
+    InetSocketAddress localAddress() throws IOException {
+        return channel == null ? null : (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        closeQuietly(channel, selector);
+    }
+
+    private void listen() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_PACKET_BYTES);
+        try {
+            while (running) {
+                selector.select();
+                selector.selectedKeys().clear();
+                while (channel.receive(buffer) != null) {
+                    buffer.flip();
+                    packets.increment();
+                    synchronized (aggregator) {
+                        aggregator.parse(buffer);
+                    }
+                    buffer.clear();
+                }
+            }
+        } catch (ClosedChannelException | ClosedSelectorException e) {
+            // Closed by close()
+        } catch (IOException | RuntimeException e) {
+            if (running) {
+                logger.error("StatsD listener stopped", e);
+            }
+        }
+    }
+
+    private static void closeQuietly(DatagramChannel channel, Selector selector) {
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            logger.debug("Error closing the StatsD listener", e);
+        }
+    }
+}
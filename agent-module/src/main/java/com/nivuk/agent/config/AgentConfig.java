@@ -1,35 +1,110 @@
 package com.nivuk.agent.config;
 
 import com.nivuk.agent.collectors.*;
+import com.nivuk.agent.collectors.proc.*;
+import com.nivuk.agent.collectors.jfr.JfrCollector;
+import com.nivuk.agent.collectors.scrape.ScrapeCollector;
+import com.nivuk.agent.collectors.scrape.ScrapeTarget;
+import com.nivuk.agent.collectors.statsd.StatsdCollector;
 import com.nivuk.agent.exporters.*;
+import com.nivuk.agent.spool.DiskSpool;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.composer.Composer;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.parser.ParserImpl;
+import org.yaml.snakeyaml.reader.StreamReader;
+import org.yaml.snakeyaml.reader.UnicodeReader;
+import org.yaml.snakeyaml.resolver.Resolver;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class AgentConfig {
     private static final Logger logger = LoggerFactory.getLogger(AgentConfig.class);
+    // Path of a config file to read instead of agent-config.yml on the classpath
+    static final String CONFIG_PROPERTY = "agent.config";
     private final Map<String, String> exporterProperties;
     private final Map<String, Boolean> collectorFlags;
+    private final Map<String, Integer> collectorIntervals;
+    private final Map<String, String> collectorProperties;
     private final Map<String, Boolean> exporterFlags;
     private final int collectorIntervalSeconds;
+    private final int hostRefreshSeconds;
+    private final int jitterSeconds;
+    private final int collectorThreads;
+    private final long collectorDeadlineMillis;
+    private final int exportQueueCapacity;
+    private final AgentTelemetry telemetry = new AgentTelemetry();
 
     private AgentConfig(Map<String, Boolean> collectorFlags,
+                       Map<String, Integer> collectorIntervals,
+                       Map<String, String> collectorProperties,
                        Map<String, Boolean> exporterFlags,
                        Map<String, String> exporterProperties,
-                       int collectorIntervalSeconds) {
+                       int collectorIntervalSeconds,
+                       int hostRefreshSeconds,
+                       int jitterSeconds,
+                       int collectorThreads,
+                       long collectorDeadlineMillis,
+                       int exportQueueCapacity) {
         this.collectorFlags = collectorFlags;
+        this.collectorIntervals = collectorIntervals;
+        this.collectorProperties = collectorProperties;
         this.exporterFlags = exporterFlags;
         this.exporterProperties = exporterProperties;
         this.collectorIntervalSeconds = collectorIntervalSeconds;
+        this.hostRefreshSeconds = hostRefreshSeconds;
+        this.jitterSeconds = jitterSeconds;
+        this.collectorThreads = collectorThreads;
+        this.collectorDeadlineMillis = collectorDeadlineMillis;
+        this.exportQueueCapacity = exportQueueCapacity;
     }
 
     public int getCollectionIntervalSeconds() {
         return collectorIntervalSeconds;
     }
 
+    public int getHostRefreshSeconds() {
+        return hostRefreshSeconds;
+    }
+
+    public int getJitterSeconds() {
+        return jitterSeconds;
+    }
+
+    public int getCollectorThreads() {
+        return collectorThreads;
+    }
+
+    /**
+     * How long a tick waits for its collectors: the configured deadline, or 80% of the
+     * interval so that a late collector is given up on before the next tick.
+     */
+    public long getCollectorDeadlineMillis(int intervalSeconds) {
+        return collectorDeadlineMillis > 0 ? collectorDeadlineMillis : intervalSeconds * 800L;
+    }
+
+    public int getExportQueueCapacity() {
+        return exportQueueCapacity;
+    }
+
+    public AgentTelemetry getTelemetry() {
+        return telemetry;
+    }
+
     @SuppressWarnings("unchecked")
     public static AgentConfig load() {
         Map<String, Object> config = loadYamlConfig();
@@ -43,11 +118,32 @@ public class AgentConfig {
             intervalSeconds = Integer.parseInt(envInterval);
         }
 
-        // Load collector flags
+        // How often the cached host name is re-resolved; 0 resolves it only once
+        int hostRefreshSeconds = (Integer) config.getOrDefault("hostRefreshSeconds", 300);
+        if (hostRefreshSeconds < 0) {
+            logger.warn("Invalid hostRefreshSeconds {}, resolving the host name only once", hostRefreshSeconds);
+            hostRefreshSeconds = 0;
+        }
+
+        // Upper bound of the per-host offset applied to collection ticks
+        int jitterSeconds = (Integer) config.getOrDefault("jitterSeconds", 0);
+
+        // Collectors run concurrently, each bounded by a deadline
+        int collectorThreads = (Integer) config.getOrDefault("collectorThreads", 4);
+        long collectorDeadlineMillis = ((Number) config.getOrDefault("collectorDeadlineMillis", 0)).longValue();
+
+        // Collection ticks each exporter may fall behind before its oldest are dropped
+        int exportQueueCapacity = (Integer) config.getOrDefault("exportQueueCapacity", 16);
+
+        // Load collector flags and intervals
         Map<String, Boolean> collectorFlags = new HashMap<>();
+        Map<String, Integer> collectorIntervals = new HashMap<>();
+        Map<String, String> collectorProperties = new HashMap<>();
         Map<String, Object> collectors = (Map<String, Object>) config.getOrDefault("collectors", Map.of());
-        collectorFlags.put("cpu", (Boolean) collectors.getOrDefault("cpu", false));
-        collectorFlags.put("memory", (Boolean) collectors.getOrDefault("memory", false));
+        for (String name : List.of("cpu", "memory", "agent", "hostcpu", "hostmemory", "load", "disk", "network", "jvm", "processes", "cgroup", "statsd", "scrape")) {
+            readCollector(collectors, name, intervalSeconds, collectorFlags, collectorIntervals, collectorProperties);
+        }
+        readScrapeTargets(collectors, collectorProperties);
 
         // Load exporter flags and properties
         Map<String, Boolean> exporterFlags = new HashMap<>();
@@ -72,41 +168,185 @@ public class AgentConfig {
             if (webservice.containsKey("serverUrl")) {
                 exporterProperties.put("serverUrl", (String) webservice.get("serverUrl"));
             }
+            if (webservice.get("serverUrls") instanceof List<?> serverUrls) {
+                exporterProperties.put("serverUrls", String.join(",", serverUrls.stream().map(String::valueOf).toList()));
+            }
             if (webservice.containsKey("bufferSeconds")) {
                 exporterProperties.put("webservice.bufferSeconds", String.valueOf(webservice.get("bufferSeconds")));
             }
+            if (webservice.containsKey("bufferCapacity")) {
+                exporterProperties.put("webservice.bufferCapacity", String.valueOf(webservice.get("bufferCapacity")));
+            }
+            if (webservice.containsKey("summaryWindowSeconds")) {
+                exporterProperties.put("webservice.summaryWindowSeconds", String.valueOf(webservice.get("summaryWindowSeconds")));
+            }
+            if (webservice.containsKey("overflowPolicy")) {
+                exporterProperties.put("webservice.overflowPolicy", String.valueOf(webservice.get("overflowPolicy")));
+            }
+            if (webservice.containsKey("encoding")) {
+                exporterProperties.put("webservice.encoding", String.valueOf(webservice.get("encoding")));
+            }
+            if (webservice.containsKey("compression")) {
+                exporterProperties.put("webservice.compression", String.valueOf(webservice.get("compression")));
+            }
+            if (webservice.containsKey("compressionThreshold")) {
+                exporterProperties.put("webservice.compressionThreshold", String.valueOf(webservice.get("compressionThreshold")));
+            }
+            if (webservice.containsKey("compressionLevel")) {
+                exporterProperties.put("webservice.compressionLevel", String.valueOf(webservice.get("compressionLevel")));
+            }
+            if (webservice.containsKey("maxInFlight")) {
+                exporterProperties.put("webservice.maxInFlight", String.valueOf(webservice.get("maxInFlight")));
+            }
+            if (webservice.containsKey("spool")) {
+                Map<String, Object> spool = (Map<String, Object>) webservice.get("spool");
+                spool.forEach((key, value) -> exporterProperties.put("webservice.spool." + key, String.valueOf(value)));
+            }
+            if (webservice.containsKey("flush")) {
+                Map<String, Object> flush = (Map<String, Object>) webservice.get("flush");
+                flush.forEach((key, value) -> exporterProperties.put("webservice.flush." + key, String.valueOf(value)));
+            }
         } else {
             exporterFlags.put("webservice", false);
         }
 
-        return new AgentConfig(collectorFlags, exporterFlags, exporterProperties, intervalSeconds);
+        // Suppression of unchanged samples in front of all exporters
+        Map<String, Object> deadband = (Map<String, Object>) config.getOrDefault("deadband", Map.of());
+        deadband.forEach((key, value) -> exporterProperties.put("deadband." + key, String.valueOf(value)));
+
+        return new AgentConfig(collectorFlags, collectorIntervals, collectorProperties, exporterFlags, exporterProperties,
+            intervalSeconds, hostRefreshSeconds, jitterSeconds, collectorThreads, collectorDeadlineMillis,
+            exportQueueCapacity);
+    }
+
+    /**
+     * A collector is configured either as a flag ({@code cpu: true}) or as a map
+     * ({@code cpu: {enabled: true, intervalSeconds: 1}}), defaulting to the global interval.
+     * Any other keys of the map are kept as {@code name.key} collector properties.
+     */
+    @SuppressWarnings("unchecked")
+    private static void readCollector(Map<String, Object> collectors, String name, int defaultInterval,
+                                      Map<String, Boolean> flags, Map<String, Integer> intervals,
+                                      Map<String, String> properties) {
+        Object value = collectors.get(name);
+        if (value instanceof Map<?, ?> map) {
+            Map<String, Object> settings = (Map<String, Object>) map;
+            flags.put(name, (Boolean) settings.getOrDefault("enabled", true));
+            intervals.put(name, (Integer) settings.getOrDefault("intervalSeconds", defaultInterval));
+            settings.forEach((key, setting) -> properties.put(name + "." + key, String.valueOf(setting)));
+        } else {
+            flags.put(name, value != null && (Boolean) value);
+            intervals.put(name, defaultInterval);
+        }
+    }
+
+    // Targets are strings holding a URL or maps with url, name and timeoutMillis
+    @SuppressWarnings("unchecked")
+    private static void readScrapeTargets(Map<String, Object> collectors, Map<String, String> properties) {
+        properties.remove("scrape.targets");
+        if (!(collectors.get("scrape") instanceof Map<?, ?> scrape) || !(scrape.get("targets") instanceof List<?> targets)) {
+            return;
+        }
+        for (int i = 0; i < targets.size(); i++) {
+            String prefix = "scrape.target." + i + ".";
+            if (targets.get(i) instanceof Map<?, ?> target) {
+                ((Map<String, Object>) target).forEach((key, value) -> properties.put(prefix + key, String.valueOf(value)));
+            } else {
+                properties.put(prefix + "url", String.valueOf(targets.get(i)));
+            }
+        }
     }
 
+    /**
+     * Reads the config as plain maps, lists and scalars that are then bound by hand.
+     * Composing the document directly with a {@link SafeConstructor} skips the Yaml
+     * facade, whose JavaBean introspection and representers the agent never uses.
+     */
+    @SuppressWarnings("unchecked")
     private static Map<String, Object> loadYamlConfig() {
-        try (InputStream input = Thread.currentThread().getContextClassLoader().getResourceAsStream("agent-config.yml")) {
+        try (InputStream input = openConfig()) {
             if (input == null) {
                 logger.warn("No agent-config.yml found, using defaults");
                 return Map.of();
             }
-            return new Yaml().load(input);
+            LoaderOptions options = new LoaderOptions();
+            SafeConstructor constructor = new SafeConstructor(options);
+            constructor.setComposer(new Composer(
+                new ParserImpl(new StreamReader(new UnicodeReader(input)), options), new Resolver(), options));
+            Object document = constructor.getSingleData(Object.class);
+            return document instanceof Map ? (Map<String, Object>) document : Map.of();
         } catch (Exception e) {
             logger.error("Error loading configuration", e);
             return Map.of();
         }
     }
 
+    private static InputStream openConfig() throws IOException {
+        String path = System.getProperty(CONFIG_PROPERTY);
+        if (path != null) {
+            return Files.newInputStream(Path.of(path));
+        }
+        return Thread.currentThread().getContextClassLoader().getResourceAsStream("agent-config.yml");
+    }
+
     public List<Collector> createCollectors() {
         List<Collector> result = new ArrayList<>();
+        createCollectorsByInterval().values().forEach(result::addAll);
+        return result;
+    }
 
-        if (collectorFlags.getOrDefault("cpu", false)) {
-            result.add(new CpuCollector());
-        }
+    /**
+     * Enabled collectors grouped by their collection interval in seconds, shortest first.
+     */
+    public Map<Integer, List<Collector>> createCollectorsByInterval() {
+        Map<Integer, List<Collector>> result = new TreeMap<>();
+        addCollector(result, "cpu", CpuCollector::new);
+        addCollector(result, "memory", MemoryCollector::new);
+        addCollector(result, "hostcpu", ProcStatCollector::new);
+        addCollector(result, "hostmemory", MeminfoCollector::new);
+        addCollector(result, "load", LoadavgCollector::new);
+        addCollector(result, "disk", DiskstatsCollector::new);
+        addCollector(result, "network", NetDevCollector::new);
+        addCollector(result, "jvm", () -> new JfrCollector(Duration.ofSeconds(
+            collectorIntervals.getOrDefault("jvm", collectorIntervalSeconds))));
+        addCollector(result, "processes", () -> new ProcessCollector(
+            Integer.parseInt(collectorProperties.getOrDefault("processes.top", "10")),
+            Double.parseDouble(collectorProperties.getOrDefault("processes.scanBudgetPercent", "2")) / 100));
+        addCollector(result, "cgroup", () -> new CgroupCollector(
+            Path.of(collectorProperties.getOrDefault("cgroup.root", "/sys/fs/cgroup")),
+            Double.parseDouble(collectorProperties.getOrDefault("cgroup.scanBudgetPercent", "2")) / 100,
+            Integer.parseInt(collectorProperties.getOrDefault("cgroup.discoverySeconds", "30")),
+            Integer.parseInt(collectorProperties.getOrDefault("cgroup.maxOpenFiles", "512"))));
+        addCollector(result, "statsd", () -> new StatsdCollector(new InetSocketAddress(
+            collectorProperties.getOrDefault("statsd.bindAddress", "127.0.0.1"),
+            Integer.parseInt(collectorProperties.getOrDefault("statsd.port", "8125"))),
+            Integer.parseInt(collectorProperties.getOrDefault("statsd.maxSeries", "10000")), telemetry));
+        addCollector(result, "scrape", () -> new ScrapeCollector(getScrapeTargets(),
+            Integer.parseInt(collectorProperties.getOrDefault("scrape.maxConnections", "64")),
+            Integer.parseInt(collectorProperties.getOrDefault("scrape.sampleLimit", "10000")),
+            Integer.parseInt(collectorProperties.getOrDefault("scrape.maxSeries", "20000")), telemetry));
+        addCollector(result, "agent", () -> telemetry);
+        return result;
+    }
 
-        if (collectorFlags.getOrDefault("memory", false)) {
-            result.add(new MemoryCollector());
+    private List<ScrapeTarget> getScrapeTargets() {
+        // By default a scrape must finish before the next one is due
+        long defaultTimeout = collectorIntervals.getOrDefault("scrape", collectorIntervalSeconds) * 800L;
+        defaultTimeout = Long.parseLong(collectorProperties.getOrDefault("scrape.timeoutMillis", String.valueOf(defaultTimeout)));
+        List<ScrapeTarget> targets = new ArrayList<>();
+        for (int i = 0; collectorProperties.containsKey("scrape.target." + i + ".url"); i++) {
+            String prefix = "scrape.target." + i + ".";
+            targets.add(new ScrapeTarget(collectorProperties.get(prefix + "name"), collectorProperties.get(prefix + "url"),
+                Long.parseLong(collectorProperties.getOrDefault(prefix + "timeoutMillis", String.valueOf(defaultTimeout)))));
         }
+        return targets;
+    }
 
-        return result;
+    private void addCollector(Map<Integer, List<Collector>> groups, String name, Supplier<Collector> factory) {
+        if (collectorFlags.getOrDefault(name, false)) {
+            int interval = collectorIntervals.getOrDefault(name, collectorIntervalSeconds);
+            groups.computeIfAbsent(interval, key -> new ArrayList<>()).add(factory.get());
+        }
     }
 
     public List<MetricsExporter> createExporters() {
@@ -117,15 +357,173 @@ public class AgentConfig {
         }
 
         if (exporterFlags.getOrDefault("webservice", false)) {
-            String serverUrl = exporterProperties.getOrDefault("serverUrl", "http://localhost:8080/metrics");
-            MetricsExporter exporter = new WebServiceMetricsExporter(new okhttp3.OkHttpClient(), serverUrl);
+            List<String> serverUrls = getServerUrls();
+            int maxInFlight = Integer.parseInt(exporterProperties.getOrDefault("webservice.maxInFlight", "4"));
+            // One client for all endpoints, so they share its connection pool and dispatcher threads
+            Supplier<OkHttpClient> httpClient = once(() -> createHttpClient(maxInFlight, serverUrls.size()));
+            MetricsExporter exporter;
+            if (serverUrls.size() == 1) {
+                exporter = new WebServiceMetricsExporter(httpClient, serverUrls.get(0),
+                    createWebServiceSettings(maxInFlight, null, 1), telemetry);
+            } else {
+                List<WebServiceMetricsExporter> endpoints = new ArrayList<>();
+                for (int i = 0; i < serverUrls.size(); i++) {
+                    String endpoint = "endpoint" + i;
+                    endpoints.add(new WebServiceMetricsExporter(httpClient, serverUrls.get(i),
+                        createWebServiceSettings(maxInFlight, endpoint, serverUrls.size()), telemetry.scoped(endpoint)));
+                }
+                exporter = new ShardedMetricsExporter(endpoints, telemetry);
+            }
             int bufferSeconds = Integer.parseInt(exporterProperties.getOrDefault("webservice.bufferSeconds", "0"));
             if (bufferSeconds > 0) {
-                exporter = new BufferedMetricsExporter(exporter, bufferSeconds);
+                int capacity = Integer.parseInt(exporterProperties.getOrDefault("webservice.bufferCapacity",
+                    String.valueOf(BufferedMetricsExporter.DEFAULT_CAPACITY)));
+                OverflowPolicy policy = createOverflowPolicy(exporterProperties.getOrDefault("webservice.overflowPolicy", "drop_oldest"));
+                int windowSeconds = Integer.parseInt(exporterProperties.getOrDefault("webservice.summaryWindowSeconds", "0"));
+                exporter = new BufferedMetricsExporter(exporter, bufferSeconds, capacity, policy, windowSeconds, telemetry);
             }
             result.add(exporter);
         }
 
         return result;
     }
+
+    /**
+     * A filter for one collection task, or null if deadband suppression is off.
+     */
+    public DeadbandFilter createDeadbandFilter() {
+        if (!Boolean.parseBoolean(exporterProperties.getOrDefault("deadband.enabled", "false"))) {
+            return null;
+        }
+        return new DeadbandFilter(
+            Double.parseDouble(exporterProperties.getOrDefault("deadband.absolute", "0")),
+            Double.parseDouble(exporterProperties.getOrDefault("deadband.relativePercent", "0")) / 100,
+            Long.parseLong(exporterProperties.getOrDefault("deadband.maxSilenceSeconds", "300")),
+            telemetry);
+    }
+
+    /**
+     * Server endpoints from {@code serverUrls}, or the single {@code serverUrl}.
+     */
+    public List<String> getServerUrls() {
+        String serverUrls = exporterProperties.get("serverUrls");
+        if (serverUrls != null) {
+            List<String> urls = Arrays.stream(serverUrls.split(","))
+                .map(String::trim)
+                .filter(url -> !url.isEmpty())
+                .distinct()
+                .toList();
+            if (!urls.isEmpty()) {
+                return urls;
+            }
+        }
+        return List.of(exporterProperties.getOrDefault("serverUrl", "http://localhost:8080/metrics"));
+    }
+
+    /**
+     * @param endpoint name of the endpoint's spool subdirectory, or null for the spool directory itself
+     * @param shards   endpoints sharing the spool size limit
+     */
+    private WebServiceSettings createWebServiceSettings(int maxInFlight, String endpoint, int shards) {
+        return new WebServiceSettings(
+            createEncoder(exporterProperties.getOrDefault("webservice.encoding", "json")),
+            createCompressor(exporterProperties.getOrDefault("webservice.compression", "none")),
+            maxInFlight,
+            createSpool(endpoint, shards),
+            Integer.parseInt(exporterProperties.getOrDefault("webservice.spool.replayPerSecond", "5")),
+            createFlushPolicy());
+    }
+
+    private static OkHttpClient createHttpClient(int maxInFlight, int endpoints) {
+        if (maxInFlight == 0) {
+            return new OkHttpClient();
+        }
+        // Keep enough idle connections around that pipelined requests reuse them
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxInFlight * endpoints);
+        dispatcher.setMaxRequestsPerHost(maxInFlight);
+        return new OkHttpClient.Builder()
+            .dispatcher(dispatcher)
+            .connectionPool(new ConnectionPool(maxInFlight * endpoints, 5, TimeUnit.MINUTES))
+            .build();
+    }
+
+    private static <T> Supplier<T> once(Supplier<T> factory) {
+        return new Supplier<>() {
+            private T value;
+
+            @Override
+            public synchronized T get() {
+                if (value == null) {
+                    value = factory.get();
+                }
+                return value;
+            }
+        };
+    }
+
+    private FlushPolicy createFlushPolicy() {
+        FlushPolicy defaults = FlushPolicy.defaults();
+        return new FlushPolicy(
+            secondsProperty("webservice.flush.minSeconds", defaults.minIntervalMillis()),
+            secondsProperty("webservice.flush.initialSeconds", defaults.initialIntervalMillis()),
+            secondsProperty("webservice.flush.maxSeconds", defaults.maxIntervalMillis()),
+            Integer.parseInt(exporterProperties.getOrDefault("webservice.flush.failureThreshold",
+                String.valueOf(defaults.failureThreshold()))),
+            secondsProperty("webservice.flush.openSeconds", defaults.openMillis()));
+    }
+
+    private long secondsProperty(String key, long defaultMillis) {
+        String value = exporterProperties.get(key);
+        return value == null ? defaultMillis : TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+    }
+
+    private DiskSpool createSpool(String endpoint, int shards) {
+        String directory = exporterProperties.get("webservice.spool.directory");
+        if (directory == null) {
+            return null;
+        }
+        long maxBytes = (Long.parseLong(exporterProperties.getOrDefault("webservice.spool.maxMegabytes", "64")) << 20) / shards;
+        int segmentBytes = Integer.parseInt(exporterProperties.getOrDefault("webservice.spool.segmentMegabytes", "4")) << 20;
+        Path path = endpoint == null ? Path.of(directory) : Path.of(directory, endpoint);
+        try {
+            return new DiskSpool(path, maxBytes, segmentBytes);
+        } catch (IOException e) {
+            logger.error("Failed to open spool in {}, undelivered metrics will be dropped", path, e);
+            return null;
+        }
+    }
+
+    private GzipCompressor createCompressor(String compression) {
+        if ("none".equals(compression)) {
+            return null;
+        }
+        if (!"gzip".equals(compression)) {
+            logger.warn("Unknown webservice compression '{}', sending uncompressed", compression);
+            return null;
+        }
+        int threshold = Integer.parseInt(exporterProperties.getOrDefault("webservice.compressionThreshold", "1024"));
+        int level = Integer.parseInt(exporterProperties.getOrDefault("webservice.compressionLevel", "6"));
+        return new GzipCompressor(threshold, level);
+    }
+
+    private static OverflowPolicy createOverflowPolicy(String policy) {
+        try {
+            return OverflowPolicy.valueOf(policy.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown webservice overflow policy '{}', using drop_oldest", policy);
+            return OverflowPolicy.DROP_OLDEST;
+        }
+    }
+
+    private static MetricEncoder createEncoder(String encoding) {
+        return switch (encoding) {
+            case "json" -> new MetricJsonFormatter();
+            case "binary" -> new MetricBinaryEncoder();
+            default -> {
+                logger.warn("Unknown webservice encoding '{}', using json", encoding);
+                yield new MetricJsonFormatter();
+            }
+        };
+    }
 }
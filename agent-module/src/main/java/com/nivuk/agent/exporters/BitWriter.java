@@ -0,0 +1,59 @@
+package com.nivuk.agent.exporters;
+
+/**
+ * Appends bit-packed and varint-encoded values to a {@link PayloadBuffer}, most
+ * significant bit first.
+ */
+class BitWriter {
+    private PayloadBuffer out;
+    private long pending;
+    private int pendingBits;
+
+    void reset(PayloadBuffer out) {
+        this.out = out;
+        this.pending = 0;
+        this.pendingBits = 0;
+    }
+
+    /**
+     * Writes the low {@code count} bits of {@code value}, 0 &lt;= count &lt;= 64.
+     */
+    void writeBits(long value, int count) {
+        if (count > 32) {
+            writeBits(value >>> 32, count - 32);
+            count = 32;
+        }
+        if (count == 0) {
+            return;
+        }
+        pending = (pending << count) | (value & ((1L << count) - 1));
+        pendingBits += count;
+        while (pendingBits >= 8) {
+            pendingBits -= 8;
+            out.write((int) (pending >>> pendingBits));
+        }
+    }
+
+    void writeBit(boolean bit) {
+        writeBits(bit ? 1 : 0, 1);
+    }
+
+    /**
+     * Pads the current byte with zero bits so byte-level writes can follow.
+     */
+    void alignToByte() {
+        if (pendingBits > 0) {
+            out.write((int) (pending << (8 - pendingBits)));
+            pendingBits = 0;
+        }
+        pending = 0;
+    }
+
+    void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
@@ -1,30 +1,101 @@
 package com.nivuk.agent.exporters;
 
 import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
+import com.nivuk.agent.scheduler.SharedScheduler;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import com.nivuk.agent.telemetry.Counter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.function.LongSupplier;
 
+/**
+ * Buffers points in a bounded ring and exports them every {@code bufferSeconds}. When
+ * the delegate cannot keep up the ring applies its {@link OverflowPolicy}, so memory
+ * stays flat however long the outage. With a summary window, samples are folded into
+ * one min/max/sum/count/last summary per series and window instead of being sent
+ * individually.
+ */
 public class BufferedMetricsExporter implements MetricsExporter {
     private static final Logger logger = LoggerFactory.getLogger(BufferedMetricsExporter.class);
+    public static final int DEFAULT_CAPACITY = 65_536;
     private final MetricsExporter delegate;
-    private final List<Metric> buffer;
-    private final ScheduledExecutorService scheduler;
     private final int bufferSeconds;
+    private final SeriesRegistry registry = SeriesRegistry.getDefault();
+    private final MetricRingBuffer buffer;
+    private final Counter dropped;
+    private final Counter retried;
+    private final WindowAggregator aggregator;
+    private final LongSupplier clock;
+    private long reportedDrops;
+    private ScheduledFuture<?> flushTask;
+
+    // Used by flush only. The points of a batch that failed to export are kept and
+    // retried first, less any groups that were exported before the failure
+    private final MetricBatch draining;
+    private final MetricBatch group;
+    private final MetricBatch samples;
+    private final BitSet seenSeries = new BitSet();
+    // Grouping by host and timestamp: each point's group, an open-addressed table of
+    // group + 1, and each group's key and range of point indices in order
+    private int[] groupOf = new int[0];
+    private int[] groupTable = new int[0];
+    private String[] groupHosts = new String[16];
+    private long[] groupTimestamps = new long[16];
+    private int[] groupStarts = new int[0];
+    private int[] groupCursors = new int[0];
+    private int[] order = new int[0];
 
     public BufferedMetricsExporter(MetricsExporter delegate, int bufferSeconds) {
+        this(delegate, bufferSeconds, DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST, new AgentTelemetry());
+    }
+
+    public BufferedMetricsExporter(MetricsExporter delegate, int bufferSeconds, int capacity,
+                                   OverflowPolicy policy, AgentTelemetry telemetry) {
+        this(delegate, bufferSeconds, capacity, policy, 0, telemetry);
+    }
+
+    /**
+     * @param windowSeconds length of the summary window, or 0 to send every sample
+     */
+    public BufferedMetricsExporter(MetricsExporter delegate, int bufferSeconds, int capacity,
+                                   OverflowPolicy policy, int windowSeconds, AgentTelemetry telemetry) {
+        this(delegate, bufferSeconds, capacity, policy, windowSeconds, telemetry, true, Metric::currentTimestamp);
+    }
+
+    // For testing
+    BufferedMetricsExporter(MetricsExporter delegate, int bufferSeconds, int capacity,
+                            OverflowPolicy policy, AgentTelemetry telemetry, boolean scheduled) {
+        this(delegate, bufferSeconds, capacity, policy, 0, telemetry, scheduled, Metric::currentTimestamp);
+    }
+
+    // For testing
+    BufferedMetricsExporter(MetricsExporter delegate, int bufferSeconds, int capacity, OverflowPolicy policy,
+                            int windowSeconds, AgentTelemetry telemetry, boolean scheduled, LongSupplier clock) {
         this.delegate = delegate;
         this.bufferSeconds = bufferSeconds;
-        this.buffer = new ArrayList<>();
-        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.buffer = new MetricRingBuffer(capacity, policy);
+        this.draining = new MetricBatch(registry);
+        this.group = new MetricBatch(registry);
+        this.samples = new MetricBatch(registry);
+        this.aggregator = windowSeconds > 0 ? new WindowAggregator(windowSeconds) : null;
+        this.clock = clock;
+        this.dropped = telemetry.counter("agent_buffer_dropped");
+        this.retried = telemetry.counter("agent_buffer_retried");
+        telemetry.gauge("agent_buffer_occupancy", "c", buffer::size);
+
+        if (!scheduled) {
+            return;
+        }
 
         // Schedule periodic flush
-        scheduler.scheduleAtFixedRate(this::flush, bufferSeconds, bufferSeconds, TimeUnit.SECONDS);
+        flushTask = SharedScheduler.get().scheduleAtFixedRate(this::flush, bufferSeconds, bufferSeconds, TimeUnit.SECONDS);
 
         // Add shutdown hook to ensure metrics are flushed on exit
         Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
@@ -32,63 +103,225 @@ public class BufferedMetricsExporter implements MetricsExporter {
 
     @Override
     public void export(List<Metric> metrics) {
-        synchronized (buffer) {
-            buffer.addAll(metrics);
+        for (Metric metric : metrics) {
+            SeriesDescriptor series = registry.intern(metric.name(), metric.unit(), metric.host());
+            buffer.offer(series.id(), metric.timestamp(), metric.value());
+        }
+    }
+
+    @Override
+    public void export(MetricBatch batch) {
+        boolean sameRegistry = batch.registry() == registry;
+        for (int i = 0; i < batch.size(); i++) {
+            int seriesId = batch.seriesId(i);
+            if (!sameRegistry) {
+                SeriesDescriptor series = batch.series(i);
+                seriesId = registry.intern(series.name(), series.unit(), series.host()).id();
+            }
+            buffer.offer(seriesId, batch.timestamp(i), batch.value(i));
         }
     }
 
-    private void flush() {
-        List<Metric> toExport;
-        synchronized (buffer) {
-            if (buffer.isEmpty()) {
-                return;
+    @Override
+    public boolean summarizesWindows() {
+        return aggregator != null;
+    }
+
+    /**
+     * Points still buffered. For monitoring.
+     */
+    public int occupancy() {
+        return buffer.size();
+    }
+
+    /**
+     * Points dropped by the overflow policy since the exporter was created.
+     */
+    public long droppedPoints() {
+        return buffer.dropped();
+    }
+
+    void flush() {
+        flush(false);
+    }
+
+    /**
+     * @param closeWindows emit open summary windows even if they have not ended yet
+     */
+    synchronized void flush(boolean closeWindows) {
+        long drops = buffer.dropped();
+        if (drops > reportedDrops) {
+            dropped.add(drops - reportedDrops);
+            logger.warn("Buffer full, dropped {} points since last flush", drops - reportedDrops);
+            reportedDrops = drops;
+        }
+
+        // Draining at most one ring's worth keeps the retained batch bounded
+        if (draining.isEmpty()) {
+            if (aggregator == null) {
+                buffer.drainTo(draining, buffer.capacity());
+            } else {
+                summarize(closeWindows);
             }
-            toExport = new ArrayList<>(buffer);
-            buffer.clear();
+        }
+        if (draining.isEmpty()) {
+            return;
         }
 
         try {
-            // Group metrics by timestamp and host
-            Map<String, List<Metric>> groupedMetrics = toExport.stream()
-                .collect(Collectors.groupingBy(m -> m.timestamp() + "-" + m.host()));
-
-            // For each unique timestamp-host combination, merge all metrics into a single batch
-            for (Map.Entry<String, List<Metric>> entry : groupedMetrics.entrySet()) {
-                List<Metric> groupMetrics = entry.getValue();
-                // Merge metrics with the same name by taking the latest value
-                Map<String, Metric> mergedMetrics = new HashMap<>();
-                for (Metric metric : groupMetrics) {
-                    mergedMetrics.put(metric.name(), metric);
-                }
-                // Export the merged metrics as a single batch
-                delegate.export(new ArrayList<>(mergedMetrics.values()));
+            int batches;
+            if (aggregator == null) {
+                batches = exportGrouped(draining);
+            } else {
+                delegate.export(draining);
+                batches = 1;
             }
 
             logger.debug("Flushed {} metrics into {} batches after {} seconds",
-                toExport.size(),
-                groupedMetrics.size(),
+                draining.size(),
+                batches,
                 bufferSeconds);
+            draining.clear();
         } catch (Exception e) {
-            logger.error("Error flushing metrics", e);
-            // Put metrics back in buffer to try again next time
-            synchronized (buffer) {
-                buffer.addAll(0, toExport);
+            retried.add(draining.size());
+            logger.error("Error flushing metrics, retrying {} points on next flush", draining.size(), e);
+        }
+    }
+
+    private void summarize(boolean closeWindows) {
+        buffer.drainTo(samples, buffer.capacity());
+        try {
+            aggregator.addAll(samples, draining);
+        } finally {
+            samples.clear();
+        }
+        if (closeWindows) {
+            aggregator.drainAll(draining);
+        } else {
+            aggregator.drainClosed(clock.getAsLong(), draining);
+        }
+    }
+
+    /**
+     * Exports one batch per host and timestamp, in order of first appearance, keeping
+     * only the latest value of each series. Points are bucketed in one pass, so the
+     * points of collectors whose output interleaves still share a batch. If the
+     * delegate fails, the groups already exported are removed from {@code points}.
+     */
+    private int exportGrouped(MetricBatch points) {
+        int groups = assignGroups(points);
+        if (groupStarts.length < groups + 1) {
+            groupStarts = new int[Math.max(groups + 1, groupStarts.length * 2)];
+            groupCursors = new int[groupStarts.length];
+        }
+        if (order.length < points.size()) {
+            order = new int[Math.max(points.size(), order.length * 2)];
+        }
+
+        // Counting sort of the point indices by group, keeping collection order within each
+        Arrays.fill(groupStarts, 0, groups + 1, 0);
+        for (int i = 0; i < points.size(); i++) {
+            groupStarts[groupOf[i] + 1]++;
+        }
+        for (int g = 0; g < groups; g++) {
+            groupStarts[g + 1] += groupStarts[g];
+        }
+        System.arraycopy(groupStarts, 0, groupCursors, 0, groups);
+        for (int i = 0; i < points.size(); i++) {
+            order[groupCursors[groupOf[i]]++] = i;
+        }
+
+        int batches = 0;
+        try {
+            for (int g = 0; g < groups; g++) {
+                // Walk backwards so the latest value of each series wins
+                for (int k = groupStarts[g + 1] - 1; k >= groupStarts[g]; k--) {
+                    int i = order[k];
+                    int seriesId = points.seriesId(i);
+                    if (!seenSeries.get(seriesId)) {
+                        seenSeries.set(seriesId);
+                        group.add(seriesId, groupTimestamps[g], points.value(i));
+                    }
+                }
+
+                try {
+                    delegate.export(group);
+                    batches++;
+                } finally {
+                    for (int i = 0; i < group.size(); i++) {
+                        seenSeries.clear(group.seriesId(i));
+                    }
+                    group.clear();
+                }
+            }
+        } catch (RuntimeException e) {
+            // Groups go out in order, so the first ones were delivered; only retry the rest
+            int failed = batches;
+            points.retainIf(i -> groupOf[i] >= failed);
+            throw e;
+        } finally {
+            Arrays.fill(groupHosts, 0, groups, null);
+        }
+        return batches;
+    }
+
+    /**
+     * Sets {@code groupOf[i]} to the group of point {@code i}, numbering groups of equal
+     * host and timestamp by first appearance. Returns the number of groups.
+     */
+    private int assignGroups(MetricBatch points) {
+        int n = points.size();
+        if (groupOf.length < n) {
+            groupOf = new int[Math.max(n, groupOf.length * 2)];
+        }
+        // At most half full, since there are at most n groups
+        int tableSize = Integer.highestOneBit(Math.max(16, n * 2) - 1) << 1;
+        if (groupTable.length < tableSize) {
+            groupTable = new int[tableSize];
+        } else {
+            Arrays.fill(groupTable, 0);
+        }
+
+        int mask = groupTable.length - 1;
+        int groups = 0;
+        for (int i = 0; i < n; i++) {
+            String host = points.series(i).host();
+            long timestamp = points.timestamp(i);
+            int hash = (host.hashCode() * 31 + Long.hashCode(timestamp)) * 0x9E3779B9;
+            int index = (hash ^ (hash >>> 16)) & mask;
+            int g;
+            while (true) {
+                g = groupTable[index] - 1;
+                if (g < 0) {
+                    g = groups++;
+                    if (g == groupHosts.length) {
+                        groupHosts = Arrays.copyOf(groupHosts, g * 2);
+                        groupTimestamps = Arrays.copyOf(groupTimestamps, g * 2);
+                    }
+                    groupHosts[g] = host;
+                    groupTimestamps[g] = timestamp;
+                    groupTable[index] = g + 1;
+                    break;
+                }
+                if (groupTimestamps[g] == timestamp && groupHosts[g].equals(host)) {
+                    break;
+                }
+                index = (index + 1) & mask;
             }
+            groupOf[i] = g;
         }
+        return groups;
     }
 
     private void shutdown() {
-        scheduler.shutdown();
-        try {
-            // Flush remaining metrics
+        flushTask.cancel(false);
+        // Flush remaining metrics, stopping if the delegate fails. Flushes are
+        // synchronized, so this waits for any ongoing one to complete first
+        do {
             flush();
-            // Wait for any ongoing flush to complete
-            if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
-                logger.warn("Buffer scheduler did not terminate in time");
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            logger.error("Interrupted while shutting down buffer scheduler", e);
+        } while (draining.isEmpty() && buffer.size() > 0);
+        if (draining.isEmpty()) {
+            flush(true);
         }
     }
 }
@@ -0,0 +1,111 @@
+package com.nivuk.agent.exporters;
+
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import com.nivuk.agent.telemetry.Counter;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Drops samples that are within a deadband of the last value sent for their series,
+ * so flat series cost almost nothing to ship. A sample is dropped when it differs from
+ * the last sent value by no more than {@code absolute}, or by no more than
+ * {@code relative} times that value. A series is always sent at least once every
+ * {@code maxSilenceSeconds}, so the server can tell a flat series from a gone one and
+ * fill the gaps with the last value. Window summaries are never dropped.
+ * State is kept in arrays indexed by series id, and reset when a released id is
+ * reused by another series. Not thread-safe; each collection task owns its own filter,
+ * and the filters of all tasks add to one {@code agent_deadband_suppressed} counter.
+ */
+public class DeadbandFilter {
+    private final double absolute;
+    private final double relative;
+    private final long maxSilenceSeconds;
+    private final Counter suppressed;
+    private final IntPredicate keep;
+    private double[] lastValues = new double[0];
+    private long[] lastTimestamps = new long[0];
+    private SeriesDescriptor[] lastSeries = new SeriesDescriptor[0];
+    private MetricBatch current;
+
+    /**
+     * @param absolute          largest change dropped regardless of the value, 0 for none
+     * @param relative          largest change dropped as a fraction of the last sent value, e.g. 0.01
+     * @param maxSilenceSeconds longest a series may go unsent
+     */
+    public DeadbandFilter(double absolute, double relative, long maxSilenceSeconds, AgentTelemetry telemetry) {
+        if (absolute < 0 || relative < 0) {
+            throw new IllegalArgumentException("Deadband must not be negative: " + absolute + ", " + relative);
+        }
+        if (maxSilenceSeconds <= 0) {
+            throw new IllegalArgumentException("maxSilenceSeconds must be positive: " + maxSilenceSeconds);
+        }
+        this.absolute = absolute;
+        this.relative = relative;
+        this.maxSilenceSeconds = maxSilenceSeconds;
+        this.suppressed = telemetry.counter("agent_deadband_suppressed");
+        this.keep = this::keep;
+    }
+
+    /**
+     * Removes the points of {@code batch} that need not be sent.
+     */
+    public void apply(MetricBatch batch) {
+        int before = batch.size();
+        current = batch;
+        try {
+            batch.retainIf(keep);
+        } finally {
+            current = null;
+        }
+        suppressed.add(before - batch.size());
+    }
+
+    private boolean keep(int index) {
+        MetricBatch batch = current;
+        if (batch.isSummary(index)) {
+            return true;
+        }
+        int seriesId = batch.seriesId(index);
+        ensureCapacity(seriesId + 1);
+        SeriesDescriptor series = batch.series(index);
+        if (lastSeries[seriesId] != series) {
+            lastSeries[seriesId] = series;
+            lastTimestamps[seriesId] = Long.MIN_VALUE;
+        }
+        long timestamp = batch.timestamp(index);
+        double value = batch.value(index);
+        long lastTimestamp = lastTimestamps[seriesId];
+        if (lastTimestamp != Long.MIN_VALUE
+            && timestamp >= lastTimestamp
+            && timestamp - lastTimestamp < maxSilenceSeconds
+            && withinDeadband(value, lastValues[seriesId])) {
+            return false;
+        }
+        // Compared against the last value sent rather than seen, so slow drift is still sent
+        lastTimestamps[seriesId] = timestamp;
+        lastValues[seriesId] = value;
+        return true;
+    }
+
+    private boolean withinDeadband(double value, double last) {
+        if (Double.isNaN(value) || Double.isNaN(last)) {
+            return Double.isNaN(value) && Double.isNaN(last);
+        }
+        double change = Math.abs(value - last);
+        return change <= absolute || change <= relative * Math.abs(last);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > lastTimestamps.length) {
+            int newCapacity = Math.max(capacity, lastTimestamps.length * 2);
+            int oldCapacity = lastTimestamps.length;
+            lastValues = Arrays.copyOf(lastValues, newCapacity);
+            lastTimestamps = Arrays.copyOf(lastTimestamps, newCapacity);
+            lastSeries = Arrays.copyOf(lastSeries, newCapacity);
+            Arrays.fill(lastTimestamps, oldCapacity, newCapacity, Long.MIN_VALUE);
+        }
+    }
+}
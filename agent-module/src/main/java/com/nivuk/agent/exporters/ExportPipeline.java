@@ -0,0 +1,149 @@
+package com.nivuk.agent.exporters;
+
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import com.nivuk.agent.telemetry.Counter;
+import com.nivuk.agent.telemetry.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Stage between collection and export. Every exporter gets its own bounded queue and
+ * worker thread, so a blocked exporter only delays itself. A published batch is handed
+ * to all workers by reference and recycled once the last of them is done with it.
+ * When an exporter falls a full queue behind, its oldest batch is dropped.
+ */
+public class ExportPipeline implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ExportPipeline.class);
+    private static final long CLOSE_TIMEOUT_MILLIS = 5_000;
+
+    private final List<Worker> workers = new ArrayList<>();
+    private final BlockingQueue<SharedBatch> pool;
+
+    public ExportPipeline(List<MetricsExporter> exporters, int queueCapacity, AgentTelemetry telemetry) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+        }
+        // Enough to back every queue plus the batch being filled
+        this.pool = new ArrayBlockingQueue<>(exporters.size() * queueCapacity + 1);
+        for (MetricsExporter exporter : exporters) {
+            workers.add(new Worker(exporter, queueCapacity, telemetry));
+        }
+        workers.forEach(worker -> worker.thread.start());
+    }
+
+    /**
+     * Whether any of the exporters folds samples into window summaries.
+     */
+    public boolean summarizesWindows() {
+        return workers.stream().anyMatch(worker -> worker.exporter.summarizesWindows());
+    }
+
+    /**
+     * Returns an empty batch for the caller to fill and then {@link #publish}.
+     */
+    public SharedBatch acquire() {
+        SharedBatch shared = pool.poll();
+        if (shared == null) {
+            shared = new SharedBatch(this);
+        }
+        shared.retain();
+        return shared;
+    }
+
+    /**
+     * Queues {@code shared} for every exporter and gives up the caller's reference.
+     */
+    public void publish(SharedBatch shared) {
+        shared.published(System.nanoTime());
+        try {
+            if (!shared.batch().isEmpty()) {
+                for (Worker worker : workers) {
+                    worker.enqueue(shared);
+                }
+            }
+        } finally {
+            shared.release();
+        }
+    }
+
+    void recycle(SharedBatch shared) {
+        pool.offer(shared);
+    }
+
+    @Override
+    public void close() {
+        for (Worker worker : workers) {
+            worker.running = false;
+            worker.thread.interrupt();
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join(CLOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static final class Worker implements Runnable {
+        final MetricsExporter exporter;
+        final BlockingQueue<SharedBatch> queue;
+        final Thread thread;
+        final Histogram lag;
+        final Counter dropped;
+        volatile boolean running = true;
+
+        Worker(MetricsExporter exporter, int capacity, AgentTelemetry telemetry) {
+            this.exporter = exporter;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.thread = new Thread(this, "agent-export-" + exporter.name());
+            this.thread.setDaemon(true);
+            String prefix = "agent_export_" + exporter.name();
+            this.lag = telemetry.timer(prefix + "_lag");
+            this.dropped = telemetry.counter(prefix + "_dropped");
+            telemetry.gauge(prefix + "_queue", "c", queue::size);
+        }
+
+        void enqueue(SharedBatch shared) {
+            shared.retain();
+            while (!queue.offer(shared)) {
+                SharedBatch oldest = queue.poll();
+                if (oldest != null) {
+                    dropped.increment();
+                    logger.warn("Exporter {} is falling behind, dropping its oldest batch", exporter.name());
+                    oldest.release();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running || !queue.isEmpty()) {
+                SharedBatch shared;
+                try {
+                    shared = running ? queue.take() : queue.poll();
+                } catch (InterruptedException e) {
+                    // Closing; drain what is left
+                    continue;
+                }
+                if (shared == null) {
+                    return;
+                }
+                try {
+                    exporter.export(shared.batch());
+                } catch (RuntimeException e) {
+                    logger.error("Exporter {} failed", exporter.name(), e);
+                } finally {
+                    lag.record(System.nanoTime() - shared.publishedNanos());
+                    shared.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.nivuk.agent.exporters;
+
+import com.nivuk.agent.telemetry.AgentTelemetry;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides when {@link WebServiceMetricsExporter} flushes and whether it may send at all.
+ * The flush interval follows the server's smoothed response time: it doubles while
+ * responses are slow, so each request carries more points, and shrinks back towards
+ * the minimum while they are fast. Failures back off exponentially with jitter, and
+ * after {@code failureThreshold} consecutive failures the circuit opens: no requests
+ * are sent until the open period has passed, then a single probe decides whether to
+ * close it again or to stay open for twice as long. A probe that has not completed
+ * within {@code openMillis} is presumed lost, and another is let through.
+ */
+public class FlushController {
+    // Responses slower than this grow the interval, faster ones shrink it
+    private static final double SLOW_MILLIS = 1_000;
+    private static final double FAST_MILLIS = 200;
+    private static final double ALPHA = 0.2;
+
+    public enum State { CLOSED, HALF_OPEN, OPEN }
+
+    private final FlushPolicy policy;
+    private final LongSupplier nanoTime;
+    private final Random random;
+
+    private State state = State.CLOSED;
+    private double latencyMillis = Double.NaN;
+    private double errorRate;
+    private long intervalMillis;
+    private int consecutiveFailures;
+    private long openMillis;
+    private long openUntilNanos;
+    private long probeUntilNanos;
+
+    public FlushController(FlushPolicy policy, AgentTelemetry telemetry) {
+        this(policy, telemetry, System::nanoTime, new Random());
+    }
+
+    // For testing
+    FlushController(FlushPolicy policy, AgentTelemetry telemetry, LongSupplier nanoTime, Random random) {
+        this.policy = policy;
+        this.nanoTime = nanoTime;
+        this.random = random;
+        this.intervalMillis = policy.initialIntervalMillis();
+        this.openMillis = policy.openMillis();
+
+        telemetry.gauge("agent_flush_interval", "ms", () -> nextDelayMillis(false));
+        telemetry.gauge("agent_flush_latency_ewma", "ms", () -> {
+            double latency = latencyMillis();
+            return Double.isNaN(latency) ? 0 : latency;
+        });
+        telemetry.gauge("agent_flush_error_rate", "p", () -> errorRate() * 100);
+        telemetry.gauge("agent_circuit_state", "c", () -> state().ordinal());
+    }
+
+    /**
+     * Returns whether a request may be sent now. When the open period has passed this
+     * lets exactly one probe through and refuses everything else until it completes or
+     * times out. Call it only once the request is ready to go: a probe taken and never
+     * sent holds the circuit half open until it times out.
+     */
+    public synchronized boolean allowRequest() {
+        if (!acceptingRequests()) {
+            return false;
+        }
+        if (state != State.CLOSED) {
+            state = State.HALF_OPEN;
+            probeUntilNanos = nanoTime.getAsLong() + TimeUnit.MILLISECONDS.toNanos(policy.openMillis());
+        }
+        return true;
+    }
+
+    /**
+     * Whether {@link #allowRequest()} would let a request through now, without taking
+     * the probe. False while the circuit is open, until its probe is due.
+     */
+    public synchronized boolean acceptingRequests() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return nanoTime.getAsLong() - openUntilNanos >= 0;
+            default:
+                return nanoTime.getAsLong() - probeUntilNanos >= 0;
+        }
+    }
+
+    public synchronized void onSuccess(long latency) {
+        latencyMillis = Double.isNaN(latencyMillis) ? latency : latencyMillis + ALPHA * (latency - latencyMillis);
+        errorRate -= ALPHA * errorRate;
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            state = State.CLOSED;
+            openMillis = policy.openMillis();
+        }
+
+        if (latencyMillis > SLOW_MILLIS) {
+            intervalMillis = Math.min(policy.maxIntervalMillis(), intervalMillis * 2);
+        } else if (latencyMillis < FAST_MILLIS) {
+            intervalMillis = Math.max(policy.minIntervalMillis(), intervalMillis * 3 / 4);
+        }
+    }
+
+    public synchronized void onFailure() {
+        errorRate += ALPHA * (1 - errorRate);
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            openMillis = Math.min(openMillis * 2, TimeUnit.MINUTES.toMillis(30));
+            open();
+        } else if (state == State.CLOSED && consecutiveFailures >= policy.failureThreshold()) {
+            open();
+        }
+    }
+
+    /**
+     * Delay before the next flush: the adaptive interval while healthy, or an
+     * exponential backoff with full jitter after failures.
+     */
+    public long nextDelayMillis() {
+        return nextDelayMillis(true);
+    }
+
+    private synchronized long nextDelayMillis(boolean jitter) {
+        if (state == State.OPEN) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(openUntilNanos - nanoTime.getAsLong());
+            return Math.max(policy.minIntervalMillis(), remaining);
+        }
+        if (consecutiveFailures == 0) {
+            return intervalMillis;
+        }
+        int exponent = Math.min(consecutiveFailures, 16);
+        long backoff = Math.min(policy.maxIntervalMillis(), policy.minIntervalMillis() << exponent);
+        if (!jitter) {
+            return backoff;
+        }
+        // Spread retries of a fleet that failed together over [min, backoff]
+        return policy.minIntervalMillis() + (long) (random.nextDouble() * (backoff - policy.minIntervalMillis()));
+    }
+
+    /**
+     * Whether the last request succeeded and the circuit is closed.
+     */
+    public synchronized boolean healthy() {
+        return state == State.CLOSED && consecutiveFailures == 0;
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    public synchronized double latencyMillis() {
+        return latencyMillis;
+    }
+
+    public synchronized double errorRate() {
+        return errorRate;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntilNanos = nanoTime.getAsLong() + TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+}
@@ -0,0 +1,26 @@
+package com.nivuk.agent.exporters;
+
+/**
+ * Bounds for {@link FlushController}.
+ *
+ * @param minIntervalMillis     shortest flush interval, used while the server responds quickly
+ * @param initialIntervalMillis flush interval before any response has been seen
+ * @param maxIntervalMillis     longest flush interval, also the cap on failure backoff
+ * @param failureThreshold      consecutive failures that open the circuit
+ * @param openMillis            how long the circuit stays open before a probe is let through
+ */
+public record FlushPolicy(long minIntervalMillis, long initialIntervalMillis, long maxIntervalMillis,
+                          int failureThreshold, long openMillis) {
+    public FlushPolicy {
+        if (minIntervalMillis <= 0 || initialIntervalMillis < minIntervalMillis || maxIntervalMillis < initialIntervalMillis) {
+            throw new IllegalArgumentException("Flush intervals must satisfy 0 < min <= initial <= max");
+        }
+        if (failureThreshold <= 0 || openMillis <= 0) {
+            throw new IllegalArgumentException("failureThreshold and openMillis must be positive");
+        }
+    }
+
+    public static FlushPolicy defaults() {
+        return new FlushPolicy(5_000, 10_000, 120_000, 5, 30_000);
+    }
+}
@@ -0,0 +1,68 @@
+package com.nivuk.agent.exporters;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip-compresses encoded payloads above a size threshold. The {@link Deflater} and
+ * its buffers are reused across payloads instead of creating a GZIPOutputStream (and
+ * its native deflater) per request. Not thread-safe.
+ */
+public class GzipCompressor implements AutoCloseable {
+    public static final String CONTENT_ENCODING = "gzip";
+    private static final byte[] HEADER = {
+        0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private final int thresholdBytes;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] chunk = new byte[8192];
+
+    public GzipCompressor(int thresholdBytes, int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between 1 and 9: " + level);
+        }
+        this.thresholdBytes = thresholdBytes;
+        this.deflater = new Deflater(level, true);
+    }
+
+    /**
+     * Writes the gzip form of {@code input} to {@code output}. Returns false, leaving
+     * {@code output} untouched, if the payload is below the threshold.
+     */
+    public boolean compress(PayloadBuffer input, PayloadBuffer output) {
+        if (input.size() < thresholdBytes) {
+            return false;
+        }
+
+        output.reset();
+        output.write(HEADER, 0, HEADER.length);
+
+        crc.reset();
+        crc.update(input.array(), 0, input.size());
+        deflater.reset();
+        deflater.setInput(input.array(), 0, input.size());
+        deflater.finish();
+        while (!deflater.finished()) {
+            int written = deflater.deflate(chunk);
+            output.write(chunk, 0, written);
+        }
+
+        writeIntLittleEndian(output, (int) crc.getValue());
+        writeIntLittleEndian(output, input.size());
+        return true;
+    }
+
+    @Override
+    public void close() {
+        deflater.end();
+    }
+
+    private static void writeIntLittleEndian(PayloadBuffer output, int value) {
+        output.write(value);
+        output.write(value >>> 8);
+        output.write(value >>> 16);
+        output.write(value >>> 24);
+    }
+}
@@ -0,0 +1,83 @@
+package com.nivuk.agent.exporters;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent hash ring over a fixed set of nodes. Each node is placed at
+ * {@value #VIRTUAL_NODES} points derived from its name, so a key's owner depends only
+ * on the node names and not on their order, and adding or removing a node only moves
+ * the keys of the ring segments it gains or loses.
+ */
+final class HashRing {
+    static final int VIRTUAL_NODES = 160;
+
+    private final int nodeCount;
+    // Ring positions in ascending order, and the node at each
+    private final long[] positions;
+    private final int[] owners;
+
+    HashRing(List<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one node");
+        }
+        this.nodeCount = nodes.size();
+        long[][] points = new long[nodeCount * VIRTUAL_NODES][];
+        for (int node = 0; node < nodeCount; node++) {
+            for (int replica = 0; replica < VIRTUAL_NODES; replica++) {
+                points[node * VIRTUAL_NODES + replica] = new long[] {hash(nodes.get(node) + "#" + replica), node};
+            }
+        }
+        // Ties are broken by node index so that equal hashes still give a stable order
+        Arrays.sort(points, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        this.positions = new long[points.length];
+        this.owners = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            positions[i] = points[i][0];
+            owners[i] = (int) points[i][1];
+        }
+    }
+
+    int size() {
+        return nodeCount;
+    }
+
+    /**
+     * Every node, ordered by where it first appears walking the ring clockwise from
+     * {@code key}: the owner first, then the nodes to fail over to.
+     */
+    int[] preference(String key) {
+        int[] order = new int[nodeCount];
+        boolean[] seen = new boolean[nodeCount];
+        int found = 0;
+        int index = Arrays.binarySearch(positions, hash(key));
+        int start = index >= 0 ? index : -index - 1;
+        for (int step = 0; step < positions.length && found < nodeCount; step++) {
+            int node = owners[(start + step) % positions.length];
+            if (!seen[node]) {
+                seen[node] = true;
+                order[found++] = node;
+            }
+        }
+        return order;
+    }
+
+    int owner(String key) {
+        return preference(key)[0];
+    }
+
+    /**
+     * 64-bit FNV-1a over the characters, finished with the SplitMix64 mixer so that
+     * similar keys such as {@code node#1} and {@code node#2} land far apart.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+}
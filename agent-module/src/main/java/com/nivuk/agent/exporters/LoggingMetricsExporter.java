@@ -1,6 +1,7 @@
 package com.nivuk.agent.exporters;
 
 import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,15 +10,25 @@ import java.util.*;
 public class LoggingMetricsExporter implements MetricsExporter {
     private static final Logger logger = LoggerFactory.getLogger(LoggingMetricsExporter.class);
     private final MetricJsonFormatter formatter;
+    private final PayloadBuffer payload = new PayloadBuffer();
 
     public LoggingMetricsExporter() {
         formatter = new MetricJsonFormatter();
     }
 
     @Override
-    public void export(List<Metric> metrics) {
-        if (!metrics.isEmpty()) {
-            logger.info("Collected metrics: {}", formatter.format(metrics));
+    public synchronized void export(List<Metric> metrics) {
+        if (!metrics.isEmpty() && logger.isInfoEnabled()) {
+            formatter.encode(metrics, payload);
+            logger.info("Collected metrics: {}", payload);
+        }
+    }
+
+    @Override
+    public synchronized void export(MetricBatch batch) {
+        if (!batch.isEmpty() && logger.isInfoEnabled()) {
+            formatter.encode(batch, payload);
+            logger.info("Collected metrics: {}", payload);
         }
     }
 }
@@ -0,0 +1,283 @@
+package com.nivuk.agent.exporters;
+
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of a batch. Strings are written once in a per-payload
+ * dictionary, points are grouped by series, timestamps are delta-of-delta encoded
+ * and values are XOR-compressed as in Facebook's Gorilla paper.
+ *
+ * <pre>
+ * payload    := "NVMB" version:u8 dictionary seriesCount:varint series*
+ * dictionary := count:varint (length:varint utf8)*
+ * series     := host:varint name:varint unit:varint points:varint block
+ * block      := bits, zero-padded to a byte boundary
+ *               first point: timestamp:64 value:64
+ *               next points: timestamp-dod value-xor
+ * dod        := '0' | '10' s7 | '110' s9 | '1110' s12 | '1111' s64
+ * xor        := '0'                       (same value)
+ *             | '10' meaningful-bits      (fits the previous leading/trailing window)
+ *             | '11' leading:6 length-1:6 meaningful-bits
+ * </pre>
+ *
+ * Varints are unsigned LEB128; the first delta is encoded as a dod against zero.
+ *
+ * Batches holding window summaries are written as version 2, where every series
+ * carries a kind and summary series append their remaining columns:
+ *
+ * <pre>
+ * series     := host:varint name:varint unit:varint kind:u8 points:varint block summary?
+ * kind       := 0 (samples) | 1 (window summaries, the block holding the last values)
+ * summary    := values(min) values(max) values(sum) (window:varint count:varint)*
+ * values     := bits, zero-padded: first value:64, then xor per point as above
+ * </pre>
+ *
+ * A window of zero marks a plain sample inside a summary series. Batches without
+ * summaries stay at version 1 so older servers keep accepting them.
+ * Not thread-safe.
+ */
+public class MetricBinaryEncoder implements MetricEncoder {
+    public static final String CONTENT_TYPE = "application/x-nivuk-metrics";
+    static final byte[] MAGIC = {'N', 'V', 'M', 'B'};
+    static final int VERSION = 1;
+    static final int SUMMARY_VERSION = 2;
+    private static final int KIND_SAMPLES = 0;
+    private static final int KIND_SUMMARIES = 1;
+    private static final int MIN = 0;
+    private static final int MAX = 1;
+    private static final int SUM = 2;
+
+    private final BitWriter writer = new BitWriter();
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final MetricBatch scratch = new MetricBatch();
+    private int[] seriesStarts = new int[64];
+    private int[] order = new int[64];
+    private int xorLeading;
+    private int xorTrailing;
+
+    @Override
+    public String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public boolean encode(List<Metric> metrics, PayloadBuffer buffer) {
+        scratch.clear();
+        scratch.addAll(metrics);
+        try {
+            return encode(scratch, buffer);
+        } finally {
+            scratch.clear();
+        }
+    }
+
+    @Override
+    public boolean encode(MetricBatch batch, PayloadBuffer buffer) {
+        buffer.reset();
+        writer.reset(buffer);
+        int seriesSlots = groupBySeries(batch);
+
+        dictionary.clear();
+        int seriesCount = 0;
+        for (int id = 0; id < seriesSlots; id++) {
+            if (seriesStarts[id + 1] > seriesStarts[id]) {
+                SeriesDescriptor series = batch.registry().get(id);
+                intern(series.host());
+                intern(series.name());
+                intern(series.unit());
+                seriesCount++;
+            }
+        }
+
+        boolean summaries = batch.hasSummaries();
+        buffer.write(MAGIC, 0, MAGIC.length);
+        buffer.write(summaries ? SUMMARY_VERSION : VERSION);
+        writeDictionary(buffer);
+        writer.writeVarint(seriesCount);
+        for (int id = 0; id < seriesSlots; id++) {
+            int start = seriesStarts[id];
+            int end = seriesStarts[id + 1];
+            if (end > start) {
+                SeriesDescriptor series = batch.registry().get(id);
+                writer.writeVarint(dictionary.get(series.host()));
+                writer.writeVarint(dictionary.get(series.name()));
+                writer.writeVarint(dictionary.get(series.unit()));
+                boolean summarySeries = summaries && hasSummary(batch, start, end);
+                if (summaries) {
+                    buffer.write(summarySeries ? KIND_SUMMARIES : KIND_SAMPLES);
+                }
+                writer.writeVarint(end - start);
+                writeBlock(batch, start, end);
+                if (summarySeries) {
+                    writeSummaryColumns(batch, start, end);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counting sort of point indices by series id. Afterwards the points of series
+     * {@code id} are {@code order[seriesStarts[id] .. seriesStarts[id + 1])}, in
+     * batch order. Returns the number of series slots.
+     */
+    private int groupBySeries(MetricBatch batch) {
+        int slots = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            slots = Math.max(slots, batch.seriesId(i) + 1);
+        }
+        if (seriesStarts.length < slots + 1) {
+            seriesStarts = new int[Math.max(slots + 1, seriesStarts.length * 2)];
+        }
+        if (order.length < batch.size()) {
+            order = new int[Math.max(batch.size(), order.length * 2)];
+        }
+
+        Arrays.fill(seriesStarts, 0, slots + 1, 0);
+        for (int i = 0; i < batch.size(); i++) {
+            seriesStarts[batch.seriesId(i) + 1]++;
+        }
+        for (int id = 0; id < slots; id++) {
+            seriesStarts[id + 1] += seriesStarts[id];
+        }
+        // Fill using seriesStarts as cursors, then shift them back into place
+        for (int i = 0; i < batch.size(); i++) {
+            order[seriesStarts[batch.seriesId(i)]++] = i;
+        }
+        for (int id = slots; id > 0; id--) {
+            seriesStarts[id] = seriesStarts[id - 1];
+        }
+        seriesStarts[0] = 0;
+        return slots;
+    }
+
+    private void writeBlock(MetricBatch batch, int start, int end) {
+        int first = order[start];
+        long previousTimestamp = batch.timestamp(first);
+        long previousDelta = 0;
+        long previousBits = Double.doubleToLongBits(batch.value(first));
+        xorLeading = Integer.MAX_VALUE;
+        xorTrailing = 0;
+
+        writer.writeBits(previousTimestamp, 64);
+        writer.writeBits(previousBits, 64);
+
+        for (int i = start + 1; i < end; i++) {
+            int point = order[i];
+            long timestamp = batch.timestamp(point);
+            long delta = timestamp - previousTimestamp;
+            writeDeltaOfDelta(delta - previousDelta);
+            previousTimestamp = timestamp;
+            previousDelta = delta;
+
+            long bits = Double.doubleToLongBits(batch.value(point));
+            writeXor(bits ^ previousBits);
+            previousBits = bits;
+        }
+        writer.alignToByte();
+    }
+
+    private void writeSummaryColumns(MetricBatch batch, int start, int end) {
+        writeValues(batch, start, end, MIN);
+        writeValues(batch, start, end, MAX);
+        writeValues(batch, start, end, SUM);
+        for (int i = start; i < end; i++) {
+            int point = order[i];
+            writer.writeVarint(batch.window(point));
+            writer.writeVarint(batch.count(point));
+        }
+    }
+
+    private void writeValues(MetricBatch batch, int start, int end, int column) {
+        long previousBits = Double.doubleToLongBits(column(batch, order[start], column));
+        xorLeading = Integer.MAX_VALUE;
+        xorTrailing = 0;
+        writer.writeBits(previousBits, 64);
+        for (int i = start + 1; i < end; i++) {
+            long bits = Double.doubleToLongBits(column(batch, order[i], column));
+            writeXor(bits ^ previousBits);
+            previousBits = bits;
+        }
+        writer.alignToByte();
+    }
+
+    private static double column(MetricBatch batch, int point, int column) {
+        return switch (column) {
+            case MIN -> batch.min(point);
+            case MAX -> batch.max(point);
+            default -> batch.sum(point);
+        };
+    }
+
+    private boolean hasSummary(MetricBatch batch, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (batch.isSummary(order[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeXor(long xor) {
+        if (xor == 0) {
+            writer.writeBit(false);
+            return;
+        }
+        writer.writeBit(true);
+        int leading = Long.numberOfLeadingZeros(xor);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (leading >= xorLeading && trailing >= xorTrailing) {
+            writer.writeBit(false);
+            writer.writeBits(xor >>> xorTrailing, 64 - xorLeading - xorTrailing);
+        } else {
+            int length = 64 - leading - trailing;
+            writer.writeBit(true);
+            writer.writeBits(leading, 6);
+            writer.writeBits(length - 1, 6);
+            writer.writeBits(xor >>> trailing, length);
+            xorLeading = leading;
+            xorTrailing = trailing;
+        }
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            writer.writeBits(0b0, 1);
+        } else if (dod >= -64 && dod <= 63) {
+            writer.writeBits(0b10, 2);
+            writer.writeBits(dod, 7);
+        } else if (dod >= -256 && dod <= 255) {
+            writer.writeBits(0b110, 3);
+            writer.writeBits(dod, 9);
+        } else if (dod >= -2048 && dod <= 2047) {
+            writer.writeBits(0b1110, 4);
+            writer.writeBits(dod, 12);
+        } else {
+            writer.writeBits(0b1111, 4);
+            writer.writeBits(dod, 64);
+        }
+    }
+
+    private void intern(String value) {
+        dictionary.putIfAbsent(value, dictionary.size());
+    }
+
+    private void writeDictionary(PayloadBuffer buffer) {
+        String[] entries = new String[dictionary.size()];
+        dictionary.forEach((value, index) -> entries[index] = value);
+        writer.writeVarint(entries.length);
+        for (String entry : entries) {
+            byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+            writer.writeVarint(bytes.length);
+            buffer.write(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.nivuk.agent.exporters;
+
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+
+import java.util.List;
+
+/**
+ * Wire encoding of a set of points, as sent by {@link WebServiceMetricsExporter}.
+ */
+public interface MetricEncoder {
+    /**
+     * Media type to send the encoded payload under.
+     */
+    String contentType();
+
+    /**
+     * Replaces the contents of {@code buffer} with the encoded points. Returns false
+     * if encoding failed.
+     */
+    boolean encode(MetricBatch batch, PayloadBuffer buffer);
+
+    boolean encode(List<Metric> metrics, PayloadBuffer buffer);
+}
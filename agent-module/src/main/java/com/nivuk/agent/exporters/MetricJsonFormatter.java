@@ -1,61 +1,43 @@
 package com.nivuk.agent.exporters;
 
-import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
 import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.math.BigDecimal;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
 
-public class MetricJsonFormatter {
+/**
+ * Writes metrics in the {@code {"points":[{"t","h","n","v","u"}]}} format. Points are
+ * streamed through a {@link JsonGenerator}, so no intermediate objects or strings are
+ * built per point. Values use the shortest representation that round-trips, with
+ * integral values written without a fraction. NaN and infinite values have no JSON
+ * representation and are skipped.
+ */
+public class MetricJsonFormatter implements MetricEncoder {
     private static final Logger logger = LoggerFactory.getLogger(MetricJsonFormatter.class);
-    private static final ObjectMapper objectMapper = new ObjectMapper();
+    // Integral doubles up to 2^53 are exactly representable as long
+    private static final double MAX_EXACT_INTEGRAL = 9_007_199_254_740_992.0;
+    private static final String EMPTY_DOCUMENT = "{}";
+    public static final String CONTENT_TYPE = "application/json; charset=utf-8";
 
-    public static class TimeSeriesMetrics {
-        @JsonProperty("points")
-        private final List<MetricPoint> points;
-
-        public TimeSeriesMetrics(List<MetricPoint> points) {
-            this.points = points;
-        }
-
-        public List<MetricPoint> getPoints() {
-            return points;
-        }
-    }
-
-    public static class MetricPoint {
-        @JsonProperty("t")
-        private final long timestamp;
-        @JsonProperty("h")
-        private final String hostName;
-        @JsonProperty("n")
-        private final String metricName;
-        @JsonProperty("v")
-        private final BigDecimal value;
-        @JsonProperty("u")
-        private final String unit;
-
-        public MetricPoint(long timestamp, String hostName, String metricName, double value, String unit) {
-            this.timestamp = timestamp;
-            this.hostName = hostName;
-            this.metricName = metricName;
-            this.value = BigDecimal.valueOf(value).stripTrailingZeros();
-            this.unit = unit;
-        }
+    private final boolean prettyPrint;
 
-        public long getTimestamp() { return timestamp; }
-        public String getHostName() { return hostName; }
-        public String getMetricName() { return metricName; }
-        public BigDecimal getValue() { return value; }
-        public String getUnit() { return unit; }
+    // Built on the first encode rather than when the formatter is created
+    private static final class Factory {
+        static final JsonFactory INSTANCE = JsonFactory.builder()
+            .enable(StreamWriteFeature.USE_FAST_DOUBLE_WRITER)
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
     }
 
-    private final boolean prettyPrint;
-
     public MetricJsonFormatter() {
         this(false);
     }
@@ -64,31 +46,161 @@ public class MetricJsonFormatter {
         this.prettyPrint = prettyPrint;
     }
 
+    @Override
+    public String contentType() {
+        return CONTENT_TYPE;
+    }
+
     public String format(List<Metric> metrics) {
         if (metrics.isEmpty()) {
-            return "{}";
+            return EMPTY_DOCUMENT;
         }
+        PayloadBuffer buffer = new PayloadBuffer();
+        return encode(metrics, buffer) ? buffer.toString() : EMPTY_DOCUMENT;
+    }
 
-        List<MetricPoint> points = new ArrayList<>(metrics.size());
-        for (Metric metric : metrics) {
-            points.add(new MetricPoint(
-                metric.timestamp(),
-                metric.host(),
-                metric.name(),
-                metric.value(),
-                metric.unit()
-            ));
+    public String format(MetricBatch batch) {
+        if (batch.isEmpty()) {
+            return EMPTY_DOCUMENT;
         }
+        PayloadBuffer buffer = new PayloadBuffer();
+        return encode(batch, buffer) ? buffer.toString() : EMPTY_DOCUMENT;
+    }
 
-        TimeSeriesMetrics timeSeriesMetrics = new TimeSeriesMetrics(points);
+    /**
+     * Replaces the contents of {@code buffer} with the JSON document for {@code metrics}.
+     * Returns false if encoding failed, in which case the buffer holds an empty document.
+     */
+    @Override
+    public boolean encode(List<Metric> metrics, PayloadBuffer buffer) {
+        buffer.reset();
         try {
-            if (prettyPrint) {
-                return objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(timeSeriesMetrics);
+            write(metrics, buffer);
+            return true;
+        } catch (IOException e) {
+            return encodingFailed(buffer, e);
+        }
+    }
+
+    @Override
+    public boolean encode(MetricBatch batch, PayloadBuffer buffer) {
+        buffer.reset();
+        try {
+            write(batch, buffer);
+            return true;
+        } catch (IOException e) {
+            return encodingFailed(buffer, e);
+        }
+    }
+
+    public void write(List<Metric> metrics, OutputStream out) throws IOException {
+        if (metrics.isEmpty()) {
+            writeEmpty(out);
+            return;
+        }
+        try (JsonGenerator generator = createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("points");
+            for (Metric metric : metrics) {
+                writePoint(generator, metric.timestamp(), metric.host(), metric.name(), metric.value(), metric.unit());
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+
+    public void write(MetricBatch batch, OutputStream out) throws IOException {
+        if (batch.isEmpty()) {
+            writeEmpty(out);
+            return;
+        }
+        try (JsonGenerator generator = createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("points");
+            for (int i = 0; i < batch.size(); i++) {
+                SeriesDescriptor series = batch.series(i);
+                if (batch.isSummary(i)) {
+                    writeSummary(generator, batch, i, series);
+                } else {
+                    writePoint(generator, batch.timestamp(i), series.host(), series.name(), batch.value(i), series.unit());
+                }
             }
-            return objectMapper.writeValueAsString(timeSeriesMetrics);
-        } catch (JsonProcessingException e) {
-            logger.error("Failed to serialize metrics to JSON: {}", e.getMessage());
-            return "{}";
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+
+    private JsonGenerator createGenerator(OutputStream out) throws IOException {
+        JsonGenerator generator = Factory.INSTANCE.createGenerator(out, JsonEncoding.UTF8);
+        if (prettyPrint) {
+            generator.useDefaultPrettyPrinter();
+        }
+        return generator;
+    }
+
+    private static void writePoint(JsonGenerator generator, long timestamp, String host, String name,
+                                   double value, String unit) throws IOException {
+        if (!Double.isFinite(value)) {
+            return;
+        }
+        generator.writeStartObject();
+        generator.writeNumberField("t", timestamp);
+        generator.writeStringField("h", host);
+        generator.writeStringField("n", name);
+        generator.writeFieldName("v");
+        writeValue(generator, value);
+        generator.writeStringField("u", unit);
+        generator.writeEndObject();
+    }
+
+    /**
+     * A window summary is a point whose value is the last sample, plus the window
+     * length {@code w} in seconds and {@code mn}, {@code mx}, {@code s} and {@code c}
+     * for the minimum, maximum, sum and count of the samples.
+     */
+    private static void writeSummary(JsonGenerator generator, MetricBatch batch, int index,
+                                     SeriesDescriptor series) throws IOException {
+        double sum = batch.sum(index);
+        if (!Double.isFinite(batch.value(index)) || !Double.isFinite(batch.min(index))
+                || !Double.isFinite(batch.max(index)) || !Double.isFinite(sum)) {
+            return;
         }
+        generator.writeStartObject();
+        generator.writeNumberField("t", batch.timestamp(index));
+        generator.writeStringField("h", series.host());
+        generator.writeStringField("n", series.name());
+        generator.writeFieldName("v");
+        writeValue(generator, batch.value(index));
+        generator.writeStringField("u", series.unit());
+        generator.writeNumberField("w", batch.window(index));
+        generator.writeFieldName("mn");
+        writeValue(generator, batch.min(index));
+        generator.writeFieldName("mx");
+        writeValue(generator, batch.max(index));
+        generator.writeFieldName("s");
+        writeValue(generator, sum);
+        generator.writeNumberField("c", batch.count(index));
+        generator.writeEndObject();
+    }
+
+    private static void writeValue(JsonGenerator generator, double value) throws IOException {
+        if (value == Math.rint(value) && Math.abs(value) <= MAX_EXACT_INTEGRAL) {
+            generator.writeNumber((long) value);
+        } else {
+            generator.writeNumber(value);
+        }
+    }
+
+    private static void writeEmpty(OutputStream out) throws IOException {
+        out.write('{');
+        out.write('}');
+    }
+
+    private static boolean encodingFailed(PayloadBuffer buffer, IOException e) {
+        logger.error("Failed to serialize metrics to JSON: {}", e.getMessage());
+        buffer.reset();
+        buffer.write('{');
+        buffer.write('}');
+        return false;
     }
 }
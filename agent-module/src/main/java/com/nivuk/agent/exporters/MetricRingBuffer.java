@@ -0,0 +1,159 @@
+package com.nivuk.agent.exporters;
+
+import com.nivuk.agent.model.MetricBatch;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue of points, stored in parallel arrays like {@link MetricBatch}.
+ * Each slot carries a sequence number that tells producers and consumers whether it is
+ * free or published (Vyukov's bounded queue), so offers never block and never allocate.
+ * Normally only the flush thread polls, but producers may poll too when evicting the
+ * oldest points, so both ends are claimed with CAS.
+ */
+class MetricRingBuffer {
+    private static final int MAX_STRIDE_SHIFT = 6;
+
+    // Capacities round up to a power of two, and 1 << 31 overflows an int
+    static final int MAX_CAPACITY = 1 << 30;
+
+    private final int capacity;
+    private final int mask;
+    private final OverflowPolicy policy;
+    private final AtomicLongArray sequences;
+    private final int[] seriesIds;
+    private final long[] timestamps;
+    private final double[] values;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // DOWNSAMPLE keeps one in 2^strideShift rounds while above half capacity
+    private final AtomicInteger strideShift = new AtomicInteger();
+
+    MetricRingBuffer(int capacity, OverflowPolicy policy) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2: " + capacity);
+        }
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Capacity must be at most " + MAX_CAPACITY + ": " + capacity);
+        }
+        this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.policy = policy;
+        this.sequences = new AtomicLongArray(this.capacity);
+        this.seriesIds = new int[this.capacity];
+        this.timestamps = new long[this.capacity];
+        this.values = new double[this.capacity];
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds a point, applying the overflow policy if the buffer is full. Returns false
+     * if the point was not buffered.
+     */
+    boolean offer(int seriesId, long timestamp, double value) {
+        if (policy == OverflowPolicy.DOWNSAMPLE && !admit(timestamp)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        while (!tryOffer(seriesId, timestamp, value)) {
+            if (policy != OverflowPolicy.DROP_OLDEST) {
+                if (policy == OverflowPolicy.DOWNSAMPLE) {
+                    strideShift.accumulateAndGet(1, (shift, one) -> Math.min(MAX_STRIDE_SHIFT, shift + one));
+                }
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (poll(null)) {
+                dropped.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves up to {@code max} points, oldest first, into {@code batch}, whose ids must
+     * come from the same registry as the offered ids. Returns the number moved.
+     */
+    int drainTo(MetricBatch batch, int max) {
+        int drained = 0;
+        while (drained < max && poll(batch)) {
+            drained++;
+        }
+        if (policy == OverflowPolicy.DOWNSAMPLE && size() < capacity / 4) {
+            strideShift.set(0);
+        }
+        return drained;
+    }
+
+    int size() {
+        return (int) Math.max(0, Math.min(capacity, tail.get() - head.get()));
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+
+    private boolean tryOffer(int seriesId, long timestamp, double value) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    seriesIds[index] = seriesId;
+                    timestamps[index] = timestamp;
+                    values[index] = value;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    // Removes the oldest point into batch, or discards it if batch is null
+    private boolean poll(MetricBatch batch) {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    if (batch != null) {
+                        batch.add(seriesIds[index], timestamps[index], values[index]);
+                    }
+                    sequences.set(index, position + capacity);
+                    return true;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    private boolean admit(long timestamp) {
+        if (size() < capacity / 2) {
+            return true;
+        }
+        int shift = strideShift.get();
+        // Points of one collection round share a timestamp, so rounds are kept or dropped whole
+        long mixed = timestamp * 0x9E3779B97F4A7C15L;
+        return shift == 0 || (mixed >>> (64 - shift)) == 0;
+    }
+}
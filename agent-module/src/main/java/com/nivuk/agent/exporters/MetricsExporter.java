@@ -1,8 +1,36 @@
 package com.nivuk.agent.exporters;
 
 import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
 import java.util.List;
+import java.util.Locale;
 
 public interface MetricsExporter {
     void export(List<Metric> metrics);
+
+    /**
+     * Exports the points of {@code batch}. The batch is reused by the caller once this
+     * returns, so implementations that keep points around must copy them. The default
+     * adapts to {@link #export(List)}.
+     */
+    default void export(MetricBatch batch) {
+        export(batch.toMetrics());
+    }
+
+    /**
+     * Whether this exporter folds samples into window summaries. It must then see every
+     * sample, since a summary built after a deadband filter would miss the samples it
+     * left out.
+     */
+    default boolean summarizesWindows() {
+        return false;
+    }
+
+    /**
+     * Short name used in the agent's own telemetry, e.g. {@code logging} for
+     * LoggingMetricsExporter.
+     */
+    default String name() {
+        return getClass().getSimpleName().replace("MetricsExporter", "").toLowerCase(Locale.ROOT);
+    }
 }
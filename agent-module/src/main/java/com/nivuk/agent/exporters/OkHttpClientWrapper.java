@@ -4,15 +4,41 @@ import okhttp3.Call;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 
+import java.util.function.Supplier;
+
 public class OkHttpClientWrapper implements HttpClient {
-    private final OkHttpClient client;
+    private final Supplier<OkHttpClient> factory;
+    private volatile OkHttpClient client;
 
     public OkHttpClientWrapper(OkHttpClient client) {
+        this.factory = null;
         this.client = client;
     }
 
+    /**
+     * Builds the client on the first call. Building one sets up TLS and a connection
+     * pool, which is a large part of the agent's startup when done eagerly.
+     */
+    public OkHttpClientWrapper(Supplier<OkHttpClient> factory) {
+        this.factory = factory;
+    }
+
     @Override
     public Call newCall(Request request) {
-        return client.newCall(request);
+        return client().newCall(request);
+    }
+
+    private OkHttpClient client() {
+        OkHttpClient current = client;
+        if (current == null) {
+            synchronized (this) {
+                current = client;
+                if (current == null) {
+                    current = factory.get();
+                    client = current;
+                }
+            }
+        }
+        return current;
     }
 }
@@ -0,0 +1,16 @@
+package com.nivuk.agent.exporters;
+
+/**
+ * What {@link BufferedMetricsExporter} does with new points once its buffer is full.
+ */
+public enum OverflowPolicy {
+    /** Evict the oldest buffered points to make room. */
+    DROP_OLDEST,
+    /** Reject the new points. */
+    DROP_NEWEST,
+    /**
+     * Thin out whole collection rounds once the buffer is half full, keeping a
+     * smaller share of rounds each time it fills up. Rejects new points if full.
+     */
+    DOWNSAMPLE
+}
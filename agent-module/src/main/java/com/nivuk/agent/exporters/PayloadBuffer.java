@@ -0,0 +1,68 @@
+package com.nivuk.agent.exporters;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that encoders write into and exporters send from. Unlike
+ * {@link java.io.ByteArrayOutputStream} it exposes its backing array, so a payload
+ * can be handed to the HTTP client without another copy. Not thread-safe.
+ */
+public class PayloadBuffer extends OutputStream {
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private byte[] bytes;
+    private int size;
+
+    public PayloadBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PayloadBuffer(int initialCapacity) {
+        this.bytes = new byte[Math.max(16, initialCapacity)];
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(size + 1);
+        bytes[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(size + len);
+        System.arraycopy(b, off, bytes, size, len);
+        size += len;
+    }
+
+    /**
+     * Returns the backing array; only the first {@link #size()} bytes are valid.
+     */
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, size, StandardCharsets.UTF_8);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+}
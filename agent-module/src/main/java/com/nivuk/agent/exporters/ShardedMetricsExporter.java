@@ -0,0 +1,174 @@
+package com.nivuk.agent.exporters;
+
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import com.nivuk.agent.telemetry.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Spreads series over several server endpoints. Each series is routed by consistent
+ * hashing on its host and metric name, so every endpoint receives a stable slice of
+ * the data and adding an endpoint only moves the series it takes over. While an
+ * endpoint's circuit is open its series go to the next endpoint on the ring that
+ * accepts requests, and return once its probe is due. Each endpoint keeps its own
+ * flush interval, circuit breaker and spool.
+ */
+public class ShardedMetricsExporter implements MetricsExporter, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedMetricsExporter.class);
+    private final List<WebServiceMetricsExporter> endpoints;
+    private final HashRing ring;
+    private final Counter failedOver;
+    private final boolean[] accepting;
+    private final MetricBatch[] partitions;
+    private final MetricBatch converted = new MetricBatch();
+
+    // Endpoints in failover order for each series id of routedRegistry, filled in on first
+    // use, and the series each was computed for, since released ids are reused
+    private SeriesRegistry routedRegistry;
+    private int[][] routes = new int[0][];
+    private SeriesDescriptor[] routedSeries = new SeriesDescriptor[0];
+    // Endpoint chosen for each point of the batch being exported
+    private int[] targets = new int[64];
+
+    public ShardedMetricsExporter(List<WebServiceMetricsExporter> endpoints, AgentTelemetry telemetry) {
+        this.endpoints = List.copyOf(endpoints);
+        this.ring = new HashRing(endpoints.stream().map(WebServiceMetricsExporter::serverUrl).toList());
+        this.failedOver = telemetry.counter("agent_shard_failover");
+        this.accepting = new boolean[endpoints.size()];
+        Arrays.fill(accepting, true);
+        this.partitions = new MetricBatch[endpoints.size()];
+    }
+
+    @Override
+    public String name() {
+        return "webservice";
+    }
+
+    @Override
+    public synchronized void export(List<Metric> metrics) {
+        converted.clear();
+        converted.addAll(metrics);
+        export(converted);
+    }
+
+    @Override
+    public synchronized void export(MetricBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        updateHealth();
+        if (targets.length < batch.size()) {
+            targets = new int[Math.max(batch.size(), targets.length * 2)];
+        }
+
+        int failovers = 0;
+        int firstTarget = -1;
+        boolean single = true;
+        for (int i = 0; i < batch.size(); i++) {
+            int[] route = route(batch, i);
+            // With no endpoint accepting, the owner sheds the points as a single endpoint would
+            int target = route[0];
+            for (int endpoint : route) {
+                if (accepting[endpoint]) {
+                    target = endpoint;
+                    break;
+                }
+            }
+            if (target != route[0]) {
+                failovers++;
+            }
+            targets[i] = target;
+            if (firstTarget < 0) {
+                firstTarget = target;
+            } else if (target != firstTarget) {
+                single = false;
+            }
+        }
+        if (failovers > 0) {
+            failedOver.add(failovers);
+        }
+
+        if (single) {
+            endpoints.get(firstTarget).export(batch);
+            return;
+        }
+        for (int endpoint = 0; endpoint < endpoints.size(); endpoint++) {
+            partition(endpoint, batch.registry());
+        }
+        try {
+            // Each point is copied once, into the partition of its endpoint
+            for (int i = 0; i < batch.size(); i++) {
+                partitions[targets[i]].add(batch, i);
+            }
+            for (int endpoint = 0; endpoint < endpoints.size(); endpoint++) {
+                if (!partitions[endpoint].isEmpty()) {
+                    endpoints.get(endpoint).export(partitions[endpoint]);
+                }
+            }
+        } finally {
+            for (MetricBatch partition : partitions) {
+                partition.clear();
+            }
+        }
+    }
+
+    private void updateHealth() {
+        for (int endpoint = 0; endpoint < endpoints.size(); endpoint++) {
+            boolean now = endpoints.get(endpoint).acceptingRequests();
+            if (now != accepting[endpoint]) {
+                if (now) {
+                    logger.info("Endpoint {} is accepting requests again, routing its series back",
+                        endpoints.get(endpoint).serverUrl());
+                } else {
+                    logger.warn("Endpoint {} is unavailable, failing its series over",
+                        endpoints.get(endpoint).serverUrl());
+                }
+                accepting[endpoint] = now;
+            }
+        }
+    }
+
+    private int[] route(MetricBatch batch, int index) {
+        if (batch.registry() != routedRegistry) {
+            routedRegistry = batch.registry();
+            routes = new int[0][];
+            routedSeries = new SeriesDescriptor[0];
+        }
+        int seriesId = batch.seriesId(index);
+        if (seriesId >= routes.length) {
+            routes = Arrays.copyOf(routes, Math.max(seriesId + 1, routes.length * 2));
+            routedSeries = Arrays.copyOf(routedSeries, routes.length);
+        }
+        int[] route = routes[seriesId];
+        SeriesDescriptor series = batch.series(index);
+        if (route == null || routedSeries[seriesId] != series) {
+            route = ring.preference(series.host() + '\0' + series.name());
+            routes[seriesId] = route;
+            routedSeries[seriesId] = series;
+        }
+        return route;
+    }
+
+    private MetricBatch partition(int endpoint, SeriesRegistry registry) {
+        MetricBatch partition = partitions[endpoint];
+        if (partition == null || partition.registry() != registry) {
+            partition = new MetricBatch(registry);
+            partitions[endpoint] = partition;
+        }
+        return partition;
+    }
+
+    @Override
+    public void close() {
+        for (WebServiceMetricsExporter endpoint : endpoints) {
+            endpoint.close();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.nivuk.agent.exporters;
+
+import com.nivuk.agent.model.MetricBatch;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pooled {@link MetricBatch} handed by reference to several exporter workers. Each
+ * holder releases it when done; the last release clears it and returns it to the pool.
+ * The points must not be modified once the batch has been published.
+ */
+public final class SharedBatch {
+    private final MetricBatch batch = new MetricBatch();
+    private final AtomicInteger references = new AtomicInteger();
+    private final ExportPipeline pool;
+    private volatile long publishedNanos;
+
+    SharedBatch(ExportPipeline pool) {
+        this.pool = pool;
+    }
+
+    public MetricBatch batch() {
+        return batch;
+    }
+
+    long publishedNanos() {
+        return publishedNanos;
+    }
+
+    void published(long nanos) {
+        publishedNanos = nanos;
+    }
+
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            batch.clear();
+            pool.recycle(this);
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Batch released more often than retained");
+        }
+    }
+}
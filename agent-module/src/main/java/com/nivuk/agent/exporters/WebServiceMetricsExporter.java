@@ -2,44 +2,158 @@ package com.nivuk.agent.exporters;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.scheduler.SharedScheduler;
+import com.nivuk.agent.spool.DiskSpool;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import com.nivuk.agent.telemetry.Counter;
+import com.nivuk.agent.telemetry.Histogram;
 import okhttp3.*;
 
 public class WebServiceMetricsExporter implements MetricsExporter, AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(WebServiceMetricsExporter.class);
     private final HttpClient client;
     private final String serverUrl;
-    private final Map<String, List<Metric>> batchedMetrics = new ConcurrentHashMap<>();
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-    private static final long BATCH_INTERVAL_SECONDS = 10;
+    // Points accumulated between flushes; swapped with flushingMetrics under the lock
+    private MetricBatch batchedMetrics = new MetricBatch();
+    private MetricBatch flushingMetrics = new MetricBatch();
+    // Runs the flushes: the shared timers when sends are asynchronous, otherwise sender
+    private final ScheduledExecutorService flushScheduler;
+    // Held while flushing, so that close can wait for a flush in progress
+    private final Object flushLock = new Object();
+    private volatile boolean closed;
+    private volatile ScheduledFuture<?> pendingFlush;
+    private static final long CLOSE_TIMEOUT_SECONDS = 5;
     private final boolean batchingEnabled;
-    private final MetricJsonFormatter formatter;
+    private final WebServiceSettings settings;
+    // Resolved on first send, so that building the exporter does not load OkHttp
+    private volatile MediaType contentType;
+    // One slot per request that may be in flight; a slot owns the buffers of its request body
+    private final BlockingQueue<SendSlot> freeSlots;
+    private final int slotCount;
+    // Buffers for payloads written straight to the spool, so that one can be kept while
+    // every send slot is busy; null without a spool
+    private final SendSlot spoolSlot;
+    // This exporter's own thread for blocking requests, synchronous flushes and spool
+    // replay, so that a slow server never holds up the shared timers; null if it has none
+    private final ScheduledThreadPoolExecutor sender;
+    private final FlushController controller;
+
+    private final Counter requests;
+    private final Counter failures;
+    private final Counter rejected;
+    private final Counter bytesSent;
+    private final Histogram latency;
+    private final Histogram encodeTime;
+    private final Histogram encodedBytes;
+    private final Counter spooled;
+    private final Counter replayed;
+
+    private static class SendSlot {
+        final PayloadBuffer payload = new PayloadBuffer();
+        final PayloadBuffer compressed = new PayloadBuffer();
+        // The buffer sent as the request body, one of the two above
+        PayloadBuffer body;
+        boolean gzipped;
+    }
 
     public WebServiceMetricsExporter(OkHttpClient okHttpClient, String serverUrl) {
-        this(new OkHttpClientWrapper(okHttpClient), serverUrl, true);
+        this(okHttpClient, serverUrl, WebServiceSettings.defaults(), new AgentTelemetry());
+    }
+
+    public WebServiceMetricsExporter(OkHttpClient okHttpClient, String serverUrl, WebServiceSettings settings,
+                                     AgentTelemetry telemetry) {
+        this(new OkHttpClientWrapper(okHttpClient), serverUrl, settings, telemetry, true);
+    }
+
+    /**
+     * Builds the HTTP client only when the first request is sent.
+     */
+    public WebServiceMetricsExporter(Supplier<OkHttpClient> okHttpClient, String serverUrl,
+                                     WebServiceSettings settings, AgentTelemetry telemetry) {
+        this(new OkHttpClientWrapper(okHttpClient), serverUrl, settings, telemetry, true);
     }
 
     WebServiceMetricsExporter(HttpClient client, String serverUrl) {
-        this(client, serverUrl, false);
+        this(client, serverUrl, WebServiceSettings.defaults());
     }
 
-    private WebServiceMetricsExporter(HttpClient client, String serverUrl, boolean batchingEnabled) {
+    WebServiceMetricsExporter(HttpClient client, String serverUrl, WebServiceSettings settings) {
+        this(client, serverUrl, settings, new AgentTelemetry());
+    }
+
+    // For testing
+    WebServiceMetricsExporter(HttpClient client, String serverUrl, WebServiceSettings settings,
+                              AgentTelemetry telemetry) {
+        this(client, serverUrl, settings, telemetry, false);
+    }
+
+    private WebServiceMetricsExporter(HttpClient client, String serverUrl, WebServiceSettings settings,
+                                      AgentTelemetry telemetry, boolean batchingEnabled) {
         this.client = client;
         this.serverUrl = serverUrl;
         this.batchingEnabled = batchingEnabled;
-        this.formatter = new MetricJsonFormatter();
+        this.settings = settings;
+        this.slotCount = Math.max(1, settings.maxInFlight());
+        this.freeSlots = new ArrayBlockingQueue<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            freeSlots.add(new SendSlot());
+        }
+        this.spoolSlot = settings.spool() != null ? new SendSlot() : null;
+
+        this.requests = telemetry.counter("agent_http_requests");
+        this.failures = telemetry.counter("agent_http_failures");
+        this.rejected = telemetry.counter("agent_http_rejected");
+        this.bytesSent = telemetry.counter("agent_http_bytes");
+        this.latency = telemetry.timer("agent_http_latency");
+        this.encodeTime = telemetry.timer("agent_encode");
+        this.encodedBytes = telemetry.histogram("agent_encode_bytes", "b", 1);
+        telemetry.gauge("agent_http_inflight", "c", () -> slotCount - freeSlots.size());
+        this.spooled = telemetry.counter("agent_spool_written");
+        this.replayed = telemetry.counter("agent_spool_replayed");
+        this.controller = new FlushController(settings.flushPolicy(), telemetry);
+
+        DiskSpool spool = settings.spool();
+        if (spool != null) {
+            telemetry.gauge("agent_spool_pending", "c", spool::pendingRecords);
+            telemetry.gauge("agent_spool_dropped", "c", spool::droppedRecords);
+        }
+
+        this.sender = batchingEnabled && (spool != null || !settings.async()) ? createSender() : null;
+        this.flushScheduler = settings.async() || sender == null ? SharedScheduler.get() : sender;
         if (batchingEnabled) {
-            scheduler.scheduleAtFixedRate(this::flushMetrics, BATCH_INTERVAL_SECONDS, BATCH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+            scheduleFlush();
+        }
+        if (spool != null && sender != null) {
+            sender.scheduleWithFixedDelay(this::replaySpool, 1, 1, TimeUnit.SECONDS);
         }
     }
 
+    private static ScheduledThreadPoolExecutor createSender() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "agent-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Closing cancels the next flush; do not wait for it to come due
+        executor.setRemoveOnCancelPolicy(true);
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return executor;
+    }
+
     @Override
     public void export(List<Metric> metrics) {
         if (metrics.isEmpty()) {
@@ -52,59 +166,396 @@ public class WebServiceMetricsExporter implements MetricsExporter, AutoCloseable
         }
 
         // Production batching mode
-        metrics.forEach(metric ->
-            batchedMetrics.computeIfAbsent(metric.host(), k -> Collections.synchronizedList(new ArrayList<>()))
-                .add(metric)
-        );
+        synchronized (this) {
+            batchedMetrics.addAll(metrics);
+        }
     }
 
-    private void flushMetrics() {
-        if (batchedMetrics.isEmpty()) {
+    @Override
+    public void export(MetricBatch batch) {
+        if (batch.isEmpty()) {
             return;
         }
 
-        List<Metric> allMetrics = batchedMetrics.values().stream()
-            .flatMap(List::stream)
-            .toList();
+        if (!batchingEnabled) {
+            sendMetricsToServer(batch);
+            return;
+        }
+
+        synchronized (this) {
+            batchedMetrics.addAll(batch);
+        }
+    }
+
+    public String serverUrl() {
+        return serverUrl;
+    }
 
-        sendMetricsToServer(allMetrics);
-        batchedMetrics.clear();
+    /**
+     * False while this endpoint's circuit is open, so a {@link ShardedMetricsExporter}
+     * sends its series elsewhere. True again once a probe is due, so that the probe
+     * carries the series this endpoint owns.
+     */
+    public boolean acceptingRequests() {
+        return controller.acceptingRequests();
+    }
+
+    private void scheduleFlush() {
+        if (closed) {
+            return;
+        }
+        try {
+            pendingFlush = flushScheduler.schedule(this::scheduledFlush, controller.nextDelayMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    private void scheduledFlush() {
+        try {
+            synchronized (flushLock) {
+                if (!closed) {
+                    flushMetrics();
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error flushing metrics", e);
+        } finally {
+            scheduleFlush();
+        }
+    }
+
+    // Only ever runs under flushLock, whose holder owns flushingMetrics
+    private void flushMetrics() {
+        MetricBatch toSend;
+        synchronized (this) {
+            if (batchedMetrics.isEmpty()) {
+                return;
+            }
+            toSend = batchedMetrics;
+            batchedMetrics = flushingMetrics;
+            flushingMetrics = toSend;
+        }
+
+        try {
+            sendMetricsToServer(toSend);
+        } finally {
+            toSend.clear();
+        }
     }
 
     private void sendMetricsToServer(List<Metric> metrics) {
-        String json = formatter.format(metrics);
-        logger.debug("Sending batched metrics to server: {}", json);
-
-        Request request = new Request.Builder()
-                .url(serverUrl)
-                .header("Content-Type", "application/json")
-                .post(RequestBody.create(json, MediaType.get("application/json")))
-                .build();
-
-        try (Response response = client.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                String errorBody = "";
-                if (response.body() != null) {
-                    errorBody = response.body().string();
+        send(buffer -> settings.encoder().encode(metrics, buffer));
+    }
+
+    private void sendMetricsToServer(MetricBatch batch) {
+        send(buffer -> settings.encoder().encode(batch, buffer));
+    }
+
+    private void send(Predicate<PayloadBuffer> encode) {
+        if (!controller.acceptingRequests()) {
+            shed(encode, false);
+            return;
+        }
+        SendSlot slot = acquireSlot();
+        if (slot == null) {
+            shed(encode, true);
+            return;
+        }
+        if (!encode(slot, encode)) {
+            freeSlots.add(slot);
+            return;
+        }
+        // Checked again last, so that a probe is only taken for a request that is sent
+        if (!controller.allowRequest()) {
+            try {
+                shed(slot, false);
+            } finally {
+                freeSlots.add(slot);
+            }
+            return;
+        }
+        sendRequest(slot);
+    }
+
+    // Payloads that cannot be sent now go straight to the spool, or are dropped without one
+    private void shed(Predicate<PayloadBuffer> encode, boolean overloaded) {
+        if (spoolSlot == null) {
+            reject(overloaded);
+            return;
+        }
+        synchronized (spoolSlot) {
+            if (encode(spoolSlot, encode)) {
+                shed(spoolSlot, overloaded);
+            }
+        }
+    }
+
+    private void shed(SendSlot encoded, boolean overloaded) {
+        if (spoolSlot == null) {
+            reject(overloaded);
+            return;
+        }
+        encoded.body = encoded.payload;
+        encoded.gzipped = false;
+        spool(encoded);
+    }
+
+    private void reject(boolean overloaded) {
+        rejected.increment();
+        if (overloaded) {
+            logger.warn("Dropping metrics: {} requests already in flight", slotCount);
+        } else {
+            logger.debug("Circuit open, dropping metrics");
+        }
+    }
+
+    private boolean encode(SendSlot slot, Predicate<PayloadBuffer> encode) {
+        long start = System.nanoTime();
+        boolean encoded;
+        synchronized (settings.encoder()) {
+            encoded = encode.test(slot.payload);
+        }
+        if (encoded) {
+            encodeTime.record(System.nanoTime() - start);
+            encodedBytes.record(slot.payload.size());
+        }
+        return encoded;
+    }
+
+    /**
+     * In async mode, returns null without waiting when every slot is in flight; the
+     * caller must never block on the network. In sync mode, waits for the single slot.
+     */
+    private SendSlot acquireSlot() {
+        if (settings.async()) {
+            return freeSlots.poll();
+        }
+        try {
+            return freeSlots.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void sendRequest(SendSlot slot) {
+        Request request = buildRequest(slot);
+        Call call = client.newCall(request);
+        long start = System.nanoTime();
+        requests.increment();
+
+        if (!settings.async()) {
+            try (Response response = call.execute()) {
+                handleResponse(response, start, slot);
+            } catch (IOException e) {
+                handleFailure(e, start, slot);
+            } finally {
+                freeSlots.add(slot);
+            }
+            return;
+        }
+
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                try {
+                    handleFailure(e, start, slot);
+                } finally {
+                    freeSlots.add(slot);
+                }
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (response) {
+                    handleResponse(response, start, slot);
+                } catch (IOException e) {
+                    handleFailure(e, start, slot);
+                } finally {
+                    freeSlots.add(slot);
+                }
+            }
+        });
+    }
+
+    private Request buildRequest(SendSlot slot) {
+        Request.Builder builder = new Request.Builder().url(serverUrl);
+        GzipCompressor compressor = settings.compressor();
+        boolean gzipped = false;
+        if (compressor != null) {
+            synchronized (compressor) {
+                gzipped = compressor.compress(slot.payload, slot.compressed);
+            }
+        }
+
+        PayloadBuffer body = gzipped ? slot.compressed : slot.payload;
+        slot.body = body;
+        slot.gzipped = gzipped;
+        if (gzipped) {
+            logger.debug("Sending {} bytes of {} metrics to server, gzipped from {} bytes",
+                body.size(), settings.encoder().contentType(), slot.payload.size());
+            builder.header("Content-Encoding", GzipCompressor.CONTENT_ENCODING);
+        } else {
+            logger.debug("Sending {} bytes of {} metrics to server", body.size(), settings.encoder().contentType());
+        }
+        bytesSent.add(body.size());
+        return builder.post(RequestBody.create(body.array(), contentType(), 0, body.size())).build();
+    }
+
+    private void handleResponse(Response response, long start, SendSlot slot) throws IOException {
+        long elapsedNanos = System.nanoTime() - start;
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        latency.record(elapsedNanos);
+        if (response.isSuccessful()) {
+            controller.onSuccess(elapsedMillis);
+            return;
+        }
+        failures.increment();
+        if (isRetryable(response.code())) {
+            controller.onFailure();
+            spool(slot);
+        } else {
+            // The server is answering; only this payload is at fault
+            controller.onSuccess(elapsedMillis);
+        }
+        String errorBody = "";
+        if (response.body() != null) {
+            errorBody = response.body().string();
+        }
+        logger.error("Failed to send metrics to server. Status: {}, Body: {}",
+            response.code(), errorBody);
+    }
+
+    private void handleFailure(IOException e, long start, SendSlot slot) {
+        latency.record(System.nanoTime() - start);
+        failures.increment();
+        controller.onFailure();
+        spool(slot);
+        logger.error("Network error while sending metrics to server: {}", e.getMessage(), e);
+    }
+
+    private void spool(SendSlot slot) {
+        DiskSpool spool = settings.spool();
+        if (spool != null && spool.append(settings.encoder().contentType(), slot.gzipped,
+                slot.body.array(), 0, slot.body.size())) {
+            spooled.increment();
+        }
+    }
+
+    // Rejections other than overload would fail again on replay
+    private static boolean isRetryable(int status) {
+        return status >= 500 || status == 429 || status == 408;
+    }
+
+    /**
+     * Resends up to {@code replayPerSecond} spooled payloads, oldest first. Replay
+     * only runs while the server is healthy, and stops at the first failure, leaving
+     * that payload at the head of the spool.
+     */
+    void replaySpool() {
+        DiskSpool spool = settings.spool();
+        for (int i = 0; i < settings.replayPerSecond() && controller.healthy(); i++) {
+            DiskSpool.SpoolRecord record = spool.peek();
+            if (record == null) {
+                return;
+            }
+
+            Request.Builder builder = new Request.Builder().url(serverUrl);
+            if (record.gzipped()) {
+                builder.header("Content-Encoding", GzipCompressor.CONTENT_ENCODING);
+            }
+            Request request = builder.post(RequestBody.create(record.body(), MediaType.get(record.contentType()))).build();
+            long start = System.nanoTime();
+            try (Response response = client.newCall(request).execute()) {
+                if (response.isSuccessful()) {
+                    controller.onSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    spool.remove();
+                    replayed.increment();
+                } else if (isRetryable(response.code())) {
+                    controller.onFailure();
+                    return;
+                } else {
+                    logger.warn("Server rejected spooled payload with status {}, discarding it", response.code());
+                    spool.remove();
                 }
-                logger.error("Failed to send metrics to server. Status: {}, Body: {}",
-                    response.code(), errorBody);
+            } catch (IOException e) {
+                logger.debug("Replay of spooled payload failed: {}", e.getMessage());
+                controller.onFailure();
+                return;
             }
-        } catch (IOException e) {
-            logger.error("Network error while sending metrics to server: {}", e.getMessage(), e);
         }
     }
 
+    private MediaType contentType() {
+        MediaType type = contentType;
+        if (type == null) {
+            type = MediaType.get(settings.encoder().contentType());
+            contentType = type;
+        }
+        return type;
+    }
+
     @Override
     public void close() {
-        scheduler.shutdown();
+        closed = true;
+        ScheduledFuture<?> flush = pendingFlush;
+        if (flush != null) {
+            flush.cancel(false);
+        }
+        if (sender != null) {
+            sender.shutdown();
+        }
+        try {
+            if (batchingEnabled) {
+                // Send what is left now rather than waiting for the next flush
+                synchronized (flushLock) {
+                    flushMetrics();
+                }
+            }
+            awaitInFlight();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logger.error("Error flushing metrics on close", e);
+        }
+        awaitSender();
+        if (settings.spool() != null) {
+            settings.spool().close();
+        }
+        if (settings.compressor() != null) {
+            synchronized (settings.compressor()) {
+                settings.compressor().close();
+            }
+        }
+    }
+
+    // A replay in progress uses the spool and compressor; let it finish its request first
+    private void awaitSender() {
+        if (sender == null) {
+            return;
+        }
         try {
-            if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
-                scheduler.shutdownNow();
+            if (!sender.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Request to {} still running at shutdown", serverUrl);
             }
         } catch (InterruptedException e) {
-            scheduler.shutdownNow();
             Thread.currentThread().interrupt();
         }
     }
+
+    private void awaitInFlight() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CLOSE_TIMEOUT_SECONDS);
+        List<SendSlot> drained = new ArrayList<>(slotCount);
+        while (drained.size() < slotCount) {
+            long remaining = deadline - System.nanoTime();
+            SendSlot slot = freeSlots.poll(remaining, TimeUnit.NANOSECONDS);
+            if (slot == null) {
+                logger.warn("{} requests still in flight at shutdown", slotCount - drained.size());
+                break;
+            }
+            drained.add(slot);
+        }
+        freeSlots.addAll(drained);
+    }
 }
@@ -0,0 +1,42 @@
+package com.nivuk.agent.exporters;
+
+import com.nivuk.agent.spool.DiskSpool;
+
+/**
+ * How {@link WebServiceMetricsExporter} encodes and sends payloads.
+ *
+ * @param encoder         wire encoding of the points
+ * @param compressor      gzip compressor, or null to send payloads uncompressed
+ * @param maxInFlight     maximum concurrent requests; 0 sends synchronously on the calling thread
+ * @param spool           where undelivered payloads are kept, or null to drop them
+ * @param replayPerSecond spooled payloads resent per second once the server accepts requests again
+ * @param flushPolicy     bounds for the adaptive flush interval, backoff and circuit breaker
+ */
+public record WebServiceSettings(MetricEncoder encoder, GzipCompressor compressor, int maxInFlight,
+                                 DiskSpool spool, int replayPerSecond, FlushPolicy flushPolicy) {
+    public WebServiceSettings {
+        if (maxInFlight < 0) {
+            throw new IllegalArgumentException("maxInFlight must not be negative: " + maxInFlight);
+        }
+        if (spool != null && replayPerSecond <= 0) {
+            throw new IllegalArgumentException("replayPerSecond must be positive: " + replayPerSecond);
+        }
+    }
+
+    public WebServiceSettings(MetricEncoder encoder, GzipCompressor compressor, int maxInFlight) {
+        this(encoder, compressor, maxInFlight, null, 0);
+    }
+
+    public WebServiceSettings(MetricEncoder encoder, GzipCompressor compressor, int maxInFlight,
+                              DiskSpool spool, int replayPerSecond) {
+        this(encoder, compressor, maxInFlight, spool, replayPerSecond, FlushPolicy.defaults());
+    }
+
+    public static WebServiceSettings defaults() {
+        return new WebServiceSettings(new MetricJsonFormatter(), null, 0);
+    }
+
+    public boolean async() {
+        return maxInFlight > 0;
+    }
+}
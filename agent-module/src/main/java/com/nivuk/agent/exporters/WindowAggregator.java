@@ -0,0 +1,118 @@
+package com.nivuk.agent.exporters;
+
+import com.nivuk.agent.model.MetricBatch;
+
+import java.util.Arrays;
+
+/**
+ * Folds samples into one summary (min, max, sum, count and last) per series and
+ * wall-clock window of {@code windowSeconds}. State is kept in arrays indexed by
+ * series id, so adding a sample never allocates once every series has been seen.
+ * A series' window is emitted when it has ended, or earlier if a sample for a later
+ * window arrives. Not thread-safe.
+ */
+class WindowAggregator {
+    private final int windowSeconds;
+    private long[] windowStarts = new long[0];
+    private long[] counts = new long[0];
+    private double[] mins = new double[0];
+    private double[] maxs = new double[0];
+    private double[] sums = new double[0];
+    private double[] lasts = new double[0];
+    private long[] lastTimestamps = new long[0];
+    private int highestSeries = -1;
+
+    WindowAggregator(int windowSeconds) {
+        if (windowSeconds <= 0) {
+            throw new IllegalArgumentException("Window must be positive: " + windowSeconds);
+        }
+        this.windowSeconds = windowSeconds;
+    }
+
+    /**
+     * Adds a sample, first moving the series' open window to {@code out} if the
+     * sample belongs to a later one.
+     */
+    void add(int seriesId, long timestamp, double value, MetricBatch out) {
+        ensureCapacity(seriesId + 1);
+        long windowStart = Math.floorDiv(timestamp, windowSeconds) * windowSeconds;
+        if (counts[seriesId] > 0 && windowStarts[seriesId] != windowStart) {
+            emit(seriesId, out);
+        }
+        if (counts[seriesId] == 0) {
+            windowStarts[seriesId] = windowStart;
+            mins[seriesId] = value;
+            maxs[seriesId] = value;
+            sums[seriesId] = 0;
+            lastTimestamps[seriesId] = Long.MIN_VALUE;
+        }
+        counts[seriesId]++;
+        mins[seriesId] = Math.min(mins[seriesId], value);
+        maxs[seriesId] = Math.max(maxs[seriesId], value);
+        sums[seriesId] += value;
+        // Samples can arrive slightly out of order; last means the latest timestamp
+        if (timestamp >= lastTimestamps[seriesId]) {
+            lastTimestamps[seriesId] = timestamp;
+            lasts[seriesId] = value;
+        }
+    }
+
+    void addAll(MetricBatch samples, MetricBatch out) {
+        for (int i = 0; i < samples.size(); i++) {
+            add(samples.seriesId(i), samples.timestamp(i), samples.value(i), out);
+        }
+    }
+
+    /**
+     * Moves every window that ended by {@code nowSeconds} to {@code out}.
+     */
+    void drainClosed(long nowSeconds, MetricBatch out) {
+        for (int id = 0; id <= highestSeries; id++) {
+            if (counts[id] > 0 && windowStarts[id] + windowSeconds <= nowSeconds) {
+                emit(id, out);
+            }
+        }
+    }
+
+    /**
+     * Moves every open window to {@code out}, complete or not. Used on shutdown.
+     */
+    void drainAll(MetricBatch out) {
+        for (int id = 0; id <= highestSeries; id++) {
+            if (counts[id] > 0) {
+                emit(id, out);
+            }
+        }
+    }
+
+    int openWindows() {
+        int open = 0;
+        for (int id = 0; id <= highestSeries; id++) {
+            if (counts[id] > 0) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    private void emit(int seriesId, MetricBatch out) {
+        out.addSummary(seriesId, windowStarts[seriesId], windowSeconds, lasts[seriesId],
+            mins[seriesId], maxs[seriesId], sums[seriesId], counts[seriesId]);
+        counts[seriesId] = 0;
+    }
+
+    private void ensureCapacity(int slots) {
+        highestSeries = Math.max(highestSeries, slots - 1);
+        if (slots <= counts.length) {
+            return;
+        }
+        int capacity = Math.max(slots, Math.max(16, counts.length * 2));
+        windowStarts = Arrays.copyOf(windowStarts, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        mins = Arrays.copyOf(mins, capacity);
+        maxs = Arrays.copyOf(maxs, capacity);
+        sums = Arrays.copyOf(sums, capacity);
+        lasts = Arrays.copyOf(lasts, capacity);
+        lastTimestamps = Arrays.copyOf(lastTimestamps, capacity);
+    }
+}
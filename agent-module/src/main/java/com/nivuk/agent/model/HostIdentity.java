@@ -0,0 +1,73 @@
+package com.nivuk.agent.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.function.Supplier;
+
+/**
+ * Resolves the local host name once and caches it. Callers read the cached
+ * value; {@link #refresh()} is meant to be run periodically off the hot path.
+ */
+public class HostIdentity {
+    private static final Logger logger = LoggerFactory.getLogger(HostIdentity.class);
+    private static final String UNKNOWN_HOST = "unknown";
+    private static final HostIdentity LOCAL = new HostIdentity(HostIdentity::resolveLocalHostName);
+
+    private final Supplier<String> resolver;
+    private volatile String hostName;
+
+    HostIdentity(Supplier<String> resolver) {
+        this.resolver = resolver;
+    }
+
+    public static HostIdentity local() {
+        return LOCAL;
+    }
+
+    /**
+     * Returns an identity pinned to {@code hostName}, for configured overrides and tests.
+     */
+    public static HostIdentity of(String hostName) {
+        return new HostIdentity(() -> hostName);
+    }
+
+    public String current() {
+        String name = hostName;
+        if (name == null) {
+            synchronized (this) {
+                if (hostName == null) {
+                    hostName = resolver.get();
+                }
+                name = hostName;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Re-resolves the host name. Returns true if it changed since the last resolution.
+     */
+    public synchronized boolean refresh() {
+        String resolved = resolver.get();
+        if (resolved.equals(hostName)) {
+            return false;
+        }
+        if (hostName != null) {
+            logger.info("Host name changed from {} to {}", hostName, resolved);
+        }
+        hostName = resolved;
+        return true;
+    }
+
+    private static String resolveLocalHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            logger.warn("Could not determine hostname, using '{}'", UNKNOWN_HOST, e);
+            return UNKNOWN_HOST;
+        }
+    }
+}
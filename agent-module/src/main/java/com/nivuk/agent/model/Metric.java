@@ -1,10 +1,5 @@
 package com.nivuk.agent.model;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-
 public record Metric(
     String name,
     double value,
@@ -12,22 +7,15 @@ public record Metric(
     String host,
     long timestamp) {
 
-    private static final Logger logger = LoggerFactory.getLogger(Metric.class);
-
     public Metric(String name, double value, String unit) {
-        this(name, value, unit, determineHostname(), getCurrentTimestamp());
+        this(name, value, unit, HostIdentity.local().current(), currentTimestamp());
     }
 
-    private static String determineHostname() {
-        try {
-            return InetAddress.getLocalHost().getHostName();
-        } catch (UnknownHostException e) {
-            logger.warn("Could not determine hostname, using 'unknown'", e);
-            return "unknown";
-        }
+    public Metric(SeriesDescriptor series, double value) {
+        this(series.name(), value, series.unit(), series.host(), currentTimestamp());
     }
 
-    private static long getCurrentTimestamp() {
+    public static long currentTimestamp() {
         return System.currentTimeMillis() / 1000;
     }
 }
@@ -0,0 +1,303 @@
+package com.nivuk.agent.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Columnar, reusable container of metric points. Points are stored in parallel
+ * primitive arrays keyed by series id from a {@link SeriesRegistry}; once the
+ * arrays have grown to the steady-state size, adding points does not allocate.
+ * A point may instead be a window summary, whose value is the last sample in the
+ * window; the summary columns are only allocated once a summary is added.
+ * Not thread-safe.
+ */
+public class MetricBatch {
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private final SeriesRegistry registry;
+    private int[] seriesIds;
+    private long[] timestamps;
+    private double[] values;
+    private int size;
+    // Window summaries; null until the first one is added. A count of zero marks a sample
+    private int[] windows;
+    private double[] mins;
+    private double[] maxs;
+    private double[] sums;
+    private long[] counts;
+
+    public MetricBatch() {
+        this(SeriesRegistry.getDefault());
+    }
+
+    public MetricBatch(SeriesRegistry registry) {
+        this(registry, DEFAULT_CAPACITY);
+    }
+
+    public MetricBatch(SeriesRegistry registry, int initialCapacity) {
+        this.registry = registry;
+        int capacity = Math.max(1, initialCapacity);
+        this.seriesIds = new int[capacity];
+        this.timestamps = new long[capacity];
+        this.values = new double[capacity];
+    }
+
+    public static MetricBatch of(List<Metric> metrics) {
+        MetricBatch batch = new MetricBatch(SeriesRegistry.getDefault(), metrics.size());
+        batch.addAll(metrics);
+        return batch;
+    }
+
+    public SeriesRegistry registry() {
+        return registry;
+    }
+
+    public void add(int seriesId, long timestamp, double value) {
+        if (size == seriesIds.length) {
+            grow(size + 1);
+        }
+        seriesIds[size] = seriesId;
+        timestamps[size] = timestamp;
+        values[size] = value;
+        if (counts != null) {
+            counts[size] = 0;
+        }
+        size++;
+    }
+
+    /**
+     * Adds the summary of {@code count} samples taken in the window of
+     * {@code windowSeconds} starting at {@code timestamp}.
+     */
+    public void addSummary(int seriesId, long timestamp, int windowSeconds,
+                           double last, double min, double max, double sum, long count) {
+        if (counts == null) {
+            allocateSummaries(seriesIds.length);
+        }
+        int index = size;
+        add(seriesId, timestamp, last);
+        windows[index] = windowSeconds;
+        mins[index] = min;
+        maxs[index] = max;
+        sums[index] = sum;
+        counts[index] = count;
+    }
+
+    public void add(SeriesDescriptor series, long timestamp, double value) {
+        add(idOf(series), timestamp, value);
+    }
+
+    public void add(Metric metric) {
+        add(registry.intern(metric.name(), metric.unit(), metric.host()).id(), metric.timestamp(), metric.value());
+    }
+
+    /**
+     * Adds point {@code index} of {@code other}, with its summary if it has one.
+     */
+    public void add(MetricBatch other, int index) {
+        other.checkIndex(index);
+        int seriesId = other.registry == registry ? other.seriesIds[index] : idOf(other.series(index));
+        if (other.isSummary(index)) {
+            addSummary(seriesId, other.timestamps[index], other.windows[index], other.values[index],
+                other.mins[index], other.maxs[index], other.sums[index], other.counts[index]);
+        } else {
+            add(seriesId, other.timestamps[index], other.values[index]);
+        }
+    }
+
+    public void addAll(List<Metric> metrics) {
+        ensureCapacity(size + metrics.size());
+        for (Metric metric : metrics) {
+            add(metric);
+        }
+    }
+
+    public void addAll(MetricBatch other) {
+        if (other.registry != registry) {
+            ensureCapacity(size + other.size);
+            for (int i = 0; i < other.size; i++) {
+                int seriesId = idOf(other.series(i));
+                if (other.isSummary(i)) {
+                    addSummary(seriesId, other.timestamps[i], other.windows[i], other.values[i],
+                        other.mins[i], other.maxs[i], other.sums[i], other.counts[i]);
+                } else {
+                    add(seriesId, other.timestamps[i], other.values[i]);
+                }
+            }
+            return;
+        }
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.seriesIds, 0, seriesIds, size, other.size);
+        System.arraycopy(other.timestamps, 0, timestamps, size, other.size);
+        System.arraycopy(other.values, 0, values, size, other.size);
+        if (other.counts != null) {
+            if (counts == null) {
+                allocateSummaries(seriesIds.length);
+            }
+            System.arraycopy(other.windows, 0, windows, size, other.size);
+            System.arraycopy(other.mins, 0, mins, size, other.size);
+            System.arraycopy(other.maxs, 0, maxs, size, other.size);
+            System.arraycopy(other.sums, 0, sums, size, other.size);
+            System.arraycopy(other.counts, 0, counts, size, other.size);
+        } else if (counts != null) {
+            Arrays.fill(counts, size, size + other.size, 0);
+        }
+        size += other.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Drops all points but keeps the backing arrays for reuse.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Keeps only the points whose index {@code keep} accepts, in their original order.
+     * The predicate sees every point at its index from before the call.
+     */
+    public void retainIf(IntPredicate keep) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (!keep.test(i)) {
+                continue;
+            }
+            if (kept != i) {
+                seriesIds[kept] = seriesIds[i];
+                timestamps[kept] = timestamps[i];
+                values[kept] = values[i];
+                if (counts != null) {
+                    windows[kept] = windows[i];
+                    mins[kept] = mins[i];
+                    maxs[kept] = maxs[i];
+                    sums[kept] = sums[i];
+                    counts[kept] = counts[i];
+                }
+            }
+            kept++;
+        }
+        size = kept;
+    }
+
+    public int seriesId(int index) {
+        checkIndex(index);
+        return seriesIds[index];
+    }
+
+    public long timestamp(int index) {
+        checkIndex(index);
+        return timestamps[index];
+    }
+
+    public double value(int index) {
+        checkIndex(index);
+        return values[index];
+    }
+
+    /**
+     * Whether any point is a window summary, so encoders can pick a layout up front.
+     */
+    public boolean hasSummaries() {
+        if (counts != null) {
+            for (int i = 0; i < size; i++) {
+                if (counts[i] > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public boolean isSummary(int index) {
+        checkIndex(index);
+        return counts != null && counts[index] > 0;
+    }
+
+    public int window(int index) {
+        return isSummary(index) ? windows[index] : 0;
+    }
+
+    public double min(int index) {
+        return isSummary(index) ? mins[index] : values[index];
+    }
+
+    public double max(int index) {
+        return isSummary(index) ? maxs[index] : values[index];
+    }
+
+    public double sum(int index) {
+        return isSummary(index) ? sums[index] : values[index];
+    }
+
+    public long count(int index) {
+        return isSummary(index) ? counts[index] : 1;
+    }
+
+    public SeriesDescriptor series(int index) {
+        return registry.get(seriesId(index));
+    }
+
+    public Metric toMetric(int index) {
+        SeriesDescriptor series = series(index);
+        return new Metric(series.name(), values[index], series.unit(), series.host(), timestamps[index]);
+    }
+
+    public List<Metric> toMetrics() {
+        List<Metric> metrics = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            metrics.add(toMetric(i));
+        }
+        return metrics;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > seriesIds.length) {
+            grow(capacity);
+        }
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, seriesIds.length * 2);
+        seriesIds = Arrays.copyOf(seriesIds, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        values = Arrays.copyOf(values, capacity);
+        if (counts != null) {
+            windows = Arrays.copyOf(windows, capacity);
+            mins = Arrays.copyOf(mins, capacity);
+            maxs = Arrays.copyOf(maxs, capacity);
+            sums = Arrays.copyOf(sums, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+    }
+
+    private void allocateSummaries(int capacity) {
+        windows = new int[capacity];
+        mins = new double[capacity];
+        maxs = new double[capacity];
+        sums = new double[capacity];
+        counts = new long[capacity];
+    }
+
+    private int idOf(SeriesDescriptor series) {
+        if (registry.owns(series)) {
+            return series.id();
+        }
+        return registry.intern(series.name(), series.unit(), series.host()).id();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+    }
+}
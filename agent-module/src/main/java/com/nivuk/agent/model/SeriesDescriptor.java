@@ -0,0 +1,8 @@
+package com.nivuk.agent.model;
+
+/**
+ * Interned identity of a time series. Instances are created by {@link SeriesRegistry}
+ * and are unique per (name, unit, host), so they can be compared by reference or id.
+ */
+public record SeriesDescriptor(int id, String name, String unit, String host) {
+}
@@ -0,0 +1,140 @@
+package com.nivuk.agent.model;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Interns (name, unit, host) triples into {@link SeriesDescriptor}s with stable,
+ * dense integer ids. Collectors resolve their descriptors once and reuse them,
+ * so emitting a point does not touch the resolver or this registry. Series that come
+ * and go, such as those of a process, are released when they end so that their ids are
+ * reused and the tables indexed by id stay bounded.
+ */
+public class SeriesRegistry {
+    private static final SeriesRegistry DEFAULT = new SeriesRegistry(HostIdentity.local());
+    // Long enough for points of a released series to have left the agent's buffers
+    static final long REUSE_DELAY_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    private record SeriesKey(String name, String unit, String host) {}
+
+    private record Released(int id, long releasedNanos) {}
+
+    private final HostIdentity hostIdentity;
+    private final LongSupplier nanoTime;
+    private final Map<SeriesKey, SeriesDescriptor> series = new ConcurrentHashMap<>();
+    private volatile SeriesDescriptor[] byId = new SeriesDescriptor[16];
+    private int nextId;
+    // Ids of released series, oldest first
+    private final Deque<Released> released = new ArrayDeque<>();
+
+    public SeriesRegistry(HostIdentity hostIdentity) {
+        this(hostIdentity, System::nanoTime);
+    }
+
+    // For testing
+    SeriesRegistry(HostIdentity hostIdentity, LongSupplier nanoTime) {
+        this.hostIdentity = hostIdentity;
+        this.nanoTime = nanoTime;
+    }
+
+    public static SeriesRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public HostIdentity hostIdentity() {
+        return hostIdentity;
+    }
+
+    /**
+     * Returns the descriptor for a series of the local host.
+     */
+    public SeriesDescriptor register(String name, String unit) {
+        return intern(name, unit, hostIdentity.current());
+    }
+
+    public SeriesDescriptor intern(String name, String unit, String host) {
+        SeriesDescriptor existing = series.get(new SeriesKey(name, unit, host));
+        return existing != null ? existing : internSlow(name, unit, host);
+    }
+
+    /**
+     * Returns {@code descriptor} itself while the local host name is unchanged,
+     * otherwise the descriptor of the same series on the refreshed host.
+     */
+    public SeriesDescriptor current(SeriesDescriptor descriptor) {
+        String host = hostIdentity.current();
+        if (host.equals(descriptor.host())) {
+            return descriptor;
+        }
+        return intern(descriptor.name(), descriptor.unit(), host);
+    }
+
+    public SeriesDescriptor get(int id) {
+        SeriesDescriptor[] snapshot = byId;
+        if (id < 0 || id >= snapshot.length || snapshot[id] == null) {
+            throw new IllegalArgumentException("Unknown series id " + id);
+        }
+        return snapshot[id];
+    }
+
+    /**
+     * Returns true if {@code descriptor} was interned by this registry.
+     */
+    public boolean owns(SeriesDescriptor descriptor) {
+        SeriesDescriptor[] snapshot = byId;
+        int id = descriptor.id();
+        return id >= 0 && id < snapshot.length && snapshot[id] == descriptor;
+    }
+
+    /**
+     * Series currently registered, not counting released ones.
+     */
+    public int size() {
+        return series.size();
+    }
+
+    /**
+     * Forgets a series that will not be reported again, such as one of an exited
+     * process. Interning it again gives it a new id. The released id keeps resolving to
+     * {@code descriptor} for an hour before it is reused, so points of the series that
+     * are still buffered keep their identity. State kept per id for longer than that
+     * must be reset when {@link #get(int)} returns a different descriptor.
+     */
+    public synchronized void release(SeriesDescriptor descriptor) {
+        if (owns(descriptor)
+                && series.remove(new SeriesKey(descriptor.name(), descriptor.unit(), descriptor.host()), descriptor)) {
+            released.addLast(new Released(descriptor.id(), nanoTime.getAsLong()));
+        }
+    }
+
+    private synchronized SeriesDescriptor internSlow(String name, String unit, String host) {
+        SeriesKey key = new SeriesKey(name, unit, host);
+        SeriesDescriptor existing = series.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        Released oldest = released.peekFirst();
+        int id;
+        if (oldest != null && nanoTime.getAsLong() - oldest.releasedNanos() >= REUSE_DELAY_NANOS) {
+            released.removeFirst();
+            id = oldest.id();
+        } else {
+            id = nextId++;
+        }
+        SeriesDescriptor descriptor = new SeriesDescriptor(id, name, unit, host);
+        SeriesDescriptor[] snapshot = byId;
+        if (descriptor.id() >= snapshot.length) {
+            snapshot = Arrays.copyOf(snapshot, snapshot.length * 2);
+        }
+        snapshot[descriptor.id()] = descriptor;
+        byId = snapshot;
+        series.put(key, descriptor);
+        return descriptor;
+    }
+}
@@ -0,0 +1,133 @@
+package com.nivuk.agent.scheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Runs periodic tasks on wall-clock boundaries: a task with a 60 second period and no
+ * offset runs at the top of every minute. Each next tick is computed from the clock
+ * rather than by adding the period to the previous run, so delays and clock steps do
+ * not accumulate. Ticks missed because a run overran are skipped, not run back to
+ * back. A task that throws is logged and keeps its schedule.
+ */
+public class AlignedScheduler implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(AlignedScheduler.class);
+
+    private final ScheduledExecutorService executor;
+    private final LongSupplier clock;
+
+    public AlignedScheduler(int threads) {
+        this(Executors.newScheduledThreadPool(threads, schedulerThreads()), System::currentTimeMillis);
+    }
+
+    // For testing
+    AlignedScheduler(ScheduledExecutorService executor, LongSupplier clock) {
+        this.executor = executor;
+        this.clock = clock;
+    }
+
+    /**
+     * Runs {@code task} every {@code periodMillis}, {@code offsetMillis} after each
+     * multiple of the period since the epoch.
+     */
+    public void schedule(String name, Runnable task, long periodMillis, long offsetMillis) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Period must be positive: " + periodMillis);
+        }
+        new AlignedTask(name, task, periodMillis, Math.floorMod(offsetMillis, periodMillis)).scheduleNext();
+    }
+
+    /**
+     * First tick strictly after {@code nowMillis}.
+     */
+    static long nextTick(long nowMillis, long periodMillis, long offsetMillis) {
+        long tick = Math.floorDiv(nowMillis - offsetMillis, periodMillis) * periodMillis + offsetMillis;
+        return tick + periodMillis;
+    }
+
+    /**
+     * Stable offset in {@code [0, min(period, maxJitter))} derived from the host name,
+     * so a fleet spreads its ticks while each host keeps the same phase across restarts.
+     */
+    public static long hostOffset(String host, long periodMillis, long maxJitterMillis) {
+        long range = Math.min(periodMillis, maxJitterMillis);
+        if (range <= 0) {
+            return 0;
+        }
+        long mixed = host.hashCode() * 0x9E3779B97F4A7C15L;
+        return Math.floorMod(mixed ^ (mixed >>> 32), range);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class AlignedTask implements Runnable {
+        private final String name;
+        private final Runnable task;
+        private final long periodMillis;
+        private final long offsetMillis;
+        private long scheduledTick;
+
+        AlignedTask(String name, Runnable task, long periodMillis, long offsetMillis) {
+            this.name = name;
+            this.task = task;
+            this.periodMillis = periodMillis;
+            this.offsetMillis = offsetMillis;
+        }
+
+        @Override
+        public void run() {
+            long started = clock.getAsLong();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Scheduled task {} failed", name, e);
+            } finally {
+                long finished = clock.getAsLong();
+                // Ticks that passed while running are skipped
+                long missed = (finished - scheduledTick) / periodMillis;
+                if (missed > 0) {
+                    logger.warn("Task {} took {} ms and skipped {} ticks", name, finished - started, missed);
+                }
+                scheduleNext();
+            }
+        }
+
+        void scheduleNext() {
+            long now = clock.getAsLong();
+            // The executor's clock may fire slightly before the wall-clock tick; never repeat a tick
+            scheduledTick = nextTick(Math.max(now, scheduledTick), periodMillis, offsetMillis);
+            try {
+                executor.schedule(this, scheduledTick - now, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                logger.debug("Scheduler closed, not rescheduling {}", name);
+            }
+        }
+    }
+
+    private static ThreadFactory schedulerThreads() {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "agent-scheduler-" + count.incrementAndGet());
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,53 @@
+package com.nivuk.agent.scheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for running collectors concurrently.
+ */
+public final class CollectorExecutors {
+    private static final Logger logger = LoggerFactory.getLogger(CollectorExecutors.class);
+
+    private CollectorExecutors() {
+    }
+
+    /**
+     * Returns a virtual-thread-per-task executor on Java 21 and newer, otherwise a pool
+     * of at most {@code maxThreads} daemon threads with a small bounded queue. The agent
+     * is built for Java 17, so the virtual thread factory is looked up reflectively.
+     */
+    public static ExecutorService create(int maxThreads) {
+        if (Runtime.version().feature() >= 21) {
+            try {
+                ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+                logger.info("Running collectors on virtual threads");
+                return executor;
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Virtual threads unavailable, using a thread pool: {}", e.getMessage());
+            }
+        }
+        return boundedPool(maxThreads);
+    }
+
+    static ExecutorService boundedPool(int maxThreads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(maxThreads * 4), runnable -> {
+                Thread thread = new Thread(runnable, "agent-collector-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,42 @@
+package com.nivuk.agent.scheduler;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timer thread shared by the exporters for their periodic flushes, in place of a
+ * single-thread scheduler per exporter. Created on first use; the thread is a daemon,
+ * so it never keeps the agent alive, and is only started once a task is scheduled.
+ * Tasks must not block: a flush here only encodes, compresses and hands requests to
+ * the HTTP client. Exporters run whatever blocks on the network, synchronous flushes
+ * and spool replay, on a thread of their own, so a slow server delays only its own
+ * exporter. Exporters cancel their own tasks when closed rather than shutting the
+ * scheduler down.
+ */
+public final class SharedScheduler {
+    private static final int THREADS = 1;
+
+    private SharedScheduler() {
+    }
+
+    private static final class Holder {
+        static final ScheduledThreadPoolExecutor EXECUTOR = create();
+
+        private static ScheduledThreadPoolExecutor create() {
+            AtomicInteger count = new AtomicInteger();
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "agent-timer-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Closed exporters cancel their next flush; do not keep it queued until it is due
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
+    }
+
+    public static ScheduledExecutorService get() {
+        return Holder.EXECUTOR;
+    }
+}
@@ -0,0 +1,359 @@
+package com.nivuk.agent.spool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Ring of segment files holding encoded request bodies that could not be delivered.
+ * Each record is written with a single positional write into the preallocated segment.
+ * When the spool exceeds its size cap the oldest segment is discarded. Records are read
+ * back oldest-first, and the read position is stored in the segment so that replay
+ * resumes where it stopped after a restart. A segment's file is closed before it is
+ * deleted, so its disk space is freed at once and the size cap bounds the disk used.
+ *
+ * <pre>
+ * segment := "NVSP" version:u8 pad:3 readOffset:i32 pad:4 record* zeros
+ * record  := length:i32 crc32:i32 flags:u8 contentTypeLength:u8 contentType body
+ * </pre>
+ *
+ * A zero length marks the end of the written records. A record whose checksum does
+ * not match was torn by a crash; it and anything after it in the segment is ignored.
+ */
+public class DiskSpool implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(DiskSpool.class);
+    private static final byte[] MAGIC = {'N', 'V', 'S', 'P'};
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int READ_OFFSET_POSITION = 8;
+    private static final int RECORD_PREFIX_BYTES = 8;
+    private static final int FLAG_GZIPPED = 1;
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    // Holds one record or header while it is written or read; grows up to a segment
+    private ByteBuffer scratch = ByteBuffer.allocate(256);
+    private long nextSequence;
+    private long pendingRecords;
+    private long droppedRecords;
+    private boolean closed;
+
+    public record SpoolRecord(String contentType, boolean gzipped, byte[] body) {}
+
+    private static final class Segment {
+        final long sequence;
+        final Path path;
+        final FileChannel channel;
+        int readOffset;
+        int writeOffset;
+        int records;
+
+        Segment(long sequence, Path path, FileChannel channel) {
+            this.sequence = sequence;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    public DiskSpool(Path directory, long maxBytes, int segmentBytes) throws IOException {
+        if (segmentBytes <= HEADER_BYTES + RECORD_PREFIX_BYTES) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentBytes);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Appends a request body. Returns false if the record can never fit in a segment,
+     * or cannot be written.
+     */
+    public synchronized boolean append(String contentType, boolean gzipped, byte[] body, int offset, int length) {
+        byte[] type = contentType.getBytes(StandardCharsets.US_ASCII);
+        int recordLength = 2 + type.length + length;
+        if (closed || type.length > 255 || HEADER_BYTES + RECORD_PREFIX_BYTES + recordLength > segmentBytes) {
+            droppedRecords++;
+            return false;
+        }
+
+        try {
+            Segment active = segments.peekLast();
+            if (active == null || active.writeOffset + RECORD_PREFIX_BYTES + recordLength > segmentBytes) {
+                active = rotate();
+            }
+
+            ByteBuffer record = scratch(RECORD_PREFIX_BYTES + recordLength);
+            record.putInt(recordLength)
+                .putInt(0)
+                .put((byte) (gzipped ? FLAG_GZIPPED : 0))
+                .put((byte) type.length)
+                .put(type)
+                .put(body, offset, length)
+                .flip();
+            record.putInt(4, checksum(record, RECORD_PREFIX_BYTES, recordLength));
+            // A write torn by a crash fails the checksum and reads as the end
+            write(active.channel, record, active.writeOffset);
+
+            active.writeOffset += RECORD_PREFIX_BYTES + recordLength;
+            active.records++;
+            pendingRecords++;
+            return true;
+        } catch (IOException e) {
+            logger.error("Failed to write spool segment in {}: {}", directory, e.getMessage());
+            droppedRecords++;
+            return false;
+        }
+    }
+
+    /**
+     * Returns the oldest record without removing it, or null if the spool is empty or
+     * cannot be read.
+     */
+    public synchronized SpoolRecord peek() {
+        Segment head = head();
+        if (head == null) {
+            return null;
+        }
+        try {
+            int recordLength = readInt(head.channel, head.readOffset);
+            ByteBuffer content = read(head.channel, head.readOffset + RECORD_PREFIX_BYTES, recordLength);
+            boolean gzipped = (content.get() & FLAG_GZIPPED) != 0;
+            byte[] type = new byte[content.get() & 0xff];
+            content.get(type);
+            byte[] body = new byte[recordLength - 2 - type.length];
+            content.get(body);
+            return new SpoolRecord(new String(type, StandardCharsets.US_ASCII), gzipped, body);
+        } catch (IOException e) {
+            logger.error("Failed to read spool segment {}: {}", head.path, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Removes the record last returned by {@link #peek()}.
+     */
+    public synchronized void remove() {
+        Segment head = head();
+        if (head == null) {
+            return;
+        }
+        try {
+            head.readOffset += RECORD_PREFIX_BYTES + readInt(head.channel, head.readOffset);
+            ByteBuffer offset = scratch(4).putInt(head.readOffset).flip();
+            write(head.channel, offset, READ_OFFSET_POSITION);
+            head.records--;
+            pendingRecords--;
+        } catch (IOException e) {
+            logger.error("Failed to update spool segment {}: {}", head.path, e.getMessage());
+        }
+    }
+
+    public synchronized long pendingRecords() {
+        return pendingRecords;
+    }
+
+    public synchronized long droppedRecords() {
+        return droppedRecords;
+    }
+
+    /**
+     * Writes the segments through to disk and closes them. Further appends are dropped.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Segment segment : segments) {
+            try (FileChannel channel = segment.channel) {
+                channel.force(false);
+            } catch (IOException e) {
+                logger.warn("Failed to close spool segment {}: {}", segment.path, e.getMessage());
+            }
+        }
+        segments.clear();
+    }
+
+    // Oldest segment with an unread record, deleting fully read segments on the way
+    private Segment head() {
+        while (!segments.isEmpty()) {
+            Segment head = segments.peekFirst();
+            if (head.readOffset < head.writeOffset) {
+                return head;
+            }
+            if (head == segments.peekLast()) {
+                return null;
+            }
+            segments.removeFirst();
+            delete(head);
+        }
+        return null;
+    }
+
+    private Segment rotate() throws IOException {
+        Segment last = segments.peekLast();
+        if (last != null) {
+            last.channel.force(false);
+        }
+        while (segments.size() >= maxSegments) {
+            Segment oldest = segments.removeFirst();
+            pendingRecords -= oldest.records;
+            droppedRecords += oldest.records;
+            logger.warn("Spool full, discarding {} oldest records", oldest.records);
+            delete(oldest);
+        }
+        Segment segment = open(nextSequence++, true);
+        segments.addLast(segment);
+        return segment;
+    }
+
+    private Segment open(long sequence, boolean create) throws IOException {
+        Path path = directory.resolve(SEGMENT_PREFIX + String.format("%019d", sequence) + SEGMENT_SUFFIX);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE);
+        try {
+            Segment segment = new Segment(sequence, path, channel);
+            if (create) {
+                // Zero-filled up to the segment size, so the first unwritten record reads as the end
+                channel.truncate(0);
+                ByteBuffer header = scratch(HEADER_BYTES).put(MAGIC).put((byte) VERSION).put(new byte[3])
+                    .putInt(HEADER_BYTES).putInt(0).flip();
+                write(channel, header, 0);
+                write(channel, scratch(1).put((byte) 0).flip(), segmentBytes - 1);
+            }
+            segment.readOffset = readInt(channel, READ_OFFSET_POSITION);
+            segment.writeOffset = HEADER_BYTES;
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        paths.sort(Comparator.naturalOrder());
+
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            long sequence;
+            try {
+                sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            if (Files.size(path) != segmentBytes) {
+                logger.warn("Discarding spool segment {} with unexpected size", path);
+                Files.deleteIfExists(path);
+                continue;
+            }
+
+            Segment segment = open(sequence, false);
+            if (!hasMagic(segment.channel) || segment.readOffset < HEADER_BYTES || segment.readOffset > segmentBytes) {
+                logger.warn("Discarding unreadable spool segment {}", path);
+                delete(segment);
+                continue;
+            }
+            scan(segment);
+            segments.addLast(segment);
+            pendingRecords += segment.records;
+        }
+        if (pendingRecords > 0) {
+            logger.info("Recovered {} spooled payloads from {}", pendingRecords, directory);
+        }
+    }
+
+    private void scan(Segment segment) throws IOException {
+        int position = HEADER_BYTES;
+        while (position + RECORD_PREFIX_BYTES <= segmentBytes) {
+            ByteBuffer prefix = read(segment.channel, position, RECORD_PREFIX_BYTES);
+            int recordLength = prefix.getInt(0);
+            int expectedChecksum = prefix.getInt(4);
+            int content = position + RECORD_PREFIX_BYTES;
+            if (recordLength <= 0 || recordLength > segmentBytes - content
+                    || expectedChecksum != checksum(read(segment.channel, content, recordLength), 0, recordLength)) {
+                break;
+            }
+            if (position >= segment.readOffset) {
+                segment.records++;
+            }
+            position = content + recordLength;
+        }
+        segment.writeOffset = position;
+        segment.readOffset = Math.min(segment.readOffset, position);
+    }
+
+    private int checksum(ByteBuffer buffer, int offset, int length) {
+        crc.reset();
+        crc.update(buffer.slice(offset, length));
+        return (int) crc.getValue();
+    }
+
+    private boolean hasMagic(FileChannel channel) throws IOException {
+        ByteBuffer header = read(channel, 0, MAGIC.length + 1);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header.get(i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return header.get(MAGIC.length) == VERSION;
+    }
+
+    // The scratch buffer, cleared, with room for at least {@code bytes}
+    private ByteBuffer scratch(int bytes) {
+        if (scratch.capacity() < bytes) {
+            scratch = ByteBuffer.allocate(Math.min(segmentBytes, Math.max(bytes, scratch.capacity() * 2)));
+        }
+        return scratch.clear();
+    }
+
+    private int readInt(FileChannel channel, long position) throws IOException {
+        return read(channel, position, 4).getInt(0);
+    }
+
+    // Reads {@code length} bytes at {@code position} into the scratch buffer, flipped for reading
+    private ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = scratch(length).limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Spool segment shorter than expected");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void delete(Segment segment) {
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            logger.warn("Failed to delete spool segment {}: {}", segment.path, e.getMessage());
+        }
+    }
+}
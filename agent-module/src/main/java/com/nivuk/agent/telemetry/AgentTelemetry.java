@@ -0,0 +1,168 @@
+package com.nivuk.agent.telemetry;
+
+import com.nivuk.agent.collectors.Collector;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+
+/**
+ * The agent's own instruments. Components register counters, gauges and summaries
+ * here, and the telemetry is reported like any other collector, so it flows through
+ * the configured exporters. Registering a counter, summary or histogram under a name
+ * that is already taken returns the existing instrument, so components created once per
+ * collection interval share one series. Recording is lock-free; instruments are reset
+ * each time they are reported.
+ */
+public class AgentTelemetry implements Collector {
+    private final SeriesRegistry registry;
+    private final List<Instrument> instruments;
+    // Counters, summaries and histograms by scoped name, shared with every view
+    private final Map<String, Object> named;
+    private final MetricBatch scratch;
+    // Inserted into the names of instruments registered through this view; null for none
+    private final String scope;
+
+    private interface Instrument {
+        void report(MetricBatch batch, long timestamp);
+    }
+
+    public AgentTelemetry() {
+        this(SeriesRegistry.getDefault());
+    }
+
+    public AgentTelemetry(SeriesRegistry registry) {
+        this(registry, new CopyOnWriteArrayList<>(), new ConcurrentHashMap<>(), null);
+    }
+
+    private AgentTelemetry(SeriesRegistry registry, List<Instrument> instruments, Map<String, Object> named,
+                           String scope) {
+        this.registry = registry;
+        this.instruments = instruments;
+        this.named = named;
+        this.scratch = new MetricBatch(registry);
+        this.scope = scope;
+    }
+
+    /**
+     * A view that registers into this telemetry with {@code scope} after the
+     * {@code agent_} prefix, e.g. {@code agent_http_requests} as
+     * {@code agent_endpoint1_http_requests}, so that several instances of a component
+     * report separately.
+     */
+    public AgentTelemetry scoped(String scope) {
+        return new AgentTelemetry(registry, instruments, named, this.scope == null ? scope : this.scope + "_" + scope);
+    }
+
+    private String scopedName(String name) {
+        if (scope == null) {
+            return name;
+        }
+        return name.startsWith("agent_") ? "agent_" + scope + name.substring(5) : scope + "_" + name;
+    }
+
+    // The instrument already registered under name, or the one create registers
+    private <T> T named(String name, Class<T> type, Function<String, T> create) {
+        Object instrument = named.computeIfAbsent(name, create);
+        if (!type.isInstance(instrument)) {
+            throw new IllegalArgumentException(name + " is already registered as a "
+                + instrument.getClass().getSimpleName());
+        }
+        return type.cast(instrument);
+    }
+
+    public Counter counter(String name) {
+        return named(scopedName(name), Counter.class, scoped -> {
+            Counter counter = new Counter();
+            SeriesDescriptor series = registry.register(scoped, "c");
+            instruments.add((batch, timestamp) -> batch.add(registry.current(series), timestamp, counter.drain()));
+            return counter;
+        });
+    }
+
+    public void gauge(String name, String unit, DoubleSupplier value) {
+        SeriesDescriptor series = registry.register(scopedName(name), unit);
+        instruments.add((batch, timestamp) -> batch.add(registry.current(series), timestamp, value.getAsDouble()));
+    }
+
+    /**
+     * Reports {@code name_count}, {@code name_avg} and {@code name_max}.
+     */
+    public Summary summary(String name, String unit) {
+        return named(scopedName(name), Summary.class, scoped -> createSummary(scoped, unit));
+    }
+
+    private Summary createSummary(String name, String unit) {
+        Summary summary = new Summary();
+        SeriesDescriptor count = registry.register(name + "_count", "c");
+        SeriesDescriptor mean = registry.register(name + "_avg", unit);
+        SeriesDescriptor max = registry.register(name + "_max", unit);
+        instruments.add((batch, timestamp) -> {
+            Summary.Snapshot snapshot = summary.drain();
+            batch.add(registry.current(count), timestamp, snapshot.count());
+            batch.add(registry.current(mean), timestamp, snapshot.mean());
+            batch.add(registry.current(max), timestamp, snapshot.max());
+        });
+        return summary;
+    }
+
+    /**
+     * Reports {@code name_count}, {@code name_p50}, {@code name_p90}, {@code name_p99}
+     * and {@code name_max}, each recorded value multiplied by {@code scale}.
+     */
+    public Histogram histogram(String name, String unit, double scale) {
+        return named(scopedName(name), Histogram.class, scoped -> createHistogram(scoped, unit, scale));
+    }
+
+    private Histogram createHistogram(String name, String unit, double scale) {
+        Histogram histogram = new Histogram();
+        SeriesDescriptor count = registry.register(name + "_count", "c");
+        SeriesDescriptor p50 = registry.register(name + "_p50", unit);
+        SeriesDescriptor p90 = registry.register(name + "_p90", unit);
+        SeriesDescriptor p99 = registry.register(name + "_p99", unit);
+        SeriesDescriptor max = registry.register(name + "_max", unit);
+        instruments.add((batch, timestamp) -> {
+            Histogram.Snapshot snapshot = histogram.drain();
+            batch.add(registry.current(count), timestamp, snapshot.count());
+            batch.add(registry.current(p50), timestamp, snapshot.p50() * scale);
+            batch.add(registry.current(p90), timestamp, snapshot.p90() * scale);
+            batch.add(registry.current(p99), timestamp, snapshot.p99() * scale);
+            batch.add(registry.current(max), timestamp, snapshot.max() * scale);
+        });
+        return histogram;
+    }
+
+    /**
+     * Histogram of durations recorded in nanoseconds and reported in milliseconds.
+     */
+    public Histogram timer(String name) {
+        return histogram(name, "ms", 1e-6);
+    }
+
+    @Override
+    public String name() {
+        return "agent";
+    }
+
+    @Override
+    public synchronized List<Metric> collect() {
+        scratch.clear();
+        collectInto(scratch);
+        return scratch.toMetrics();
+    }
+
+    @Override
+    public synchronized void collectInto(MetricBatch batch) {
+        long timestamp = Metric.currentTimestamp();
+        for (Instrument instrument : instruments) {
+            instrument.report(batch, timestamp);
+        }
+    }
+}
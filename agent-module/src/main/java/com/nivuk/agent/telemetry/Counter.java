@@ -0,0 +1,22 @@
+package com.nivuk.agent.telemetry;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic event count. Reported as the number of events since the previous report.
+ */
+public class Counter {
+    private final LongAdder count = new LongAdder();
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    long drain() {
+        return count.sumThenReset();
+    }
+}
@@ -0,0 +1,76 @@
+package com.nivuk.agent.telemetry;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Distribution of recorded values since the previous report, in log-linear buckets:
+ * values below 16 are counted exactly, and every power of two above that is split
+ * into 8 buckets, so a reported percentile is within 12.5% of the true value.
+ * Recording is a single atomic increment and never allocates.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int EXACT_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    private final long[] drained = new long[BUCKETS];
+
+    public void record(long value) {
+        long clamped = Math.max(0, value);
+        counts.incrementAndGet(bucket(clamped));
+        max.accumulate(clamped);
+    }
+
+    record Snapshot(long count, long p50, long p90, long p99, long max) {}
+
+    // Called by one reporting thread at a time; concurrent records land in this or the next snapshot
+    synchronized Snapshot drain() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            drained[i] = counts.getAndSet(i, 0);
+            total += drained[i];
+        }
+        long highest = max.getThenReset();
+        if (total == 0) {
+            return new Snapshot(0, 0, 0, 0, 0);
+        }
+        return new Snapshot(total,
+            percentile(total, 0.50, highest),
+            percentile(total, 0.90, highest),
+            percentile(total, 0.99, highest),
+            highest);
+    }
+
+    private long percentile(long total, double quantile, long highest) {
+        long rank = (long) Math.ceil(total * quantile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += drained[i];
+            if (seen >= rank) {
+                return Math.min(highestInBucket(i), highest);
+            }
+        }
+        return highest;
+    }
+
+    static int bucket(long value) {
+        if (value < EXACT_LIMIT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long highestInBucket(int bucket) {
+        if (bucket < EXACT_LIMIT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,28 @@
+package com.nivuk.agent.telemetry;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count, mean and maximum of recorded values since the previous report.
+ */
+public class Summary {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    record Snapshot(long count, double mean, long max) {}
+
+    Snapshot drain() {
+        long n = count.sumThenReset();
+        long total = sum.sumThenReset();
+        long highest = max.getThenReset();
+        return new Snapshot(n, n == 0 ? 0 : (double) total / n, highest);
+    }
+}
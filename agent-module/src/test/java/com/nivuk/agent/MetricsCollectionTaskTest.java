@@ -0,0 +1,183 @@
+package com.nivuk.agent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.nivuk.agent.collectors.Collector;
+import com.nivuk.agent.exporters.DeadbandFilter;
+import com.nivuk.agent.exporters.ExportPipeline;
+import com.nivuk.agent.exporters.MetricsExporter;
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesRegistry;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+
+class MetricsCollectionTaskTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final AgentTelemetry telemetry = new AgentTelemetry(new SeriesRegistry(HostIdentity.of("h")));
+    private final List<List<Metric>> exported = new ArrayList<>();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final MetricsExporter exporter = new MetricsExporter() {
+        @Override
+        public void export(List<Metric> metrics) {
+            exported.add(metrics);
+        }
+
+        @Override
+        public void export(MetricBatch batch) {
+            exported.add(batch.toMetrics());
+        }
+    };
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void shouldDropLateCollectorWithoutDelayingOthers() {
+        // Given
+        MetricsCollectionTask task = new MetricsCollectionTask(List.of(fixed("cpu"), hanging()),
+            List.of(exporter), executor, 100, telemetry);
+
+        // When
+        long start = System.nanoTime();
+        task.run();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // Then
+        assertTrue(elapsedMillis < 1_000, "tick took " + elapsedMillis + " ms");
+        assertEquals(1, exported.size());
+        assertEquals(List.of("cpu"), exported.get(0).stream().map(Metric::name).toList());
+        assertEquals(1.0, report().get("agent_collect_hanging_late"));
+    }
+
+    @Test
+    void shouldSkipCollectorStillRunningFromEarlierTick() {
+        // Given
+        MetricsCollectionTask task = new MetricsCollectionTask(List.of(fixed("cpu"), hanging()),
+            List.of(exporter), executor, 50, telemetry);
+
+        // When
+        task.run();
+        task.run();
+
+        // Then
+        assertEquals(2, exported.size());
+        assertEquals(2.0, report().get("agent_collect_hanging_late"));
+    }
+
+    @Test
+    void shouldKeepCollectingWhenACollectorFails() {
+        // Given
+        Collector failing = new Collector() {
+            @Override
+            public List<Metric> collect() {
+                throw new IllegalStateException("boom");
+            }
+        };
+        MetricsCollectionTask task = new MetricsCollectionTask(List.of(failing, fixed("cpu")), exporter);
+
+        // When
+        task.run();
+
+        // Then
+        assertEquals(List.of("cpu"), exported.get(0).stream().map(Metric::name).toList());
+    }
+
+    @Test
+    void shouldNotApplyDeadbandAheadOfWindowSummaries() {
+        // Given an exporter summarizing windows and a deadband dropping unchanged samples
+        List<MetricBatch> summarized = Collections.synchronizedList(new ArrayList<>());
+        MetricsExporter summarizing = new MetricsExporter() {
+            @Override
+            public void export(List<Metric> metrics) {
+                summarized.add(MetricBatch.of(metrics));
+            }
+
+            @Override
+            public boolean summarizesWindows() {
+                return true;
+            }
+        };
+        ExportPipeline pipeline = new ExportPipeline(List.of(summarizing), 4, telemetry);
+        MetricsCollectionTask task = new MetricsCollectionTask(List.of(fixed("cpu")), pipeline, null, 0,
+            new DeadbandFilter(1, 0, 300, telemetry), telemetry);
+
+        // When
+        for (int tick = 0; tick < 3; tick++) {
+            task.run();
+        }
+        pipeline.close();
+
+        // Then every unchanged sample reaches the window
+        assertEquals(3, summarized.size());
+        assertEquals(0.0, report().get("agent_deadband_suppressed"));
+    }
+
+    @Test
+    void shouldReportTickTimeOnceForTasksOnSeveralIntervals() {
+        // Given
+        MetricsCollectionTask fast = new MetricsCollectionTask(List.of(fixed("cpu")), List.of(exporter),
+            executor, 100, telemetry);
+        MetricsCollectionTask slow = new MetricsCollectionTask(List.of(fixed("disk")), List.of(exporter),
+            executor, 100, telemetry);
+
+        // When
+        fast.run();
+        slow.run();
+        List<Metric> reported = telemetry.collect();
+
+        // Then
+        List<String> names = reported.stream().map(Metric::name).toList();
+        assertEquals(names.size(), Set.copyOf(names).size(), names.toString());
+        assertEquals(2.0, reported.stream().filter(metric -> metric.name().equals("agent_collect_tick_count"))
+            .findFirst().orElseThrow().value());
+    }
+
+    private Collector fixed(String name) {
+        return () -> List.of(new Metric(name, 1, "p", "h", 100));
+    }
+
+    private Collector hanging() {
+        return new Collector() {
+            @Override
+            public List<Metric> collect() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return List.of(new Metric("stale", 1, "p", "h", 100));
+            }
+
+            @Override
+            public String name() {
+                return "hanging";
+            }
+        };
+    }
+
+    private Map<String, Double> report() {
+        Map<String, Double> values = new HashMap<>();
+        telemetry.collect().forEach(metric -> values.put(metric.name(), metric.value()));
+        return values;
+    }
+}
@@ -0,0 +1,101 @@
+package com.nivuk.agent.collectors.jfr;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.SeriesRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JfrCollectorTest {
+    private final AtomicLong clock = new AtomicLong();
+    private final JfrCollector collector =
+        new JfrCollector(new SeriesRegistry(HostIdentity.of("h")), clock::get, Duration.ofSeconds(1), false);
+
+    @Test
+    void shouldSummarizeGcPausesPerInterval() {
+        // Given
+        collector.onGcPause(2_000_000);
+        collector.onGcPause(6_000_000);
+
+        // When
+        List<Metric> first = collector.collect();
+        List<Metric> second = collector.collect();
+
+        // Then
+        assertEquals(2, value(first, "jvm_gc_pause_count"));
+        assertEquals(4000, value(first, "jvm_gc_pause_avg"));
+        assertEquals(6000, value(first, "jvm_gc_pause_max"));
+        assertEquals(0, value(second, "jvm_gc_pause_count"));
+    }
+
+    @Test
+    void shouldReportAllocationRateOverElapsedTime() {
+        // Given
+        collector.onAllocation(3_000_000);
+        collector.onAllocation(1_000_000);
+        clock.addAndGet(2_000_000_000L);
+
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        assertEquals(2_000_000, value(metrics, "jvm_alloc_rate"));
+    }
+
+    @Test
+    void shouldKeepLastThreadCountsAndHeapAfterGc() {
+        // Given
+        collector.onThreadStatistics(42, 30);
+        collector.onHeapAfterGc(64L * 1024 * 1024);
+
+        // When
+        collector.collect();
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        assertEquals(42, value(metrics, "jvm_threads"));
+        assertEquals(30, value(metrics, "jvm_threads_daemon"));
+        assertEquals(64, value(metrics, "jvm_heap_used"));
+    }
+
+    @Test
+    void shouldReportNoRuntimeValuesBeforeTheFirstEvents() {
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        assertTrue(Double.isNaN(value(metrics, "jvm_threads")));
+        assertEquals(0, value(metrics, "jvm_lock_wait_count"));
+        assertEquals(0, value(metrics, "jvm_jfr_handler_time"));
+    }
+
+    @Test
+    void shouldStreamEventsFromThisJvm() throws InterruptedException {
+        // Given
+        try (JfrCollector live = new JfrCollector(new SeriesRegistry(HostIdentity.of("h")), System::nanoTime,
+                Duration.ofMillis(100), true)) {
+            System.gc();
+
+            // When
+            double events = 0;
+            for (int attempt = 0; attempt < 50 && events == 0; attempt++) {
+                Thread.sleep(100);
+                events = value(live.collect(), "jvm_jfr_events");
+            }
+
+            // Then
+            assertTrue(events > 0);
+        }
+    }
+
+    private static double value(List<Metric> metrics, String name) {
+        return metrics.stream().filter(m -> m.name().equals(name)).findFirst()
+            .orElseThrow(() -> new AssertionError("No metric " + name))
+            .value();
+    }
+}
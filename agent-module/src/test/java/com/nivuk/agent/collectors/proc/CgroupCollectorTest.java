@@ -0,0 +1,214 @@
+package com.nivuk.agent.collectors.proc;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.SeriesRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static com.nivuk.agent.collectors.proc.ProcStatCollectorTest.value;
+import static org.junit.jupiter.api.Assertions.*;
+
+class CgroupCollectorTest {
+    private static final long SECOND = 1_000_000_000L;
+    private static final String DOCKER_ID = "4f3c2a1b0e9d8c7b6a5f4e3d2c1b0a9f8e7d6c5b4a3f2e1d0c9b8a7f6e5d4c3b";
+    private static final String POD_ID = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    @TempDir
+    Path root;
+
+    private final AtomicLong clock = new AtomicLong();
+    private final SeriesRegistry registry = new SeriesRegistry(HostIdentity.of("h"));
+    private Path docker;
+    private Path pod;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Files.writeString(root.resolve("cgroup.controllers"), "cpuset cpu io memory pids\n");
+        docker = Files.createDirectories(root.resolve("system.slice/docker-" + DOCKER_ID + ".scope"));
+        pod = Files.createDirectories(root.resolve("kubepods.slice/kubepods-burstable.slice/"
+            + "kubepods-burstable-pod1.slice/cri-containerd-" + POD_ID + ".scope"));
+        Files.createDirectories(root.resolve("system.slice/sshd.service"));
+        Files.createDirectories(root.resolve("system.slice/crio-conmon-" + POD_ID + ".scope"));
+    }
+
+    @Test
+    void shouldReportContainerUsageAndRatesFromDeltas() throws IOException {
+        // Given
+        CgroupCollector collector = new CgroupCollector(root, registry, clock::get, 0.5, 30, 512);
+        writeContainer(docker, 1_000_000, 100, 5, 200_000, 1000, 10, 1_000_000);
+        collector.collect();
+        writeContainer(docker, 1_500_000, 110, 7, 300_000, 3000, 30, 1_250_000);
+        clock.addAndGet(SECOND);
+
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        String labels = "{container=\"4f3c2a1b0e9d\"}";
+        assertEquals(50.0, value(metrics, "container_cpu_usage" + labels), 1e-9);
+        assertEquals(20.0, value(metrics, "container_cpu_throttled_periods" + labels), 1e-9);
+        assertEquals(10.0, value(metrics, "container_cpu_throttled" + labels), 1e-9);
+        assertEquals(64.0, value(metrics, "container_memory" + labels), 1e-9);
+        assertEquals(48.0, value(metrics, "container_memory_anon" + labels), 1e-9);
+        assertEquals(8.0, value(metrics, "container_memory_file" + labels), 1e-9);
+        assertEquals(20.0, value(metrics, "container_memory_major_faults" + labels), 1e-9);
+        // Summed over both devices
+        assertEquals(2 * 2000.0, value(metrics, "container_io_read_bytes" + labels), 1e-9);
+        assertEquals(2 * 20.0, value(metrics, "container_io_reads" + labels), 1e-9);
+        assertEquals(25.0, value(metrics, "container_cpu_pressure" + labels), 1e-9);
+        assertEquals(25.0, value(metrics, "container_memory_pressure" + labels), 1e-9);
+        assertEquals(12.5, value(metrics, "container_memory_pressure_full" + labels), 1e-9);
+        assertEquals(2.0, value(metrics, "container_count"));
+    }
+
+    @Test
+    void shouldSkipFilesOfControllersThatAreNotEnabled() throws IOException {
+        // Given
+        CgroupCollector collector = new CgroupCollector(root, registry, clock::get, 0.5, 30, 512);
+        Files.writeString(pod.resolve("cpu.stat"), "usage_usec 1000\nuser_usec 600\nsystem_usec 400\n");
+        Files.writeString(pod.resolve("memory.current"), "1048576\n");
+        collector.collect();
+        Files.writeString(pod.resolve("cpu.stat"), "usage_usec 251000\nuser_usec 600\nsystem_usec 400\n");
+        clock.addAndGet(SECOND);
+
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        assertEquals(25.0, value(metrics, "container_cpu_usage{container=\"0123456789ab\"}"), 1e-9);
+        assertEquals(1.0, value(metrics, "container_memory{container=\"0123456789ab\"}"), 1e-9);
+        assertTrue(metrics.stream().noneMatch(m -> m.name().contains("0123456789ab")
+            && (m.name().contains("io_") || m.name().contains("pressure") || m.name().contains("throttled"))));
+    }
+
+    @Test
+    void shouldForgetRemovedContainersAtTheNextDiscovery() throws IOException {
+        // Given
+        CgroupCollector collector = new CgroupCollector(root, registry, clock::get, 0.5, 30, 512);
+        writeContainer(docker, 1000, 0, 0, 0, 0, 0, 0);
+        collector.collect();
+        int registered = registry.size();
+        delete(docker);
+        clock.addAndGet(SECOND);
+        List<Metric> beforeDiscovery = collector.collect();
+        clock.addAndGet(30 * SECOND);
+
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        assertEquals(2.0, value(beforeDiscovery, "container_count"));
+        assertEquals(1.0, value(metrics, "container_count"));
+        assertTrue(metrics.stream().noneMatch(m -> m.name().contains("4f3c2a1b0e9d")));
+        assertEquals(registered - 14, registry.size());
+    }
+
+    @Test
+    void shouldResumeScanWhereTheBudgetRanOut() throws IOException {
+        // Given every clock read costs 5ms against a budget of 10% of one second
+        CgroupCollector collector = new CgroupCollector(root, registry, () -> clock.addAndGet(5_000_000), 0.1, 30, 512);
+        for (int i = 0; i < 20; i++) {
+            Path container = Files.createDirectories(root.resolve("docker/" + String.format("%064x", i + 1)));
+            Files.writeString(container.resolve("cpu.stat"), "usage_usec " + i + "\n");
+        }
+
+        // When
+        double first = value(collector.collect(), "container_scanned");
+        clock.addAndGet(SECOND);
+        double second = value(collector.collect(), "container_scanned");
+        clock.addAndGet(SECOND);
+        double third = value(collector.collect(), "container_scanned");
+
+        // Then
+        assertTrue(first < 22, "scanned " + first);
+        assertTrue(first + second + third >= 22);
+    }
+
+    @Test
+    void shouldReportOwnCgroupInsideACgroupNamespace() throws IOException {
+        // Given
+        Files.writeString(root.resolve("memory.current"), "2097152\n");
+        Files.writeString(root.resolve("cpu.stat"), "usage_usec 0\n");
+        CgroupCollector collector = new CgroupCollector(root, registry, clock::get, 0.5, 30, 512);
+
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        assertEquals(2.0, value(metrics, "container_memory{container=\"self\"}"), 1e-9);
+    }
+
+    @Test
+    void shouldReadWithoutKeepingFilesOpenBeyondTheLimit() throws IOException {
+        // Given
+        CgroupCollector collector = new CgroupCollector(root, registry, clock::get, 0.5, 30, 2);
+        writeContainer(docker, 1000, 0, 0, 0, 0, 0, 0);
+        collector.collect();
+        writeContainer(docker, 11_000, 0, 0, 0, 0, 0, 0);
+        clock.addAndGet(SECOND);
+
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        assertEquals(1.0, value(metrics, "container_cpu_usage{container=\"4f3c2a1b0e9d\"}"), 1e-9);
+    }
+
+    @Test
+    void shouldReportNothingWithoutCgroupV2() throws IOException {
+        // Given
+        Files.delete(root.resolve("cgroup.controllers"));
+        CgroupCollector collector = new CgroupCollector(root, registry, clock::get, 0.5, 30, 512);
+
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        assertTrue(metrics.isEmpty());
+    }
+
+    @Test
+    void shouldFindContainerIdsInCgroupNames() {
+        assertEquals("4f3c2a1b0e9d", CgroupCollector.containerId("docker-" + DOCKER_ID + ".scope"));
+        assertEquals("4f3c2a1b0e9d", CgroupCollector.containerId("crio-" + DOCKER_ID + ".scope"));
+        assertEquals("4f3c2a1b0e9d", CgroupCollector.containerId(DOCKER_ID));
+        assertNull(CgroupCollector.containerId("crio-conmon-" + DOCKER_ID + ".scope"));
+        assertNull(CgroupCollector.containerId("kubepods-burstable-pod1.slice"));
+        assertNull(CgroupCollector.containerId(DOCKER_ID + "0"));
+    }
+
+    private static void writeContainer(Path dir, long usageUsec, long periods, long throttledPeriods,
+                                       long throttledUsec, long readBytes, long reads, long pressureUsec)
+            throws IOException {
+        Files.writeString(dir.resolve("cpu.stat"), "usage_usec " + usageUsec + "\nuser_usec 1\nsystem_usec 1\n"
+            + "nr_periods " + periods + "\nnr_throttled " + throttledPeriods + "\nthrottled_usec " + throttledUsec + "\n");
+        Files.writeString(dir.resolve("memory.current"), "67108864\n");
+        Files.writeString(dir.resolve("memory.stat"), "anon 50331648\nfile 8388608\nkernel 0\npgfault 99\n"
+            + "pgmajfault " + reads + "\n");
+        Files.writeString(dir.resolve("io.stat"),
+            "8:0 rbytes=" + readBytes + " wbytes=0 rios=" + reads + " wios=0 dbytes=0 dios=0\n"
+                + "259:0 rbytes=" + readBytes + " wbytes=0 rios=" + reads + " wios=0 dbytes=0 dios=0\n");
+        Files.writeString(dir.resolve("cpu.pressure"), "some avg10=0.00 avg60=0.00 avg300=0.00 total=" + pressureUsec
+            + "\nfull avg10=0.00 avg60=0.00 avg300=0.00 total=0\n");
+        Files.writeString(dir.resolve("memory.pressure"), "some avg10=0.00 avg60=0.00 avg300=0.00 total=" + pressureUsec
+            + "\nfull avg10=0.00 avg60=0.00 avg300=0.00 total=" + pressureUsec / 2 + "\n");
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
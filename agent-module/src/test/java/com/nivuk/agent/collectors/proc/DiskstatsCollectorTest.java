@@ -0,0 +1,52 @@
+package com.nivuk.agent.collectors.proc;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.SeriesRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.nivuk.agent.collectors.proc.ProcStatCollectorTest.value;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DiskstatsCollectorTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void shouldReportPerDeviceRatesAndSkipVirtualDevices() throws IOException {
+        // Given
+        AtomicLong clock = new AtomicLong();
+        DiskstatsCollector collector = new DiskstatsCollector(root, new SeriesRegistry(HostIdentity.of("h")), clock::get);
+        writeDiskstats(1000, 8000, 500, 4000, 10_000);
+        collector.collect();
+        writeDiskstats(1200, 10_048, 600, 6000, 10_500);
+        clock.addAndGet(1_000_000_000L);
+
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        assertEquals(200.0, value(metrics, "host_disk_reads{device=\"sda\"}"), 0.001);
+        assertEquals(100.0, value(metrics, "host_disk_writes{device=\"sda\"}"), 0.001);
+        assertEquals(2048 * 512.0, value(metrics, "host_disk_read_bytes{device=\"sda\"}"), 0.001);
+        assertEquals(2000 * 512.0, value(metrics, "host_disk_written_bytes{device=\"sda\"}"), 0.001);
+        assertEquals(50.0, value(metrics, "host_disk_util{device=\"sda\"}"), 0.001);
+        assertTrue(metrics.stream().noneMatch(m -> m.name().contains("loop0")));
+    }
+
+    private void writeDiskstats(long reads, long sectorsRead, long writes, long sectorsWritten, long ioMillis)
+            throws IOException {
+        Files.writeString(root.resolve("diskstats"),
+            "   7       0 loop0 5 0 10 0 0 0 0 0 0 0 0 0 0 0 0 0 0\n"
+                + "   8       0 sda " + reads + " 3 " + sectorsRead + " 40 " + writes + " 7 " + sectorsWritten
+                + " 90 0 " + ioMillis + " 130 0 0 0 0 0 0\n");
+    }
+}
@@ -0,0 +1,62 @@
+package com.nivuk.agent.collectors.proc;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.SeriesRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static com.nivuk.agent.collectors.proc.ProcStatCollectorTest.value;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MeminfoCollectorTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void shouldReportMemoryInMegabytes() throws IOException {
+        // Given
+        Files.writeString(root.resolve("meminfo"), """
+            MemTotal:       16384000 kB
+            MemFree:         2048000 kB
+            MemAvailable:    8192000 kB
+            Buffers:          102400 kB
+            Cached:          4096000 kB
+            SwapCached:            0 kB
+            SwapTotal:       2048000 kB
+            SwapFree:        1024000 kB
+            """);
+        MeminfoCollector collector = new MeminfoCollector(root, new SeriesRegistry(HostIdentity.of("h")), System::nanoTime);
+
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        assertEquals(16000.0, value(metrics, "host_mem_total"), 0.001);
+        assertEquals(8000.0, value(metrics, "host_mem_available"), 0.001);
+        assertEquals(4000.0, value(metrics, "host_mem_cached"), 0.001);
+        assertEquals(1000.0, value(metrics, "host_swap_free"), 0.001);
+    }
+
+    @Test
+    void shouldReportLoadAverages() throws IOException {
+        // Given
+        Files.writeString(root.resolve("loadavg"), "0.52 1.25 2.00 3/512 12345\n");
+        LoadavgCollector collector = new LoadavgCollector(root, new SeriesRegistry(HostIdentity.of("h")), System::nanoTime);
+
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        assertEquals(0.52, value(metrics, "host_load1"), 0.0001);
+        assertEquals(2.0, value(metrics, "host_load15"), 0.0001);
+        assertEquals(3.0, value(metrics, "host_tasks_running"), 0.0001);
+        assertEquals(512.0, value(metrics, "host_tasks"), 0.0001);
+    }
+}
@@ -0,0 +1,54 @@
+package com.nivuk.agent.collectors.proc;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.SeriesRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.nivuk.agent.collectors.proc.ProcStatCollectorTest.value;
+import static org.junit.jupiter.api.Assertions.*;
+
+class NetDevCollectorTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void shouldReportPerInterfaceRates() throws IOException {
+        // Given
+        Files.createDirectories(root.resolve("net"));
+        AtomicLong clock = new AtomicLong();
+        NetDevCollector collector = new NetDevCollector(root, new SeriesRegistry(HostIdentity.of("h")), clock::get);
+        writeNetDev(10_000, 100, 20_000, 50);
+        collector.collect();
+        writeNetDev(30_000, 300, 24_000, 90);
+        clock.addAndGet(4_000_000_000L);
+
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        assertEquals(5000.0, value(metrics, "host_net_rx_bytes{interface=\"eth0\"}"), 0.001);
+        assertEquals(50.0, value(metrics, "host_net_rx_packets{interface=\"eth0\"}"), 0.001);
+        assertEquals(1000.0, value(metrics, "host_net_tx_bytes{interface=\"eth0\"}"), 0.001);
+        assertEquals(10.0, value(metrics, "host_net_tx_packets{interface=\"eth0\"}"), 0.001);
+        assertEquals(0.0, value(metrics, "host_net_rx_bytes{interface=\"lo\"}"), 0.001);
+        assertEquals("b/s", metrics.stream()
+            .filter(m -> m.name().equals("host_net_tx_bytes{interface=\"eth0\"}")).findFirst().orElseThrow().unit());
+    }
+
+    private void writeNetDev(long rxBytes, long rxPackets, long txBytes, long txPackets) throws IOException {
+        Files.writeString(root.resolve("net/dev"),
+            "Inter-|   Receive                                                |  Transmit\n"
+                + " face |bytes    packets errs drop fifo frame compressed multicast|bytes    packets errs drop fifo colls carrier compressed\n"
+                + "    lo:    1234      10    0    0    0     0          0         0     1234      10    0    0    0     0       0          0\n"
+                + "  eth0:" + rxBytes + " " + rxPackets + " 0 0 0 0 0 0 " + txBytes + " " + txPackets + " 0 0 0 0 0 0\n");
+    }
+}
@@ -0,0 +1,97 @@
+package com.nivuk.agent.collectors.proc;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.SeriesRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProcStatCollectorTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @TempDir
+    Path root;
+
+    private final AtomicLong clock = new AtomicLong();
+    private ProcStatCollector collector;
+
+    @BeforeEach
+    void setUp() {
+        collector = new ProcStatCollector(root, new SeriesRegistry(HostIdentity.of("h")), clock::get);
+    }
+
+    @Test
+    void shouldReportNothingUntilCountersArePrimed() throws IOException {
+        // Given
+        writeStat(100, 0, 100, 800, 0, 0, 0, 0, 1000, 10);
+
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        assertTrue(metrics.isEmpty());
+    }
+
+    @Test
+    void shouldReportCpuPercentagesAndRates() throws IOException {
+        // Given
+        writeStat(100, 0, 100, 800, 0, 0, 0, 0, 1000, 10);
+        collector.collect();
+        writeStat(130, 0, 120, 850, 0, 0, 0, 0, 1500, 12);
+        clock.addAndGet(2 * SECOND);
+
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        assertEquals(30.0, value(metrics, "host_cpu_user"), 0.001);
+        assertEquals(20.0, value(metrics, "host_cpu_system"), 0.001);
+        assertEquals(50.0, value(metrics, "host_cpu_idle"), 0.001);
+        assertEquals(30.0, value(metrics, "host_cpu_user{cpu=\"0\"}"), 0.001);
+        assertEquals(250.0, value(metrics, "host_context_switches"), 0.001);
+        assertEquals(1.0, value(metrics, "host_forks"), 0.001);
+        assertEquals("c/s", unit(metrics, "host_forks"));
+    }
+
+    @Test
+    void shouldReportNothingWhenFileIsMissing() {
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        assertTrue(metrics.isEmpty());
+    }
+
+    private void writeStat(long user, long nice, long system, long idle, long iowait, long irq, long softirq,
+                           long steal, long contextSwitches, long forks) throws IOException {
+        String cpu = user + " " + nice + " " + system + " " + idle + " " + iowait + " " + irq + " "
+            + softirq + " " + steal + " 0 0\n";
+        Files.writeString(root.resolve("stat"),
+            "cpu  " + cpu
+                + "cpu0 " + cpu
+                + "intr 12345 0 0\n"
+                + "ctxt " + contextSwitches + "\n"
+                + "btime 1700000000\n"
+                + "processes " + forks + "\n"
+                + "procs_running 1\n");
+    }
+
+    static double value(List<Metric> metrics, String name) {
+        return metrics.stream().filter(m -> m.name().equals(name)).findFirst()
+            .orElseThrow(() -> new AssertionError("No metric " + name + " in " + metrics))
+            .value();
+    }
+
+    static String unit(List<Metric> metrics, String name) {
+        return metrics.stream().filter(m -> m.name().equals(name)).findFirst().orElseThrow().unit();
+    }
+}
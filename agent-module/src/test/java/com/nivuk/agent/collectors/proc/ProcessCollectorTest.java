@@ -0,0 +1,119 @@
+package com.nivuk.agent.collectors.proc;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.SeriesRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.nivuk.agent.collectors.proc.ProcStatCollectorTest.value;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProcessCollectorTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @TempDir
+    Path root;
+
+    private final AtomicLong clock = new AtomicLong();
+    private final SeriesRegistry registry = new SeriesRegistry(HostIdentity.of("h"));
+
+    @Test
+    void shouldReportTopProcessesByCpuAndRss() throws IOException {
+        // Given
+        ProcessCollector collector = new ProcessCollector(root, registry, clock::get, 1, 0.5);
+        writeStat(10, "busy worker", 1000, 100, 256);
+        writeStat(20, "java", 500, 50, 25_600);
+        writeStat(30, "idle", 10, 0, 128);
+        collector.collect();
+        writeStat(10, "busy worker", 1150, 150, 256);
+        writeStat(20, "java", 510, 50, 25_600);
+        writeStat(30, "idle", 10, 0, 128);
+        clock.addAndGet(2 * SECOND);
+
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then
+        assertEquals(100.0, value(metrics, "host_process_cpu{process=\"busy worker\",pid=\"10\"}"), 0.001);
+        assertEquals(100.0, value(metrics, "host_process_rss{process=\"java\",pid=\"20\"}"), 0.001);
+        assertEquals(3.0, value(metrics, "host_processes"));
+        assertTrue(metrics.stream().noneMatch(m -> m.name().contains("idle")));
+    }
+
+    @Test
+    void shouldResumeScanWhereTheBudgetRanOut() throws IOException {
+        // Given every clock read costs 5ms against a budget of 10% of one second
+        ProcessCollector collector = new ProcessCollector(root, registry, () -> clock.addAndGet(5_000_000), 5, 0.1);
+        for (int pid = 1; pid <= 25; pid++) {
+            writeStat(pid, "p" + pid, pid, 0, 1);
+        }
+
+        // When
+        double first = value(collector.collect(), "host_processes_scanned");
+        clock.addAndGet(SECOND);
+        double second = value(collector.collect(), "host_processes_scanned");
+        clock.addAndGet(SECOND);
+        double third = value(collector.collect(), "host_processes_scanned");
+
+        // Then
+        assertTrue(first < 25, "scanned " + first);
+        assertTrue(first + second + third >= 25);
+    }
+
+    @Test
+    void shouldRestartCpuDeltaWhenPidIsReused() throws IOException {
+        // Given
+        ProcessCollector collector = new ProcessCollector(root, registry, clock::get, 5, 0.5);
+        writeStat(10, "old", 5000, 0, 1, 100);
+        collector.collect();
+        writeStat(10, "new", 10, 0, 1, 900);
+        clock.addAndGet(SECOND);
+
+        // When
+        List<Metric> metrics = collector.collect();
+
+        // Then no negative or bogus CPU is reported for the new process
+        assertTrue(metrics.stream().noneMatch(m -> m.name().startsWith("host_process_cpu")));
+        assertEquals(1 * 4096 / (1024.0 * 1024.0), value(metrics, "host_process_rss{process=\"new\",pid=\"10\"}"), 1e-9);
+    }
+
+    @Test
+    void shouldReleaseSeriesOfExitedProcesses() throws IOException {
+        // Given
+        ProcessCollector collector = new ProcessCollector(root, registry, clock::get, 5, 0.5);
+        writeStat(10, "job", 100, 0, 1);
+        collector.collect();
+        clock.addAndGet(SECOND);
+        writeStat(10, "job", 200, 0, 1);
+        collector.collect();
+        int withProcess = registry.size();
+
+        // When
+        Files.delete(root.resolve("10").resolve("stat"));
+        Files.delete(root.resolve("10"));
+        clock.addAndGet(SECOND);
+        collector.collect();
+
+        // Then
+        assertEquals(withProcess - 2, registry.size());
+    }
+
+    private void writeStat(int pid, String command, long utime, long stime, long rssPages) throws IOException {
+        writeStat(pid, command, utime, stime, rssPages, 100);
+    }
+
+    private void writeStat(int pid, String command, long utime, long stime, long rssPages, long startTime)
+            throws IOException {
+        Path dir = Files.createDirectories(root.resolve(Integer.toString(pid)));
+        Files.writeString(dir.resolve("stat"), pid + " (" + command + ") S 1 " + pid + " " + pid + " 0 -1 4194560 "
+            + "100 0 0 0 " + utime + " " + stime + " 0 0 20 0 1 0 " + startTime + " 1000000 " + rssPages
+            + " 18446744073709551615 1 1 0 0 0 0 0 0 0 0 0 0 17 0 0 0 0 0 0\n");
+    }
+}
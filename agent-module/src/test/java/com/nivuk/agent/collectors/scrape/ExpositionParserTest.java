@@ -0,0 +1,198 @@
+package com.nivuk.agent.collectors.scrape;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpositionParserTest {
+    private final SeriesRegistry registry = new SeriesRegistry(HostIdentity.of("h"));
+    private final ExpositionParser parser = new ExpositionParser(registry, "app", 100);
+    private final MetricBatch batch = new MetricBatch(registry);
+
+    @Test
+    void shouldParseSamplesAndAddTargetLabel() throws Exception {
+        // Given
+        String body = """
+            # HELP http_requests_total Requests served.
+            # TYPE http_requests_total counter
+            http_requests_total{method="GET",code="200"} 1027 1395066363000
+            http_requests_total{method="POST",code="400",} 3
+            process_open_fds 12
+            up{} 1
+            """;
+
+        // When
+        int samples = parse(body, 100);
+
+        // Then
+        assertEquals(4, samples);
+        assertEquals(0, parser.invalidLines());
+        List<Metric> metrics = batch.toMetrics();
+        assertEquals(1027, value(metrics, "http_requests_total{method=\"GET\",code=\"200\",target=\"app\"}"));
+        assertEquals(3, value(metrics, "http_requests_total{method=\"POST\",code=\"400\",target=\"app\"}"));
+        assertEquals(12, value(metrics, "process_open_fds{target=\"app\"}"));
+        assertEquals(1, value(metrics, "up{target=\"app\"}"));
+        assertTrue(metrics.stream().allMatch(metric -> metric.timestamp() == 42));
+    }
+
+    @Test
+    void shouldKeepBracesAndEscapedQuotesInsideLabelValues() throws Exception {
+        // Given
+        String body = "requests{path=\"/a}b\",msg=\"say \\\"hi\\\"\"} 5\r\n";
+
+        // When
+        int samples = parse(body, 100);
+
+        // Then
+        assertEquals(1, samples);
+        assertEquals(5, value(batch.toMetrics(),
+            "requests{path=\"/a}b\",msg=\"say \\\"hi\\\"\",target=\"app\"}"));
+    }
+
+    @Test
+    void shouldCountInvalidLinesAndSkipNonFiniteValues() throws Exception {
+        // Given
+        String body = """
+            good 1
+            no_value
+            bad_value abc
+            {missing="name"} 1
+            unclosed{a="b" 1
+            empty_quantile{quantile="0.5"} NaN
+            overflow +Inf
+            """;
+
+        // When
+        int samples = parse(body, 100);
+
+        // Then
+        assertEquals(3, samples);
+        assertEquals(4, parser.invalidLines());
+        assertEquals(1, batch.size());
+    }
+
+    @Test
+    void shouldStopOnceTheSampleLimitIsExceeded() throws Exception {
+        // When
+        int samples = parse("a 1\nb 2\nc 3\n", 2);
+
+        // Then
+        assertEquals(-1, samples);
+    }
+
+    @Test
+    void shouldAssembleLinesSpanningReadChunks() throws Exception {
+        // Given
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            body.append("series_with_a_fairly_long_name{index=\"").append(i).append("\"} ").append(i).append('\n');
+        }
+        ExpositionParser large = new ExpositionParser(registry, "app", 5000);
+
+        // When
+        int samples = large.parse(stream(body.toString()), batch, 42, 10_000);
+
+        // Then
+        assertEquals(2000, samples);
+        assertEquals(0, large.invalidLines());
+        assertEquals(1999, value(batch.toMetrics(), "series_with_a_fairly_long_name{index=\"1999\",target=\"app\"}"));
+    }
+
+    @Test
+    void shouldSkipLinesLongerThanTheLimit() throws Exception {
+        // Given
+        String body = "long{a=\"" + "x".repeat(ExpositionParser.MAX_LINE_BYTES) + "\"} 1\nshort 2";
+
+        // When
+        int samples = parse(body, 100);
+
+        // Then
+        assertEquals(1, samples);
+        assertEquals(1, parser.invalidLines());
+        assertEquals(2, value(batch.toMetrics(), "short{target=\"app\"}"));
+    }
+
+    @Test
+    void shouldReuseSeriesAcrossScrapesAndDropNewSeriesBeyondTheLimit() throws Exception {
+        // Given
+        ExpositionParser small = new ExpositionParser(registry, "app", 2);
+        small.parse(stream("a 1\nb 2\n"), batch, 1, 100);
+        int registered = registry.size();
+
+        // When
+        small.parse(stream("a 3\nb 4\n"), batch, 2, 100);
+
+        // Then
+        assertEquals(registered, registry.size());
+        assertEquals(0, small.droppedSamples());
+
+        // When
+        batch.clear();
+        int samples = small.parse(stream("c 5\nd 6\na 7\n"), batch, 3, 100);
+
+        // Then
+        assertEquals(3, samples);
+        assertEquals(2, small.droppedSamples());
+        assertEquals(registered, registry.size());
+        assertEquals(2, small.seriesCount());
+        assertEquals(1, batch.size());
+    }
+
+    @Test
+    void shouldShareReadBuffersBetweenParsersOnOneThread() throws Exception {
+        // Given a line that grows the buffer of this thread
+        String label = "x".repeat(4096);
+        parse("one{a=\"" + label + "\"} 1\n", 100);
+        int lineBytes = ExpositionParser.lineBufferBytes();
+
+        // When another target is parsed on the same thread
+        ExpositionParser other = new ExpositionParser(registry, "other", 100);
+        batch.clear();
+        int samples = other.parse(stream("two{a=\"" + label + "\"} 2\n"), batch, 42, 100);
+
+        // Then
+        assertTrue(lineBytes > 4096);
+        assertEquals(lineBytes, ExpositionParser.lineBufferBytes());
+        assertEquals(1, samples);
+        assertEquals(2, batch.value(0));
+    }
+
+    @Test
+    void shouldParseNumbersInEveryNotation() {
+        assertEquals(1.5, parseValue("1.5"));
+        assertEquals(-0.25, parseValue("-.25"));
+        assertEquals(1.2e-3, parseValue("1.2e-3"), 1e-18);
+        assertEquals(6.02E23, parseValue("6.02E+23"), 1e9);
+        assertEquals(12345678901234567890.0, parseValue("12345678901234567890"), 1e4);
+        assertEquals(Double.POSITIVE_INFINITY, parseValue("+Inf"));
+        assertEquals(Double.NEGATIVE_INFINITY, parseValue("-Inf"));
+        assertTrue(Double.isNaN(parseValue("1e")));
+        assertTrue(Double.isNaN(parseValue("1.2.3")));
+    }
+
+    private int parse(String body, int sampleLimit) throws Exception {
+        return parser.parse(stream(body), batch, 42, sampleLimit);
+    }
+
+    private static ByteArrayInputStream stream(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static double parseValue(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        return ExpositionParser.parseValue(bytes, 0, bytes.length);
+    }
+
+    private static double value(List<Metric> metrics, String name) {
+        return metrics.stream().filter(metric -> metric.name().equals(name))
+            .mapToDouble(Metric::value).findFirst().orElseThrow(() -> new AssertionError("No " + name));
+    }
+}
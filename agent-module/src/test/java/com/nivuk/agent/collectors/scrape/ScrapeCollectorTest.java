@@ -0,0 +1,169 @@
+package com.nivuk.agent.collectors.scrape;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.SeriesRegistry;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScrapeCollectorTest {
+    private final SeriesRegistry registry = new SeriesRegistry(HostIdentity.of("h"));
+    private final AgentTelemetry telemetry = new AgentTelemetry(registry);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private HttpServer server;
+    private ScrapeCollector collector;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/ok", exchange -> respond(exchange, 200, "# TYPE jobs gauge\njobs{queue=\"a\"} 7\n"));
+        server.createContext("/error", exchange -> respond(exchange, 500, "boom"));
+        server.createContext("/slow", exchange -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, "late 1\n");
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        if (collector != null) {
+            collector.close();
+        }
+        server.stop(0);
+    }
+
+    @Test
+    void shouldReportSamplesOfCompletedScrapesOnTheNextCollection() throws Exception {
+        // Given
+        collector = collector(List.of(target("app", "/ok", 2000)), 100);
+
+        // When
+        List<Metric> metrics = collectUntil("scrape_up{target=\"app\"}");
+
+        // Then
+        assertEquals(7, value(metrics, "jobs{queue=\"a\",target=\"app\"}"));
+        assertEquals(1, value(metrics, "scrape_up{target=\"app\"}"));
+        assertEquals(1, value(metrics, "scrape_samples{target=\"app\"}"));
+    }
+
+    @Test
+    void shouldReportTargetsThatFailOrTimeOutAsDown() throws Exception {
+        // Given
+        collector = collector(List.of(target("broken", "/error", 2000), target("slow", "/slow", 200)), 100);
+
+        // When
+        List<Metric> metrics = collectUntil("scrape_up{target=\"broken\"}", "scrape_up{target=\"slow\"}");
+
+        // Then
+        assertEquals(0, value(metrics, "scrape_up{target=\"broken\"}"));
+        assertEquals(0, value(metrics, "scrape_up{target=\"slow\"}"));
+        assertEquals(0, value(metrics, "scrape_samples{target=\"broken\"}"));
+        assertTrue(metrics.stream().noneMatch(metric -> metric.name().startsWith("late")));
+        assertTrue(value(telemetry.collect(), "agent_scrape_failed") >= 2);
+    }
+
+    @Test
+    void shouldFailScrapesAboveTheSampleLimit() throws Exception {
+        // Given
+        server.createContext("/many", exchange -> respond(exchange, 200, "a 1\nb 2\n"));
+        collector = collector(List.of(target("many", "/many", 2000)), 1);
+
+        // When
+        List<Metric> metrics = collectUntil("scrape_up{target=\"many\"}");
+
+        // Then
+        assertEquals(0, value(metrics, "scrape_up{target=\"many\"}"));
+        assertTrue(metrics.stream().noneMatch(metric -> metric.name().startsWith("a{")));
+    }
+
+    @Test
+    void shouldNotStartAnotherScrapeWhileOneIsInFlight() {
+        // Given
+        collector = collector(List.of(target("slow", "/slow", 5000)), 100);
+
+        // When
+        collector.collect();
+        collector.collect();
+        collector.collect();
+
+        // Then
+        assertEquals(2, value(telemetry.collect(), "agent_scrape_skipped"));
+    }
+
+    @Test
+    void shouldNotTimeTheWaitForAFreeConnection() throws Exception {
+        // Given one connection, held by a slow target
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(1);
+        collector = new ScrapeCollector(new OkHttpClient.Builder().dispatcher(dispatcher).build(),
+            List.of(target("slow", "/slow", 5000), target("app", "/ok", 5000)), 100, 100, registry, telemetry);
+        collector.collect();
+
+        // When
+        Thread.sleep(500);
+        release.countDown();
+        List<Metric> metrics = collectUntil("scrape_duration{target=\"app\"}");
+
+        // Then
+        assertTrue(value(metrics, "scrape_duration{target=\"app\"}") < 500);
+    }
+
+    private ScrapeCollector collector(List<ScrapeTarget> targets, int sampleLimit) {
+        return new ScrapeCollector(new OkHttpClient(), targets, sampleLimit, 100, registry, telemetry);
+    }
+
+    private ScrapeTarget target(String name, String path, long timeoutMillis) {
+        return new ScrapeTarget(name, "http://127.0.0.1:" + server.getAddress().getPort() + path, timeoutMillis);
+    }
+
+    // Scrapes complete asynchronously, so collect until every series has arrived
+    private List<Metric> collectUntil(String... names) throws InterruptedException {
+        List<Metric> metrics = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!metrics.stream().map(Metric::name).toList().containsAll(List.of(names))
+            && System.currentTimeMillis() < deadline) {
+            metrics.addAll(collector.collect());
+            Thread.sleep(10);
+        }
+        return metrics;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static double value(List<Metric> metrics, String name) {
+        return metrics.stream().filter(metric -> metric.name().equals(name))
+            .mapToDouble(Metric::value).sum();
+    }
+}
@@ -0,0 +1,168 @@
+package com.nivuk.agent.collectors.statsd;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesRegistry;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StatsdAggregatorTest {
+    private final SeriesRegistry registry = new SeriesRegistry(HostIdentity.of("h"));
+    private final AgentTelemetry telemetry = new AgentTelemetry(registry);
+    private final StatsdAggregator aggregator = new StatsdAggregator(registry, 100, telemetry);
+
+    @Test
+    void shouldSumCountersScaledBySampleRate() {
+        // Given
+        parse("requests:1|c\nrequests:2|c|@0.5\nrequests:3|c|#route:/a");
+
+        // When
+        List<Metric> metrics = drain();
+
+        // Then
+        assertEquals(8, value(metrics, "requests"));
+        assertEquals("c", metric(metrics, "requests").unit());
+    }
+
+    @Test
+    void shouldKeepLastGaugeValueAndApplySignedChanges() {
+        // Given
+        parse("queue:10|g\nqueue:7|g");
+        List<Metric> first = drain();
+        parse("queue:+5|g\nqueue:-2|g");
+
+        // When
+        List<Metric> second = drain();
+
+        // Then
+        assertEquals(7, value(first, "queue"));
+        assertEquals(10, value(second, "queue"));
+    }
+
+    @Test
+    void shouldSummarizeTimers() {
+        // Given
+        parse("latency:10|ms\nlatency:30|ms\nlatency:20.5|ms|@0.1\nsize:4|h");
+
+        // When
+        List<Metric> metrics = drain();
+
+        // Then
+        assertEquals(12, value(metrics, "latency_count"), 1e-9);
+        assertEquals(60.5 / 3, value(metrics, "latency_avg"), 1e-9);
+        assertEquals(10, value(metrics, "latency_min"));
+        assertEquals(30, value(metrics, "latency_max"));
+        assertEquals("ms", metric(metrics, "latency_max").unit());
+        assertEquals(4, value(metrics, "size_max"));
+        assertEquals("", metric(metrics, "size_max").unit());
+    }
+
+    @Test
+    void shouldOnlyReportSeriesUpdatedSinceTheLastDrain() {
+        // Given
+        parse("requests:1|c\nlatency:5|ms\nqueue:3|g");
+        drain();
+
+        // When
+        List<Metric> metrics = drain();
+
+        // Then
+        assertTrue(metrics.isEmpty());
+    }
+
+    @Test
+    void shouldCountInvalidLinesAndKeepTheValidOnes() {
+        // Given
+        parse("no_value|c\n:1|c\nbad:x|c\nset:1|s\nrate:1|c|@2\nspace name:1|c\n\nok:2|c\r\n");
+
+        // When
+        List<Metric> metrics = drain();
+        List<Metric> reported = telemetry.collect();
+
+        // Then
+        assertEquals(List.of("ok"), metrics.stream().map(Metric::name).toList());
+        assertEquals(2, value(metrics, "ok"));
+        assertEquals(7, value(reported, "agent_statsd_lines"));
+        assertEquals(6, value(reported, "agent_statsd_invalid"));
+    }
+
+    @Test
+    void shouldDropNewSeriesBeyondTheLimit() {
+        // Given
+        AgentTelemetry limitedTelemetry = new AgentTelemetry(registry);
+        StatsdAggregator limited = new StatsdAggregator(registry, 2, limitedTelemetry);
+        limited.parse(packet("a:1|c\nb:1|c\nc:1|c\na:1|c"));
+
+        // When
+        MetricBatch batch = new MetricBatch(registry);
+        limited.drainInto(batch, 100);
+
+        // Then
+        assertEquals(2, limited.size());
+        assertEquals(List.of("a", "b"), batch.toMetrics().stream().map(Metric::name).toList());
+        assertEquals(2, batch.toMetrics().get(0).value());
+        assertEquals(1, value(limitedTelemetry.collect(), "agent_statsd_dropped"));
+    }
+
+    @Test
+    void shouldKeepCountersAndGaugesOfTheSameNameApart() {
+        // Given
+        parse("jobs:5|g\njobs:1|c\njobs:1|c");
+
+        // When
+        List<Metric> metrics = drain();
+
+        // Then
+        assertEquals(2, metrics.size());
+        assertEquals(2, metrics.stream().filter(m -> m.unit().equals("c")).findFirst().orElseThrow().value());
+        assertEquals(5, metrics.stream().filter(m -> m.unit().isEmpty()).findFirst().orElseThrow().value());
+    }
+
+    @Test
+    void shouldParseNumbers() {
+        assertEquals(42, number("42"));
+        assertEquals(-1.25, number("-1.25"));
+        assertEquals(0.001, number(".001"));
+        assertEquals(1500, number("1.5e3"));
+        assertEquals(0.015, number("1.5E-2"), 1e-15);
+        assertEquals(12345678901234567890.0, number("12345678901234567890"), 1e4);
+        assertTrue(Double.isNaN(number("")));
+        assertTrue(Double.isNaN(number("-")));
+        assertTrue(Double.isNaN(number("1.2.3")));
+        assertTrue(Double.isNaN(number("1e")));
+        assertTrue(Double.isNaN(number("1e999")));
+    }
+
+    private void parse(String lines) {
+        aggregator.parse(packet(lines));
+    }
+
+    private List<Metric> drain() {
+        MetricBatch batch = new MetricBatch(registry);
+        aggregator.drainInto(batch, 100);
+        return batch.toMetrics();
+    }
+
+    private static ByteBuffer packet(String lines) {
+        return ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static double number(String text) {
+        return StatsdAggregator.parseNumber(packet(text), 0, text.length());
+    }
+
+    private static Metric metric(List<Metric> metrics, String name) {
+        return metrics.stream().filter(metric -> metric.name().equals(name)).findFirst().orElseThrow();
+    }
+
+    private static double value(List<Metric> metrics, String name) {
+        return metric(metrics, name).value();
+    }
+}
@@ -0,0 +1,80 @@
+package com.nivuk.agent.collectors.statsd;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.SeriesRegistry;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StatsdCollectorTest {
+    private final SeriesRegistry registry = new SeriesRegistry(HostIdentity.of("h"));
+    private final StatsdCollector collector = new StatsdCollector(registry,
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 100, new AgentTelemetry(registry));
+
+    @AfterEach
+    void tearDown() {
+        collector.close();
+    }
+
+    @Test
+    void shouldReportMetricsSentOverUdp() throws Exception {
+        // Given
+        try (DatagramChannel client = DatagramChannel.open()) {
+            send(client, "orders:1|c\norders:2|c");
+            send(client, "latency:12|ms\nqueue:4|g");
+
+            // When
+            List<Metric> metrics = collectUntil("orders", "latency_max", "queue");
+
+            // Then
+            assertEquals(3, value(metrics, "orders"));
+            assertEquals(12, value(metrics, "latency_max"));
+            assertEquals(4, value(metrics, "queue"));
+        }
+    }
+
+    @Test
+    void shouldRunWithoutListenerWhenTheAddressIsTaken() throws Exception {
+        // Given
+        InetSocketAddress taken = collector.localAddress();
+
+        // When
+        try (StatsdCollector second = new StatsdCollector(registry, taken, 100, new AgentTelemetry(registry))) {
+            // Then
+            assertNull(second.localAddress());
+            assertTrue(second.collect().isEmpty());
+        }
+    }
+
+    private void send(DatagramChannel client, String lines) throws Exception {
+        client.send(ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8)), collector.localAddress());
+    }
+
+    // Packets are parsed on the listener thread, so collect until every series has arrived
+    private List<Metric> collectUntil(String... names) throws InterruptedException {
+        List<Metric> metrics = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!metrics.stream().map(Metric::name).toList().containsAll(List.of(names))
+            && System.currentTimeMillis() < deadline) {
+            metrics.addAll(collector.collect());
+            Thread.sleep(10);
+        }
+        return metrics;
+    }
+
+    private static double value(List<Metric> metrics, String name) {
+        return metrics.stream().filter(metric -> metric.name().equals(name))
+            .mapToDouble(Metric::value).sum();
+    }
+}
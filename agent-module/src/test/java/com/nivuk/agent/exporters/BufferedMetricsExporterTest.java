@@ -0,0 +1,199 @@
+package com.nivuk.agent.exporters;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+
+class BufferedMetricsExporterTest {
+    private final List<List<Metric>> exported = new ArrayList<>();
+    private boolean failing;
+    // Exports to accept before failing, when failing
+    private int failAfter;
+
+    private final MetricsExporter delegate = new MetricsExporter() {
+        @Override
+        public void export(List<Metric> metrics) {
+            if (failing && failAfter-- <= 0) {
+                throw new IllegalStateException("Server down");
+            }
+            exported.add(metrics);
+        }
+
+        @Override
+        public void export(MetricBatch batch) {
+            export(batch.toMetrics());
+        }
+    };
+
+    @Test
+    void shouldExportOneBatchPerTimestampWithLatestValues() {
+        // Given
+        BufferedMetricsExporter exporter = new BufferedMetricsExporter(delegate, 10, 16,
+            OverflowPolicy.DROP_OLDEST, new AgentTelemetry(), false);
+        exporter.export(List.of(
+            new Metric("cpu", 1, "p", "h", 100),
+            new Metric("cpu", 2, "p", "h", 100),
+            new Metric("cpu", 3, "p", "h", 101)));
+
+        // When
+        exporter.flush();
+
+        // Then
+        assertEquals(2, exported.size());
+        assertEquals(List.of(new Metric("cpu", 2, "p", "h", 100)), exported.get(0));
+        assertEquals(List.of(new Metric("cpu", 3, "p", "h", 101)), exported.get(1));
+        assertEquals(0, exporter.occupancy());
+    }
+
+    @Test
+    void shouldGroupInterleavedTimestampsAndHosts() {
+        // Given points of two collectors and two hosts arriving interleaved
+        BufferedMetricsExporter exporter = new BufferedMetricsExporter(delegate, 10, 16,
+            OverflowPolicy.DROP_OLDEST, new AgentTelemetry(), false);
+        exporter.export(List.of(
+            new Metric("cpu", 1, "p", "h", 100),
+            new Metric("cpu", 2, "p", "h", 101),
+            new Metric("mem", 3, "m", "h", 100),
+            new Metric("mem", 4, "m", "other", 100),
+            new Metric("mem", 5, "m", "h", 101),
+            new Metric("cpu", 6, "p", "other", 100)));
+
+        // When
+        exporter.flush();
+
+        // Then
+        assertEquals(3, exported.size());
+        assertEquals(List.of(new Metric("mem", 3, "m", "h", 100), new Metric("cpu", 1, "p", "h", 100)),
+            exported.get(0));
+        assertEquals(List.of(new Metric("mem", 5, "m", "h", 101), new Metric("cpu", 2, "p", "h", 101)),
+            exported.get(1));
+        assertEquals(List.of(new Metric("cpu", 6, "p", "other", 100), new Metric("mem", 4, "m", "other", 100)),
+            exported.get(2));
+    }
+
+    @Test
+    void shouldStayBoundedWhileDelegateFails() {
+        // Given
+        BufferedMetricsExporter exporter = new BufferedMetricsExporter(delegate, 10, 8,
+            OverflowPolicy.DROP_OLDEST, new AgentTelemetry(), false);
+        failing = true;
+
+        // When
+        for (int round = 0; round < 100; round++) {
+            exporter.export(List.of(new Metric("cpu", round, "p", "h", round)));
+            exporter.flush();
+        }
+
+        // Then only the first failed point and a full ring are held
+        assertEquals(8, exporter.occupancy());
+        assertEquals(100 - 1 - 8, exporter.droppedPoints());
+
+        // When the delegate recovers
+        failing = false;
+        exporter.flush();
+        exporter.flush();
+
+        // Then
+        assertEquals(9, exported.size());
+        assertEquals(0, exporter.occupancy());
+    }
+
+    @Test
+    void shouldCountRetriedPoints() {
+        // Given
+        AgentTelemetry telemetry = new AgentTelemetry();
+        BufferedMetricsExporter exporter = new BufferedMetricsExporter(delegate, 10, 8,
+            OverflowPolicy.DROP_OLDEST, telemetry, false);
+        exporter.export(List.of(new Metric("cpu", 1, "p", "h", 100), new Metric("mem", 2, "m", "h", 100)));
+        failing = true;
+
+        // When
+        exporter.flush();
+        exporter.flush();
+
+        // Then
+        double retried = telemetry.collect().stream()
+            .filter(metric -> metric.name().equals("agent_buffer_retried"))
+            .findFirst().orElseThrow().value();
+        assertEquals(4.0, retried);
+    }
+
+    @Test
+    void shouldOnlyRetryGroupsNotExported() {
+        // Given a delegate failing after the first of two batches
+        AgentTelemetry telemetry = new AgentTelemetry();
+        BufferedMetricsExporter exporter = new BufferedMetricsExporter(delegate, 10, 8,
+            OverflowPolicy.DROP_OLDEST, telemetry, false);
+        exporter.export(List.of(new Metric("cpu", 1, "p", "h", 100), new Metric("cpu", 2, "p", "h", 101)));
+        failing = true;
+        failAfter = 1;
+
+        // When
+        exporter.flush();
+        failing = false;
+        exporter.flush();
+
+        // Then each batch is delivered once
+        assertEquals(List.of(
+                List.of(new Metric("cpu", 1, "p", "h", 100)),
+                List.of(new Metric("cpu", 2, "p", "h", 101))),
+            exported);
+        double retried = telemetry.collect().stream()
+            .filter(metric -> metric.name().equals("agent_buffer_retried"))
+            .findFirst().orElseThrow().value();
+        assertEquals(1.0, retried);
+    }
+
+    @Test
+    void shouldShipOneSummaryPerSeriesAndWindow() {
+        // Given
+        List<MetricBatch> batches = new ArrayList<>();
+        MetricsExporter capturing = new MetricsExporter() {
+            @Override
+            public void export(List<Metric> metrics) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void export(MetricBatch batch) {
+                MetricBatch copy = new MetricBatch(batch.registry());
+                copy.addAll(batch);
+                batches.add(copy);
+            }
+        };
+        long[] now = {130};
+        BufferedMetricsExporter exporter = new BufferedMetricsExporter(capturing, 10, 64,
+            OverflowPolicy.DROP_OLDEST, 60, new AgentTelemetry(), false, () -> now[0]);
+        for (int t = 120; t < 130; t++) {
+            exporter.export(List.of(new Metric("cpu", t - 120, "p", "h", t)));
+        }
+
+        // When the window is still open
+        exporter.flush();
+
+        // Then nothing is sent
+        assertEquals(0, batches.size());
+
+        // When it has ended
+        now[0] = 180;
+        exporter.flush();
+
+        // Then all ten samples arrive as one summary
+        assertEquals(1, batches.size());
+        MetricBatch summary = batches.get(0);
+        assertEquals(1, summary.size());
+        assertEquals(120, summary.timestamp(0));
+        assertEquals(10, summary.count(0));
+        assertEquals(0, summary.min(0));
+        assertEquals(9, summary.max(0));
+        assertEquals(45, summary.sum(0));
+        assertEquals(9, summary.value(0));
+    }
+}
@@ -0,0 +1,179 @@
+package com.nivuk.agent.exporters;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesRegistry;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeadbandFilterTest {
+    private final AgentTelemetry telemetry = new AgentTelemetry();
+    private MetricBatch batch;
+    private int cpu;
+    private int mem;
+
+    @BeforeEach
+    void setUp() {
+        SeriesRegistry registry = new SeriesRegistry(HostIdentity.of("h"));
+        batch = new MetricBatch(registry);
+        cpu = registry.register("cpu", "p").id();
+        mem = registry.register("mem", "m").id();
+    }
+
+    @Test
+    void shouldDropRepeatedValuesUntilTheyChange() {
+        // Given
+        DeadbandFilter filter = new DeadbandFilter(0, 0, 300, telemetry);
+
+        // When
+        List<Double> sent = new ArrayList<>();
+        long timestamp = 100;
+        for (double value : new double[] {5, 5, 5, 6, 6}) {
+            sent.addAll(tick(filter, cpu, timestamp++, value));
+        }
+
+        // Then
+        assertEquals(List.of(5.0, 6.0), sent);
+        assertEquals(3.0, suppressed());
+    }
+
+    @Test
+    void shouldCompareAgainstTheLastSentValue() {
+        // Given
+        DeadbandFilter filter = new DeadbandFilter(1.0, 0, 300, telemetry);
+
+        // When
+        List<Double> sent = new ArrayList<>();
+        long timestamp = 100;
+        for (double value : new double[] {10, 10.6, 11.0, 11.2, 9.5}) {
+            sent.addAll(tick(filter, cpu, timestamp++, value));
+        }
+
+        // Then: drift adds up to more than the deadband even though each step is smaller
+        assertEquals(List.of(10.0, 11.2, 9.5), sent);
+    }
+
+    @Test
+    void shouldApplyRelativeDeadband() {
+        // Given
+        DeadbandFilter filter = new DeadbandFilter(0, 0.01, 300, telemetry);
+
+        // When
+        List<Double> sent = new ArrayList<>();
+        sent.addAll(tick(filter, mem, 100, 1000));
+        sent.addAll(tick(filter, mem, 101, 1009));
+        sent.addAll(tick(filter, mem, 102, 1011));
+
+        // Then
+        assertEquals(List.of(1000.0, 1011.0), sent);
+    }
+
+    @Test
+    void shouldSendHeartbeatAfterMaxSilence() {
+        // Given
+        DeadbandFilter filter = new DeadbandFilter(0, 0, 60, telemetry);
+
+        // When
+        List<Long> sentAt = new ArrayList<>();
+        for (long timestamp = 0; timestamp <= 150; timestamp += 10) {
+            batch.clear();
+            batch.add(cpu, timestamp, 1);
+            filter.apply(batch);
+            if (!batch.isEmpty()) {
+                sentAt.add(batch.timestamp(0));
+            }
+        }
+
+        // Then
+        assertEquals(List.of(0L, 60L, 120L), sentAt);
+    }
+
+    @Test
+    void shouldTrackSeriesIndependentlyAndKeepOrder() {
+        // Given
+        DeadbandFilter filter = new DeadbandFilter(0, 0, 300, telemetry);
+        batch.add(cpu, 100, 1);
+        batch.add(mem, 100, 2);
+        filter.apply(batch);
+        batch.clear();
+
+        // When
+        batch.add(cpu, 101, 1);
+        batch.add(mem, 101, 3);
+        batch.add(cpu, 102, 4);
+        filter.apply(batch);
+
+        // Then
+        assertEquals(2, batch.size());
+        assertEquals(mem, batch.seriesId(0));
+        assertEquals(3.0, batch.value(0));
+        assertEquals(cpu, batch.seriesId(1));
+        assertEquals(4.0, batch.value(1));
+    }
+
+    @Test
+    void shouldNeverDropSummaries() {
+        // Given
+        DeadbandFilter filter = new DeadbandFilter(0, 0, 300, telemetry);
+        batch.addSummary(cpu, 60, 60, 1, 1, 1, 3, 3);
+        filter.apply(batch);
+        batch.clear();
+
+        // When
+        batch.addSummary(cpu, 120, 60, 1, 1, 1, 3, 3);
+        filter.apply(batch);
+
+        // Then
+        assertEquals(1, batch.size());
+        assertTrue(batch.isSummary(0));
+    }
+
+    @Test
+    void shouldRejectNegativeDeadband() {
+        assertThrows(IllegalArgumentException.class, () -> new DeadbandFilter(-1, 0, 60, telemetry));
+        assertThrows(IllegalArgumentException.class, () -> new DeadbandFilter(0, 0, 0, telemetry));
+    }
+
+    @Test
+    void shouldCountSuppressedSamplesOfEveryIntervalInOneSeries() {
+        // Given one filter per collection interval
+        DeadbandFilter fast = new DeadbandFilter(0, 0, 300, telemetry);
+        DeadbandFilter slow = new DeadbandFilter(0, 0, 300, telemetry);
+
+        // When
+        for (long timestamp = 100; timestamp < 103; timestamp++) {
+            tick(fast, cpu, timestamp, 5);
+            tick(slow, mem, timestamp, 7);
+        }
+
+        // Then
+        List<Double> reported = telemetry.collect().stream()
+            .filter(metric -> metric.name().equals("agent_deadband_suppressed"))
+            .map(Metric::value).toList();
+        assertEquals(List.of(4.0), reported);
+    }
+
+    private List<Double> tick(DeadbandFilter filter, int seriesId, long timestamp, double value) {
+        batch.clear();
+        batch.add(seriesId, timestamp, value);
+        filter.apply(batch);
+        List<Double> sent = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            sent.add(batch.value(i));
+        }
+        return sent;
+    }
+
+    private double suppressed() {
+        return telemetry.collect().stream()
+            .filter(metric -> metric.name().equals("agent_deadband_suppressed"))
+            .findFirst().orElseThrow().value();
+    }
+}
@@ -0,0 +1,146 @@
+package com.nivuk.agent.exporters;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesRegistry;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+
+class ExportPipelineTest {
+    private final AgentTelemetry telemetry = new AgentTelemetry(new SeriesRegistry(HostIdentity.of("h")));
+    private final CountDownLatch unblock = new CountDownLatch(1);
+    private ExportPipeline pipeline;
+
+    @AfterEach
+    void tearDown() {
+        unblock.countDown();
+        pipeline.close();
+    }
+
+    @Test
+    void shouldNotLetBlockedExporterDelayOthers() throws InterruptedException {
+        // Given
+        RecordingExporter fast = new RecordingExporter("fast", null, 2);
+        RecordingExporter blocked = new RecordingExporter("blocked", unblock);
+        pipeline = new ExportPipeline(List.of(blocked, fast), 4, telemetry);
+
+        // When
+        publish(100);
+        publish(101);
+
+        // Then
+        assertTrue(fast.exported.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(100L, 101L), fast.timestamps);
+        assertEquals(0, blocked.timestamps.size());
+    }
+
+    @Test
+    void shouldDropOldestBatchesOfExporterThatFallsBehind() throws InterruptedException {
+        // Given
+        RecordingExporter blocked = new RecordingExporter("blocked", unblock);
+        pipeline = new ExportPipeline(List.of(blocked), 2, telemetry);
+        publish(100);
+        blocked.started.await(2, TimeUnit.SECONDS);
+
+        // When the worker is stuck on the first batch and three more arrive
+        publish(101);
+        publish(102);
+        publish(103);
+        unblock.countDown();
+
+        // Then
+        pipeline.close();
+        assertEquals(List.of(100L, 102L, 103L), blocked.timestamps);
+        assertEquals(1.0, report().get("agent_export_blocked_dropped"));
+    }
+
+    @Test
+    void shouldRecycleBatchOnceEveryExporterIsDone() throws InterruptedException {
+        // Given
+        RecordingExporter first = new RecordingExporter("first", null);
+        RecordingExporter second = new RecordingExporter("second", null);
+        pipeline = new ExportPipeline(List.of(first, second), 4, telemetry);
+
+        // When
+        SharedBatch shared = publish(100);
+        assertTrue(first.exported.await(2, TimeUnit.SECONDS));
+        assertTrue(second.exported.await(2, TimeUnit.SECONDS));
+        pipeline.close();
+
+        // Then
+        SharedBatch next = pipeline.acquire();
+        assertSame(shared, next);
+        assertTrue(next.batch().isEmpty());
+    }
+
+    private SharedBatch publish(long timestamp) {
+        SharedBatch shared = pipeline.acquire();
+        shared.batch().add(new Metric("cpu", 1, "p", "h", timestamp));
+        pipeline.publish(shared);
+        return shared;
+    }
+
+    private Map<String, Double> report() {
+        Map<String, Double> values = new HashMap<>();
+        telemetry.collect().forEach(metric -> values.put(metric.name(), metric.value()));
+        return values;
+    }
+
+    private static class RecordingExporter implements MetricsExporter {
+        final String name;
+        final CountDownLatch gate;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch exported;
+        final List<Long> timestamps = new CopyOnWriteArrayList<>();
+
+        RecordingExporter(String name, CountDownLatch gate) {
+            this(name, gate, 1);
+        }
+
+        RecordingExporter(String name, CountDownLatch gate, int expectedBatches) {
+            this.name = name;
+            this.gate = gate;
+            this.exported = new CountDownLatch(expectedBatches);
+        }
+
+        @Override
+        public void export(List<Metric> metrics) {
+            export(MetricBatch.of(metrics));
+        }
+
+        @Override
+        public void export(MetricBatch batch) {
+            started.countDown();
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                timestamps.add(batch.timestamp(i));
+            }
+            exported.countDown();
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.nivuk.agent.exporters;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.nivuk.agent.telemetry.AgentTelemetry;
+
+class FlushControllerTest {
+    private final FlushPolicy policy = new FlushPolicy(1_000, 8_000, 64_000, 3, 10_000);
+    private long now;
+    private final FlushController controller =
+        new FlushController(policy, new AgentTelemetry(), () -> now, new Random(42));
+
+    @Test
+    void shouldGrowIntervalWhileServerIsSlow() {
+        controller.onSuccess(5_000);
+        assertEquals(16_000, controller.nextDelayMillis());
+        controller.onSuccess(5_000);
+        controller.onSuccess(5_000);
+        controller.onSuccess(5_000);
+        assertEquals(64_000, controller.nextDelayMillis());
+    }
+
+    @Test
+    void shouldShrinkIntervalWhileServerIsFast() {
+        for (int i = 0; i < 20; i++) {
+            controller.onSuccess(10);
+        }
+        assertEquals(1_000, controller.nextDelayMillis());
+    }
+
+    @Test
+    void shouldBackOffWithJitterOnFailure() {
+        controller.onFailure();
+        controller.onFailure();
+        for (int i = 0; i < 100; i++) {
+            long delay = controller.nextDelayMillis();
+            assertTrue(delay >= 1_000 && delay <= 4_000, "delay " + delay);
+        }
+        controller.onSuccess(10);
+        assertEquals(6_000, controller.nextDelayMillis());
+    }
+
+    @Test
+    void shouldOpenCircuitAfterConsecutiveFailures() {
+        controller.onFailure();
+        controller.onFailure();
+        assertTrue(controller.allowRequest());
+        controller.onFailure();
+
+        assertEquals(FlushController.State.OPEN, controller.state());
+        assertFalse(controller.allowRequest());
+        assertEquals(10_000, controller.nextDelayMillis());
+    }
+
+    @Test
+    void shouldLetOneProbeThroughOnceOpenPeriodHasPassed() {
+        for (int i = 0; i < 3; i++) {
+            controller.onFailure();
+        }
+        now += TimeUnit.SECONDS.toNanos(10);
+
+        assertTrue(controller.allowRequest());
+        assertEquals(FlushController.State.HALF_OPEN, controller.state());
+        assertFalse(controller.allowRequest());
+
+        // A failed probe reopens the circuit for twice as long
+        controller.onFailure();
+        now += TimeUnit.SECONDS.toNanos(10);
+        assertFalse(controller.allowRequest());
+        now += TimeUnit.SECONDS.toNanos(10);
+        assertTrue(controller.allowRequest());
+
+        controller.onSuccess(50);
+        assertEquals(FlushController.State.CLOSED, controller.state());
+        assertTrue(controller.allowRequest());
+    }
+
+    @Test
+    void shouldLetAnotherProbeThroughOnceTheFirstTimesOut() {
+        for (int i = 0; i < 3; i++) {
+            controller.onFailure();
+        }
+        now += TimeUnit.SECONDS.toNanos(10);
+        assertTrue(controller.allowRequest());
+
+        // A probe that never completes does not hold the circuit half open
+        now += TimeUnit.SECONDS.toNanos(9);
+        assertFalse(controller.acceptingRequests());
+        now += TimeUnit.SECONDS.toNanos(1);
+        assertTrue(controller.acceptingRequests());
+        assertTrue(controller.allowRequest());
+        assertFalse(controller.allowRequest());
+        assertEquals(FlushController.State.HALF_OPEN, controller.state());
+    }
+
+    @Test
+    void shouldReportAcceptingRequestsWithoutTakingTheProbe() {
+        assertTrue(controller.acceptingRequests());
+        for (int i = 0; i < 3; i++) {
+            controller.onFailure();
+        }
+        assertFalse(controller.acceptingRequests());
+
+        now += TimeUnit.SECONDS.toNanos(10);
+        assertTrue(controller.acceptingRequests());
+        assertEquals(FlushController.State.OPEN, controller.state());
+
+        assertTrue(controller.allowRequest());
+        assertFalse(controller.acceptingRequests());
+    }
+}
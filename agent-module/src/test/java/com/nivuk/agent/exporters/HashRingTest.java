@@ -0,0 +1,85 @@
+package com.nivuk.agent.exporters;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashRingTest {
+    private static final List<String> NODES = List.of("http://a:8080/metrics", "http://b:8080/metrics",
+        "http://c:8080/metrics");
+
+    @Test
+    void shouldSpreadKeysEvenly() {
+        // Given
+        HashRing ring = new HashRing(NODES);
+
+        // When
+        int[] owned = new int[NODES.size()];
+        for (int i = 0; i < 30_000; i++) {
+            owned[ring.owner("host-" + (i % 300) + "\0metric_" + (i / 300))]++;
+        }
+
+        // Then
+        for (int count : owned) {
+            assertEquals(10_000, count, 2_000, Arrays.toString(owned));
+        }
+    }
+
+    @Test
+    void shouldOwnKeysRegardlessOfNodeOrder() {
+        // Given
+        List<String> reorderedNodes = List.of(NODES.get(2), NODES.get(0), NODES.get(1));
+        HashRing ring = new HashRing(NODES);
+        HashRing reordered = new HashRing(reorderedNodes);
+
+        // Then
+        for (int i = 0; i < 1_000; i++) {
+            String key = "host\0metric_" + i;
+            assertEquals(NODES.get(ring.owner(key)), reorderedNodes.get(reordered.owner(key)));
+        }
+    }
+
+    @Test
+    void shouldOnlyMoveKeysToAnAddedNode() {
+        // Given
+        HashRing ring = new HashRing(NODES);
+        List<String> grown = List.of(NODES.get(0), NODES.get(1), NODES.get(2), "http://d:8080/metrics");
+        HashRing larger = new HashRing(grown);
+
+        // When
+        int moved = 0;
+        for (int i = 0; i < 10_000; i++) {
+            String key = "host-" + (i % 100) + "\0metric_" + (i / 100);
+            int before = ring.owner(key);
+            int after = larger.owner(key);
+            if (before != after) {
+                assertEquals(3, after, "keys may only move to the new node");
+                moved++;
+            }
+        }
+
+        // Then: about a quarter of the keys
+        assertEquals(2_500, moved, 700);
+    }
+
+    @Test
+    void shouldListEveryNodeOnceOwnerFirst() {
+        // Given
+        HashRing ring = new HashRing(NODES);
+
+        // When
+        int[] preference = ring.preference("host\0cpu");
+
+        // Then
+        assertEquals(ring.owner("host\0cpu"), preference[0]);
+        assertArrayEquals(new int[] {0, 1, 2}, Arrays.stream(preference).sorted().toArray());
+    }
+
+    @Test
+    void shouldRejectEmptyRing() {
+        assertThrows(IllegalArgumentException.class, () -> new HashRing(List.of()));
+    }
+}
@@ -0,0 +1,107 @@
+package com.nivuk.agent.exporters;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricBinaryEncoderTest {
+    private SeriesRegistry registry;
+    private MetricBatch batch;
+    private final MetricBinaryEncoder encoder = new MetricBinaryEncoder();
+    private final PayloadBuffer buffer = new PayloadBuffer();
+
+    @BeforeEach
+    void setUp() {
+        registry = new SeriesRegistry(HostIdentity.of("h"));
+        batch = new MetricBatch(registry);
+    }
+
+    @Test
+    void shouldEncodeKnownLayout() {
+        SeriesDescriptor cpu = registry.register("cpu", "p");
+        batch.add(cpu, 100, 1.0);
+        batch.add(cpu, 101, 1.0);
+        batch.add(cpu, 102, 2.0);
+
+        assertTrue(encoder.encode(batch, buffer));
+
+        // Header, dictionary [h, cpu, p], one series of three points, then the bit block:
+        // t0 and v0 raw, dod=+1 ('10' 0000001) with v unchanged ('0'), then dod=0 ('0') with
+        // xor 0x7ff0000000000000 in a new window ('1' '1' leading=1 length-1=10 11111111111).
+        assertEquals("4e564d4201"
+                + "03" + "0168" + "03637075" + "0170"
+                + "01" + "00010203"
+                + "0000000000000064" + "3ff0000000000000"
+                + "8098257ff0",
+            HexFormat.of().formatHex(Arrays.copyOf(buffer.array(), buffer.size())));
+    }
+
+    @Test
+    void shouldWriteSummariesAsVersionTwo() {
+        SeriesDescriptor cpu = registry.register("cpu", "p");
+        batch.addSummary(cpu.id(), 60, 60, 2.0, 1.0, 4.0, 6.0, 3);
+        batch.addSummary(cpu.id(), 120, 60, 2.0, 1.0, 4.0, 6.0, 3);
+
+        assertTrue(encoder.encode(batch, buffer));
+
+        // Version 2, dictionary [h, cpu, p], one summary series (kind 1) of two points,
+        // the block of last values, unchanged min, max and sum streams, then window and count pairs
+        assertEquals("4e564d4202"
+                + "03" + "0168" + "03637075" + "0170"
+                + "01" + "000102" + "01" + "02"
+                + "000000000000003c" + "4000000000000000" + "9e00"
+                + "3ff0000000000000" + "00"
+                + "4010000000000000" + "00"
+                + "4018000000000000" + "00"
+                + "3c03" + "3c03",
+            HexFormat.of().formatHex(Arrays.copyOf(buffer.array(), buffer.size())));
+    }
+
+    @Test
+    void shouldGroupInterleavedSeries() {
+        SeriesDescriptor cpu = registry.register("cpu", "p");
+        SeriesDescriptor mem = registry.register("mem", "m");
+        for (int t = 0; t < 3; t++) {
+            batch.add(cpu, t, 50.0);
+            batch.add(mem, t, 1024.0);
+        }
+
+        encoder.encode(batch, buffer);
+
+        byte[] bytes = Arrays.copyOf(buffer.array(), buffer.size());
+        // Dictionary holds each string once: h, cpu, p, mem, m
+        assertEquals(5, bytes[5]);
+        // Two series after the dictionary
+        int seriesCountOffset = 5 + 1 + (1 + 1) + (1 + 3) + (1 + 1) + (1 + 3) + (1 + 1);
+        assertEquals(2, bytes[seriesCountOffset]);
+    }
+
+    @Test
+    void shouldBeMuchSmallerThanJson() {
+        SeriesDescriptor[] series = new SeriesDescriptor[20];
+        for (int i = 0; i < series.length; i++) {
+            series[i] = registry.register("metric_" + i, "m");
+        }
+        for (int t = 0; t < 60; t++) {
+            for (int i = 0; i < series.length; i++) {
+                batch.add(series[i], 1686394800L + t, 512.0 + (t % 4));
+            }
+        }
+
+        encoder.encode(batch, buffer);
+        int binarySize = buffer.size();
+        new MetricJsonFormatter().encode(batch, buffer);
+        int jsonSize = buffer.size();
+
+        assertTrue(binarySize * 10 < jsonSize,
+            "binary=" + binarySize + " json=" + jsonSize);
+    }
+}
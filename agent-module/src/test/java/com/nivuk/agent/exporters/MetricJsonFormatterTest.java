@@ -1,7 +1,12 @@
 package com.nivuk.agent.exporters;
 
+import com.nivuk.agent.model.HostIdentity;
 import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesRegistry;
 import org.junit.jupiter.api.Test;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -30,6 +35,22 @@ class MetricJsonFormatterTest {
         assertEquals(expected, json);
     }
 
+    @Test
+    void shouldFormatWindowSummaries() {
+        SeriesRegistry registry = new SeriesRegistry(HostIdentity.of("test-host"));
+        MetricBatch batch = new MetricBatch(registry);
+        int cpu = registry.register("cpu", "p").id();
+        batch.addSummary(cpu, 60, 60, 20, 10, 30.5, 60.5, 3);
+        batch.add(cpu, 125, 40);
+
+        String json = compactFormatter.format(batch);
+
+        assertEquals("{\"points\":["
+            + "{\"t\":60,\"h\":\"test-host\",\"n\":\"cpu\",\"v\":20,\"u\":\"p\",\"w\":60,"
+            + "\"mn\":10,\"mx\":30.5,\"s\":60.5,\"c\":3},"
+            + "{\"t\":125,\"h\":\"test-host\",\"n\":\"cpu\",\"v\":40,\"u\":\"p\"}]}", json);
+    }
+
     @Test
     void shouldFormatMultipleMetricsOfSameType() {
         long timestamp1 = 1686394800000L;
@@ -76,4 +97,61 @@ class MetricJsonFormatterTest {
         assertTrue(json.contains("\"v\":75"), "Should remove trailing zeros");
         assertFalse(json.contains("\"v\":75.0"), "Should not contain trailing zero");
     }
+
+    @Test
+    void shouldFormatShortestRoundTripValues() {
+        long timestamp = 1686394800000L;
+        List<Metric> metrics = List.of(
+            new Metric("a", 0.1 + 0.2, "p", "test-host", timestamp),
+            new Metric("b", -0.0, "p", "test-host", timestamp),
+            new Metric("c", 1024.25, "p", "test-host", timestamp)
+        );
+
+        String json = compactFormatter.format(metrics);
+
+        assertTrue(json.contains("\"v\":0.30000000000000004"), json);
+        assertTrue(json.contains("\"n\":\"b\",\"v\":0,"), json);
+        assertTrue(json.contains("\"v\":1024.25"), json);
+    }
+
+    @Test
+    void shouldSkipNonFiniteValues() {
+        long timestamp = 1686394800000L;
+        List<Metric> metrics = List.of(
+            new Metric("cpu", Double.NaN, "%", "test-host", timestamp),
+            new Metric("mem", 2.5, "MB", "test-host", timestamp)
+        );
+
+        String json = compactFormatter.format(metrics);
+
+        assertFalse(json.contains("\"n\":\"cpu\""), json);
+        assertTrue(json.contains("\"n\":\"mem\""), json);
+    }
+
+    @Test
+    void shouldStreamBatchWithSameOutputAsList() throws Exception {
+        long timestamp = 1686394800L;
+        SeriesRegistry registry = new SeriesRegistry(HostIdentity.of("test-host"));
+        MetricBatch batch = new MetricBatch(registry);
+        batch.add(registry.register("cpu", "%"), timestamp, 75.5);
+        batch.add(registry.register("mem_free", "MB"), timestamp, 1024.0);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compactFormatter.write(batch, out);
+
+        assertEquals(compactFormatter.format(batch.toMetrics()), out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void shouldReuseBufferAcrossEncodes() {
+        long timestamp = 1686394800L;
+        PayloadBuffer buffer = new PayloadBuffer(16);
+
+        compactFormatter.encode(List.of(new Metric("cpu", 75.5, "%", "test-host", timestamp)), buffer);
+        compactFormatter.encode(List.of(new Metric("mem", 1.5, "MB", "test-host", timestamp)), buffer);
+
+        assertEquals(String.format(
+            "{\"points\":[{\"t\":%d,\"h\":\"test-host\",\"n\":\"mem\",\"v\":1.5,\"u\":\"MB\"}]}",
+            timestamp), buffer.toString());
+    }
 }
@@ -0,0 +1,141 @@
+package com.nivuk.agent.exporters;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesRegistry;
+
+class MetricRingBufferTest {
+    private final SeriesRegistry registry = new SeriesRegistry(HostIdentity.of("h"));
+    private final int cpu = registry.register("cpu", "p").id();
+
+    @Test
+    void shouldRoundCapacityUpToPowerOfTwo() {
+        assertEquals(8, new MetricRingBuffer(5, OverflowPolicy.DROP_NEWEST).capacity());
+        assertEquals(8, new MetricRingBuffer(8, OverflowPolicy.DROP_NEWEST).capacity());
+    }
+
+    @Test
+    void shouldRejectCapacitiesThatCannotBeRoundedUp() {
+        assertThrows(IllegalArgumentException.class, () -> new MetricRingBuffer(1, OverflowPolicy.DROP_NEWEST));
+        assertThrows(IllegalArgumentException.class,
+            () -> new MetricRingBuffer(MetricRingBuffer.MAX_CAPACITY + 1, OverflowPolicy.DROP_NEWEST));
+    }
+
+    @Test
+    void shouldDrainInInsertionOrder() {
+        MetricRingBuffer buffer = new MetricRingBuffer(8, OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(cpu, 100 + i, i);
+        }
+
+        MetricBatch batch = new MetricBatch(registry);
+        assertEquals(3, buffer.drainTo(batch, 3));
+        assertEquals(2, buffer.size());
+        assertEquals(2, buffer.drainTo(batch, 10));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(100 + i, batch.timestamp(i));
+            assertEquals(i, batch.value(i));
+        }
+    }
+
+    @Test
+    void shouldRejectNewestPointsWhenFull() {
+        MetricRingBuffer buffer = new MetricRingBuffer(4, OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 6; i++) {
+            buffer.offer(cpu, i, i);
+        }
+
+        MetricBatch batch = new MetricBatch(registry);
+        buffer.drainTo(batch, 10);
+        assertEquals(4, batch.size());
+        assertEquals(0, batch.timestamp(0));
+        assertEquals(2, buffer.dropped());
+    }
+
+    @Test
+    void shouldEvictOldestPointsWhenFull() {
+        MetricRingBuffer buffer = new MetricRingBuffer(4, OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(buffer.offer(cpu, i, i));
+        }
+
+        MetricBatch batch = new MetricBatch(registry);
+        buffer.drainTo(batch, 10);
+        assertEquals(4, batch.size());
+        assertEquals(2, batch.timestamp(0));
+        assertEquals(5, batch.timestamp(3));
+        assertEquals(2, buffer.dropped());
+    }
+
+    @Test
+    void shouldKeepFewerRoundsWhenDownsampling() {
+        MetricRingBuffer buffer = new MetricRingBuffer(64, OverflowPolicy.DOWNSAMPLE);
+        int offered = 0;
+        for (long round = 0; round < 1000; round++) {
+            buffer.offer(cpu, round, 1);
+            offered++;
+        }
+
+        assertEquals(64, buffer.size());
+        assertEquals(offered - 64, buffer.dropped());
+        // Once drained, every round is admitted again
+        buffer.drainTo(new MetricBatch(registry), 64);
+        assertTrue(buffer.offer(cpu, 1001, 1));
+    }
+
+    @Test
+    void shouldNotLosePointsWithConcurrentProducers() throws InterruptedException {
+        MetricRingBuffer buffer = new MetricRingBuffer(1 << 16, OverflowPolicy.DROP_NEWEST);
+        int producers = 4;
+        int perProducer = 10_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    buffer.offer(cpu, producer, i);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        MetricBatch batch = new MetricBatch(registry);
+        start.countDown();
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                buffer.drainTo(batch, 1000);
+            }
+            thread.join();
+        }
+        buffer.drainTo(batch, Integer.MAX_VALUE);
+
+        assertEquals(producers * perProducer, batch.size());
+        assertEquals(0, buffer.dropped());
+        // Each producer's points stay in order
+        double[] last = {-1, -1, -1, -1};
+        for (int i = 0; i < batch.size(); i++) {
+            int producer = (int) batch.timestamp(i);
+            assertTrue(batch.value(i) > last[producer]);
+            last[producer] = batch.value(i);
+        }
+        assertFalse(buffer.size() > 0);
+    }
+}
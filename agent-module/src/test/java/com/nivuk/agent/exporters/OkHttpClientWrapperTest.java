@@ -0,0 +1,34 @@
+package com.nivuk.agent.exporters;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OkHttpClientWrapperTest {
+
+    @Test
+    void shouldBuildClientOnFirstCallOnly() {
+        // Given
+        AtomicInteger built = new AtomicInteger();
+        OkHttpClientWrapper wrapper = new OkHttpClientWrapper(() -> {
+            built.incrementAndGet();
+            return new OkHttpClient();
+        });
+        Request request = new Request.Builder().url("http://localhost/metrics").build();
+        assertEquals(0, built.get());
+
+        // When
+        Call first = wrapper.newCall(request);
+        Call second = wrapper.newCall(request);
+
+        // Then
+        assertEquals(1, built.get());
+        assertSame(request, first.request());
+        assertSame(request, second.request());
+    }
+}
@@ -0,0 +1,130 @@
+package com.nivuk.agent.exporters;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesRegistry;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedMetricsExporterTest {
+    private static final List<String> URLS = List.of("http://a:8080/metrics", "http://b:8080/metrics",
+        "http://c:8080/metrics");
+    private static final Pattern METRIC_NAME = Pattern.compile("\"n\":\"([^\"]+)\"");
+    private final AgentTelemetry telemetry = new AgentTelemetry(new SeriesRegistry(HostIdentity.of("h")));
+    private final List<TestHttpClient> clients = new ArrayList<>();
+    private final SeriesRegistry registry = new SeriesRegistry(HostIdentity.of("host-1"));
+    private ShardedMetricsExporter exporter;
+
+    @BeforeEach
+    void setUp() {
+        List<WebServiceMetricsExporter> endpoints = new ArrayList<>();
+        for (String url : URLS) {
+            TestHttpClient client = new TestHttpClient();
+            client.setNextResponse(okResponse(url));
+            clients.add(client);
+            // Opens after one failure and stays open long enough for the test
+            endpoints.add(new WebServiceMetricsExporter(client, url, new WebServiceSettings(new MetricJsonFormatter(),
+                null, 0, null, 0, new FlushPolicy(1_000, 1_000, 1_000, 1, 60_000)), telemetry));
+        }
+        exporter = new ShardedMetricsExporter(endpoints, telemetry);
+    }
+
+    @Test
+    void shouldSendEachSeriesToTheSameEndpoint() {
+        // Given
+        MetricBatch batch = batchOf(30);
+
+        // When
+        exporter.export(batch);
+        exporter.export(batch);
+
+        // Then: every endpoint gets a slice, and the same slice both times
+        for (TestHttpClient client : clients) {
+            assertEquals(2, client.getRequests().size());
+            assertEquals(client.getRequests().get(0).toString(), client.getRequests().get(1).toString());
+        }
+        assertEquals(30, seriesSent().size());
+    }
+
+    @Test
+    void shouldFailOverToTheNextEndpointWhileOneIsDown() {
+        // Given
+        MetricBatch batch = batchOf(30);
+        clients.get(0).setNextError(new IOException("Connection refused"));
+        exporter.export(batch);
+        int sentToFailed = clients.get(0).getRequests().size();
+        clients.forEach(client -> client.getRequests().clear());
+
+        // When
+        exporter.export(batch);
+
+        // Then
+        assertEquals(1, sentToFailed);
+        assertTrue(clients.get(0).getRequests().isEmpty());
+        assertEquals(30, seriesSent().size());
+        assertTrue(failedOver() > 0);
+    }
+
+    @Test
+    void shouldConvertMetricLists() {
+        // When
+        exporter.export(List.of(new Metric("cpu", 1.5, "p", "host-1", 100), new Metric("mem", 2, "m", "host-1", 100)));
+
+        // Then
+        assertEquals(Set.of("cpu", "mem"), seriesSent());
+    }
+
+    private MetricBatch batchOf(int series) {
+        MetricBatch batch = new MetricBatch(registry);
+        for (int i = 0; i < series; i++) {
+            batch.add(registry.register("metric_" + i, "c").id(), 1686394800L, i);
+        }
+        return batch;
+    }
+
+    private Set<String> seriesSent() {
+        Set<String> names = new HashSet<>();
+        for (TestHttpClient client : clients) {
+            for (TestHttpClient.RequestWrapper request : client.getRequests()) {
+                Matcher name = METRIC_NAME.matcher(request.toString());
+                while (name.find()) {
+                    names.add(name.group(1));
+                }
+            }
+        }
+        return names;
+    }
+
+    private double failedOver() {
+        return telemetry.collect().stream()
+            .filter(metric -> metric.name().equals("agent_shard_failover"))
+            .findFirst().orElseThrow().value();
+    }
+
+    private static Response okResponse(String url) {
+        return new Response.Builder()
+            .request(new Request.Builder().url(url).build())
+            .protocol(Protocol.HTTP_1_1)
+            .code(200)
+            .message("OK")
+            .body(ResponseBody.create("", MediaType.get("application/json")))
+            .build();
+    }
+}
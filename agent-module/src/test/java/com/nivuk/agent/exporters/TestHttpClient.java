@@ -13,6 +13,8 @@ public class TestHttpClient implements HttpClient {
     private final List<RequestWrapper> requests = new ArrayList<>();
     private Response nextResponse;
     private IOException nextError;
+    private boolean holdCallbacks;
+    private final List<Runnable> pendingCallbacks = new ArrayList<>();
 
     @Override
     @NotNull
@@ -42,11 +44,18 @@ public class TestHttpClient implements HttpClient {
 
             @Override
             public void enqueue(@NotNull Callback callback) {
-                try {
-                    Response response = execute();
-                    callback.onResponse(this, response);
-                } catch (IOException e) {
-                    callback.onFailure(this, e);
+                Runnable completion = () -> {
+                    try {
+                        Response response = execute();
+                        callback.onResponse(this, response);
+                    } catch (IOException e) {
+                        callback.onFailure(this, e);
+                    }
+                };
+                if (holdCallbacks) {
+                    pendingCallbacks.add(completion);
+                } else {
+                    completion.run();
                 }
             }
 
@@ -85,30 +94,49 @@ public class TestHttpClient implements HttpClient {
         this.nextError = error;
     }
 
+    /**
+     * Keeps enqueued calls in flight until {@link #completePending()} is called.
+     */
+    public void holdCallbacks() {
+        this.holdCallbacks = true;
+    }
+
+    public void completePending() {
+        List<Runnable> completions = new ArrayList<>(pendingCallbacks);
+        pendingCallbacks.clear();
+        completions.forEach(Runnable::run);
+    }
+
     public List<RequestWrapper> getRequests() {
         return requests;
     }
 
     public static class RequestWrapper {
         private final Request original;
+        private final byte[] bodyBytes;
         private final String bodyContent;
 
         RequestWrapper(Request original) {
             this.original = original;
-            this.bodyContent = readBodyContent(original);
+            this.bodyBytes = readBodyBytes(original);
+            this.bodyContent = new String(bodyBytes, java.nio.charset.StandardCharsets.UTF_8);
         }
 
-        private String readBodyContent(Request request) {
+        private byte[] readBodyBytes(Request request) {
             try {
-                if (request.body() == null) return "";
+                if (request.body() == null) return new byte[0];
                 Buffer buffer = new Buffer();
                 request.body().writeTo(buffer);
-                return buffer.readUtf8();
+                return buffer.readByteArray();
             } catch (IOException e) {
-                return "Error reading body: " + e.getMessage();
+                return ("Error reading body: " + e.getMessage()).getBytes();
             }
         }
 
+        public byte[] bodyBytes() {
+            return bodyBytes;
+        }
+
         @Override
         public String toString() {
             return bodyContent;
@@ -3,13 +3,24 @@ package com.nivuk.agent.exporters;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import com.nivuk.agent.model.HostIdentity;
 import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.SeriesRegistry;
+import com.nivuk.agent.spool.DiskSpool;
+import com.nivuk.agent.telemetry.AgentTelemetry;
 
 import okhttp3.MediaType;
 import okhttp3.Protocol;
@@ -145,4 +156,234 @@ class WebServiceMetricsExporterTest {
         exporter.export(metrics);
         assertEquals(1, httpClient.getRequests().size());
     }
+
+    @Test
+    void shouldGzipPayloadsAboveThreshold() throws IOException {
+        // Given
+        exporter = new WebServiceMetricsExporter(httpClient, serverUrl,
+            new WebServiceSettings(new MetricJsonFormatter(), new GzipCompressor(64, 6), 0));
+        List<Metric> metrics = List.of(
+            new Metric("cpu", 75.5, "%", "test-host", 1686394800L),
+            new Metric("memory", 1024.0, "MB", "test-host", 1686394800L)
+        );
+        httpClient.setNextResponse(okResponse());
+
+        // When
+        exporter.export(metrics);
+
+        // Then
+        TestHttpClient.RequestWrapper request = httpClient.getRequests().get(0);
+        assertEquals("gzip", request.headers().get("Content-Encoding"));
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(request.bodyBytes()))) {
+            assertEquals(new MetricJsonFormatter().format(metrics), new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void shouldNotCompressPayloadsBelowThreshold() {
+        // Given
+        exporter = new WebServiceMetricsExporter(httpClient, serverUrl,
+            new WebServiceSettings(new MetricJsonFormatter(), new GzipCompressor(4096, 6), 0));
+        httpClient.setNextResponse(okResponse());
+
+        // When
+        exporter.export(List.of(new Metric("cpu", 75.5, "%", "test-host", 1686394800L)));
+
+        // Then
+        TestHttpClient.RequestWrapper request = httpClient.getRequests().get(0);
+        assertEquals(null, request.headers().get("Content-Encoding"));
+        assertTrue(request.toString().contains("\"n\":\"cpu\""));
+    }
+
+    @Test
+    void shouldDropPayloadsWhenAllRequestsAreInFlight() {
+        // Given
+        AgentTelemetry telemetry = new AgentTelemetry(new SeriesRegistry(HostIdentity.of("h")));
+        exporter = new WebServiceMetricsExporter(httpClient, serverUrl,
+            new WebServiceSettings(new MetricJsonFormatter(), null, 2), telemetry);
+        httpClient.setNextResponse(okResponse());
+        httpClient.holdCallbacks();
+        List<Metric> metrics = List.of(new Metric("cpu", 75.5, "%", "test-host", 1686394800L));
+
+        // When
+        exporter.export(metrics);
+        exporter.export(metrics);
+        exporter.export(metrics);
+
+        // Then
+        assertEquals(2, httpClient.getRequests().size());
+        Map<String, Double> reported = report(telemetry);
+        assertEquals(2.0, reported.get("agent_http_inflight"));
+        assertEquals(1.0, reported.get("agent_http_rejected"));
+
+        // And slots are released once the responses arrive
+        httpClient.completePending();
+        exporter.export(metrics);
+        assertEquals(3, httpClient.getRequests().size());
+    }
+
+    @Test
+    void shouldSpoolPayloadsWhenAllRequestsAreInFlight(@TempDir Path spoolDirectory) throws IOException {
+        // Given
+        AgentTelemetry telemetry = new AgentTelemetry(new SeriesRegistry(HostIdentity.of("h")));
+        DiskSpool spool = new DiskSpool(spoolDirectory, 1 << 20, 64 * 1024);
+        exporter = new WebServiceMetricsExporter(httpClient, serverUrl,
+            new WebServiceSettings(new MetricJsonFormatter(), null, 1, spool, 10), telemetry);
+        httpClient.setNextResponse(okResponse());
+        httpClient.holdCallbacks();
+        List<Metric> metrics = List.of(new Metric("cpu", 75.5, "%", "test-host", 1686394800L));
+
+        // When
+        exporter.export(metrics);
+        exporter.export(metrics);
+
+        // Then
+        assertEquals(1, httpClient.getRequests().size());
+        assertEquals(1, spool.pendingRecords());
+        Map<String, Double> reported = report(telemetry);
+        assertEquals(0.0, reported.get("agent_http_rejected"));
+        assertEquals(1.0, reported.get("agent_spool_written"));
+        httpClient.completePending();
+        exporter.close();
+    }
+
+    @Test
+    void shouldNotTakeTheProbeWhileAllRequestsAreInFlight(@TempDir Path spoolDirectory) throws Exception {
+        // Given the only request slot in flight and a spooled payload
+        DiskSpool spool = new DiskSpool(spoolDirectory, 1 << 20, 64 * 1024);
+        exporter = new WebServiceMetricsExporter(httpClient, serverUrl, new WebServiceSettings(
+            new MetricJsonFormatter(), null, 1, spool, 10, new FlushPolicy(1, 1, 1, 1, 1)));
+        List<Metric> metrics = List.of(new Metric("cpu", 75.5, "%", "test-host", 1686394800L));
+        httpClient.setNextResponse(okResponse());
+        httpClient.holdCallbacks();
+        exporter.export(metrics);
+        exporter.export(metrics);
+
+        // And a failed replay opening the circuit, whose probe is now due
+        httpClient.setNextError(new IOException("Network error"));
+        exporter.replaySpool();
+        Thread.sleep(10);
+
+        // When a flush finds no free slot
+        exporter.export(metrics);
+
+        // Then the probe is still available to the next request that can be sent
+        assertTrue(exporter.acceptingRequests());
+        httpClient.setNextError(null);
+        httpClient.completePending();
+        exporter.export(metrics);
+        assertEquals(3, httpClient.getRequests().size());
+        httpClient.completePending();
+        assertTrue(exporter.acceptingRequests());
+        exporter.close();
+    }
+
+    @Test
+    void shouldCountFailedAsyncRequests() {
+        // Given
+        AgentTelemetry telemetry = new AgentTelemetry(new SeriesRegistry(HostIdentity.of("h")));
+        exporter = new WebServiceMetricsExporter(httpClient, serverUrl,
+            new WebServiceSettings(new MetricJsonFormatter(), null, 1), telemetry);
+        httpClient.setNextError(new IOException("Network error"));
+
+        // When
+        exporter.export(List.of(new Metric("cpu", 75.5, "%", "test-host", 1686394800L)));
+
+        // Then
+        Map<String, Double> reported = report(telemetry);
+        assertEquals(1.0, reported.get("agent_http_requests"));
+        assertEquals(1.0, reported.get("agent_http_failures"));
+        assertEquals(0.0, reported.get("agent_http_inflight"));
+    }
+
+    @Test
+    void shouldSpoolFailedPayloadsAndReplayThemOnceServerRecovers(@TempDir Path spoolDirectory) throws IOException {
+        // Given
+        DiskSpool spool = new DiskSpool(spoolDirectory, 1 << 20, 64 * 1024);
+        exporter = new WebServiceMetricsExporter(httpClient, serverUrl,
+            new WebServiceSettings(new MetricJsonFormatter(), null, 0, spool, 10));
+        List<Metric> metrics = List.of(new Metric("cpu", 75.5, "%", "test-host", 1686394800L));
+        httpClient.setNextError(new IOException("Network error"));
+
+        // When
+        exporter.export(metrics);
+        exporter.replaySpool();
+
+        // Then the payload stays spooled while the server is down
+        assertEquals(1, spool.pendingRecords());
+        assertEquals(1, httpClient.getRequests().size());
+
+        // When the server accepts requests again
+        httpClient.setNextError(null);
+        httpClient.setNextResponse(okResponse());
+        exporter.export(metrics);
+        exporter.replaySpool();
+
+        // Then
+        assertEquals(0, spool.pendingRecords());
+        List<TestHttpClient.RequestWrapper> requests = httpClient.getRequests();
+        assertEquals(3, requests.size());
+        assertEquals(requests.get(0).toString(), requests.get(2).toString());
+        exporter.close();
+    }
+
+    @Test
+    void shouldNotSpoolPayloadsTheServerRejects(@TempDir Path spoolDirectory) throws IOException {
+        // Given
+        DiskSpool spool = new DiskSpool(spoolDirectory, 1 << 20, 64 * 1024);
+        exporter = new WebServiceMetricsExporter(httpClient, serverUrl,
+            new WebServiceSettings(new MetricJsonFormatter(), null, 0, spool, 10));
+        httpClient.setNextResponse(new Response.Builder()
+            .request(new Request.Builder().url(serverUrl).build())
+            .protocol(Protocol.HTTP_1_1)
+            .code(400)
+            .message("Bad Request")
+            .body(ResponseBody.create("", MediaType.get("application/json")))
+            .build());
+
+        // When
+        exporter.export(List.of(new Metric("cpu", 75.5, "%", "test-host", 1686394800L)));
+
+        // Then
+        assertEquals(0, spool.pendingRecords());
+        exporter.close();
+    }
+
+    @Test
+    void shouldStopSendingOnceCircuitOpens() {
+        // Given
+        AgentTelemetry telemetry = new AgentTelemetry(new SeriesRegistry(HostIdentity.of("h")));
+        exporter = new WebServiceMetricsExporter(httpClient, serverUrl,
+            new WebServiceSettings(new MetricJsonFormatter(), null, 0, null, 0,
+                new FlushPolicy(1_000, 1_000, 1_000, 2, 60_000)), telemetry);
+        httpClient.setNextError(new IOException("Network error"));
+        List<Metric> metrics = List.of(new Metric("cpu", 75.5, "%", "test-host", 1686394800L));
+
+        // When
+        for (int i = 0; i < 5; i++) {
+            exporter.export(metrics);
+        }
+
+        // Then
+        assertEquals(2, httpClient.getRequests().size());
+        Map<String, Double> reported = report(telemetry);
+        assertEquals(3.0, reported.get("agent_http_rejected"));
+        assertEquals(2.0, reported.get("agent_circuit_state"));
+    }
+
+    private static Map<String, Double> report(AgentTelemetry telemetry) {
+        Map<String, Double> values = new HashMap<>();
+        telemetry.collect().forEach(metric -> values.put(metric.name(), metric.value()));
+        return values;
+    }
+
+    private Response okResponse() {
+        return new Response.Builder()
+            .request(new Request.Builder().url(serverUrl).build())
+            .protocol(Protocol.HTTP_1_1)
+            .code(200)
+            .message("OK")
+            .body(ResponseBody.create("", MediaType.get("application/json")))
+            .build();
+    }
 }
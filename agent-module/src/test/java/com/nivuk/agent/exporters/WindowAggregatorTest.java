@@ -0,0 +1,90 @@
+package com.nivuk.agent.exporters;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WindowAggregatorTest {
+    private final WindowAggregator aggregator = new WindowAggregator(60);
+    private MetricBatch out;
+    private int cpu;
+    private int mem;
+
+    @BeforeEach
+    void setUp() {
+        SeriesRegistry registry = new SeriesRegistry(HostIdentity.of("h"));
+        out = new MetricBatch(registry);
+        cpu = registry.register("cpu", "p").id();
+        mem = registry.register("mem", "m").id();
+    }
+
+    @Test
+    void shouldSummarizeSamplesOfAClosedWindow() {
+        // Given
+        aggregator.add(cpu, 120, 10, out);
+        aggregator.add(cpu, 121, 30, out);
+        aggregator.add(cpu, 122, 20, out);
+
+        // When
+        aggregator.drainClosed(180, out);
+
+        // Then
+        assertEquals(1, out.size());
+        assertTrue(out.isSummary(0));
+        assertEquals(120, out.timestamp(0));
+        assertEquals(60, out.window(0));
+        assertEquals(20, out.value(0));
+        assertEquals(10, out.min(0));
+        assertEquals(30, out.max(0));
+        assertEquals(60, out.sum(0));
+        assertEquals(3, out.count(0));
+        assertEquals(0, aggregator.openWindows());
+    }
+
+    @Test
+    void shouldKeepWindowsThatHaveNotEnded() {
+        // Given
+        aggregator.add(cpu, 125, 1, out);
+
+        // When
+        aggregator.drainClosed(179, out);
+
+        // Then
+        assertTrue(out.isEmpty());
+        assertEquals(1, aggregator.openWindows());
+    }
+
+    @Test
+    void shouldEmitWindowWhenASampleForALaterWindowArrives() {
+        // Given
+        aggregator.add(cpu, 10, 1, out);
+        aggregator.add(mem, 10, 5, out);
+
+        // When
+        aggregator.add(cpu, 70, 2, out);
+
+        // Then
+        assertEquals(1, out.size());
+        assertEquals(cpu, out.seriesId(0));
+        assertEquals(1, out.count(0));
+        assertEquals(2, aggregator.openWindows());
+    }
+
+    @Test
+    void shouldTakeLastFromTheLatestTimestamp() {
+        // Given
+        aggregator.add(cpu, 5, 7, out);
+        aggregator.add(cpu, 3, 9, out);
+
+        // When
+        aggregator.drainAll(out);
+
+        // Then
+        assertEquals(7, out.value(0));
+        assertEquals(0, out.timestamp(0));
+    }
+}
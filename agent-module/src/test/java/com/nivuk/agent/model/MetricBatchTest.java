@@ -0,0 +1,113 @@
+package com.nivuk.agent.model;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricBatchTest {
+    private SeriesRegistry registry;
+    private MetricBatch batch;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SeriesRegistry(new HostIdentity(() -> "test-host"));
+        batch = new MetricBatch(registry, 2);
+    }
+
+    @Test
+    void shouldStorePointsInColumns() {
+        SeriesDescriptor cpu = registry.register("cpu", "p");
+        batch.add(cpu, 1686394800L, 75.5);
+        batch.add(cpu, 1686394801L, 80.0);
+
+        assertEquals(2, batch.size());
+        assertEquals(cpu.id(), batch.seriesId(1));
+        assertEquals(1686394801L, batch.timestamp(1));
+        assertEquals(80.0, batch.value(1));
+        assertSame(cpu, batch.series(0));
+    }
+
+    @Test
+    void shouldGrowBeyondInitialCapacityAndReuseAfterClear() {
+        SeriesDescriptor cpu = registry.register("cpu", "p");
+        for (int i = 0; i < 10; i++) {
+            batch.add(cpu, i, i);
+        }
+        assertEquals(10, batch.size());
+
+        batch.clear();
+        assertTrue(batch.isEmpty());
+        assertThrows(IndexOutOfBoundsException.class, () -> batch.value(0));
+    }
+
+    @Test
+    void shouldRetainMatchingPointsInOrder() {
+        // Given
+        SeriesDescriptor cpu = registry.register("cpu", "p");
+        for (int i = 0; i < 6; i++) {
+            batch.add(cpu, i, i * 10);
+        }
+        batch.addSummary(cpu.id(), 60, 60, 1, 0, 2, 3, 3);
+
+        // When
+        batch.retainIf(index -> index % 2 == 0);
+
+        // Then
+        assertEquals(4, batch.size());
+        assertEquals(List.of(0.0, 20.0, 40.0, 1.0), batch.toMetrics().stream().map(Metric::value).toList());
+        assertFalse(batch.isSummary(2));
+        assertTrue(batch.isSummary(3));
+        assertEquals(3, batch.count(3));
+    }
+
+    @Test
+    void shouldCopySinglePointsWithTheirSummaries() {
+        // Given
+        SeriesDescriptor cpu = registry.register("cpu", "p");
+        batch.add(cpu, 0, 10);
+        batch.addSummary(cpu.id(), 60, 60, 1, 0, 2, 3, 3);
+        MetricBatch copy = new MetricBatch(registry);
+
+        // When
+        copy.add(batch, 1);
+        copy.add(batch, 0);
+
+        // Then
+        assertEquals(2, copy.size());
+        assertTrue(copy.isSummary(0));
+        assertEquals(3, copy.count(0));
+        assertEquals(2.0, copy.max(0));
+        assertFalse(copy.isSummary(1));
+        assertEquals(10.0, copy.value(1));
+    }
+
+    @Test
+    void shouldRoundTripMetrics() {
+        List<Metric> metrics = List.of(
+            new Metric("cpu", 75.5, "%", "host-a", 1686394800L),
+            new Metric("mem_free", 1024.0, "MB", "host-b", 1686394800L)
+        );
+
+        batch.addAll(metrics);
+
+        assertEquals(metrics, batch.toMetrics());
+    }
+
+    @Test
+    void shouldReinternPointsFromAnotherRegistry() {
+        SeriesRegistry other = new SeriesRegistry(new HostIdentity(() -> "other-host"));
+        other.register("padding", "c");
+        MetricBatch source = new MetricBatch(other);
+        source.add(other.register("cpu", "p"), 1L, 42.0);
+
+        batch.addAll(source);
+
+        SeriesDescriptor series = batch.series(0);
+        assertEquals("cpu", series.name());
+        assertEquals("other-host", series.host());
+        assertTrue(registry.owns(series));
+    }
+}
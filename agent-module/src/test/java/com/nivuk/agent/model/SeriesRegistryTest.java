@@ -0,0 +1,110 @@
+package com.nivuk.agent.model;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SeriesRegistryTest {
+    private final AtomicReference<String> hostName = new AtomicReference<>("host-a");
+    private final AtomicInteger resolutions = new AtomicInteger();
+    private HostIdentity hostIdentity;
+    private SeriesRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        hostIdentity = new HostIdentity(() -> {
+            resolutions.incrementAndGet();
+            return hostName.get();
+        });
+        registry = new SeriesRegistry(hostIdentity);
+    }
+
+    @Test
+    void shouldInternSameTripleToSameDescriptor() {
+        SeriesDescriptor first = registry.register("cpu", "p");
+        SeriesDescriptor second = registry.intern("cpu", "p", "host-a");
+
+        assertSame(first, second);
+        assertEquals("host-a", first.host());
+        assertSame(first, registry.get(first.id()));
+    }
+
+    @Test
+    void shouldAssignDistinctDenseIds() {
+        SeriesDescriptor cpu = registry.register("cpu", "p");
+        SeriesDescriptor memFree = registry.register("mem_free", "m");
+        SeriesDescriptor otherHost = registry.intern("cpu", "p", "host-b");
+
+        assertEquals(0, cpu.id());
+        assertEquals(1, memFree.id());
+        assertEquals(2, otherHost.id());
+        assertEquals(3, registry.size());
+    }
+
+    @Test
+    void shouldResolveHostOnlyOnce() {
+        for (int i = 0; i < 100; i++) {
+            registry.register("cpu", "p");
+            hostIdentity.current();
+        }
+
+        assertEquals(1, resolutions.get());
+    }
+
+    @Test
+    void shouldRebindDescriptorAfterHostRefresh() {
+        SeriesDescriptor before = registry.register("cpu", "p");
+        assertSame(before, registry.current(before));
+
+        hostName.set("host-b");
+        assertTrue(hostIdentity.refresh());
+
+        SeriesDescriptor after = registry.current(before);
+        assertNotSame(before, after);
+        assertEquals("host-b", after.host());
+        assertEquals("cpu", after.name());
+        assertFalse(hostIdentity.refresh());
+    }
+
+    @Test
+    void shouldGrowIdTableBeyondInitialCapacity() {
+        for (int i = 0; i < 100; i++) {
+            SeriesDescriptor descriptor = registry.register("m" + i, "c");
+            assertSame(descriptor, registry.get(descriptor.id()));
+        }
+        assertThrows(IllegalArgumentException.class, () -> registry.get(100));
+    }
+
+    @Test
+    void shouldReuseIdsOfReleasedSeriesOnlyAfterDelay() {
+        // Given
+        AtomicLong clock = new AtomicLong();
+        registry = new SeriesRegistry(hostIdentity, clock::get);
+        SeriesDescriptor exited = registry.register("process_cpu{pid=\"10\"}", "p");
+        registry.register("cpu", "p");
+
+        // When
+        registry.release(exited);
+
+        // Then the id still resolves for points already buffered, and is not reused yet
+        assertEquals(1, registry.size());
+        assertSame(exited, registry.get(exited.id()));
+        SeriesDescriptor restarted = registry.register("process_cpu{pid=\"10\"}", "p");
+        assertNotSame(exited, restarted);
+        assertEquals(2, restarted.id());
+
+        // When the delay has passed
+        clock.addAndGet(SeriesRegistry.REUSE_DELAY_NANOS);
+        SeriesDescriptor reused = registry.register("process_cpu{pid=\"11\"}", "p");
+
+        // Then
+        assertEquals(exited.id(), reused.id());
+        assertSame(reused, registry.get(exited.id()));
+        assertFalse(registry.owns(exited));
+    }
+}
@@ -0,0 +1,60 @@
+package com.nivuk.agent.scheduler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+class AlignedSchedulerTest {
+
+    @Test
+    void shouldAlignTicksToPeriodBoundaries() {
+        assertEquals(60_000, AlignedScheduler.nextTick(1_000, 60_000, 0));
+        assertEquals(120_000, AlignedScheduler.nextTick(60_000, 60_000, 0));
+        assertEquals(65_000, AlignedScheduler.nextTick(10_000, 60_000, 5_000));
+        assertEquals(5_000, AlignedScheduler.nextTick(1_000, 60_000, 5_000));
+    }
+
+    @Test
+    void shouldDeriveStableHostOffsetsWithinJitter() {
+        long offset = AlignedScheduler.hostOffset("web-1", 60_000, 10_000);
+        assertEquals(offset, AlignedScheduler.hostOffset("web-1", 60_000, 10_000));
+        assertTrue(offset >= 0 && offset < 10_000);
+        assertTrue(AlignedScheduler.hostOffset("web-1", 1_000, 10_000) < 1_000);
+        assertEquals(0, AlignedScheduler.hostOffset("web-1", 60_000, 0));
+
+        long distinct = IntStream.range(0, 100)
+            .mapToLong(i -> AlignedScheduler.hostOffset("host-" + i, 60_000, 60_000))
+            .distinct()
+            .count();
+        assertNotEquals(1, distinct);
+    }
+
+    @Test
+    void shouldKeepRunningAfterTaskFailure() throws InterruptedException {
+        AlignedScheduler scheduler = new AlignedScheduler(
+            Executors.newSingleThreadScheduledExecutor(), System::currentTimeMillis);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch ranAgain = new CountDownLatch(3);
+
+        scheduler.schedule("failing", () -> {
+            ranAgain.countDown();
+            if (runs.incrementAndGet() == 1) {
+                throw new IllegalStateException("boom");
+            }
+        }, 20, 0);
+
+        try {
+            assertTrue(ranAgain.await(2, TimeUnit.SECONDS));
+        } finally {
+            scheduler.close();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.nivuk.agent.spool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DiskSpoolTest {
+    private static final String JSON = "application/json; charset=utf-8";
+    private static final int SEGMENT_BYTES = 256;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void shouldReturnRecordsOldestFirst() throws IOException {
+        try (DiskSpool spool = new DiskSpool(directory, 4096, SEGMENT_BYTES)) {
+            append(spool, "first");
+            spool.append("application/x-nivuk-metrics", true, new byte[]{1, 2, 3}, 0, 3);
+
+            DiskSpool.SpoolRecord record = spool.peek();
+            assertEquals(JSON, record.contentType());
+            assertFalse(record.gzipped());
+            assertEquals("first", new String(record.body(), StandardCharsets.UTF_8));
+            spool.remove();
+
+            record = spool.peek();
+            assertEquals("application/x-nivuk-metrics", record.contentType());
+            assertTrue(record.gzipped());
+            assertArrayEquals(new byte[]{1, 2, 3}, record.body());
+            spool.remove();
+
+            assertNull(spool.peek());
+            assertEquals(0, spool.pendingRecords());
+        }
+    }
+
+    @Test
+    void shouldResumeAfterRestart() throws IOException {
+        try (DiskSpool spool = new DiskSpool(directory, 4096, SEGMENT_BYTES)) {
+            for (int i = 0; i < 10; i++) {
+                append(spool, "payload-" + i);
+            }
+            spool.peek();
+            spool.remove();
+        }
+
+        try (DiskSpool spool = new DiskSpool(directory, 4096, SEGMENT_BYTES)) {
+            assertEquals(9, spool.pendingRecords());
+            assertEquals("payload-1", body(spool.peek()));
+            append(spool, "payload-10");
+            assertEquals(10, spool.pendingRecords());
+        }
+    }
+
+    @Test
+    void shouldDiscardOldestSegmentWhenFull() throws IOException {
+        try (DiskSpool spool = new DiskSpool(directory, 2 * SEGMENT_BYTES, SEGMENT_BYTES)) {
+            for (int i = 0; i < 30; i++) {
+                append(spool, "payload-" + i);
+            }
+
+            assertTrue(spool.droppedRecords() > 0);
+            assertEquals(30, spool.pendingRecords() + spool.droppedRecords());
+            assertTrue(segmentFiles() <= 2);
+            assertEquals("payload-" + spool.droppedRecords(), body(spool.peek()));
+        }
+    }
+
+    @Test
+    void shouldDeleteSegmentsOnceReplayed() throws IOException {
+        try (DiskSpool spool = new DiskSpool(directory, 4096, SEGMENT_BYTES)) {
+            for (int i = 0; i < 30; i++) {
+                append(spool, "payload-" + i);
+            }
+            while (spool.peek() != null) {
+                spool.remove();
+            }
+
+            assertEquals(1, segmentFiles());
+        }
+    }
+
+    @Test
+    void shouldIgnoreTornRecords() throws IOException {
+        try (DiskSpool spool = new DiskSpool(directory, 4096, SEGMENT_BYTES)) {
+            append(spool, "complete");
+            append(spool, "torn");
+        }
+        // Corrupt the last byte of the second record's body
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.findFirst().orElseThrow();
+        }
+        int lastBodyByte = 16 + (8 + 2 + JSON.length() + "complete".length()) + 8 + 2 + JSON.length() + 3;
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(lastBodyByte);
+            file.write('X');
+        }
+
+        try (DiskSpool spool = new DiskSpool(directory, 4096, SEGMENT_BYTES)) {
+            assertEquals(1, spool.pendingRecords());
+            assertEquals("complete", body(spool.peek()));
+        }
+    }
+
+    @Test
+    void shouldRejectRecordsLargerThanASegment() throws IOException {
+        try (DiskSpool spool = new DiskSpool(directory, 4096, SEGMENT_BYTES)) {
+            assertFalse(spool.append(JSON, false, new byte[SEGMENT_BYTES], 0, SEGMENT_BYTES));
+            assertEquals(1, spool.droppedRecords());
+        }
+    }
+
+    @Test
+    void shouldDropRecordsAppendedAfterClose() throws IOException {
+        // Given
+        DiskSpool spool = new DiskSpool(directory, 4096, SEGMENT_BYTES);
+        append(spool, "payload");
+
+        // When
+        spool.close();
+
+        // Then
+        assertFalse(spool.append(JSON, false, new byte[1], 0, 1));
+        try (DiskSpool reopened = new DiskSpool(directory, 4096, SEGMENT_BYTES)) {
+            assertEquals(1, reopened.pendingRecords());
+        }
+    }
+
+    private static void append(DiskSpool spool, String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        assertTrue(spool.append(JSON, false, bytes, 0, bytes.length));
+    }
+
+    private static String body(DiskSpool.SpoolRecord record) {
+        return new String(record.body(), StandardCharsets.UTF_8);
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
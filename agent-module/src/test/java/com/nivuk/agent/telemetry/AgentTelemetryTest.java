@@ -0,0 +1,103 @@
+package com.nivuk.agent.telemetry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.SeriesRegistry;
+
+class AgentTelemetryTest {
+    private final AgentTelemetry telemetry = new AgentTelemetry(new SeriesRegistry(HostIdentity.of("h")));
+
+    @Test
+    void shouldReportAndResetCounters() {
+        Counter sent = telemetry.counter("sent");
+        sent.increment();
+        sent.add(4);
+
+        assertEquals(5.0, report().get("sent"));
+        assertEquals(0.0, report().get("sent"));
+    }
+
+    @Test
+    void shouldReportSummaryCountMeanAndMax() {
+        Summary latency = telemetry.summary("latency", "ms");
+        latency.record(10);
+        latency.record(30);
+
+        Map<String, Double> reported = report();
+        assertEquals(2.0, reported.get("latency_count"));
+        assertEquals(20.0, reported.get("latency_avg"));
+        assertEquals(30.0, reported.get("latency_max"));
+    }
+
+    @Test
+    void shouldReportHistogramPercentilesAndReset() {
+        Histogram sizes = telemetry.histogram("size", "b", 1);
+        for (int i = 1; i <= 100; i++) {
+            sizes.record(i);
+        }
+
+        Map<String, Double> reported = report();
+        assertEquals(100.0, reported.get("size_count"));
+        assertEquals(50.0, reported.get("size_p50"), 50 * 0.125);
+        assertEquals(90.0, reported.get("size_p90"), 90 * 0.125);
+        assertEquals(99.0, reported.get("size_p99"), 99 * 0.125);
+        assertEquals(100.0, reported.get("size_max"));
+        assertEquals(0.0, report().get("size_count"));
+    }
+
+    @Test
+    void shouldPrefixScopedInstrumentsAndReportThemWithTheRest() {
+        telemetry.counter("agent_http_requests").add(1);
+        AgentTelemetry endpoint = telemetry.scoped("endpoint1");
+        endpoint.counter("agent_http_requests").add(2);
+        endpoint.timer("agent_http_latency").record(1_000_000);
+        endpoint.scoped("spool").gauge("pending", "c", () -> 7);
+
+        Map<String, Double> reported = report();
+        assertEquals(1.0, reported.get("agent_http_requests"));
+        assertEquals(2.0, reported.get("agent_endpoint1_http_requests"));
+        assertEquals(1.0, reported.get("agent_endpoint1_http_latency_count"));
+        assertEquals(7.0, reported.get("endpoint1_spool_pending"));
+    }
+
+    @Test
+    void shouldShareInstrumentsRegisteredTwiceUnderOneName() {
+        telemetry.counter("agent_suppressed").add(1);
+        telemetry.scoped("endpoint1").counter("agent_http_requests").add(1);
+        telemetry.counter("agent_suppressed").add(2);
+        telemetry.scoped("endpoint1").counter("agent_http_requests").add(3);
+
+        assertEquals(2, telemetry.collect().size());
+        assertThrows(IllegalArgumentException.class, () -> telemetry.timer("agent_suppressed"));
+    }
+
+    @Test
+    void shouldReportTimersInMilliseconds() {
+        Histogram timer = telemetry.timer("encode");
+        timer.record(3_000_000);
+
+        assertEquals(3.0, report().get("encode_max"));
+    }
+
+    @Test
+    void shouldReadGaugesWhenReported() {
+        double[] value = {1};
+        telemetry.gauge("queue", "c", () -> value[0]);
+        value[0] = 7;
+
+        assertEquals(7.0, report().get("queue"));
+    }
+
+    private Map<String, Double> report() {
+        Map<String, Double> values = new HashMap<>();
+        telemetry.collect().forEach(metric -> values.put(metric.name(), metric.value()));
+        return values;
+    }
+}
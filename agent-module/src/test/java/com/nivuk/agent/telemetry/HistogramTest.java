@@ -0,0 +1,48 @@
+package com.nivuk.agent.telemetry;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistogramTest {
+
+    @Test
+    void shouldCountSmallValuesExactly() {
+        for (int value = 0; value < 16; value++) {
+            assertEquals(value, Histogram.bucket(value));
+            assertEquals(value, Histogram.highestInBucket(value));
+        }
+    }
+
+    @Test
+    void shouldKeepBucketsWithinRelativeError() {
+        for (long value = 16; value > 0 && value < Long.MAX_VALUE / 2; value = value * 3 / 2 + 1) {
+            int bucket = Histogram.bucket(value);
+            long highest = Histogram.highestInBucket(bucket);
+            assertTrue(highest >= value, "bucket of " + value + " ends at " + highest);
+            assertTrue(highest - value <= value / 8, "bucket of " + value + " ends at " + highest);
+            assertEquals(bucket + 1, Histogram.bucket(highest + 1));
+        }
+        assertTrue(Histogram.bucket(Long.MAX_VALUE) < 64 * 8);
+    }
+
+    @Test
+    void shouldClampPercentilesToTheMaximum() {
+        Histogram histogram = new Histogram();
+        histogram.record(1000);
+
+        Histogram.Snapshot snapshot = histogram.drain();
+
+        assertEquals(1, snapshot.count());
+        assertEquals(1000, snapshot.p99());
+        assertEquals(1000, snapshot.max());
+    }
+
+    @Test
+    void shouldTreatNegativeValuesAsZero() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+
+        assertEquals(0, histogram.drain().max());
+    }
+}
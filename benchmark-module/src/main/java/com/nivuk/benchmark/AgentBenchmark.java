@@ -0,0 +1,286 @@
+package com.nivuk.benchmark;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the agent's footprint. Launches the agent jar against a {@link StubServer}
+ * with a fixed configuration and reports startup time, steady-state RSS, CPU per
+ * collection tick, bytes sent per tick and, in a second run under JFR so that the
+ * recording does not inflate the other numbers, bytes allocated per tick. Results
+ * are written as JSON and can be checked against the report of an earlier version.
+ */
+public final class AgentBenchmark {
+    private static final Pattern STARTED = Pattern.compile("Agent started in (\\d+) ms");
+    private static final long STARTUP_TIMEOUT_MILLIS = 60_000;
+
+    private final BenchmarkOptions options;
+    private final Path workDirectory;
+    private final StubServer stub;
+    private final Path config;
+
+    AgentBenchmark(BenchmarkOptions options, Path workDirectory, StubServer stub) throws IOException {
+        this.options = options;
+        this.workDirectory = workDirectory;
+        this.stub = stub;
+        this.config = writeConfig(workDirectory.resolve("agent-config.yml"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkOptions options;
+        try {
+            options = BenchmarkOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(BenchmarkOptions.USAGE);
+            System.exit(2);
+            return;
+        }
+        if (!Files.isRegularFile(options.agentJar())) {
+            System.err.println("No agent jar at " + options.agentJar() + ", build it with: mvn -pl agent-module package");
+            System.exit(2);
+        }
+
+        // Read first, in case the report replaces it
+        Map<String, Double> baseline = options.baseline() == null
+            ? null : BenchmarkReport.parseResults(Files.readString(options.baseline()));
+        BenchmarkReport report = new BenchmarkReport(options.scenario());
+        Path workDirectory = Files.createTempDirectory("agent-benchmark");
+        try (StubServer stub = new StubServer()) {
+            AgentBenchmark benchmark = new AgentBenchmark(options, workDirectory, stub);
+            benchmark.measureFootprint(report);
+            if (options.allocation()) {
+                benchmark.measureAllocation(report);
+            }
+        }
+
+        String json = report.toJson();
+        Path output = options.output().toAbsolutePath();
+        Files.createDirectories(output.getParent());
+        Files.writeString(output, json);
+        System.out.print(json);
+        System.out.println("Report written to " + output + ", agent output in " + workDirectory);
+
+        if (baseline != null) {
+            printComparison(report, baseline);
+            if (!Double.isNaN(options.maxRegressionPercent())) {
+                List<String> regressions = report.regressions(baseline, options.maxRegressionPercent());
+                if (!regressions.isEmpty()) {
+                    System.out.printf(Locale.ROOT, "Regressed by more than %.1f%%: %s%n",
+                        options.maxRegressionPercent(), regressions);
+                    System.exit(1);
+                }
+            }
+        }
+    }
+
+    void measureFootprint(BenchmarkReport report) throws Exception {
+        stub.reset();
+        try (AgentRun run = new AgentRun(List.of(), workDirectory.resolve("footprint.log"))) {
+            run.awaitStartup();
+            if (run.startedNanos != 0) {
+                report.put("startupMillis", (run.startedNanos - run.launchNanos) / 1e6);
+                report.put("agentStartupMillis", run.reportedStartupMillis);
+            }
+            run.await(() -> stub.firstRequestNanos() != 0, STARTUP_TIMEOUT_MILLIS, "the first export");
+            report.put("firstExportMillis", (stub.firstRequestNanos() - run.launchNanos) / 1e6);
+
+            run.sleep(options.warmupSeconds() * 1000L);
+            run.alignToFlush();
+
+            ProcessStats before = ProcessStats.read(run.pid());
+            long requestsBefore = stub.requests();
+            long bytesBefore = stub.bodyBytes();
+            long startNanos = System.nanoTime();
+            long rssTotal = 0;
+            long rssMax = 0;
+            int samples = 0;
+            for (int second = 0; second < options.measureSeconds(); second++) {
+                run.sleep(1000);
+                long rss = ProcessStats.read(run.pid()).rssKilobytes();
+                rssTotal += rss;
+                rssMax = Math.max(rssMax, rss);
+                samples++;
+            }
+            ProcessStats after = ProcessStats.read(run.pid());
+            double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+            double ticks = elapsedSeconds / options.intervalSeconds();
+
+            report.put("rssKilobytesAvg", (double) rssTotal / samples);
+            report.put("rssKilobytesMax", rssMax);
+            report.put("threads", after.threads());
+            report.put("cpuMillisPerTick", (after.cpuMillis() - before.cpuMillis()) / ticks);
+            report.put("cpuPercent", (after.cpuMillis() - before.cpuMillis()) / (elapsedSeconds * 10));
+            report.put("bytesSentPerTick", (stub.bodyBytes() - bytesBefore) / ticks);
+            report.put("requestsPerMinute", (stub.requests() - requestsBefore) * 60 / elapsedSeconds);
+        }
+    }
+
+    void measureAllocation(BenchmarkReport report) throws Exception {
+        stub.reset();
+        AllocationRecording recording = new AllocationRecording(workDirectory);
+        Instant from;
+        Instant to;
+        try (AgentRun run = new AgentRun(List.of(recording.jvmOption()), workDirectory.resolve("allocation.log"))) {
+            run.awaitStartup();
+            run.sleep(options.warmupSeconds() * 1000L);
+            run.alignToFlush();
+            from = Instant.now();
+            run.sleep(options.measureSeconds() * 1000L);
+            to = Instant.now();
+        }
+        // The recording is written as the agent exits
+        double ticks = (double) options.measureSeconds() / options.intervalSeconds();
+        report.put("allocatedBytesPerTick", recording.allocatedBytes(from, to) / ticks);
+    }
+
+    private Path writeConfig(Path path) throws IOException {
+        String content;
+        if (options.configTemplate() != null) {
+            content = Files.readString(options.configTemplate()).replace("${serverUrl}", stub.url());
+        } else {
+            StringBuilder yaml = new StringBuilder();
+            yaml.append("intervalSeconds: ").append(options.intervalSeconds()).append('\n');
+            yaml.append("collectors:\n");
+            for (String collector : options.collectors()) {
+                yaml.append("  ").append(collector).append(": true\n");
+            }
+            yaml.append("exporters:\n");
+            yaml.append("  logging:\n");
+            yaml.append("    enabled: false\n");
+            yaml.append("  webservice:\n");
+            yaml.append("    enabled: true\n");
+            yaml.append("    serverUrl: ").append(stub.url()).append('\n');
+            yaml.append("    bufferSeconds: ").append(options.exportSeconds()).append('\n');
+            yaml.append("    encoding: ").append(options.encoding()).append('\n');
+            yaml.append("    compression: ").append(options.compression()).append('\n');
+            // A fixed flush interval instead of the adaptive one, so exports keep a steady cadence
+            yaml.append("    flush:\n");
+            yaml.append("      minSeconds: ").append(options.exportSeconds()).append('\n');
+            yaml.append("      initialSeconds: ").append(options.exportSeconds()).append('\n');
+            yaml.append("      maxSeconds: ").append(options.exportSeconds()).append('\n');
+            content = yaml.toString();
+        }
+        return Files.writeString(path, content);
+    }
+
+    private static void printComparison(BenchmarkReport report, Map<String, Double> baseline) {
+        System.out.printf(Locale.ROOT, "%-24s %14s %14s %9s%n", "result", "baseline", "current", "change");
+        report.changeFrom(baseline).forEach((name, change) -> System.out.printf(Locale.ROOT,
+            "%-24s %14.2f %14.2f %+8.1f%%%n", name, baseline.get(name), report.results().get(name), change));
+    }
+
+    /**
+     * One agent process, with its output copied to a log file and watched for the
+     * startup message.
+     */
+    private final class AgentRun implements AutoCloseable {
+        private final Process process;
+        private final Thread reader;
+        private final Path log;
+        final long launchNanos;
+        volatile long startedNanos;
+        volatile long reportedStartupMillis;
+
+        AgentRun(List<String> extraOptions, Path log) throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(options.java().toString());
+            command.addAll(options.jvmOptions());
+            command.addAll(extraOptions);
+            command.add("-Dagent.config=" + config);
+            command.add("-jar");
+            command.add(options.agentJar().toString());
+
+            this.log = log;
+            this.launchNanos = System.nanoTime();
+            this.process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            this.reader = new Thread(this::copyOutput, "agent-output");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        long pid() {
+            return process.pid();
+        }
+
+        /**
+         * Waits for the startup message or, for agents that do not log one, the first export.
+         */
+        void awaitStartup() throws Exception {
+            await(() -> startedNanos != 0 || stub.firstRequestNanos() != 0, STARTUP_TIMEOUT_MILLIS, "startup");
+        }
+
+        /**
+         * Waits for the next export and then half an export period, so that a window of
+         * whole export periods from here holds the same number of exports on every run.
+         */
+        void alignToFlush() throws Exception {
+            long requests = stub.requests();
+            long periodMillis = options.exportSeconds() * 1000L;
+            await(() -> stub.requests() != requests, 2 * periodMillis + STARTUP_TIMEOUT_MILLIS, "an export");
+            sleep(periodMillis / 2);
+        }
+
+        void await(BooleanSupplier condition, long timeoutMillis, String what) throws Exception {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (!condition.getAsBoolean()) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Timed out waiting for " + what + ", see " + log);
+                }
+                sleep(10);
+            }
+        }
+
+        void sleep(long millis) throws Exception {
+            if (process.waitFor(millis, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Agent exited with " + process.exitValue() + ", see " + log);
+            }
+        }
+
+        private void copyOutput() {
+            try (BufferedReader output = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+                 BufferedWriter writer = Files.newBufferedWriter(log)) {
+                String line;
+                while ((line = output.readLine()) != null) {
+                    if (startedNanos == 0) {
+                        Matcher started = STARTED.matcher(line);
+                        if (started.find()) {
+                            reportedStartupMillis = Long.parseLong(started.group(1));
+                            startedNanos = System.nanoTime();
+                        }
+                    }
+                    writer.write(line);
+                    writer.newLine();
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                // The agent went away; whoever waits on it reports that
+            }
+        }
+
+        @Override
+        public void close() throws Exception {
+            // A graceful stop, so that shutdown hooks run and JFR writes its recording
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+            reader.join(5000);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.nivuk.benchmark;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Allocation measured with JFR. The agent records {@code jdk.ThreadAllocationStatistics}
+ * every second, which holds each thread's total allocated bytes; what a window
+ * allocated is the growth of those totals across it. Unlike allocation samples this is
+ * exact, and the recording has no other events to perturb the agent. Threads that end
+ * during the window are not counted.
+ */
+final class AllocationRecording {
+    static final String EVENT = "jdk.ThreadAllocationStatistics";
+    private static final String SETTINGS = "allocation.jfc";
+
+    private final Path recording;
+    private final Path settings;
+
+    AllocationRecording(Path directory) throws IOException {
+        this.recording = directory.resolve("agent.jfr");
+        this.settings = directory.resolve(SETTINGS);
+        try (InputStream input = AllocationRecording.class.getResourceAsStream(SETTINGS)) {
+            Files.copy(input, settings, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Starts the recording with the agent, to be written out when the agent exits.
+     */
+    String jvmOption() {
+        return "-XX:StartFlightRecording=settings=" + settings + ",filename=" + recording + ",dumponexit=true";
+    }
+
+    long allocatedBytes(Instant from, Instant to) throws IOException {
+        return allocatedBytes(RecordingFile.readAllEvents(recording), from, to);
+    }
+
+    static long allocatedBytes(List<RecordedEvent> events, Instant from, Instant to) {
+        Map<Long, Long> atStart = new HashMap<>();
+        Map<Long, Long> atEnd = new HashMap<>();
+        for (RecordedEvent event : events) {
+            if (!event.getEventType().getName().equals(EVENT)) {
+                continue;
+            }
+            Instant time = event.getStartTime();
+            RecordedThread thread = event.getThread("thread");
+            // JFR's own threads would be counted against the agent otherwise
+            if (thread == null || time.isAfter(to) || isRecorderThread(thread)) {
+                continue;
+            }
+            Map<Long, Long> totals = time.isAfter(from) ? atEnd : atStart;
+            totals.merge(thread.getId(), event.getLong("allocated"), Math::max);
+        }
+
+        // Threads started during the window have no reading before it and count in full
+        long allocated = 0;
+        for (Map.Entry<Long, Long> entry : atEnd.entrySet()) {
+            allocated += entry.getValue() - atStart.getOrDefault(entry.getKey(), 0L);
+        }
+        return allocated;
+    }
+
+    private static boolean isRecorderThread(RecordedThread thread) {
+        String name = thread.getJavaName();
+        return name != null && name.startsWith("JFR ");
+    }
+}
@@ -0,0 +1,149 @@
+package com.nivuk.benchmark;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Scenario and run settings, parsed from {@code --name=value} arguments.
+ */
+record BenchmarkOptions(
+    Path agentJar,
+    Path java,
+    List<String> jvmOptions,
+    Path configTemplate,
+    List<String> collectors,
+    String encoding,
+    String compression,
+    int intervalSeconds,
+    int exportSeconds,
+    int warmupSeconds,
+    int measureSeconds,
+    boolean allocation,
+    String label,
+    Path output,
+    Path baseline,
+    double maxRegressionPercent
+) {
+    static final String USAGE = """
+        Usage: java -jar benchmark-module.jar [--name=value ...]
+          --agent-jar=PATH        agent jar to benchmark (default: the agent-module build)
+          --java=PATH             java launcher (default: the one running the benchmark)
+          --jvm-options=OPTS      space-separated agent JVM options (default: -Xms64m -Xmx128m)
+          --config=PATH           agent config template; ${serverUrl} is replaced with the stub URL
+          --collectors=LIST       collectors to enable when no template is given (default: cpu,memory)
+          --encoding=NAME         json or binary (default: json)
+          --compression=NAME      none or gzip (default: none)
+          --interval=SECONDS      collection interval; must match the template (default: 1)
+          --export=SECONDS        webservice buffer and fixed flush interval; must match the template (default: 10)
+          --warmup=SECONDS        time between startup and measurement (default: 10)
+          --measure=SECONDS       measurement window, in whole export periods (default: 30)
+          --allocation=BOOLEAN    measure allocation in a second run under JFR (default: true)
+          --label=TEXT            name of this run in the report (default: the agent jar name)
+          --output=PATH           report file (default: target/agent-benchmark.json)
+          --baseline=PATH         earlier report to compare against
+          --max-regression=PCT    exit with 1 if any result is this much worse than the baseline
+        """;
+
+    static final Path DEFAULT_AGENT_JAR =
+        Path.of("agent-module/target/agent-module-1.0-SNAPSHOT-jar-with-dependencies.jar");
+
+    static BenchmarkOptions parse(String... args) {
+        Map<String, String> values = new TreeMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got '" + arg + "'");
+            }
+            values.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+
+        Path agentJar = Path.of(values.getOrDefault("agent-jar", DEFAULT_AGENT_JAR.toString()));
+        BenchmarkOptions options = new BenchmarkOptions(
+            agentJar,
+            Path.of(values.getOrDefault("java", Path.of(System.getProperty("java.home"), "bin", "java").toString())),
+            split(values.getOrDefault("jvm-options", "-Xms64m -Xmx128m"), " "),
+            optionalPath(values.get("config")),
+            split(values.getOrDefault("collectors", "cpu,memory"), ","),
+            values.getOrDefault("encoding", "json"),
+            values.getOrDefault("compression", "none"),
+            positive(values, "interval", 1),
+            positive(values, "export", 10),
+            nonNegative(values, "warmup", 10),
+            wholePeriods(positive(values, "measure", 30), positive(values, "export", 10)),
+            Boolean.parseBoolean(values.getOrDefault("allocation", "true")),
+            values.getOrDefault("label", agentJar.getFileName().toString()),
+            Path.of(values.getOrDefault("output", "target/agent-benchmark.json")),
+            optionalPath(values.get("baseline")),
+            Double.parseDouble(values.getOrDefault("max-regression", "NaN"))
+        );
+
+        values.keySet().removeAll(List.of("agent-jar", "java", "jvm-options", "config", "collectors", "encoding",
+            "compression", "interval", "export", "warmup", "measure", "allocation", "label", "output", "baseline",
+            "max-regression"));
+        if (!values.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options " + values.keySet());
+        }
+        return options;
+    }
+
+    /**
+     * The settings that define what was measured, recorded in the report so that only
+     * like-for-like runs are compared.
+     */
+    Map<String, String> scenario() {
+        Map<String, String> scenario = new TreeMap<>();
+        scenario.put("label", label);
+        scenario.put("agentJar", agentJar.toString());
+        scenario.put("javaVersion", System.getProperty("java.version"));
+        scenario.put("jvmOptions", String.join(" ", jvmOptions));
+        scenario.put("config", configTemplate == null ? "generated" : configTemplate.toString());
+        if (configTemplate == null) {
+            scenario.put("collectors", String.join(",", collectors));
+            scenario.put("encoding", encoding);
+            scenario.put("compression", compression);
+            scenario.put("exportSeconds", String.valueOf(exportSeconds));
+        }
+        scenario.put("intervalSeconds", String.valueOf(intervalSeconds));
+        scenario.put("warmupSeconds", String.valueOf(warmupSeconds));
+        scenario.put("measureSeconds", String.valueOf(measureSeconds));
+        return scenario;
+    }
+
+    private static List<String> split(String value, String separator) {
+        return Arrays.stream(value.trim().split(separator))
+            .map(String::trim)
+            .filter(part -> !part.isEmpty())
+            .toList();
+    }
+
+    private static Path optionalPath(String value) {
+        return value == null ? null : Path.of(value);
+    }
+
+    private static int positive(Map<String, String> values, String name, int defaultValue) {
+        int value = Integer.parseInt(values.getOrDefault(name, String.valueOf(defaultValue)));
+        if (value <= 0) {
+            throw new IllegalArgumentException("--" + name + " must be positive");
+        }
+        return value;
+    }
+
+    /**
+     * Rounds the window up to whole export periods, so that it always holds the
+     * same number of exports.
+     */
+    private static int wholePeriods(int seconds, int periodSeconds) {
+        return (seconds + periodSeconds - 1) / periodSeconds * periodSeconds;
+    }
+
+    private static int nonNegative(Map<String, String> values, String name, int defaultValue) {
+        int value = Integer.parseInt(values.getOrDefault(name, String.valueOf(defaultValue)));
+        if (value < 0) {
+            throw new IllegalArgumentException("--" + name + " must not be negative");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,122 @@
+package com.nivuk.benchmark;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What a benchmark run measured, as a flat JSON document: a {@code scenario} object of
+ * strings describing the run and a {@code results} object of numbers. Every result is
+ * lower-is-better, so reports of two agent versions compare key by key.
+ */
+final class BenchmarkReport {
+    private static final Pattern SECTION = Pattern.compile("\"results\"\\s*:\\s*\\{([^}]*)}");
+    private static final Pattern NUMBER = Pattern.compile("\"([^\"]+)\"\\s*:\\s*(-?[0-9][0-9.eE+-]*)");
+
+    private final Map<String, String> scenario;
+    private final Map<String, Double> results = new LinkedHashMap<>();
+
+    BenchmarkReport(Map<String, String> scenario) {
+        this.scenario = scenario;
+    }
+
+    void put(String name, double value) {
+        results.put(name, value);
+    }
+
+    Map<String, Double> results() {
+        return results;
+    }
+
+    String toJson() {
+        StringBuilder json = new StringBuilder("{\n  \"scenario\": {");
+        String separator = "\n";
+        for (Map.Entry<String, String> entry : scenario.entrySet()) {
+            json.append(separator).append("    ").append(quote(entry.getKey())).append(": ").append(quote(entry.getValue()));
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"results\": {");
+        separator = "\n";
+        for (Map.Entry<String, Double> entry : results.entrySet()) {
+            json.append(separator).append("    ").append(quote(entry.getKey())).append(": ").append(format(entry.getValue()));
+            separator = ",\n";
+        }
+        return json.append("\n  }\n}\n").toString();
+    }
+
+    /**
+     * The results of a report written by {@link #toJson()}.
+     */
+    static Map<String, Double> parseResults(String json) {
+        Matcher section = SECTION.matcher(json);
+        if (!section.find()) {
+            throw new IllegalArgumentException("No results in report");
+        }
+        Map<String, Double> results = new LinkedHashMap<>();
+        Matcher number = NUMBER.matcher(section.group(1));
+        while (number.find()) {
+            results.put(number.group(1), Double.parseDouble(number.group(2)));
+        }
+        return results;
+    }
+
+    /**
+     * Change of each result present in both reports, in percent of the baseline. Results
+     * that are zero in the baseline are skipped.
+     */
+    Map<String, Double> changeFrom(Map<String, Double> baseline) {
+        Map<String, Double> changes = new LinkedHashMap<>();
+        results.forEach((name, value) -> {
+            Double before = baseline.get(name);
+            if (before != null && before != 0) {
+                changes.put(name, (value - before) * 100 / before);
+            }
+        });
+        return changes;
+    }
+
+    /**
+     * Results that got worse than the baseline by more than {@code maxPercent}.
+     */
+    List<String> regressions(Map<String, Double> baseline, double maxPercent) {
+        List<String> regressions = new ArrayList<>();
+        changeFrom(baseline).forEach((name, change) -> {
+            if (change > maxPercent) {
+                regressions.add(name);
+            }
+        });
+        return regressions;
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return String.valueOf((long) value);
+        }
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                case '\n' -> quoted.append("\\n");
+                case '\t' -> quoted.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,55 @@
+package com.nivuk.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A reading of another process's footprint from {@code /proc/[pid]/status} and
+ * {@code /proc/[pid]/stat}.
+ *
+ * @param rssKilobytes resident set size
+ * @param threads      live threads
+ * @param cpuTicks     user plus system time, in clock ticks
+ */
+record ProcessStats(long rssKilobytes, long threads, long cpuTicks) {
+    // USER_HZ, which the kernel reports stat times in. 100 on every Linux architecture we run on
+    static final long TICKS_PER_SECOND = 100;
+
+    static ProcessStats read(long pid) throws IOException {
+        Path proc = Path.of("/proc", String.valueOf(pid));
+        String status = Files.readString(proc.resolve("status"));
+        return new ProcessStats(
+            statusField(status, "VmRSS"),
+            statusField(status, "Threads"),
+            cpuTicks(Files.readString(proc.resolve("stat"))));
+    }
+
+    long cpuMillis() {
+        return cpuTicks * 1000 / TICKS_PER_SECOND;
+    }
+
+    /**
+     * The leading number of a {@code Name: value [unit]} line.
+     */
+    static long statusField(String status, String name) {
+        for (String line : status.split("\n")) {
+            if (line.startsWith(name + ":")) {
+                String value = line.substring(name.length() + 1).trim();
+                int end = value.indexOf(' ');
+                return Long.parseLong(end < 0 ? value : value.substring(0, end));
+            }
+        }
+        throw new IllegalArgumentException("No " + name + " in process status");
+    }
+
+    /**
+     * Sum of utime and stime, fields 14 and 15 of the stat line. Fields are counted after
+     * the command name, which is in parentheses and may itself contain spaces.
+     */
+    static long cpuTicks(String stat) {
+        String[] fields = stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+        // fields[0] is field 3, the process state
+        return Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+    }
+}
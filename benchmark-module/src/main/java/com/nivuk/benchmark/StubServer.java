@@ -0,0 +1,74 @@
+package com.nivuk.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accepts metric posts on a loopback port and counts them, in place of the metrics
+ * server. Bodies are counted as received, so compressed payloads count compressed.
+ */
+final class StubServer implements AutoCloseable {
+    private final HttpServer server;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bodyBytes = new AtomicLong();
+    private final AtomicLong firstRequestNanos = new AtomicLong();
+
+    StubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/metrics";
+    }
+
+    long requests() {
+        return requests.get();
+    }
+
+    long bodyBytes() {
+        return bodyBytes.get();
+    }
+
+    /**
+     * {@link System#nanoTime()} of the first request, or 0 before one arrives.
+     */
+    long firstRequestNanos() {
+        return firstRequestNanos.get();
+    }
+
+    void reset() {
+        requests.set(0);
+        bodyBytes.set(0);
+        firstRequestNanos.set(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            long received = 0;
+            try (InputStream body = exchange.getRequestBody()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = body.read(buffer)) != -1) {
+                    received += read;
+                }
+            }
+            firstRequestNanos.compareAndSet(0, System.nanoTime());
+            bodyBytes.addAndGet(received);
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(200, -1);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
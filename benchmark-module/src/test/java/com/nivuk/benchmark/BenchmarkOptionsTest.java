@@ -0,0 +1,52 @@
+package com.nivuk.benchmark;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BenchmarkOptionsTest {
+
+    @Test
+    void shouldUseDefaults() {
+        // When
+        BenchmarkOptions options = BenchmarkOptions.parse();
+
+        // Then
+        assertEquals(BenchmarkOptions.DEFAULT_AGENT_JAR, options.agentJar());
+        assertEquals(List.of("cpu", "memory"), options.collectors());
+        assertEquals(List.of("-Xms64m", "-Xmx128m"), options.jvmOptions());
+        assertEquals(30, options.measureSeconds());
+        assertTrue(options.allocation());
+        assertNull(options.baseline());
+        assertTrue(Double.isNaN(options.maxRegressionPercent()));
+    }
+
+    @Test
+    void shouldParseOptionsAndRoundWindowToExportPeriods() {
+        // When
+        BenchmarkOptions options = BenchmarkOptions.parse("--agent-jar=/tmp/agent.jar", "--collectors=cpu, disk",
+            "--jvm-options=-Xmx64m  -XX:+UseSerialGC", "--export=15", "--measure=20", "--allocation=false",
+            "--baseline=old.json", "--max-regression=10");
+
+        // Then
+        assertEquals(Path.of("/tmp/agent.jar"), options.agentJar());
+        assertEquals("agent.jar", options.label());
+        assertEquals(List.of("cpu", "disk"), options.collectors());
+        assertEquals(List.of("-Xmx64m", "-XX:+UseSerialGC"), options.jvmOptions());
+        assertEquals(30, options.measureSeconds());
+        assertFalse(options.allocation());
+        assertEquals(Path.of("old.json"), options.baseline());
+        assertEquals(10.0, options.maxRegressionPercent());
+        assertEquals("15", options.scenario().get("exportSeconds"));
+    }
+
+    @Test
+    void shouldRejectUnknownOrMalformedOptions() {
+        assertThrows(IllegalArgumentException.class, () -> BenchmarkOptions.parse("--duration=5"));
+        assertThrows(IllegalArgumentException.class, () -> BenchmarkOptions.parse("measure"));
+        assertThrows(IllegalArgumentException.class, () -> BenchmarkOptions.parse("--interval=0"));
+    }
+}
@@ -0,0 +1,57 @@
+package com.nivuk.benchmark;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BenchmarkReportTest {
+
+    @Test
+    void shouldReadBackResultsFromJson() {
+        // Given
+        Map<String, String> scenario = new TreeMap<>();
+        scenario.put("label", "agent \"1.0\" {next}");
+        scenario.put("jvmOptions", "-Xmx128m");
+        BenchmarkReport report = new BenchmarkReport(scenario);
+        report.put("startupMillis", 412.5);
+        report.put("rssKilobytesMax", 59212);
+        report.put("cpuMillisPerTick", 0.0625);
+
+        // When
+        String json = report.toJson();
+
+        // Then
+        assertTrue(json.contains("\"label\": \"agent \\\"1.0\\\" {next}\""));
+        assertTrue(json.contains("\"rssKilobytesMax\": 59212"));
+        assertEquals(Map.of("startupMillis", 412.5, "rssKilobytesMax", 59212.0, "cpuMillisPerTick", 0.063),
+            BenchmarkReport.parseResults(json));
+    }
+
+    @Test
+    void shouldReportChangesAndRegressionsAgainstBaseline() {
+        // Given
+        BenchmarkReport report = new BenchmarkReport(Map.of());
+        report.put("startupMillis", 300);
+        report.put("rssKilobytesMax", 66000);
+        report.put("bytesSentPerTick", 190);
+        Map<String, Double> baseline = Map.of("startupMillis", 400.0, "rssKilobytesMax", 60000.0, "threads", 20.0,
+            "bytesSentPerTick", 0.0);
+
+        // When
+        Map<String, Double> changes = report.changeFrom(baseline);
+
+        // Then: results missing on either side or zero in the baseline are not compared
+        assertEquals(Map.of("startupMillis", -25.0, "rssKilobytesMax", 10.0), changes);
+        assertEquals(List.of("rssKilobytesMax"), report.regressions(baseline, 5));
+        assertEquals(List.of(), report.regressions(baseline, 10));
+    }
+
+    @Test
+    void shouldRejectReportWithoutResults() {
+        assertThrows(IllegalArgumentException.class, () -> BenchmarkReport.parseResults("{\"scenario\": {}}"));
+    }
+}
@@ -0,0 +1,45 @@
+package com.nivuk.benchmark;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProcessStatsTest {
+    private static final String STATUS = """
+        Name:\tjava
+        State:\tS (sleeping)
+        VmPeak:\t 3012344 kB
+        VmRSS:\t   59212 kB
+        Threads:\t17
+        """;
+
+    @Test
+    void shouldReadStatusFields() {
+        assertEquals(59212, ProcessStats.statusField(STATUS, "VmRSS"));
+        assertEquals(17, ProcessStats.statusField(STATUS, "Threads"));
+        assertThrows(IllegalArgumentException.class, () -> ProcessStats.statusField(STATUS, "VmSwap"));
+    }
+
+    @Test
+    void shouldSumUserAndSystemTimeWhateverTheCommandName() {
+        // Given: a command name with spaces and parentheses
+        String stat = "4242 (agent (main) x) S 1 4242 4242 0 -1 4194560 5000 0 0 0 123 45 0 0 20 0 17 0 100 0 0";
+
+        // When
+        long ticks = ProcessStats.cpuTicks(stat);
+
+        // Then
+        assertEquals(168, ticks);
+        assertEquals(1680, new ProcessStats(0, 0, ticks).cpuMillis());
+    }
+
+    @Test
+    void shouldReadOwnProcess() throws Exception {
+        // When
+        ProcessStats stats = ProcessStats.read(ProcessHandle.current().pid());
+
+        // Then
+        assertTrue(stats.rssKilobytes() > 0);
+        assertTrue(stats.threads() > 0);
+    }
+}
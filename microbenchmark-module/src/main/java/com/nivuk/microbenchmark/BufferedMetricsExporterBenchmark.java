@@ -0,0 +1,85 @@
+package com.nivuk.microbenchmark;
+
+import com.nivuk.agent.exporters.BufferedMetricsExporter;
+import com.nivuk.agent.exporters.MetricsExporter;
+import com.nivuk.agent.exporters.OverflowPolicy;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesRegistry;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Producers exporting into one {@link BufferedMetricsExporter} while its timer flushes
+ * every second, as collection tasks and exporter threads do in the agent. Run with
+ * {@code -t} to vary the number of producers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class BufferedMetricsExporterBenchmark {
+    @Param({"10", "100"})
+    int batchSize;
+
+    @Param({"DROP_OLDEST", "DROP_NEWEST", "DOWNSAMPLE"})
+    OverflowPolicy policy;
+
+    private BufferedMetricsExporter exporter;
+
+    /**
+     * Stands in for the webservice exporter so that only buffering is measured.
+     */
+    private static final class ConsumingExporter implements MetricsExporter {
+        private volatile long points;
+
+        @Override
+        public void export(List<Metric> metrics) {
+            points += metrics.size();
+        }
+
+        @Override
+        public void export(MetricBatch batch) {
+            points += batch.size();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        MetricBatch batch;
+        List<Metric> metrics;
+
+        @Setup
+        public void setUp(BufferedMetricsExporterBenchmark benchmark) {
+            SeriesRegistry registry = SeriesRegistry.getDefault();
+            batch = new MetricBatch(registry, benchmark.batchSize);
+            String host = registry.hostIdentity().current();
+            for (int i = 0; i < benchmark.batchSize; i++) {
+                batch.add(registry.intern("producer_metric_" + i, "c", host).id(), 1_700_000_000L, i);
+            }
+            metrics = batch.toMetrics();
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        exporter = new BufferedMetricsExporter(new ConsumingExporter(), 1, BufferedMetricsExporter.DEFAULT_CAPACITY,
+            policy, new AgentTelemetry());
+    }
+
+    @Benchmark
+    public void exportBatch(Producer producer) {
+        exporter.export(producer.batch);
+    }
+
+    @Benchmark
+    public void exportList(Producer producer) {
+        exporter.export(producer.metrics);
+    }
+}
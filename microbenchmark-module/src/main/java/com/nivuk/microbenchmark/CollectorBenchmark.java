@@ -0,0 +1,79 @@
+package com.nivuk.microbenchmark;
+
+import com.nivuk.agent.collectors.Collector;
+import com.nivuk.agent.collectors.CpuCollector;
+import com.nivuk.agent.collectors.MemoryCollector;
+import com.nivuk.agent.collectors.jfr.JfrCollector;
+import com.nivuk.agent.collectors.proc.*;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.telemetry.AgentTelemetry;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One collection by each collector, under the names used in agent-config.yml. Collectors
+ * reading /proc measure the host they run on; on hosts without it they return nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollectorBenchmark {
+    @Param({"cpu", "memory", "hostcpu", "hostmemory", "load", "disk", "network", "jvm", "processes", "cgroup", "agent"})
+    String collector;
+
+    private Collector instance;
+    private final MetricBatch batch = new MetricBatch();
+
+    @Setup
+    public void setUp() {
+        instance = switch (collector) {
+            case "cpu" -> new CpuCollector();
+            case "memory" -> new MemoryCollector();
+            case "hostcpu" -> new ProcStatCollector();
+            case "hostmemory" -> new MeminfoCollector();
+            case "load" -> new LoadavgCollector();
+            case "disk" -> new DiskstatsCollector();
+            case "network" -> new NetDevCollector();
+            case "jvm" -> new JfrCollector(Duration.ofSeconds(1));
+            // The agent's defaults; the budget grows with the time since the previous call
+            case "processes" -> new ProcessCollector(10, 0.02);
+            case "cgroup" -> new CgroupCollector();
+            case "agent" -> telemetry();
+            default -> throw new IllegalArgumentException("Unknown collector " + collector);
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (instance instanceof JfrCollector jfr) {
+            jfr.close();
+        }
+    }
+
+    @Benchmark
+    public List<Metric> collect() {
+        return instance.collect();
+    }
+
+    @Benchmark
+    public int collectInto() {
+        batch.clear();
+        instance.collectInto(batch);
+        return batch.size();
+    }
+
+    private static AgentTelemetry telemetry() {
+        AgentTelemetry telemetry = new AgentTelemetry();
+        telemetry.counter("agent_points_collected").add(1);
+        telemetry.timer("agent_collect_seconds").record(1_000_000);
+        telemetry.gauge("agent_queue_depth", "c", () -> 3);
+        return telemetry;
+    }
+}
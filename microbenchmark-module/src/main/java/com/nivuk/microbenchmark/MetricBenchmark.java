@@ -0,0 +1,58 @@
+package com.nivuk.microbenchmark;
+
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesDescriptor;
+import com.nivuk.agent.model.SeriesRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating one point: a {@link Metric} through each of its constructors, against
+ * appending the same point to a reused {@link MetricBatch}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricBenchmark {
+    private SeriesDescriptor series;
+    private MetricBatch batch;
+    private String host;
+    private double value;
+
+    @Setup
+    public void setUp() {
+        SeriesRegistry registry = SeriesRegistry.getDefault();
+        series = registry.register("cpu_usage", "p");
+        host = series.host();
+        batch = new MetricBatch(registry);
+    }
+
+    @Benchmark
+    public Metric canonical() {
+        return new Metric("cpu_usage", value++, "p", host, 1_700_000_000L);
+    }
+
+    @Benchmark
+    public Metric withLocalHost() {
+        return new Metric("cpu_usage", value++, "p");
+    }
+
+    @Benchmark
+    public Metric fromSeries() {
+        return new Metric(series, value++);
+    }
+
+    @Benchmark
+    public int batchAppend() {
+        if (batch.size() == 1024) {
+            batch.clear();
+        }
+        batch.add(series.id(), 1_700_000_000L, value++);
+        return batch.size();
+    }
+}
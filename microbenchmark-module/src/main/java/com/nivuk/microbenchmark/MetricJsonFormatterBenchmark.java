@@ -0,0 +1,64 @@
+package com.nivuk.microbenchmark;
+
+import com.nivuk.agent.exporters.MetricJsonFormatter;
+import com.nivuk.agent.exporters.PayloadBuffer;
+import com.nivuk.agent.model.HostIdentity;
+import com.nivuk.agent.model.Metric;
+import com.nivuk.agent.model.MetricBatch;
+import com.nivuk.agent.model.SeriesRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a payload as JSON: from a list of metrics as the logging exporter does, and
+ * from a batch into a reused buffer as the webservice exporter does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricJsonFormatterBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    int batchSize;
+
+    private final MetricJsonFormatter formatter = new MetricJsonFormatter();
+    private final PayloadBuffer buffer = new PayloadBuffer();
+    private List<Metric> metrics;
+    private MetricBatch batch;
+
+    @Setup
+    public void setUp() {
+        SeriesRegistry registry = new SeriesRegistry(HostIdentity.of("bench-host-01"));
+        batch = new MetricBatch(registry, batchSize);
+        metrics = new ArrayList<>(batchSize);
+        long timestamp = 1_700_000_000L;
+        for (int i = 0; i < batchSize; i++) {
+            // A handful of series sampled repeatedly, like a buffered flush
+            int seriesId = registry.intern("metric_" + (i % 16), "p", "bench-host-01").id();
+            double value = i * 0.731;
+            batch.add(seriesId, timestamp + i / 16, value);
+            metrics.add(batch.toMetric(i));
+        }
+    }
+
+    @Benchmark
+    public String formatList() {
+        return formatter.format(metrics);
+    }
+
+    @Benchmark
+    public String formatBatch() {
+        return formatter.format(batch);
+    }
+
+    @Benchmark
+    public int encodeBatch() {
+        formatter.encode(batch, buffer);
+        return buffer.size();
+    }
+}
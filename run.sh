@@ -115,7 +115,12 @@ run_local_jvm() {
 
     start_server
     export SERVER_URL=http://localhost:8080/metrics
-    java -Xms64m -Xmx128m -jar ./agent-module/target/agent-module-1.0-SNAPSHOT-jar-with-dependencies.jar
+    # Start from the class archive when it was built with: mvn -Pcds package
+    local fast_start=()
+    if [ -f "./agent-module/target/agent.jsa" ]; then
+        fast_start=(-XX:SharedArchiveFile=./agent-module/target/agent.jsa -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Xss512k)
+    fi
+    java "${fast_start[@]}" -Xms64m -Xmx128m -jar ./agent-module/target/agent-module-1.0-SNAPSHOT-jar-with-dependencies.jar
 }
 
 run_docker_jvm() {
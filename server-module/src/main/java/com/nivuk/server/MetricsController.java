@@ -1,15 +1,23 @@
 package com.nivuk.server;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.time.Duration;
 import java.util.*;
+import com.nivuk.server.codec.BinaryMetricsDecoder;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 @RestController
 public class MetricsController {
     private static final Logger logger = LoggerFactory.getLogger(MetricsController.class);
+    // Upper bound on filled points per series in one query
+    static final long MAX_STEPS = 11_000;
     private final MetricsStorage storage;
+    private final BinaryMetricsDecoder binaryDecoder = new BinaryMetricsDecoder();
 
     public MetricsController(MetricsStorage storage) {
         this.storage = storage;
@@ -31,17 +39,33 @@ public class MetricsController {
         }
     }
 
+    @PostMapping(value = "/metrics", consumes = BinaryMetricsDecoder.CONTENT_TYPE)
+    public void receiveBinaryMetrics(InputStream body) throws IOException {
+        int points = binaryDecoder.decode(body, storage::addMetric);
+        logger.info("Received {} binary metric points", points);
+    }
+
     @GetMapping("/metrics")
     public List<MetricsPayload.MetricPoint> getMetrics(
             @RequestParam(required = false) String host,
             @RequestParam(required = false) String metric,
             @RequestParam(required = false) Long from,
-            @RequestParam(required = false) Long to) {
+            @RequestParam(required = false) Long to,
+            @RequestParam(required = false) Long step,
+            @RequestParam(required = false) Long maxGap) {
 
         long fromTime = from != null ? from : System.currentTimeMillis() - Duration.ofHours(1).toMillis();
         long toTime = to != null ? to : System.currentTimeMillis();
 
-        return storage.queryMetrics(host, metric, fromTime, toTime);
+        if (step == null) {
+            return storage.queryMetrics(host, metric, fromTime, toTime);
+        }
+        // Fill the samples agents suppressed as unchanged with the last value sent
+        if (step <= 0 || (toTime - fromTime) / step > MAX_STEPS) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                "step must be positive and give at most " + MAX_STEPS + " points per series");
+        }
+        return storage.queryMetrics(host, metric, fromTime, toTime, step, maxGap != null ? maxGap : 0);
     }
 
     @GetMapping("/metrics/hosts")
@@ -1,11 +1,18 @@
 package com.nivuk.server;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import java.util.List;
 
 public class MetricsPayload {
     private List<MetricPoint> points;
 
+    /**
+     * A sample, or the summary of the samples in a window of {@code w} seconds starting
+     * at {@code t}. For a summary the value is the last sample, and min, max, sum and
+     * count are set; for a sample they are null and omitted from responses.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     public static class MetricPoint {
         @JsonProperty("t")
         private long timestamp;
@@ -17,6 +24,16 @@ public class MetricsPayload {
         private double value;
         @JsonProperty("u")
         private String unit;
+        @JsonProperty("w")
+        private Integer windowSeconds;
+        @JsonProperty("mn")
+        private Double min;
+        @JsonProperty("mx")
+        private Double max;
+        @JsonProperty("s")
+        private Double sum;
+        @JsonProperty("c")
+        private Long count;
 
         public long getTimestamp() { return timestamp; }
         public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
@@ -28,9 +45,43 @@ public class MetricsPayload {
         public void setValue(double value) { this.value = value; }
         public String getUnit() { return unit; }
         public void setUnit(String unit) { this.unit = unit; }
+        public Integer getWindowSeconds() { return windowSeconds; }
+        public void setWindowSeconds(Integer windowSeconds) { this.windowSeconds = windowSeconds; }
+        public Double getMin() { return min; }
+        public void setMin(Double min) { this.min = min; }
+        public Double getMax() { return max; }
+        public void setMax(Double max) { this.max = max; }
+        public Double getSum() { return sum; }
+        public void setSum(Double sum) { this.sum = sum; }
+        public Long getCount() { return count; }
+        public void setCount(Long count) { this.count = count; }
+
+        public boolean isSummary() { return count != null; }
+
+        /**
+         * A copy of this point at another time, standing in for a sample the agent did not send.
+         */
+        public MetricPoint withTimestamp(long timestamp) {
+            MetricPoint copy = new MetricPoint();
+            copy.timestamp = timestamp;
+            copy.hostName = hostName;
+            copy.metricName = metricName;
+            copy.value = value;
+            copy.unit = unit;
+            copy.windowSeconds = windowSeconds;
+            copy.min = min;
+            copy.max = max;
+            copy.sum = sum;
+            copy.count = count;
+            return copy;
+        }
 
         @Override
         public String toString() {
+            if (isSummary()) {
+                return String.format("%s=%s %s @ %d [%ds min=%s max=%s sum=%s count=%d]",
+                    metricName, value, unit, timestamp, windowSeconds, min, max, sum, count);
+            }
             return String.format("%s=%s %s @ %d", metricName, value, unit, timestamp);
         }
     }
@@ -4,7 +4,7 @@ import org.springframework.stereotype.Component;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Component
 public class MetricsStorage {
@@ -23,38 +23,76 @@ public class MetricsStorage {
     }
 
     public List<MetricsPayload.MetricPoint> queryMetrics(String host, String metricName, long fromTime, long toTime) {
+        return selectSeries(host, metricName)
+                .map(series -> series.subMap(fromTime, toTime))
+                .flatMap(map -> map.values().stream())
+                .toList();
+    }
+
+    /**
+     * Like {@link #queryMetrics(String, String, long, long)}, but where a series has no
+     * point for longer than {@code step}, its last point is repeated every {@code step}
+     * until the next one, as agents leave out samples that did not change. The last
+     * point before {@code fromTime} carries into the range. A series is not filled more
+     * than {@code maxGap} past its last point, so one that stopped reporting is not
+     * extended forever; 0 fills up to {@code toTime}.
+     */
+    public List<MetricsPayload.MetricPoint> queryMetrics(String host, String metricName, long fromTime, long toTime,
+                                                         long step, long maxGap) {
+        if (step <= 0) {
+            throw new IllegalArgumentException("Step must be positive: " + step);
+        }
+        return selectSeries(host, metricName)
+                .flatMap(series -> fillSteps(series, fromTime, toTime, step, maxGap).stream())
+                .toList();
+    }
+
+    private Stream<ConcurrentSkipListMap<Long, MetricsPayload.MetricPoint>> selectSeries(String host, String metricName) {
         if (host != null && metricName != null) {
             // Query specific host and metric
-            return storage.getOrDefault(host, Collections.emptyMap())
-                    .getOrDefault(metricName, new ConcurrentSkipListMap<>())
-                    .subMap(fromTime, toTime)
-                    .values()
-                    .stream()
-                    .toList();
+            return Stream.ofNullable(storage.getOrDefault(host, Collections.emptyMap()).get(metricName));
         } else if (host != null) {
             // Query all metrics for a host
-            return storage.getOrDefault(host, Collections.emptyMap())
-                    .values()
-                    .stream()
-                    .map(series -> series.subMap(fromTime, toTime))
-                    .flatMap(map -> map.values().stream())
-                    .toList();
+            return storage.getOrDefault(host, Collections.emptyMap()).values().stream();
         } else if (metricName != null) {
             // Query a specific metric across all hosts
             return storage.values()
                     .stream()
-                    .map(hostMetrics -> hostMetrics.getOrDefault(metricName, new ConcurrentSkipListMap<>()))
-                    .map(series -> series.subMap(fromTime, toTime))
-                    .flatMap(map -> map.values().stream())
-                    .toList();
+                    .map(hostMetrics -> hostMetrics.get(metricName))
+                    .filter(Objects::nonNull);
         } else {
             // Query all metrics from all hosts
             return storage.values()
                     .stream()
-                    .flatMap(hostMetrics -> hostMetrics.values().stream())
-                    .map(series -> series.subMap(fromTime, toTime))
-                    .flatMap(map -> map.values().stream())
-                    .toList();
+                    .flatMap(hostMetrics -> hostMetrics.values().stream());
+        }
+    }
+
+    private static List<MetricsPayload.MetricPoint> fillSteps(ConcurrentSkipListMap<Long, MetricsPayload.MetricPoint> series,
+                                                              long fromTime, long toTime, long step, long maxGap) {
+        List<MetricsPayload.MetricPoint> result = new ArrayList<>();
+        Map.Entry<Long, MetricsPayload.MetricPoint> before = series.lowerEntry(fromTime);
+        MetricsPayload.MetricPoint previous = before != null ? before.getValue() : null;
+        for (MetricsPayload.MetricPoint point : series.subMap(fromTime, toTime).values()) {
+            fillGap(result, previous, fromTime, point.getTimestamp(), step, maxGap);
+            result.add(point);
+            previous = point;
+        }
+        fillGap(result, previous, fromTime, toTime, step, maxGap);
+        return result;
+    }
+
+    // Repeats previous at each step after it that is in [fromTime, until)
+    private static void fillGap(List<MetricsPayload.MetricPoint> result, MetricsPayload.MetricPoint previous,
+                                long fromTime, long until, long step, long maxGap) {
+        if (previous == null) {
+            return;
+        }
+        long last = previous.getTimestamp();
+        long end = maxGap > 0 ? Math.min(until, last + maxGap + 1) : until;
+        long steps = Math.max(1, (fromTime - last + step - 1) / step);
+        for (long timestamp = last + steps * step; timestamp < end; timestamp += step) {
+            result.add(previous.withTimestamp(timestamp));
         }
     }
 
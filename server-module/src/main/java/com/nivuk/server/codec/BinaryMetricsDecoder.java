@@ -0,0 +1,210 @@
+package com.nivuk.server.codec;
+
+import com.nivuk.server.MetricsPayload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Decodes the agent's binary metrics encoding (see the agent's MetricBinaryEncoder
+ * for the layout): a string dictionary followed by per-series blocks with
+ * delta-of-delta timestamps and XOR-compressed values. Version 2 payloads may carry
+ * window summaries, whose min, max and sum columns follow the block. A payload is
+ * decoded completely before any point reaches the sink, so a truncated or corrupt one
+ * is rejected as a whole and its retry does not store points twice.
+ */
+public class BinaryMetricsDecoder {
+    public static final String CONTENT_TYPE = "application/x-nivuk-metrics";
+    private static final byte[] MAGIC = {'N', 'V', 'M', 'B'};
+    private static final int VERSION = 1;
+    private static final int SUMMARY_VERSION = 2;
+    private static final int KIND_SAMPLES = 0;
+    private static final int KIND_SUMMARIES = 1;
+    private static final int MAX_SUMMARY_POINTS = 1 << 20;
+    private static final int MAX_STRING_BYTES = 64 * 1024;
+
+    /**
+     * Passes the decoded points to {@code sink} once the whole payload has been
+     * validated and returns how many were decoded.
+     */
+    public int decode(InputStream input, Consumer<MetricsPayload.MetricPoint> sink) throws IOException {
+        BitReader reader = new BitReader(input.readAllBytes());
+        for (byte expected : MAGIC) {
+            if (reader.readByte() != expected) {
+                throw new MalformedPayloadException("Not a binary metrics payload");
+            }
+        }
+        int version = reader.readByte();
+        if (version != VERSION && version != SUMMARY_VERSION) {
+            throw new MalformedPayloadException("Unsupported binary metrics version " + version);
+        }
+
+        String[] dictionary = readDictionary(reader);
+        long seriesCount = reader.readVarint();
+        List<MetricsPayload.MetricPoint> decoded = new ArrayList<>();
+        for (long s = 0; s < seriesCount; s++) {
+            String host = lookup(dictionary, reader.readVarint());
+            String name = lookup(dictionary, reader.readVarint());
+            String unit = lookup(dictionary, reader.readVarint());
+            int kind = version == SUMMARY_VERSION ? reader.readByte() : KIND_SAMPLES;
+            long points = reader.readVarint();
+            // Every point after the first takes at least two bits
+            if (points > reader.remainingBytes() * 4L + 1) {
+                throw new MalformedPayloadException("Series longer than the payload: " + points);
+            }
+            if (kind == KIND_SAMPLES) {
+                readBlock(reader, points, host, name, unit, decoded::add);
+            } else if (kind == KIND_SUMMARIES) {
+                readSummaries(reader, points, host, name, unit, decoded::add);
+            } else {
+                throw new MalformedPayloadException("Unknown series kind " + kind);
+            }
+        }
+        decoded.forEach(sink);
+        return decoded.size();
+    }
+
+    private static String[] readDictionary(BitReader reader) {
+        long size = reader.readVarint();
+        // Every entry takes at least its length byte
+        if (size > reader.remainingBytes()) {
+            throw new MalformedPayloadException("Dictionary larger than the payload: " + size);
+        }
+        String[] dictionary = new String[(int) size];
+        for (int i = 0; i < dictionary.length; i++) {
+            long length = reader.readVarint();
+            if (length > MAX_STRING_BYTES) {
+                throw new MalformedPayloadException("Dictionary entry too long");
+            }
+            dictionary[i] = new String(reader.readBytes((int) length), StandardCharsets.UTF_8);
+        }
+        return dictionary;
+    }
+
+    private static String lookup(String[] dictionary, long index) {
+        if (index < 0 || index >= dictionary.length) {
+            throw new MalformedPayloadException("Dictionary index out of range: " + index);
+        }
+        return dictionary[(int) index];
+    }
+
+    private static int readBlock(BitReader reader, long points, String host, String name, String unit,
+                                 Consumer<MetricsPayload.MetricPoint> sink) {
+        if (points == 0) {
+            return 0;
+        }
+
+        long timestamp = reader.readBits(64);
+        long bits = reader.readBits(64);
+        long delta = 0;
+        int leading = 0;
+        int trailing = 0;
+        sink.accept(point(timestamp, host, name, bits, unit));
+
+        for (long i = 1; i < points; i++) {
+            delta += readDeltaOfDelta(reader);
+            timestamp += delta;
+
+            if (reader.readBit()) {
+                if (reader.readBit()) {
+                    leading = (int) reader.readBits(6);
+                    int length = (int) reader.readBits(6) + 1;
+                    trailing = 64 - leading - length;
+                    if (trailing < 0) {
+                        throw new MalformedPayloadException("Invalid XOR window");
+                    }
+                }
+                int length = 64 - leading - trailing;
+                bits ^= reader.readBits(length) << trailing;
+            }
+            sink.accept(point(timestamp, host, name, bits, unit));
+        }
+        reader.alignToByte();
+        return (int) points;
+    }
+
+    // The block holds the last values; min, max and sum follow as value streams, then windows and counts
+    private static int readSummaries(BitReader reader, long points, String host, String name, String unit,
+                                     Consumer<MetricsPayload.MetricPoint> sink) {
+        if (points > MAX_SUMMARY_POINTS) {
+            throw new MalformedPayloadException("Too many summaries in one series: " + points);
+        }
+        List<MetricsPayload.MetricPoint> summaries = new ArrayList<>((int) points);
+        readBlock(reader, points, host, name, unit, summaries::add);
+        readValues(reader, summaries, MetricsPayload.MetricPoint::setMin);
+        readValues(reader, summaries, MetricsPayload.MetricPoint::setMax);
+        readValues(reader, summaries, MetricsPayload.MetricPoint::setSum);
+        for (MetricsPayload.MetricPoint point : summaries) {
+            long window = reader.readVarint();
+            long count = reader.readVarint();
+            if (window == 0) {
+                // A plain sample in a summary series
+                point.setMin(null);
+                point.setMax(null);
+                point.setSum(null);
+            } else {
+                point.setWindowSeconds((int) Math.min(window, Integer.MAX_VALUE));
+                point.setCount(count);
+            }
+            sink.accept(point);
+        }
+        return summaries.size();
+    }
+
+    private static void readValues(BitReader reader, List<MetricsPayload.MetricPoint> points,
+                                   BiConsumer<MetricsPayload.MetricPoint, Double> setter) {
+        if (points.isEmpty()) {
+            return;
+        }
+        long bits = reader.readBits(64);
+        int leading = 0;
+        int trailing = 0;
+        setter.accept(points.get(0), Double.longBitsToDouble(bits));
+        for (int i = 1; i < points.size(); i++) {
+            if (reader.readBit()) {
+                if (reader.readBit()) {
+                    leading = (int) reader.readBits(6);
+                    int length = (int) reader.readBits(6) + 1;
+                    trailing = 64 - leading - length;
+                    if (trailing < 0) {
+                        throw new MalformedPayloadException("Invalid XOR window");
+                    }
+                }
+                bits ^= reader.readBits(64 - leading - trailing) << trailing;
+            }
+            setter.accept(points.get(i), Double.longBitsToDouble(bits));
+        }
+        reader.alignToByte();
+    }
+
+    private static long readDeltaOfDelta(BitReader reader) {
+        if (!reader.readBit()) {
+            return 0;
+        }
+        if (!reader.readBit()) {
+            return reader.readSignedBits(7);
+        }
+        if (!reader.readBit()) {
+            return reader.readSignedBits(9);
+        }
+        if (!reader.readBit()) {
+            return reader.readSignedBits(12);
+        }
+        return reader.readBits(64);
+    }
+
+    private static MetricsPayload.MetricPoint point(long timestamp, String host, String name, long bits, String unit) {
+        MetricsPayload.MetricPoint point = new MetricsPayload.MetricPoint();
+        point.setTimestamp(timestamp);
+        point.setHostName(host);
+        point.setMetricName(name);
+        point.setValue(Double.longBitsToDouble(bits));
+        point.setUnit(unit);
+        return point;
+    }
+}
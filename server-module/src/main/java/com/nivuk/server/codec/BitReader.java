@@ -0,0 +1,84 @@
+package com.nivuk.server.codec;
+
+import java.util.Arrays;
+
+/**
+ * Reads bit-packed and varint-encoded values, most significant bit first, from a
+ * payload held in memory. Reading past its end is a {@link MalformedPayloadException}.
+ */
+class BitReader {
+    private final byte[] in;
+    private int position;
+    private int current;
+    private int remainingBits;
+
+    BitReader(byte[] in) {
+        this.in = in;
+    }
+
+    long readBits(int count) {
+        long value = 0;
+        while (count > 0) {
+            if (remainingBits == 0) {
+                current = readByte();
+                remainingBits = 8;
+            }
+            int take = Math.min(count, remainingBits);
+            int shift = remainingBits - take;
+            value = (value << take) | ((current >>> shift) & ((1 << take) - 1));
+            remainingBits -= take;
+            count -= take;
+        }
+        return value;
+    }
+
+    long readSignedBits(int count) {
+        long value = readBits(count);
+        return count == 64 ? value : (value << (64 - count)) >> (64 - count);
+    }
+
+    boolean readBit() {
+        return readBits(1) != 0;
+    }
+
+    /**
+     * Skips the padding up to the next byte boundary.
+     */
+    void alignToByte() {
+        remainingBits = 0;
+    }
+
+    /**
+     * Whole bytes not read yet, which bounds how much any count in the payload can describe.
+     */
+    int remainingBytes() {
+        return in.length - position;
+    }
+
+    int readByte() {
+        if (position == in.length) {
+            throw new MalformedPayloadException("Unexpected end of payload");
+        }
+        return in[position++] & 0xFF;
+    }
+
+    long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new MalformedPayloadException("Varint too long");
+    }
+
+    byte[] readBytes(int length) {
+        if (length > remainingBytes()) {
+            throw new MalformedPayloadException("Unexpected end of payload");
+        }
+        position += length;
+        return Arrays.copyOfRange(in, position - length, position);
+    }
+}
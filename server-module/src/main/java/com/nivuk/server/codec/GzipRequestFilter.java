@@ -0,0 +1,304 @@
+package com.nivuk.server.codec;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Transparently inflates request bodies sent with {@code Content-Encoding: gzip}. The
+ * body is decompressed as the parser reads it, never buffered whole, except for a
+ * reader using non-blocking IO: its compressed body is collected first and the reader
+ * notified once it can be inflated without blocking. Per request it records the
+ * compression ratio and the time spent inflating, excluding the time spent waiting on
+ * the network.
+ */
+@Component
+public class GzipRequestFilter extends OncePerRequestFilter {
+    private static final Logger logger = LoggerFactory.getLogger(GzipRequestFilter.class);
+    private static final String GZIP = "gzip";
+
+    private final long maxInflatedBytes;
+    private final DistributionSummary compressionRatio;
+    private final DistributionSummary compressedBytes;
+    private final DistributionSummary inflatedBytes;
+    private final Timer decodeTime;
+
+    public GzipRequestFilter(ObjectProvider<MeterRegistry> meterRegistry,
+                             @Value("${metrics.ingest.max-inflated-bytes:67108864}") long maxInflatedBytes) {
+        MeterRegistry registry = meterRegistry.getIfAvailable(SimpleMeterRegistry::new);
+        this.maxInflatedBytes = maxInflatedBytes;
+        this.compressionRatio = DistributionSummary.builder("metrics.ingest.compression.ratio")
+            .description("Inflated to compressed size of gzip request bodies")
+            .register(registry);
+        this.compressedBytes = DistributionSummary.builder("metrics.ingest.compressed.bytes")
+            .baseUnit("bytes")
+            .register(registry);
+        this.inflatedBytes = DistributionSummary.builder("metrics.ingest.inflated.bytes")
+            .baseUnit("bytes")
+            .register(registry);
+        this.decodeTime = Timer.builder("metrics.ingest.decompress.time")
+            .description("CPU time spent inflating gzip request bodies")
+            .register(registry);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !GZIP.equalsIgnoreCase(request.getHeader("Content-Encoding"));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        CompressedSource source = new CompressedSource(request.getInputStream(), maxInflatedBytes);
+        MeasuringInputStream compressed = new MeasuringInputStream(source, Long.MAX_VALUE);
+        MeasuringInputStream inflated;
+        try {
+            inflated = new MeasuringInputStream(new GZIPInputStream(compressed), maxInflatedBytes);
+        } catch (ZipException | EOFException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed gzip body");
+            return;
+        }
+        try {
+            chain.doFilter(new InflatedRequest(request, source, inflated), response);
+        } finally {
+            record(compressed, inflated);
+        }
+    }
+
+    private void record(MeasuringInputStream compressed, MeasuringInputStream inflated) {
+        if (compressed.bytes == 0) {
+            return;
+        }
+        long inflateNanos = Math.max(0, inflated.nanos - compressed.nanos);
+        double ratio = (double) inflated.bytes / compressed.bytes;
+        compressedBytes.record(compressed.bytes);
+        inflatedBytes.record(inflated.bytes);
+        compressionRatio.record(ratio);
+        decodeTime.record(inflateNanos, TimeUnit.NANOSECONDS);
+        logger.debug("Inflated {} to {} bytes (ratio {}) in {} us",
+            compressed.bytes, inflated.bytes, String.format("%.1f", ratio), inflateNanos / 1000);
+    }
+
+    /**
+     * Counts bytes and the time spent inside reads of the wrapped stream.
+     */
+    private static class MeasuringInputStream extends InputStream {
+        private final InputStream in;
+        private final long limit;
+        long bytes;
+        long nanos;
+
+        MeasuringInputStream(InputStream in, long limit) {
+            this.in = in;
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = in.read();
+            nanos += System.nanoTime() - start;
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            long start = System.nanoTime();
+            int read = in.read(buffer, offset, length);
+            nanos += System.nanoTime() - start;
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void count(int read) throws IOException {
+            bytes += read;
+            if (bytes > limit) {
+                throw new IOException("Inflated request body exceeds " + limit + " bytes");
+            }
+        }
+    }
+
+    /**
+     * The compressed body. Reads go straight to the container's stream until a
+     * {@link ReadListener} is set; from then on the rest of the body is collected as
+     * the container reports it available, and read from memory once complete.
+     */
+    private static class CompressedSource extends InputStream {
+        private final ServletInputStream raw;
+        private final long limit;
+        private ByteArrayOutputStream collecting;
+        private volatile InputStream collected;
+
+        CompressedSource(ServletInputStream raw, long limit) {
+            this.raw = raw;
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return collecting == null ? raw.read() : collectedOrFail().read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return collecting == null ? raw.read(buffer, offset, length) : collectedOrFail().read(buffer, offset, length);
+        }
+
+        boolean isReady() {
+            return collecting == null || collected != null;
+        }
+
+        private InputStream collectedOrFail() {
+            if (collected == null) {
+                throw new IllegalStateException("Read before the request body is ready");
+            }
+            return collected;
+        }
+
+        void collect(ReadListener listener, ServletInputStream body) {
+            collecting = new ByteArrayOutputStream();
+            raw.setReadListener(new ReadListener() {
+                private final byte[] chunk = new byte[8192];
+
+                @Override
+                public void onDataAvailable() throws IOException {
+                    int read;
+                    while (raw.isReady() && (read = raw.read(chunk)) >= 0) {
+                        collecting.write(chunk, 0, read);
+                        if (collecting.size() > limit) {
+                            throw new IOException("Compressed request body exceeds " + limit + " bytes");
+                        }
+                    }
+                }
+
+                @Override
+                public void onAllDataRead() throws IOException {
+                    collected = new ByteArrayInputStream(collecting.toByteArray());
+                    listener.onDataAvailable();
+                    if (body.isFinished()) {
+                        listener.onAllDataRead();
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    listener.onError(t);
+                }
+            });
+        }
+    }
+
+    private static class InflatedRequest extends HttpServletRequestWrapper {
+        private final ServletInputStream body;
+
+        InflatedRequest(HttpServletRequest request, CompressedSource source, InputStream inflated) {
+            super(request);
+            this.body = new ServletInputStream() {
+                private volatile boolean finished;
+
+                @Override
+                public int read() throws IOException {
+                    int b = inflated.read();
+                    finished = b < 0;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int read = inflated.read(buffer, offset, length);
+                    finished = read < 0;
+                    return read;
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return finished;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return source.isReady();
+                }
+
+                @Override
+                public void setReadListener(ReadListener listener) {
+                    if (listener == null) {
+                        throw new NullPointerException("listener");
+                    }
+                    source.collect(listener, this);
+                }
+            };
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            return body;
+        }
+
+        @Override
+        public BufferedReader getReader() {
+            String encoding = getCharacterEncoding();
+            return new BufferedReader(new InputStreamReader(body,
+                encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public int getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return -1;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return "Content-Encoding".equalsIgnoreCase(name) ? null : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            return "Content-Encoding".equalsIgnoreCase(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+        }
+    }
+}
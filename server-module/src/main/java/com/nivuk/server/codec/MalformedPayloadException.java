@@ -0,0 +1,13 @@
+package com.nivuk.server.codec;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class MalformedPayloadException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public MalformedPayloadException(String message) {
+        super(message);
+    }
+}
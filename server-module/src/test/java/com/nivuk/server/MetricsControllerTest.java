@@ -1,5 +1,7 @@
 package com.nivuk.server;
 
+import com.nivuk.server.codec.BinaryMetricsDecoder;
+import com.nivuk.server.codec.BinaryMetricsDecoderTest;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -8,7 +10,10 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.web.servlet.MockMvc;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.zip.GZIPOutputStream;
 
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
@@ -55,6 +60,92 @@ class MetricsControllerTest {
         verify(storage, times(2)).addMetric(any());
     }
 
+    @Test
+    void shouldStoreWindowSummaries() throws Exception {
+        String requestBody = """
+            {"points": [
+                {"t": 1686394800, "h": "test-host", "n": "cpu", "v": 20, "u": "p",
+                 "w": 60, "mn": 10, "mx": 30.5, "s": 1200, "c": 60}
+            ]}""";
+
+        mockMvc.perform(post("/metrics")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(requestBody))
+                .andExpect(status().isOk());
+
+        verify(storage).addMetric(argThat(point -> point.isSummary()
+            && point.getWindowSeconds() == 60
+            && point.getMin() == 10
+            && point.getMax() == 30.5
+            && point.getSum() == 1200
+            && point.getCount() == 60
+            && point.getValue() == 20));
+    }
+
+    @Test
+    void shouldInflateGzipRequestBodies() throws Exception {
+        String requestBody = """
+            {"points": [
+                {"t": 1686394800, "h": "test-host", "n": "cpu", "v": 75.5, "u": "%"},
+                {"t": 1686394800, "h": "test-host", "n": "memory", "v": 1024, "u": "MB"},
+                {"t": 1686394801, "h": "test-host", "n": "cpu", "v": 80, "u": "%"}
+            ]}""";
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(requestBody.getBytes(StandardCharsets.UTF_8));
+        }
+
+        mockMvc.perform(post("/metrics")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header("Content-Encoding", "gzip")
+                .content(compressed.toByteArray()))
+                .andExpect(status().isOk());
+
+        verify(storage, times(3)).addMetric(any());
+    }
+
+    @Test
+    void shouldRejectMalformedGzipBody() throws Exception {
+        mockMvc.perform(post("/metrics")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header("Content-Encoding", "gzip")
+                .content("{\"points\": []}"))
+                .andExpect(status().isBadRequest());
+
+        verify(storage, never()).addMetric(any());
+    }
+
+    @Test
+    void shouldHandleMetricsInBinaryFormat() throws Exception {
+        mockMvc.perform(post("/metrics")
+                .contentType(BinaryMetricsDecoder.CONTENT_TYPE)
+                .content(BinaryMetricsDecoderTest.THREE_POINTS))
+                .andExpect(status().isOk());
+
+        verify(storage, times(3)).addMetric(any());
+    }
+
+    @Test
+    void shouldRejectMalformedBinaryPayload() throws Exception {
+        mockMvc.perform(post("/metrics")
+                .contentType(BinaryMetricsDecoder.CONTENT_TYPE)
+                .content(new byte[] {'N', 'O', 'P', 'E', 1}))
+                .andExpect(status().isBadRequest());
+
+        verify(storage, never()).addMetric(any());
+    }
+
+    @Test
+    void shouldRejectTruncatedBinaryPayloadWithoutStoringAnyPoint() throws Exception {
+        mockMvc.perform(post("/metrics")
+                .contentType(BinaryMetricsDecoder.CONTENT_TYPE)
+                .content(java.util.Arrays.copyOf(BinaryMetricsDecoderTest.THREE_POINTS,
+                    BinaryMetricsDecoderTest.THREE_POINTS.length - 3)))
+                .andExpect(status().isBadRequest());
+
+        verify(storage, never()).addMetric(any());
+    }
+
     @Test
     void shouldQueryMetricsWithFilters() throws Exception {
         List<MetricsPayload.MetricPoint> mockPoints = new ArrayList<>();
@@ -82,6 +173,34 @@ class MetricsControllerTest {
                 .andExpect(jsonPath("$[0].u").value("%"));
     }
 
+    @Test
+    void shouldFillStepsWhenRequested() throws Exception {
+        when(storage.queryMetrics("test-host", "cpu", 1000L, 2000L, 10L, 300L))
+            .thenReturn(List.of());
+
+        mockMvc.perform(get("/metrics")
+                .param("host", "test-host")
+                .param("metric", "cpu")
+                .param("from", "1000")
+                .param("to", "2000")
+                .param("step", "10")
+                .param("maxGap", "300"))
+                .andExpect(status().isOk());
+
+        verify(storage).queryMetrics("test-host", "cpu", 1000L, 2000L, 10L, 300L);
+    }
+
+    @Test
+    void shouldRejectStepsThatYieldTooManyPoints() throws Exception {
+        mockMvc.perform(get("/metrics")
+                .param("from", "0")
+                .param("to", "1000000")
+                .param("step", "1"))
+                .andExpect(status().isBadRequest());
+
+        verify(storage, never()).queryMetrics(any(), any(), anyLong(), anyLong(), anyLong(), anyLong());
+    }
+
     @Test
     void shouldReturnAvailableHosts() throws Exception {
         Set<String> mockHosts = Set.of("host1", "host2");
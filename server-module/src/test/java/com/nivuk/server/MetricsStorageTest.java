@@ -0,0 +1,109 @@
+package com.nivuk.server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsStorageTest {
+    private MetricsStorage storage;
+
+    @BeforeEach
+    void setUp() {
+        storage = new MetricsStorage();
+    }
+
+    @Test
+    void shouldReturnStoredPointsInRange() {
+        // Given
+        add("host-a", "cpu", 100, 1);
+        add("host-a", "cpu", 110, 2);
+        add("host-a", "cpu", 120, 3);
+
+        // When
+        List<MetricsPayload.MetricPoint> points = storage.queryMetrics("host-a", "cpu", 105, 120);
+
+        // Then
+        assertEquals(List.of(110L), timestamps(points));
+        assertTrue(storage.queryMetrics("host-b", "cpu", 0, 200).isEmpty());
+    }
+
+    @Test
+    void shouldFillSuppressedSamplesWithTheLastValue() {
+        // Given: the agent sent 5 at 100, suppressed 110 and 120, then sent 7 at 130
+        add("host-a", "cpu", 100, 5);
+        add("host-a", "cpu", 130, 7);
+
+        // When
+        List<MetricsPayload.MetricPoint> points = storage.queryMetrics("host-a", "cpu", 100, 150, 10, 0);
+
+        // Then
+        assertEquals(List.of(100L, 110L, 120L, 130L, 140L), timestamps(points));
+        assertEquals(List.of(5.0, 5.0, 5.0, 7.0, 7.0), values(points));
+    }
+
+    @Test
+    void shouldCarryTheLastPointBeforeTheRangeIntoIt() {
+        // Given
+        add("host-a", "cpu", 100, 5);
+
+        // When
+        List<MetricsPayload.MetricPoint> points = storage.queryMetrics("host-a", "cpu", 125, 160, 10, 0);
+
+        // Then: steps stay on the series' own grid
+        assertEquals(List.of(130L, 140L, 150L), timestamps(points));
+        assertEquals(List.of(5.0, 5.0, 5.0), values(points));
+    }
+
+    @Test
+    void shouldStopFillingAfterMaxGap() {
+        // Given
+        add("host-a", "cpu", 100, 5);
+
+        // When
+        List<MetricsPayload.MetricPoint> points = storage.queryMetrics("host-a", "cpu", 100, 1000, 10, 30);
+
+        // Then
+        assertEquals(List.of(100L, 110L, 120L, 130L), timestamps(points));
+    }
+
+    @Test
+    void shouldFillEverySelectedSeries() {
+        // Given
+        add("host-a", "cpu", 100, 1);
+        add("host-b", "cpu", 100, 2);
+        add("host-b", "memory", 100, 3);
+
+        // When
+        List<MetricsPayload.MetricPoint> points = storage.queryMetrics(null, "cpu", 100, 120, 10, 0);
+
+        // Then
+        assertEquals(4, points.size());
+        assertTrue(points.stream().allMatch(point -> point.getMetricName().equals("cpu")));
+    }
+
+    @Test
+    void shouldRejectNonPositiveStep() {
+        assertThrows(IllegalArgumentException.class, () -> storage.queryMetrics(null, null, 0, 10, 0, 0));
+    }
+
+    private void add(String host, String metric, long timestamp, double value) {
+        MetricsPayload.MetricPoint point = new MetricsPayload.MetricPoint();
+        point.setTimestamp(timestamp);
+        point.setHostName(host);
+        point.setMetricName(metric);
+        point.setValue(value);
+        point.setUnit("p");
+        storage.addMetric(point);
+    }
+
+    private static List<Long> timestamps(List<MetricsPayload.MetricPoint> points) {
+        return points.stream().map(MetricsPayload.MetricPoint::getTimestamp).toList();
+    }
+
+    private static List<Double> values(List<MetricsPayload.MetricPoint> points) {
+        return points.stream().map(MetricsPayload.MetricPoint::getValue).toList();
+    }
+}
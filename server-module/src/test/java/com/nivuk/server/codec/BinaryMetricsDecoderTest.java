@@ -0,0 +1,85 @@
+package com.nivuk.server.codec;
+
+import com.nivuk.server.MetricsPayload;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryMetricsDecoderTest {
+    // Produced by the agent's MetricBinaryEncoder: host "h", series cpu/p at t=100,101,102
+    // with values 1.0, 1.0, 2.0
+    public static final byte[] THREE_POINTS = HexFormat.of().parseHex(
+        "4e564d4201030168036370750170010001020300000000000000643ff00000000000008098257ff0");
+
+    // Produced by the agent's MetricBinaryEncoder: version 2, series cpu/p with two 60s
+    // summaries at t=60 and 120, each last=2, min=1, max=4, sum=6, count=3
+    public static final byte[] TWO_SUMMARIES = HexFormat.of().parseHex(
+        "4e564d4202030168036370750170010001020102000000000000003c40000000000000009e00"
+            + "3ff0000000000000004010000000000000004018000000000000003c033c03");
+
+    private final BinaryMetricsDecoder decoder = new BinaryMetricsDecoder();
+
+    @Test
+    void shouldDecodeAgentPayload() throws Exception {
+        List<MetricsPayload.MetricPoint> points = new ArrayList<>();
+
+        int decoded = decoder.decode(new ByteArrayInputStream(THREE_POINTS), points::add);
+
+        assertEquals(3, decoded);
+        assertEquals(List.of(100L, 101L, 102L), points.stream().map(MetricsPayload.MetricPoint::getTimestamp).toList());
+        assertEquals(List.of(1.0, 1.0, 2.0), points.stream().map(MetricsPayload.MetricPoint::getValue).toList());
+        assertEquals("h", points.get(0).getHostName());
+        assertEquals("cpu", points.get(0).getMetricName());
+        assertEquals("p", points.get(0).getUnit());
+    }
+
+    @Test
+    void shouldDecodeWindowSummaries() throws Exception {
+        List<MetricsPayload.MetricPoint> points = new ArrayList<>();
+
+        int decoded = decoder.decode(new ByteArrayInputStream(TWO_SUMMARIES), points::add);
+
+        assertEquals(2, decoded);
+        assertEquals(List.of(60L, 120L), points.stream().map(MetricsPayload.MetricPoint::getTimestamp).toList());
+        MetricsPayload.MetricPoint summary = points.get(1);
+        assertTrue(summary.isSummary());
+        assertEquals(60, summary.getWindowSeconds());
+        assertEquals(2.0, summary.getValue());
+        assertEquals(1.0, summary.getMin());
+        assertEquals(4.0, summary.getMax());
+        assertEquals(6.0, summary.getSum());
+        assertEquals(3L, summary.getCount());
+    }
+
+    @Test
+    void shouldRejectUnknownMagic() {
+        byte[] payload = "{\"points\":[]}".getBytes();
+
+        assertThrows(MalformedPayloadException.class,
+            () -> decoder.decode(new ByteArrayInputStream(payload), point -> {}));
+    }
+
+    @Test
+    void shouldRejectTruncatedPayloadWithoutPassingOnAnyPoint() {
+        byte[] truncated = java.util.Arrays.copyOf(THREE_POINTS, THREE_POINTS.length - 3);
+        List<MetricsPayload.MetricPoint> points = new ArrayList<>();
+
+        assertThrows(MalformedPayloadException.class,
+            () -> decoder.decode(new ByteArrayInputStream(truncated), points::add));
+        assertTrue(points.isEmpty());
+    }
+
+    @Test
+    void shouldRejectDictionaryLargerThanThePayload() {
+        // A dictionary size of 2^31 - 1 in a ten-byte payload
+        byte[] payload = HexFormat.of().parseHex("4e564d4201ffffffff07");
+
+        assertThrows(MalformedPayloadException.class,
+            () -> decoder.decode(new ByteArrayInputStream(payload), point -> {}));
+    }
+}
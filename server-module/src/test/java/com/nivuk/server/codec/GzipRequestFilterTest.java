@@ -0,0 +1,132 @@
+package com.nivuk.server.codec;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.http.HttpServletRequest;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GzipRequestFilterTest {
+    private final GzipRequestFilter filter = new GzipRequestFilter(
+        new StaticListableBeanFactory().getBeanProvider(MeterRegistry.class), 1 << 20);
+
+    @Test
+    void shouldInflateBodyForNonBlockingReaders() throws Exception {
+        // Given a body the container makes available in two parts
+        byte[] compressed = gzip("{\"points\":[]}");
+        AsyncBody raw = new AsyncBody(compressed, 12);
+        AtomicReference<ServletRequest> inflated = new AtomicReference<>();
+        filter.doFilter(request(raw), new MockHttpServletResponse(), (request, response) -> inflated.set(request));
+        ServletInputStream body = inflated.get().getInputStream();
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        boolean[] allRead = new boolean[1];
+
+        // When
+        body.setReadListener(new ReadListener() {
+            @Override
+            public void onDataAvailable() throws IOException {
+                int b;
+                while (body.isReady() && (b = body.read()) >= 0) {
+                    read.write(b);
+                }
+            }
+
+            @Override
+            public void onAllDataRead() {
+                allRead[0] = true;
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                fail(t);
+            }
+        });
+
+        // Then nothing can be read until the whole body has arrived
+        assertFalse(body.isReady());
+        assertThrows(IllegalStateException.class, body::read);
+        raw.deliver();
+        assertEquals("{\"points\":[]}", read.toString(StandardCharsets.UTF_8));
+        assertTrue(body.isFinished());
+        assertTrue(allRead[0]);
+    }
+
+    private static HttpServletRequest request(ServletInputStream body) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/metrics") {
+            @Override
+            public ServletInputStream getInputStream() {
+                return body;
+            }
+        };
+        request.addHeader("Content-Encoding", "gzip");
+        return request;
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Serves the first {@code available} bytes at once, as a container would before
+     * switching to non-blocking IO, and the rest only when {@link #deliver()} is called.
+     */
+    private static class AsyncBody extends ServletInputStream {
+        private final byte[] bytes;
+        private int available;
+        private int position;
+        private ReadListener listener;
+
+        AsyncBody(byte[] bytes, int available) {
+            this.bytes = bytes;
+            this.available = available;
+        }
+
+        void deliver() throws IOException {
+            available = bytes.length;
+            listener.onDataAvailable();
+            listener.onAllDataRead();
+        }
+
+        @Override
+        public int read() {
+            if (position == bytes.length) {
+                return -1;
+            }
+            if (position == available) {
+                throw new IllegalStateException("Not ready");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return position == bytes.length;
+        }
+
+        @Override
+        public boolean isReady() {
+            return position < available || isFinished();
+        }
+
+        @Override
+        public void setReadListener(ReadListener listener) {
+            this.listener = listener;
+        }
+    }
+}